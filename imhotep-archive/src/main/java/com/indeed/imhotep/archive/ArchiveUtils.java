@@ -30,6 +30,11 @@ import javax.annotation.Nonnull;
  * @author jsgroth
  */
 public final class ArchiveUtils {
+    /**
+     * prefix of archive filenames that point into a sibling archive, see {@link FileMetadata#isReference()}
+     */
+    public static final String PARENT_DIRECTORY = "../";
+
     private ArchiveUtils() {}
 
     public static MessageDigest getMD5Digest() {
@@ -51,6 +56,24 @@ public final class ArchiveUtils {
         os.flush();
     }
 
+    /**
+     * resolves the archive file a file is stored in against the directory of the archive it was listed in, following
+     * references into sibling archives
+     *
+     * @param archiveDir the archive directory, with or without a trailing slash
+     * @param archiveFilename the archive filename from the file's metadata
+     * @return the path of the archive file
+     */
+    public static String resolveArchivePath(String archiveDir, String archiveFilename) {
+        String dir = archiveDir.endsWith("/") ? archiveDir.substring(0, archiveDir.length() - 1) : archiveDir;
+        String filename = archiveFilename;
+        while (filename.startsWith(PARENT_DIRECTORY)) {
+            dir = dir.substring(0, Math.max(dir.lastIndexOf('/'), 0));
+            filename = filename.substring(PARENT_DIRECTORY.length());
+        }
+        return dir + "/" + filename;
+    }
+
     /**
      * Converts a byte array to a hex string.  The String returned
      * will be of length exactly {@code bytes.length * 2}.
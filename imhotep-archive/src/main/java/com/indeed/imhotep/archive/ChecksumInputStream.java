@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums the uncompressed contents of an archived file as they are read so they can be verified against the
+ * metadata afterwards. The CRC32 recorded by newer writers is used when the metadata has one, since it is several times
+ * cheaper to compute than the MD5 that every archive has.
+ */
+public final class ChecksumInputStream extends FilterInputStream {
+    private final FileMetadata file;
+    private final CRC32 crc32;
+    private final MessageDigest md5;
+
+    public ChecksumInputStream(InputStream in, FileMetadata file) {
+        super(in);
+        this.file = file;
+        if (file.getCrc32() >= 0) {
+            crc32 = new CRC32();
+            md5 = null;
+        } else {
+            crc32 = null;
+            md5 = ArchiveUtils.getMD5Digest();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int b = in.read();
+        if (b >= 0) {
+            if (crc32 != null) {
+                crc32.update(b);
+            } else {
+                md5.update((byte)b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        final int n = in.read(b, off, len);
+        if (n > 0) {
+            if (crc32 != null) {
+                crc32.update(b, off, n);
+            } else {
+                md5.update(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * reads the skipped bytes, since they still have to go into the checksum
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        final byte[] buf = new byte[(int)Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int read = read(buf, 0, (int)Math.min(buf.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * @param description where the file came from, for the exception message
+     * @throws IOException if the bytes read so far do not match the checksum in the metadata
+     */
+    public void verify(String description) throws IOException {
+        if (crc32 != null) {
+            if (crc32.getValue() != file.getCrc32()) {
+                throw new IOException("invalid checksum for file " + description + ": file crc32 = " + crc32.getValue() +
+                        ", crc32 in metadata = " + file.getCrc32());
+            }
+        } else {
+            final String checksum = ArchiveUtils.toHex(md5.digest());
+            if (!checksum.equals(file.getChecksum())) {
+                throw new IOException("invalid checksum for file " + description + ": file checksum = " + checksum +
+                        ", checksum in metadata = " + file.getChecksum());
+            }
+        }
+    }
+
+    /**
+     * verify a copy of an archived file that was extracted without being checksummed
+     *
+     * @throws IOException if the copy does not match the checksum in the metadata or there is an IO problem
+     */
+    public static void verify(File localFile, FileMetadata file) throws IOException {
+        final ChecksumInputStream is = new ChecksumInputStream(new BufferedInputStream(new FileInputStream(localFile)), file);
+        try {
+            final byte[] buf = new byte[65536];
+            while (is.read(buf) >= 0) {
+                // just checksumming
+            }
+        } finally {
+            is.close();
+        }
+        is.verify(localFile.getPath());
+    }
+}
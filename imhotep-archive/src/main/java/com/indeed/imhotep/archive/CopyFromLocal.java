@@ -41,7 +41,9 @@ public class CopyFromLocal {
             }
         }
 
-        copy(new File(args[0]), new Path(args[1]), overwrite);
+        final Path to = new Path(args[1]);
+        copy(to.getFileSystem(new Configuration()), new File(args[0]), to, overwrite, SquallArchiveCompressor.GZIP,
+                Runtime.getRuntime().availableProcessors());
     }
 
     public static void copy(File from, Path to, boolean overwrite) throws IOException {
@@ -53,6 +55,10 @@ public class CopyFromLocal {
     }
 
     public static void copy(FileSystem fs, File from, Path to, boolean overwrite, SquallArchiveCompressor compressor) throws IOException {
+        copy(fs, from, to, overwrite, compressor, 1);
+    }
+
+    public static void copy(FileSystem fs, File from, Path to, boolean overwrite, SquallArchiveCompressor compressor, int numThreads) throws IOException {
         if (fs.exists(to)) {
             if (!overwrite) {
                 throw new IOException("path already exists: " + to);
@@ -61,7 +67,7 @@ public class CopyFromLocal {
         }
         final SquallArchiveWriter w = new SquallArchiveWriter(fs, to, true, compressor);
         if (from.isDirectory()) {
-            w.batchAppendDirectory(from);
+            w.batchAppendDirectory(from, compressor, numThreads);
         } else {
             w.appendFile(from);
             w.commit();            
@@ -30,7 +30,8 @@ public class CopyToLocal {
             System.exit(1);
         }
 
-        copy(new Path(args[0]), new File(args[1]));
+        final Path from = new Path(args[0]);
+        copy(from.getFileSystem(new Configuration()), from, new File(args[1]), Runtime.getRuntime().availableProcessors());
         System.out.println("Wrote: " + args[1]);
     }
 
@@ -41,4 +42,8 @@ public class CopyToLocal {
     public static void copy(FileSystem fs, Path from, File to) throws IOException {
         new SquallArchiveReader(fs, from).copyAllToLocal(to);
     }
+
+    public static void copy(FileSystem fs, Path from, File to, int numThreads) throws IOException {
+        new SquallArchiveReader(fs, from).copyAllToLocal(to, new AcceptAllFileMetadataFilter(), numThreads);
+    }
 }
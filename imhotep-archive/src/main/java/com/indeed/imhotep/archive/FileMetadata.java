@@ -26,6 +26,8 @@ public class FileMetadata {
     private final long startOffset;
     private final SquallArchiveCompressor compressor;
     private String archiveFilename;
+    private final long compressedSize;
+    private final long crc32;
 
     public FileMetadata(String filename,
                         long size,
@@ -34,6 +36,29 @@ public class FileMetadata {
                         long startOffset,
                         SquallArchiveCompressor compressor,
                         String archiveFilename) {
+        this(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, -1);
+    }
+
+    public FileMetadata(String filename,
+                        long size,
+                        long timestamp,
+                        String checksum,
+                        long startOffset,
+                        SquallArchiveCompressor compressor,
+                        String archiveFilename,
+                        long compressedSize) {
+        this(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, compressedSize, -1);
+    }
+
+    public FileMetadata(String filename,
+                        long size,
+                        long timestamp,
+                        String checksum,
+                        long startOffset,
+                        SquallArchiveCompressor compressor,
+                        String archiveFilename,
+                        long compressedSize,
+                        long crc32) {
         this.filename = filename;
         this.size = size;
         this.timestamp = timestamp;
@@ -41,6 +66,8 @@ public class FileMetadata {
         this.startOffset = startOffset;
         this.compressor = compressor;
         this.archiveFilename = archiveFilename;
+        this.compressedSize = compressedSize;
+        this.crc32 = crc32;
     }
 
     public String getFilename() {
@@ -71,6 +98,37 @@ public class FileMetadata {
         return archiveFilename;
     }
 
+    /**
+     * @return the number of bytes the file takes up in its archive file, or -1 for files archived before this was
+     * recorded
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * @return the CRC32 of the uncompressed file, or -1 for files archived before this was recorded. it is much
+     * cheaper to verify than {@link #getChecksum()}, which is an MD5.
+     */
+    public long getCrc32() {
+        return crc32;
+    }
+
+    /**
+     * @return a key identifying the uncompressed contents of the file, equal for any two files with the same contents
+     * no matter which archive they are in or what they are called
+     */
+    public String getContentKey() {
+        return checksum + "-" + size;
+    }
+
+    /**
+     * @return whether the file is stored in another version of the archive rather than in this one's archive files
+     */
+    public boolean isReference() {
+        return archiveFilename.startsWith(ArchiveUtils.PARENT_DIRECTORY);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -80,6 +138,8 @@ public class FileMetadata {
 
         if (size != that.size) return false;
         if (startOffset != that.startOffset) return false;
+        if (compressedSize != that.compressedSize) return false;
+        if (crc32 != that.crc32) return false;
         if (timestamp != that.timestamp) return false;
         if (archiveFilename != null ? !archiveFilename.equals(that.archiveFilename) : that.archiveFilename != null) {
             return false;
@@ -100,6 +160,8 @@ public class FileMetadata {
         result = 31 * result + (int) (startOffset ^ (startOffset >>> 32));
         result = 31 * result + (compressor != null ? compressor.hashCode() : 0);
         result = 31 * result + (archiveFilename != null ? archiveFilename.hashCode() : 0);
+        result = 31 * result + (int) (compressedSize ^ (compressedSize >>> 32));
+        result = 31 * result + (int) (crc32 ^ (crc32 >>> 32));
         return result;
     }
 
@@ -112,6 +174,8 @@ public class FileMetadata {
                 ", checksum='" + checksum + '\'' +
                 ", startOffset=" + startOffset +
                 ", compressor=" + compressor +
+                ", compressedSize=" + compressedSize +
+                ", crc32=" + crc32 +
                 '}';
     }
 
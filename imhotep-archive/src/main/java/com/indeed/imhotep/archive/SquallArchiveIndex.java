@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metadata of an archive sorted by filename, so that files and directories can be looked up by binary search
+ * instead of scanning metadata.txt.
+ *
+ * metadata.idx holds the same entries as metadata.txt in a binary form: a header (magic, version, entry count, length
+ * of metadata.txt), the table of archive filenames, then one entry per file in filename order with the filename
+ * front-coded against the previous one.
+ *
+ * Writers that predate metadata.idx append to metadata.txt without rewriting it, so readers only use an index while
+ * metadata.txt still has the length recorded in it.
+ */
+public final class SquallArchiveIndex {
+    public static final String INDEX_FILENAME = "metadata.idx";
+
+    private static final int MAGIC = 0x53514958; // "SQIX"
+    // version 2 added the compressed size of each file, version 3 the crc32, version 4 the length of metadata.txt
+    private static final int VERSION = 4;
+
+    private static final Comparator<FileMetadata> FILENAME_COMPARATOR = new Comparator<FileMetadata>() {
+        @Override
+        public int compare(FileMetadata o1, FileMetadata o2) {
+            return o1.getFilename().compareTo(o2.getFilename());
+        }
+    };
+
+    private final String[] filenames;
+    private final List<FileMetadata> files;
+    private final long metadataTextLength;
+
+    private SquallArchiveIndex(List<FileMetadata> sortedFiles, long metadataTextLength) {
+        this.files = Collections.unmodifiableList(sortedFiles);
+        this.metadataTextLength = metadataTextLength;
+        filenames = new String[sortedFiles.size()];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = sortedFiles.get(i).getFilename();
+        }
+    }
+
+    /**
+     * build an index from metadata in archive order. if a filename appears more than once the first entry wins, like a
+     * scan of metadata.txt would.
+     */
+    public static SquallArchiveIndex build(List<FileMetadata> metadata) {
+        return build(metadata, -1);
+    }
+
+    /**
+     * like {@link #build(List)}, for an index to be written next to a metadata.txt of metadataTextLength bytes
+     */
+    public static SquallArchiveIndex build(List<FileMetadata> metadata, long metadataTextLength) {
+        final List<FileMetadata> sorted = Lists.newArrayList(metadata);
+        // stable, so the first of any duplicates stays in front
+        Collections.sort(sorted, FILENAME_COMPARATOR);
+        final List<FileMetadata> deduped = Lists.newArrayListWithCapacity(sorted.size());
+        for (final FileMetadata file : sorted) {
+            if (deduped.isEmpty() || !deduped.get(deduped.size() - 1).getFilename().equals(file.getFilename())) {
+                deduped.add(file);
+            }
+        }
+        return new SquallArchiveIndex(deduped, metadataTextLength);
+    }
+
+    /**
+     * build an index by parsing a metadata.txt stream, for archives written before metadata.idx existed
+     */
+    public static SquallArchiveIndex readText(InputStream is) throws IOException {
+        final BufferedReader r = new BufferedReader(new InputStreamReader(is, Charsets.UTF_8));
+        try {
+            final List<FileMetadata> metadata = Lists.newArrayList();
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                metadata.add(SquallArchiveReader.parseMetadata(line));
+            }
+            return build(metadata);
+        } finally {
+            r.close();
+        }
+    }
+
+    public static SquallArchiveIndex read(InputStream is) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a squall archive index");
+            }
+            final int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported squall archive index version " + version);
+            }
+            final int numFiles = in.readInt();
+            final long metadataTextLength = version >= 4 ? in.readLong() : -1;
+            final String[] archiveFilenames = new String[in.readInt()];
+            for (int i = 0; i < archiveFilenames.length; i++) {
+                archiveFilenames[i] = in.readUTF();
+            }
+
+            final List<FileMetadata> files = Lists.newArrayListWithCapacity(numFiles);
+            String previousFilename = "";
+            for (int i = 0; i < numFiles; i++) {
+                final int sharedPrefixLength = in.readUnsignedShort();
+                final String filename = previousFilename.substring(0, sharedPrefixLength) + in.readUTF();
+                final long size = in.readLong();
+                final long timestamp = in.readLong();
+                final String checksum = in.readUTF();
+                final long startOffset = in.readLong();
+                final long compressedSize = version >= 2 ? in.readLong() : -1;
+                final long crc32 = version >= 3 ? in.readLong() : -1;
+                final SquallArchiveCompressor compressor = SquallArchiveCompressor.fromKey(in.readUTF());
+                final String archiveFilename = archiveFilenames[in.readInt()];
+                files.add(new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, compressedSize, crc32));
+                previousFilename = filename;
+            }
+            return new SquallArchiveIndex(files, metadataTextLength);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(OutputStream os) throws IOException {
+        final Map<String, Integer> archiveFilenameIds = Maps.newLinkedHashMap();
+        for (final FileMetadata file : files) {
+            if (!archiveFilenameIds.containsKey(file.getArchiveFilename())) {
+                archiveFilenameIds.put(file.getArchiveFilename(), archiveFilenameIds.size());
+            }
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            out.writeLong(metadataTextLength);
+            out.writeInt(archiveFilenameIds.size());
+            for (final String archiveFilename : archiveFilenameIds.keySet()) {
+                out.writeUTF(archiveFilename);
+            }
+
+            String previousFilename = "";
+            for (final FileMetadata file : files) {
+                final String filename = file.getFilename();
+                final int sharedPrefixLength = Math.min(sharedPrefixLength(previousFilename, filename), 0xFFFF);
+                out.writeShort(sharedPrefixLength);
+                out.writeUTF(filename.substring(sharedPrefixLength));
+                out.writeLong(file.getSize());
+                out.writeLong(file.getTimestamp());
+                out.writeUTF(file.getChecksum());
+                out.writeLong(file.getStartOffset());
+                out.writeLong(file.getCompressedSize());
+                out.writeLong(file.getCrc32());
+                out.writeUTF(file.getCompressor().getKey());
+                out.writeInt(archiveFilenameIds.get(file.getArchiveFilename()));
+                previousFilename = filename;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int sharedPrefixLength(String a, String b) {
+        final int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the length of the metadata.txt this index was written next to, or -1 if it doesn't say
+     */
+    public long getMetadataTextLength() {
+        return metadataTextLength;
+    }
+
+    /**
+     * @return whether this index has every entry of a metadata.txt that is now metadataTextLength bytes long
+     */
+    public boolean isCurrent(long metadataTextLength) {
+        return this.metadataTextLength >= 0 && this.metadataTextLength == metadataTextLength;
+    }
+
+    /**
+     * @return every file in the archive in filename order
+     */
+    public List<FileMetadata> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the metadata for filename, or null if the archive does not contain it
+     */
+    @Nullable
+    public FileMetadata get(String filename) {
+        final int index = Arrays.binarySearch(filenames, filename);
+        return index >= 0 ? files.get(index) : null;
+    }
+
+    /**
+     * @return every file whose name starts with prefix, in filename order. with a prefix ending in a delimiter this is
+     * the recursive contents of that directory.
+     */
+    public List<FileMetadata> getWithPrefix(String prefix) {
+        final int start = lowerBound(prefix);
+        final int end = lowerBound(prefix + Character.MAX_VALUE);
+        return files.subList(start, end);
+    }
+
+    public boolean hasPrefix(String prefix) {
+        final int start = lowerBound(prefix);
+        return start < filenames.length && filenames[start].startsWith(prefix);
+    }
+
+    private int lowerBound(String key) {
+        final int index = Arrays.binarySearch(filenames, key);
+        return index >= 0 ? index : -(index + 1);
+    }
+}
@@ -14,6 +14,8 @@
  package com.indeed.imhotep.archive;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.indeed.util.io.Files;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
@@ -30,9 +32,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jsgroth
@@ -43,6 +49,8 @@ public class SquallArchiveReader {
     private final FileSystem fs;
     private final Path path;
 
+    private SquallArchiveIndex index;
+
     /**
      * create a SquallArchiveReader
      *
@@ -86,7 +94,31 @@ public class SquallArchiveReader {
         }
     }
 
-    private static FileMetadata parseMetadata(String line) throws IOException {
+    /**
+     * get the metadata of this archive sorted for lookups by filename. reads metadata.idx if the archive has one that
+     * is up to date with metadata.txt and falls back to parsing metadata.txt otherwise. the index is read once and
+     * then cached by this reader.
+     *
+     * @return the archive index
+     * @throws IOException if there is an IO problem
+     */
+    public synchronized SquallArchiveIndex readIndex() throws IOException {
+        if (index == null) {
+            final Path indexPath = new Path(path, SquallArchiveIndex.INDEX_FILENAME);
+            if (fs.exists(indexPath)) {
+                index = SquallArchiveIndex.read(fs.open(indexPath));
+                if (!index.isCurrent(fs.getFileStatus(new Path(path, "metadata.txt")).getLen())) {
+                    // metadata.txt was appended to by a writer that doesn't update the index
+                    index = SquallArchiveIndex.build(readMetadata());
+                }
+            } else {
+                index = SquallArchiveIndex.build(readMetadata());
+            }
+        }
+        return index;
+    }
+
+    static FileMetadata parseMetadata(String line) throws IOException {
         final String[] split = line.split("\t");
         if (split.length < 5) {
             throw new IOException("malformed metadata line: " + line);
@@ -99,7 +131,9 @@ public class SquallArchiveReader {
         final SquallArchiveCompressor compressor = split.length > 5 ?
                 SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
         final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
-        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename);
+        final long compressedSize = split.length > 7 ? Long.parseLong(split[7]) : -1;
+        final long crc32 = split.length > 8 ? Long.parseLong(split[8]) : -1;
+        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, compressedSize, crc32);
     }
 
     /**
@@ -136,6 +170,48 @@ public class SquallArchiveReader {
         }
     }
 
+    /**
+     * copies every file in the archive that is accepted by the filter to a local directory, running up to numThreads
+     * ranged reads, decompressions and checksum verifications at once
+     *
+     * @param localDir the directory to copy files into
+     * @param filter a function specifying which files should be copied
+     * @param numThreads the maximum number of files to copy concurrently
+     * @throws IOException if there is an IO problem
+     */
+    public void copyAllToLocal(final File localDir, FileMetadataFilter filter, int numThreads) throws IOException {
+        if (numThreads <= 1) {
+            copyAllToLocal(localDir, filter);
+            return;
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final FileMetadata metadata : readMetadata()) {
+                if (filter.accept(metadata)) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            copyToLocal(metadata, localDir);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (final Future<Void> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * copy a file from this archive to a local directory
      * 
@@ -144,14 +220,11 @@ public class SquallArchiveReader {
      * @throws IOException if the given file is not in the archive or if there is an IO problem
      */
     public void copyToLocal(String filename, String localDir) throws IOException {
-        final List<FileMetadata> metadataList = readMetadata();
-        for (final FileMetadata metadata : metadataList) {
-            if (filename.equals(metadata.getFilename())) {
-                copyToLocal(metadata, new File(localDir));
-                return;
-            }
+        final FileMetadata metadata = readIndex().get(filename);
+        if (metadata == null) {
+            throw new FileNotFoundException("this archive does not have a file named " + filename);
         }
-        throw new FileNotFoundException("this archive does not have a file named " + filename);
+        copyToLocal(metadata, new File(localDir));
     }
 
     /**
@@ -180,7 +253,8 @@ public class SquallArchiveReader {
     }
 
     public void tryCopyToLocal(FileMetadata file, File localDir) throws IOException {
-        if (!localDir.exists() && !localDir.mkdirs()) {
+        // another thread may be creating the same directories, so only fail if they still do not exist afterwards
+        if (!localDir.mkdirs() && !localDir.isDirectory()) {
             throw new IOException("could not create directory " + localDir);
         }
 
@@ -191,7 +265,7 @@ public class SquallArchiveReader {
             final String[] parentDirs = fullFilename.substring(0, lastSlash).split("/");
             final String fullParentPath = Files.buildPath(parentDirs);
             final File parentFile = new File(localDir, fullParentPath);
-            if ((!parentFile.exists() && !parentFile.mkdirs()) || (parentFile.exists() && !parentFile.isDirectory())) {
+            if (!parentFile.mkdirs() && !parentFile.isDirectory()) {
                 throw new IOException("unable to create directory " + parentFile.getAbsolutePath());
             }
             targetFile = new File(parentFile, fullFilename.substring(lastSlash + 1));
@@ -199,19 +273,18 @@ public class SquallArchiveReader {
             targetFile = new File(localDir, file.getFilename());
         }
 
-        final Path archivePath = new Path(path, file.getArchiveFilename());
+        final Path archivePath = file.isReference()
+                ? new Path(ArchiveUtils.resolveArchivePath(path.toString(), file.getArchiveFilename()))
+                : new Path(path, file.getArchiveFilename());
         final SquallArchiveCompressor compressor = file.getCompressor();
         final FSDataInputStream is = fs.open(archivePath);
         try {
             is.seek(file.getStartOffset());
-            final DigestInputStream digestStream = new DigestInputStream(compressor.newInputStream(is), ArchiveUtils.getMD5Digest());
+            final ChecksumInputStream checksumStream = new ChecksumInputStream(compressor.newInputStream(is), file);
             final OutputStream os = new BufferedOutputStream(new FileOutputStream(targetFile));
-            ArchiveUtils.streamCopy(digestStream, os, file.getSize());
+            ArchiveUtils.streamCopy(checksumStream, os, file.getSize());
             os.close();
-            final String checksum = ArchiveUtils.toHex(digestStream.getMessageDigest().digest());
-            if (!checksum.equals(file.getChecksum())) {
-                throw new IOException("invalid checksum for file " + fullFilename + " in archive " + path + ": file checksum = " + checksum + ", checksum in metadata = " + file.getChecksum());
-            }
+            checksumStream.verify(fullFilename + " in archive " + path);
         } finally {
             is.close();
         }
@@ -16,8 +16,12 @@
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 import org.apache.hadoop.fs.FSDataOutputStream;
@@ -37,15 +41,26 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.security.DigestInputStream;
 import java.security.DigestOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * @author jsgroth
@@ -64,6 +79,11 @@ public class SquallArchiveWriter {
 
     private final SquallArchiveCompressor defaultCompressor;
 
+    private final Path baseArchivePath;
+    private final Map<String, FileMetadata> baseFiles;
+    private final Set<Long> baseFileSizes;
+    private final AtomicLong reusedBytes = new AtomicLong();
+
     private int archivePathCounter;
 
     /**
@@ -82,6 +102,25 @@ public class SquallArchiveWriter {
     }
 
     public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor) throws IOException {
+        this(fs, path, create, defaultCompressor, null);
+    }
+
+    /**
+     * create an archive writer that stores files whose contents are already in baseArchive as references to the copies
+     * in baseArchive instead of writing them again, so that a new version of an archive only costs as much as the
+     * files that changed. files are matched by {@link FileMetadata#getContentKey()}.
+     * baseArchive must be in the same directory as path, and it must not be deleted while any archive written this way
+     * is still in use, since readers of the new archive read the reused files out of it. references are never more
+     * than one hop, a file that baseArchive itself reused refers to the archive it was originally written to.
+     *
+     * @param fs a file system implementation
+     * @param path the directory to write this archive to
+     * @param create whether to create from scratch or append to
+     * @param defaultCompressor the compressor to use for files that are not reused
+     * @param baseArchive the previous version of the archive, or null to write every file
+     * @throws IOException if there is an IO problem
+     */
+    public SquallArchiveWriter(FileSystem fs, Path path, boolean create, SquallArchiveCompressor defaultCompressor, Path baseArchive) throws IOException {
         this.fs = fs;
         this.path = path;
 
@@ -89,9 +128,25 @@ public class SquallArchiveWriter {
 
         this.defaultCompressor = defaultCompressor;
 
+        baseArchivePath = baseArchive;
+        baseFiles = Maps.newHashMap();
+        baseFileSizes = Sets.newHashSet();
+        if (baseArchive != null) {
+            if (!fs.makeQualified(path).getParent().equals(fs.makeQualified(baseArchive).getParent())) {
+                throw new IllegalArgumentException("base archive " + baseArchive + " is not in the same directory as " + path);
+            }
+            for (final FileMetadata file : new SquallArchiveReader(fs, baseArchive).readIndex().getFiles()) {
+                if (!baseFiles.containsKey(file.getContentKey())) {
+                    baseFiles.put(file.getContentKey(), file);
+                    baseFileSizes.add(file.getSize());
+                }
+            }
+        }
+
         if (create) {
             archivePathCounter = 0;
             fs.create(new Path(path, "metadata.txt"), true).close();
+            fs.delete(new Path(path, SquallArchiveIndex.INDEX_FILENAME), false);
             deleteExistingArchiveFiles(fs, path);
         } else {
             archivePathCounter = computeCurrentArchivePathCounter(fs, path);
@@ -181,6 +236,129 @@ public class SquallArchiveWriter {
         batchAppend(files, compressor, newArchivePath());
     }
 
+    /**
+     * like {@link #batchAppendDirectory(File, SquallArchiveCompressor)}, but compresses the files on numThreads threads,
+     * each writing its own archive file
+     *
+     * @param directory the directory to append
+     * @param compressor the compressor to use for every file
+     * @param numThreads the maximum number of archive files to write concurrently
+     * @throws IOException if there is an IO problem
+     */
+    public void batchAppendDirectory(File directory, SquallArchiveCompressor compressor, int numThreads) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new FileNotFoundException(directory.getAbsolutePath() + " is not a directory");
+        }
+
+        batchAppend(Arrays.asList(sorted(directory.listFiles())), compressor, numThreads);
+    }
+
+    /**
+     * like {@link #batchAppend(Iterable, SquallArchiveCompressor)}, but splits the files into up to numThreads runs of
+     * about equal size and compresses each run into its own archive file concurrently. metadata.txt lists the files in
+     * the same order as a single threaded append would.
+     *
+     * @param files the files to append
+     * @param compressor the compressor to use for every file
+     * @param numThreads the maximum number of archive files to write concurrently
+     * @throws IOException if there is an IO problem
+     */
+    public void batchAppend(Iterable<File> files, final SquallArchiveCompressor compressor, int numThreads) throws IOException {
+        final List<PendingFile> pendingFiles = Lists.newArrayList();
+        long totalSize = 0;
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                collectFiles(file, Lists.newArrayList(file.getName()), pendingFiles);
+            } else {
+                pendingFiles.add(new PendingFile(file, Collections.<String>emptyList()));
+            }
+        }
+        for (final PendingFile pendingFile : pendingFiles) {
+            totalSize += pendingFile.file.length();
+        }
+
+        final int numParts = Math.min(numThreads, pendingFiles.size());
+        if (numParts <= 1) {
+            batchAppend(files, compressor);
+            return;
+        }
+
+        // contiguous runs keep the metadata in the same order as a serial append
+        final List<List<PendingFile>> parts = Lists.newArrayList();
+        List<PendingFile> currentPart = Lists.newArrayList();
+        long currentPartSize = 0;
+        for (final PendingFile pendingFile : pendingFiles) {
+            if (!currentPart.isEmpty() && currentPartSize >= totalSize / numParts && parts.size() < numParts - 1) {
+                parts.add(currentPart);
+                currentPart = Lists.newArrayList();
+                currentPartSize = 0;
+            }
+            currentPart.add(pendingFile);
+            currentPartSize += pendingFile.file.length();
+        }
+        parts.add(currentPart);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+        try {
+            final List<Future<List<FileMetadata>>> futures = Lists.newArrayListWithCapacity(parts.size());
+            for (final List<PendingFile> part : parts) {
+                final Path archivePath = newArchivePath();
+                futures.add(executor.submit(new Callable<List<FileMetadata>>() {
+                    @Override
+                    public List<FileMetadata> call() throws IOException {
+                        final List<FileMetadata> ret = Lists.newArrayListWithCapacity(part.size());
+                        final FSDataOutputStream os = fs.create(archivePath, false);
+                        try {
+                            for (final PendingFile pendingFile : part) {
+                                ret.add(writeFile(os, pendingFile.file, pendingFile.parentDirectories, compressor, archivePath.getName()));
+                            }
+                        } finally {
+                            os.close();
+                        }
+                        return ret;
+                    }
+                }));
+            }
+            for (final Future<List<FileMetadata>> future : futures) {
+                pendingMetadataWrites.addAll(getUninterruptibly(future));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        commit();
+    }
+
+    private static <T> T getUninterruptibly(Future<T> future) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static void collectFiles(File directory, List<String> parentDirectories, List<PendingFile> out) {
+        for (final File file : sorted(directory.listFiles())) {
+            if (file.isDirectory()) {
+                final List<String> newParentDirectories = Lists.newArrayList(parentDirectories);
+                newParentDirectories.add(file.getName());
+                collectFiles(file, newParentDirectories, out);
+            } else {
+                out.add(new PendingFile(file, parentDirectories));
+            }
+        }
+    }
+
+    private static final class PendingFile {
+        final File file;
+        final List<String> parentDirectories;
+
+        private PendingFile(File file, List<String> parentDirectories) {
+            this.file = file;
+            this.parentDirectories = parentDirectories;
+        }
+    }
+
     private void batchAppend(Iterable<File> files, SquallArchiveCompressor compressor, Path archivePath) throws IOException {
         final FSDataOutputStream os = fs.create(archivePath, false);
         try {
@@ -271,29 +449,76 @@ public class SquallArchiveWriter {
     }
 
     private void internalAppendFile(FSDataOutputStream os, File file, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
+        pendingMetadataWrites.add(writeFile(os, file, parentDirectories, compressor, archiveFilename));
+    }
+
+    private FileMetadata writeFile(FSDataOutputStream os, File file, List<String> parentDirectories, SquallArchiveCompressor compressor, String archiveFilename) throws IOException {
         final String baseFilename = file.getName().replaceAll("\\s+", "_");
         final String filename = makeFilename(parentDirectories, baseFilename);
         final long size = file.length();
         final long timestamp = file.lastModified();
+
+        // only files that could match are hashed up front, the rest are hashed while they are written as usual
+        if (baseFileSizes.contains(size)) {
+            final FileMetadata baseFile = baseFiles.get(md5(file) + "-" + size);
+            if (baseFile != null) {
+                reusedBytes.addAndGet(size);
+                return new FileMetadata(filename, size, timestamp, baseFile.getChecksum(), baseFile.getStartOffset(),
+                        baseFile.getCompressor(), referenceTo(baseFile), baseFile.getCompressedSize(), baseFile.getCrc32());
+            }
+        }
+
         final long startOffset = os.getPos();
 
         final InputStream is = new BufferedInputStream(new FileInputStream(file));
         final String checksum;
+        final long crc32;
         try {
             final CompressionOutputStream cos = compressor.newOutputStream(os);
-            final DigestOutputStream dos = new DigestOutputStream(cos, ArchiveUtils.getMD5Digest());
+            // the md5 is still written for readers that predate the crc32
+            final CheckedOutputStream crcStream = new CheckedOutputStream(cos, new CRC32());
+            final DigestOutputStream dos = new DigestOutputStream(crcStream, ArchiveUtils.getMD5Digest());
             ByteStreams.copy(is, dos);
             checksum = ArchiveUtils.toHex(dos.getMessageDigest().digest());
+            crc32 = crcStream.getChecksum().getValue();
             cos.finish();
         } finally {
             is.close();
         }
+        final long compressedSize = os.getPos() - startOffset;
+
+        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename, compressedSize, crc32);
+    }
+
+    private static String md5(File file) throws IOException {
+        final InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            final DigestInputStream dis = new DigestInputStream(is, ArchiveUtils.getMD5Digest());
+            ByteStreams.copy(dis, ByteStreams.nullOutputStream());
+            return ArchiveUtils.toHex(dis.getMessageDigest().digest());
+        } finally {
+            is.close();
+        }
+    }
 
-        pendingMetadataWrites.add(new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor, archiveFilename));
+    private String referenceTo(FileMetadata baseFile) {
+        if (baseFile.isReference()) {
+            // already relative to the directory both archives are in
+            return baseFile.getArchiveFilename();
+        }
+        return ArchiveUtils.PARENT_DIRECTORY + baseArchivePath.getName() + "/" + baseFile.getArchiveFilename();
     }
 
     /**
-     * flushes pending metadata writes to metadata.txt
+     * @return the uncompressed size of the files that were stored as references to the base archive instead of being
+     * written
+     */
+    public long getReusedBytes() {
+        return reusedBytes.get();
+    }
+
+    /**
+     * flushes pending metadata writes to metadata.txt and rewrites the metadata.idx lookup index to match
      *
      * @throws IOException if there is an IO problem
      */
@@ -302,6 +527,7 @@ public class SquallArchiveWriter {
             return;
         }
 
+        final List<FileMetadata> allMetadata = Lists.newArrayList();
         final Path metadataPath = new Path(path, "metadata.txt");
         final Path tmpMetadataPath = new Path(path, "metadata." + UUID.randomUUID() + ".txt.tmp");
         final BufferedReader r = new BufferedReader(new InputStreamReader(fs.open(metadataPath), Charsets.UTF_8));
@@ -310,9 +536,11 @@ public class SquallArchiveWriter {
             try {
                 for (String line = r.readLine(); line != null; line = r.readLine()) {
                     w.println(line);
+                    allMetadata.add(SquallArchiveReader.parseMetadata(line));
                 }
                 for (final FileMetadata file : pendingMetadataWrites) {
-                    w.println(TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename()));
+                    w.println(TAB.join(file.getFilename(), file.getSize(), file.getTimestamp(), file.getChecksum(), file.getStartOffset(), file.getCompressor().getKey(), file.getArchiveFilename(), file.getCompressedSize(), file.getCrc32()));
+                    allMetadata.add(file);
                 }
             } finally {
                 w.close();
@@ -322,6 +550,12 @@ public class SquallArchiveWriter {
         }
         fs.delete(metadataPath, false);
         fs.rename(tmpMetadataPath, metadataPath);
+
+        final Path indexPath = new Path(path, SquallArchiveIndex.INDEX_FILENAME);
+        final Path tmpIndexPath = new Path(path, "metadata." + UUID.randomUUID() + ".idx.tmp");
+        SquallArchiveIndex.build(allMetadata, fs.getFileStatus(metadataPath).getLen()).write(fs.create(tmpIndexPath, false));
+        fs.delete(indexPath, false);
+        fs.rename(tmpIndexPath, indexPath);
         pendingMetadataWrites.clear();
     }
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to an entry written by {@link BlockCompressionOutputStream}. Opening the reader fetches only the
+ * trailer and the block table; every read then fetches and inflates just the blocks it overlaps.
+ */
+public class BlockCompressedEntryReader implements Closeable {
+    /**
+     * where the compressed bytes of the entry come from, addressed relative to the start of the entry
+     */
+    public interface Source {
+        void readFully(long position, byte[] b, int off, int len) throws IOException;
+    }
+
+    private final Source source;
+    private final long uncompressedSize;
+    private final int blockSize;
+    private final long[] frameOffsets;
+
+    private final Inflater inflater = new Inflater();
+    // the last block inflated, since consecutive small reads usually land in the same one
+    private int cachedBlockIndex = -1;
+    private final byte[] cachedBlock;
+    private byte[] frame = new byte[0];
+    private boolean closed = false;
+
+    /**
+     * @param source the compressed entry
+     * @param compressedSize the length of the compressed entry
+     * @param uncompressedSize the length of the original file
+     * @throws IOException if the entry is not block compressed or there is an IO problem
+     */
+    public BlockCompressedEntryReader(Source source, long compressedSize, long uncompressedSize) throws IOException {
+        this.source = source;
+        this.uncompressedSize = uncompressedSize;
+
+        final byte[] header = new byte[BlockCompressionOutputStream.HEADER_LENGTH];
+        source.readFully(0, header, 0, header.length);
+        final DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+        if (headerIn.readInt() != BlockCompressionOutputStream.MAGIC) {
+            throw new IOException("not a block compressed entry");
+        }
+        blockSize = headerIn.readInt();
+
+        final byte[] trailer = new byte[BlockCompressionOutputStream.TRAILER_LENGTH];
+        source.readFully(compressedSize - trailer.length, trailer, 0, trailer.length);
+        final long tableOffset = new DataInputStream(new ByteArrayInputStream(trailer)).readLong();
+
+        final byte[] table = new byte[(int)(compressedSize - trailer.length - tableOffset)];
+        source.readFully(tableOffset, table, 0, table.length);
+        final DataInputStream tableIn = new DataInputStream(new ByteArrayInputStream(table));
+        final int numBlocks = tableIn.readInt();
+        if ((long)numBlocks * blockSize < uncompressedSize) {
+            throw new IOException("block table of " + numBlocks + " blocks does not cover " + uncompressedSize + " bytes");
+        }
+        frameOffsets = new long[numBlocks + 1];
+        for (int i = 0; i < frameOffsets.length; i++) {
+            frameOffsets[i] = tableIn.readLong();
+        }
+        cachedBlock = new byte[blockSize];
+    }
+
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * read up to len bytes of the original file starting at position
+     *
+     * @return the number of bytes read, or -1 if position is at or past the end of the file
+     * @throws IOException if there is an IO problem
+     */
+    public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= uncompressedSize) {
+            return -1;
+        }
+        len = (int)Math.min(len, uncompressedSize - position);
+        int n = 0;
+        while (n < len) {
+            final int blockIndex = (int)((position + n) / blockSize);
+            final int blockOffset = (int)((position + n) % blockSize);
+            final int blockLength = loadBlock(blockIndex);
+            final int toCopy = Math.min(len - n, blockLength - blockOffset);
+            System.arraycopy(cachedBlock, blockOffset, b, off + n, toCopy);
+            n += toCopy;
+        }
+        return n;
+    }
+
+    private int loadBlock(int blockIndex) throws IOException {
+        final int blockLength = (int)Math.min(blockSize, uncompressedSize - (long)blockIndex * blockSize);
+        if (blockIndex == cachedBlockIndex) {
+            return blockLength;
+        }
+        final int frameLength = (int)(frameOffsets[blockIndex + 1] - frameOffsets[blockIndex]);
+        if (frame.length < frameLength) {
+            frame = new byte[frameLength];
+        }
+        source.readFully(frameOffsets[blockIndex], frame, 0, frameLength);
+        final int compressedLength = readInt(frame, 0);
+        final int uncompressedLength = readInt(frame, 4);
+        if (uncompressedLength != blockLength) {
+            throw new IOException("block " + blockIndex + " has length " + uncompressedLength + ", expected " + blockLength);
+        }
+        cachedBlockIndex = -1;
+        // a caller that looked the reader up just before it was closed still gets its read, with a throwaway inflater
+        final Inflater blockInflater = closed ? new Inflater() : inflater;
+        try {
+            BlockCompressionInputStream.inflateBlock(blockInflater, frame, BlockCompressionOutputStream.FRAME_HEADER_LENGTH,
+                    compressedLength, cachedBlock, uncompressedLength);
+        } finally {
+            if (closed) {
+                blockInflater.end();
+            }
+        }
+        cachedBlockIndex = blockIndex;
+        return blockLength;
+    }
+
+    /**
+     * release the native inflater. reads after this still work but are slower, so only close a reader once it is no
+     * longer handed out.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            inflater.end();
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+}
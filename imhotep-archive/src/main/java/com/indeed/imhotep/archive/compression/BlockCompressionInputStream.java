@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.google.common.io.ByteStreams;
+import com.indeed.util.compress.CompressionInputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads an entry written by {@link BlockCompressionOutputStream} from start to end. For reads of a few ranges of a
+ * large entry use {@link BlockCompressedEntryReader} instead.
+ */
+public class BlockCompressionInputStream extends CompressionInputStream {
+    private final DataInputStream dataIn;
+    private final Inflater inflater = new Inflater();
+    private byte[] frame = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockLength = 0;
+    private int blockPosition = 0;
+    private boolean eof = false;
+
+    public BlockCompressionInputStream(InputStream in) throws IOException {
+        super(in);
+        dataIn = new DataInputStream(in);
+        readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        if (dataIn.readInt() != BlockCompressionOutputStream.MAGIC) {
+            throw new IOException("not a block compressed entry");
+        }
+        dataIn.readInt(); // block size
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        final int compressedLength = dataIn.readInt();
+        if (compressedLength < 0) {
+            // consume the block table and trailer too, so that a following entry can be read after resetState()
+            final int numBlocks = dataIn.readInt();
+            ByteStreams.skipFully(dataIn, 8L * (numBlocks + 1) + BlockCompressionOutputStream.TRAILER_LENGTH);
+            eof = true;
+            return false;
+        }
+        final int uncompressedLength = dataIn.readInt();
+        if (frame.length < compressedLength) {
+            frame = new byte[compressedLength];
+        }
+        if (block.length < uncompressedLength) {
+            block = new byte[uncompressedLength];
+        }
+        dataIn.readFully(frame, 0, compressedLength);
+        inflateBlock(inflater, frame, 0, compressedLength, block, uncompressedLength);
+        blockLength = uncompressedLength;
+        blockPosition = 0;
+        return true;
+    }
+
+    static void inflateBlock(Inflater inflater, byte[] frame, int off, int compressedLength, byte[] block, int uncompressedLength) throws IOException {
+        if (compressedLength == uncompressedLength) {
+            System.arraycopy(frame, off, block, 0, uncompressedLength);
+            return;
+        }
+        inflater.reset();
+        inflater.setInput(frame, off, compressedLength);
+        try {
+            int n = 0;
+            while (n < uncompressedLength && !inflater.finished()) {
+                final int inflated = inflater.inflate(block, n, uncompressedLength - n);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != uncompressedLength) {
+                throw new IOException("corrupt block: expected " + uncompressedLength + " bytes but inflated " + n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (blockPosition == blockLength) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        final int n = Math.min(len, blockLength - blockPosition);
+        System.arraycopy(block, blockPosition, bytes, off, n);
+        blockPosition += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (blockPosition == blockLength) {
+            if (!nextBlock()) {
+                return -1;
+            }
+        }
+        return block[blockPosition++] & 0xFF;
+    }
+
+    /**
+     * start reading a new entry from the underlying stream, which must be positioned at the start of it
+     */
+    @Override
+    public void resetState() throws IOException {
+        blockLength = 0;
+        blockPosition = 0;
+        eof = false;
+        readHeader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            inflater.end();
+        }
+    }
+}
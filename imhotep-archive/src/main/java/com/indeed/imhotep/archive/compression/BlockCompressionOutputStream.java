@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive.compression;
+
+import com.indeed.util.compress.CompressionOutputStream;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses an archive entry as a sequence of independently deflated blocks so that any byte range can later be read
+ * by inflating only the blocks it overlaps. An entry is laid out as
+ *
+ * <pre>
+ * header:     int MAGIC, int blockSize
+ * blocks:     (int compressedLength, int uncompressedLength, byte[compressedLength])*
+ * terminator: int -1
+ * table:      int numBlocks, long[numBlocks + 1] frame offsets (the last one is the terminator's)
+ * trailer:    long offset of the table
+ * </pre>
+ *
+ * All offsets are relative to the start of the entry. A block whose compressed length equals its uncompressed length
+ * is stored raw.
+ */
+public class BlockCompressionOutputStream extends CompressionOutputStream {
+    static final int MAGIC = 0x5351424b; // "SQBK"
+    static final int HEADER_LENGTH = 8;
+    static final int FRAME_HEADER_LENGTH = 8;
+    static final int TRAILER_LENGTH = 8;
+
+    public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private final DataOutputStream dataOut;
+    private final Deflater deflater = new Deflater();
+    private final byte[] block;
+    private final byte[] compressed;
+    private int blockLength = 0;
+    private long[] frameOffsets = new long[16];
+    private int numBlocks = 0;
+    // bytes written since the start of the entry
+    private long position = 0;
+    private boolean finished = false;
+
+    public BlockCompressionOutputStream(OutputStream out) throws IOException {
+        this(out, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockCompressionOutputStream(OutputStream out, int blockSize) throws IOException {
+        super(out);
+        dataOut = new DataOutputStream(out);
+        block = new byte[blockSize];
+        compressed = new byte[blockSize];
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        dataOut.writeInt(MAGIC);
+        dataOut.writeInt(block.length);
+        position += HEADER_LENGTH;
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, block.length - blockLength);
+            System.arraycopy(bytes, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == block.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte)b;
+        if (blockLength == block.length) {
+            writeBlock();
+        }
+    }
+
+    private void addFrameOffset() {
+        if (numBlocks == frameOffsets.length) {
+            final long[] grown = new long[frameOffsets.length * 2];
+            System.arraycopy(frameOffsets, 0, grown, 0, numBlocks);
+            frameOffsets = grown;
+        }
+        frameOffsets[numBlocks++] = position;
+    }
+
+    private void writeBlock() throws IOException {
+        addFrameOffset();
+        deflater.reset();
+        deflater.setInput(block, 0, blockLength);
+        deflater.finish();
+        int compressedLength = 0;
+        // give up as soon as the output is no smaller than the input
+        while (!deflater.finished() && compressedLength < blockLength) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        if (!deflater.finished() || compressedLength >= blockLength) {
+            // incompressible, store it raw
+            dataOut.writeInt(blockLength);
+            dataOut.writeInt(blockLength);
+            dataOut.write(block, 0, blockLength);
+            position += FRAME_HEADER_LENGTH + blockLength;
+        } else {
+            dataOut.writeInt(compressedLength);
+            dataOut.writeInt(blockLength);
+            dataOut.write(compressed, 0, compressedLength);
+            position += FRAME_HEADER_LENGTH + compressedLength;
+        }
+        blockLength = 0;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (blockLength > 0) {
+            writeBlock();
+        }
+        final int blockCount = numBlocks;
+        addFrameOffset();
+        dataOut.writeInt(-1);
+        position += 4;
+
+        final long tableOffset = position;
+        dataOut.writeInt(blockCount);
+        for (int i = 0; i <= blockCount; i++) {
+            dataOut.writeLong(frameOffsets[i]);
+        }
+        dataOut.writeLong(tableOffset);
+        dataOut.flush();
+        finished = true;
+    }
+
+    /**
+     * start a new entry on the underlying stream, discarding anything buffered for the current one. call
+     * {@link #finish()} first to keep it.
+     */
+    @Override
+    public void resetState() throws IOException {
+        blockLength = 0;
+        numBlocks = 0;
+        position = 0;
+        finished = false;
+        writeHeader();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -65,6 +65,24 @@ public enum SquallArchiveCompressor {
             final SnappyCodec codec = new SnappyCodec();
             return codec;
         }
+    },
+    /**
+     * deflates each file in independent blocks with a block table at the end, so that ranges of the file can be read
+     * without decompressing all of it. see {@link BlockCompressedEntryReader}
+     */
+    BLOCK_DEFLATE("block-deflate") {
+        @Override
+        public CompressionInputStream newInputStream(InputStream is) throws IOException {
+            return new BlockCompressionInputStream(is);
+        }
+        @Override
+        public CompressionOutputStream newOutputStream(OutputStream os) throws IOException {
+            return new BlockCompressionOutputStream(os);
+        }
+        @Override
+        public boolean isRandomAccess() {
+            return true;
+        }
     };
 
     private static final Map<String, SquallArchiveCompressor> lookup;
@@ -86,6 +104,13 @@ public enum SquallArchiveCompressor {
 
     public abstract CompressionOutputStream newOutputStream(OutputStream os) throws IOException;
 
+    /**
+     * @return whether ranges of a file compressed this way can be read with a {@link BlockCompressedEntryReader}
+     */
+    public boolean isRandomAccess() {
+        return false;
+    }
+
     public String getKey() {
         return key;
     }
@@ -39,4 +39,10 @@ public class TestArchiveUtils extends TestCase {
             }
         }
     }
+
+    public void testResolveArchivePath() {
+        assertEquals("/d/shard.sqar/archive0.bin", ArchiveUtils.resolveArchivePath("/d/shard.sqar", "archive0.bin"));
+        assertEquals("/d/shard.sqar/archive0.bin", ArchiveUtils.resolveArchivePath("/d/shard.sqar/", "archive0.bin"));
+        assertEquals("/d/old.sqar/archive1.bin", ArchiveUtils.resolveArchivePath("/d/shard.sqar", "../old.sqar/archive1.bin"));
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
+
+public class TestChecksumInputStream extends TestCase {
+    private static final byte[] DATA = "the quick brown fox jumps over the lazy dog".getBytes();
+
+    private static String md5(byte[] data) {
+        return ArchiveUtils.toHex(ArchiveUtils.getMD5Digest().digest(data));
+    }
+
+    private static long crc32(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static void copy(FileMetadata file) throws IOException {
+        final ChecksumInputStream is = new ChecksumInputStream(new ByteArrayInputStream(DATA), file);
+        ArchiveUtils.streamCopy(is, new ByteArrayOutputStream(), DATA.length);
+        is.verify("test");
+    }
+
+    public void testCrc32() throws IOException {
+        copy(new FileMetadata("a", DATA.length, 0, md5(DATA), 0, NONE, "archive.bin", DATA.length, crc32(DATA)));
+    }
+
+    public void testCrc32Mismatch() {
+        try {
+            // the crc32 is preferred, so a good md5 does not help
+            copy(new FileMetadata("a", DATA.length, 0, md5(DATA), 0, NONE, "archive.bin", DATA.length, crc32(DATA) ^ 1));
+            fail("bad crc32 was not detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testSkip() throws IOException {
+        final FileMetadata file = new FileMetadata("a", DATA.length, 0, md5(DATA), 0, NONE, "archive.bin", DATA.length, crc32(DATA));
+        final ChecksumInputStream is = new ChecksumInputStream(new ByteArrayInputStream(DATA), file);
+        // skipped bytes are still checksummed
+        assertEquals(10, is.skip(10));
+        ArchiveUtils.streamCopy(is, new ByteArrayOutputStream(), DATA.length - 10 - 5);
+        assertEquals(5, is.skip(100));
+        assertEquals(0, is.skip(1));
+        is.verify("test");
+    }
+
+    public void testMd5Only() throws IOException {
+        copy(new FileMetadata("a", DATA.length, 0, md5(DATA), 0, NONE, "archive.bin"));
+        try {
+            copy(new FileMetadata("a", DATA.length, 0, md5(new byte[0]), 0, NONE, "archive.bin"));
+            fail("bad md5 was not detected");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
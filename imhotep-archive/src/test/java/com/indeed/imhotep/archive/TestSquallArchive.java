@@ -13,6 +13,7 @@
  */
  package com.indeed.imhotep.archive;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
 import com.indeed.util.io.Files;
 import com.indeed.imhotep.archive.FileMetadata;
@@ -36,10 +37,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.BLOCK_DEFLATE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.SNAPPY;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -52,7 +55,7 @@ public class TestSquallArchive {
         final Path tempDir = new Path(getTempDir());
         fs.mkdirs(tempDir);
         try {
-            for (SquallArchiveCompressor compressor : Arrays.asList(NONE, GZIP, SNAPPY)) {
+            for (SquallArchiveCompressor compressor : Arrays.asList(NONE, GZIP, SNAPPY, BLOCK_DEFLATE)) {
                 final String localTempDir = getTempDir();
                 try {
                     doTheTest(fs, tempDir, new File(localTempDir), compressor);
@@ -77,6 +80,150 @@ public class TestSquallArchive {
         }
     }
 
+    @Test
+    public void testParallel() throws IOException {
+        final FileSystem fs = new NicerLocalFileSystem();
+        final Path tempDir = new Path(getTempDir());
+        final File localDir = new File(getTempDir());
+        final File copyDir = new File(getTempDir());
+        try {
+            final Random rand = new Random();
+            final List<String> filenames = new ArrayList<String>();
+            for (int i = 0; i < 20; ++i) {
+                final String filename = (i % 3 == 0 ? "sub" + (i % 2) + "/" : "") + "tempfile" + i;
+                final File file = new File(localDir, filename);
+                file.getParentFile().mkdirs();
+                final OutputStream os = new FileOutputStream(file);
+                final int len = rand.nextInt(4096);
+                for (int j = 0; j < len; ++j) {
+                    os.write(rand.nextInt(256));
+                }
+                os.close();
+                filenames.add(filename);
+            }
+
+            final SquallArchiveWriter writer = new SquallArchiveWriter(fs, tempDir, true, GZIP);
+            writer.batchAppendDirectory(localDir, GZIP, 4);
+            assertEquals(4, fs.listStatus(tempDir, new PathFilter() {
+                @Override
+                public boolean accept(Path path) {
+                    return SquallArchiveWriter.ARCHIVE_FILENAME_PATTERN.matcher(path.getName()).matches();
+                }
+            }).length);
+
+            final SquallArchiveReader reader = new SquallArchiveReader(fs, tempDir);
+            final List<String> archivedFilenames = new ArrayList<String>();
+            for (final FileMetadata file : reader.readMetadata()) {
+                archivedFilenames.add(file.getFilename());
+            }
+            final List<String> sortedFilenames = new ArrayList<String>(archivedFilenames);
+            Collections.sort(sortedFilenames);
+            // same order as a serial append of the sorted directory tree
+            assertEquals(sortedFilenames, archivedFilenames);
+            assertEquals(filenames.size(), archivedFilenames.size());
+
+            reader.copyAllToLocal(copyDir, new AcceptAllFileMetadataFilter(), 4);
+            for (final String filename : filenames) {
+                assertTrue(com.google.common.io.Files.equal(new File(localDir, filename), new File(copyDir, filename)));
+            }
+        } finally {
+            fs.delete(tempDir, true);
+            Files.delete(localDir.getAbsolutePath());
+            Files.delete(copyDir.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void testIndexAfterAppendByOlderWriter() throws IOException {
+        final FileSystem fs = new NicerLocalFileSystem();
+        final String tempDir = getTempDir();
+        final File localDir = new File(getTempDir());
+        try {
+            for (int i = 0; i < 3; ++i) {
+                final File file = new File(localDir, "tempfile" + i);
+                file.getParentFile().mkdirs();
+                final OutputStream os = new FileOutputStream(file);
+                os.write(i);
+                os.close();
+            }
+            final SquallArchiveWriter writer = new SquallArchiveWriter(fs, new Path(tempDir), true, GZIP);
+            writer.batchAppendDirectory(localDir, GZIP, 1);
+            assertTrue(new File(tempDir, SquallArchiveIndex.INDEX_FILENAME).exists());
+            assertNotNull(new SquallArchiveReader(fs, new Path(tempDir)).readIndex().get("tempfile0"));
+
+            // a writer that predates metadata.idx only appends to metadata.txt
+            final File metadataFile = new File(tempDir, "metadata.txt");
+            final String firstLine = com.google.common.io.Files.readFirstLine(metadataFile, Charsets.UTF_8);
+            com.google.common.io.Files.append(firstLine.replace("tempfile0", "tempfile9") + "\n", metadataFile, Charsets.UTF_8);
+            final SquallArchiveIndex index = new SquallArchiveReader(fs, new Path(tempDir)).readIndex();
+            assertEquals(4, index.getFiles().size());
+            assertNotNull(index.get("tempfile9"));
+        } finally {
+            Files.delete(tempDir);
+            Files.delete(localDir.getAbsolutePath());
+        }
+    }
+
+    @Test
+    public void testBaseArchive() throws IOException {
+        final FileSystem fs = new NicerLocalFileSystem();
+        final Path tempDir = new Path(getTempDir());
+        final Path v1 = new Path(tempDir, "shard.20140101000000");
+        final Path v2 = new Path(tempDir, "shard.20140102000000");
+        final Path v3 = new Path(tempDir, "shard.20140103000000");
+        final File localDir = new File(getTempDir());
+        final File copyDir = new File(getTempDir());
+        try {
+            final Random rand = new Random();
+            for (int i = 0; i < 4; ++i) {
+                writeRandomFile(new File(localDir, "fld-f" + i + ".intdocs"), rand);
+            }
+            fs.mkdirs(v1);
+            new SquallArchiveWriter(fs, v1, true, GZIP).batchAppendDirectory(localDir);
+
+            // one changed field and one new one
+            writeRandomFile(new File(localDir, "fld-f0.intdocs"), rand);
+            writeRandomFile(new File(localDir, "fld-f4.intdocs"), rand);
+            fs.mkdirs(v2);
+            final SquallArchiveWriter writer2 = new SquallArchiveWriter(fs, v2, true, GZIP, v1);
+            writer2.batchAppendDirectory(localDir);
+            assertEquals(new File(localDir, "fld-f1.intdocs").length() +
+                         new File(localDir, "fld-f2.intdocs").length() +
+                         new File(localDir, "fld-f3.intdocs").length(), writer2.getReusedBytes());
+
+            // everything comes from either v1 or v2, and nothing refers to v2 from v3 through v2
+            fs.mkdirs(v3);
+            final SquallArchiveWriter writer3 = new SquallArchiveWriter(fs, v3, true, GZIP, v2);
+            writer3.batchAppendDirectory(localDir);
+            assertEquals(0, getArchiveBytesWritten(fs, v3));
+            final SquallArchiveReader reader = new SquallArchiveReader(fs, v3);
+            for (final FileMetadata file : reader.readMetadata()) {
+                assertTrue(file.isReference());
+                final String expectedArchive = file.getFilename().equals("fld-f0.intdocs") || file.getFilename().equals("fld-f4.intdocs")
+                        ? "../shard.20140102000000/" : "../shard.20140101000000/";
+                assertTrue(file.getArchiveFilename().startsWith(expectedArchive));
+            }
+
+            reader.copyAllToLocal(copyDir);
+            for (final File file : localDir.listFiles()) {
+                assertTrue(com.google.common.io.Files.equal(file, new File(copyDir, file.getName())));
+            }
+        } finally {
+            fs.delete(tempDir, true);
+            Files.delete(localDir.getAbsolutePath());
+            Files.delete(copyDir.getAbsolutePath());
+        }
+    }
+
+    private static void writeRandomFile(File file, Random rand) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        final int len = rand.nextInt(1024) + 1024;
+        for (int j = 0; j < len; ++j) {
+            os.write(rand.nextInt(256));
+        }
+        os.close();
+    }
+
     private static String getTempDir() {
         return com.google.common.io.Files.createTempDir().getAbsolutePath();
     }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.archive;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSquallArchiveIndex {
+    private static final List<FileMetadata> METADATA = Arrays.asList(
+            new FileMetadata("metadata.txt", 10, 1, "aa", 0, NONE, "archive0.bin"),
+            new FileMetadata("fld-f.intdocs", 200, 2, "bb", 10, GZIP, "archive0.bin"),
+            new FileMetadata("fld-f.intterms", 30, 3, "cc", 60, GZIP, "archive0.bin"),
+            new FileMetadata("dir/sub/b", 4, 4, "dd", 0, NONE, "archive1.bin"),
+            new FileMetadata("dir/a", 5, 5, "ee", 4, NONE, "archive1.bin"),
+            new FileMetadata("dir/a", 6, 6, "ff", 9, NONE, "archive2.bin")
+    );
+
+    @Test
+    public void testLookups() {
+        checkLookups(SquallArchiveIndex.build(METADATA));
+    }
+
+    @Test
+    public void testBinaryRoundTrip() throws IOException {
+        final SquallArchiveIndex index = SquallArchiveIndex.build(METADATA);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        final SquallArchiveIndex read = SquallArchiveIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(index.getFiles(), read.getFiles());
+        checkLookups(read);
+    }
+
+    @Test
+    public void testMetadataTextLength() throws IOException {
+        final SquallArchiveIndex index = SquallArchiveIndex.build(METADATA, 1234);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        final SquallArchiveIndex read = SquallArchiveIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(1234, read.getMetadataTextLength());
+        assertTrue(read.isCurrent(1234));
+        // appended to since
+        assertFalse(read.isCurrent(1300));
+        // an index that doesn't know the length is never current
+        assertFalse(SquallArchiveIndex.build(METADATA).isCurrent(1234));
+    }
+
+    private static void checkLookups(SquallArchiveIndex index) {
+        assertEquals(5, index.getFiles().size());
+        assertEquals(METADATA.get(2), index.get("fld-f.intterms"));
+        // the first of duplicate entries wins, as with a scan of metadata.txt
+        assertEquals(METADATA.get(4), index.get("dir/a"));
+        assertNull(index.get("dir"));
+        assertNull(index.get("fld-f"));
+
+        assertEquals(Arrays.asList(METADATA.get(4), METADATA.get(3)), index.getWithPrefix("dir/"));
+        assertEquals(Arrays.asList(METADATA.get(3)), index.getWithPrefix("dir/sub/"));
+        assertEquals(Arrays.asList(METADATA.get(1), METADATA.get(2)), index.getWithPrefix("fld-f."));
+        assertEquals(index.getFiles(), index.getWithPrefix(""));
+        assertTrue(index.getWithPrefix("dir/sub/b/").isEmpty());
+
+        assertTrue(index.hasPrefix("dir/sub/"));
+        assertFalse(index.hasPrefix("dir/other/"));
+        assertFalse(index.hasPrefix("zzz"));
+    }
+}
@@ -27,6 +27,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Random;
 
+import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.BLOCK_DEFLATE;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.GZIP;
 import static com.indeed.imhotep.archive.compression.SquallArchiveCompressor.NONE;
 
@@ -40,6 +41,79 @@ public class TestSquallArchiveCompressor extends TestCase {
     public void testCompressors() throws IOException {
         compressorTestCase(NONE);
         compressorTestCase(GZIP);
+        compressorTestCase(BLOCK_DEFLATE);
+    }
+
+    @Test
+    public void testBlockCompressedRandomAccess() throws IOException {
+        final Random rand = new Random();
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i) {
+            // compressible in places, incompressible in others, so both kinds of blocks get written
+            data[i] = (byte)(i < 50000 ? i / 1000 : rand.nextInt(256));
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(new byte[17]); // entries do not start at the beginning of an archive file
+        final CompressionOutputStream os = new BlockCompressionOutputStream(baos, 4096);
+        os.write(data, 0, data.length);
+        os.finish();
+        final byte[] bytes = baos.toByteArray();
+
+        final BlockCompressedEntryReader reader = new BlockCompressedEntryReader(new BlockCompressedEntryReader.Source() {
+            @Override
+            public void readFully(long position, byte[] b, int off, int len) {
+                System.arraycopy(bytes, (int)position + 17, b, off, len);
+            }
+        }, bytes.length - 17, data.length);
+
+        for (int i = 0; i < 1000; ++i) {
+            final int position = rand.nextInt(data.length);
+            final byte[] buf = new byte[rand.nextInt(10000) + 1];
+            final int n = reader.read(position, buf, 0, buf.length);
+            assertEquals(Math.min(buf.length, data.length - position), n);
+            for (int j = 0; j < n; ++j) {
+                assertEquals(data[position + j], buf[j]);
+            }
+        }
+        assertEquals(-1, reader.read(data.length, new byte[1], 0, 1));
+
+        reader.close();
+        final byte[] buf = new byte[5000];
+        assertEquals(buf.length, reader.read(48000, buf, 0, buf.length));
+        for (int j = 0; j < buf.length; ++j) {
+            assertEquals(data[48000 + j], buf[j]);
+        }
+    }
+
+    @Test
+    public void testBlockCompressedResetState() throws IOException {
+        final byte[] first = new byte[10000];
+        final byte[] second = new byte[3000];
+        for (int i = 0; i < first.length; ++i) {
+            first[i] = (byte)(i / 100);
+        }
+        for (int i = 0; i < second.length; ++i) {
+            second[i] = (byte)(i % 7);
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final CompressionOutputStream os = new BlockCompressionOutputStream(baos, 4096);
+        os.write(first, 0, first.length);
+        os.finish();
+        os.resetState();
+        os.write(second, 0, second.length);
+        os.close();
+
+        final CompressionInputStream is = new BlockCompressionInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (final byte b : first) {
+            assertEquals(b & 0xFF, is.read());
+        }
+        assertEquals(-1, is.read());
+        is.resetState();
+        for (final byte b : second) {
+            assertEquals(b & 0xFF, is.read());
+        }
+        assertEquals(-1, is.read());
+        is.close();
     }
 
     private void compressorTestCase(SquallArchiveCompressor compressor) throws IOException {
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * Summary of one field of an index, recorded when the field was written so that readers can answer questions about
+ * the field without scanning its terms.
+ *
+ * The top terms are a sample of the terms with the highest doc freqs, highest first. If the field has no more terms
+ * than the sample holds, the sample is all of them.
+ */
+public final class FieldStats {
+    private final boolean intField;
+    private final long numTerms;
+    private final long totalDocFreq;
+    private final long maxDocFreq;
+    private final long termsBytes;
+    private final long docsBytes;
+
+    private final long minIntTerm;
+    private final long maxIntTerm;
+    private final String minStringTerm;
+    private final String maxStringTerm;
+
+    private final long[] topIntTerms;
+    private final String[] topStringTerms;
+    private final long[] topTermDocFreqs;
+
+    private FieldStats(boolean intField,
+                       long numTerms,
+                       long totalDocFreq,
+                       long maxDocFreq,
+                       long termsBytes,
+                       long docsBytes,
+                       long minIntTerm,
+                       long maxIntTerm,
+                       String minStringTerm,
+                       String maxStringTerm,
+                       long[] topIntTerms,
+                       String[] topStringTerms,
+                       long[] topTermDocFreqs) {
+        this.intField = intField;
+        this.numTerms = numTerms;
+        this.totalDocFreq = totalDocFreq;
+        this.maxDocFreq = maxDocFreq;
+        this.termsBytes = termsBytes;
+        this.docsBytes = docsBytes;
+        this.minIntTerm = minIntTerm;
+        this.maxIntTerm = maxIntTerm;
+        this.minStringTerm = minStringTerm;
+        this.maxStringTerm = maxStringTerm;
+        this.topIntTerms = topIntTerms;
+        this.topStringTerms = topStringTerms;
+        this.topTermDocFreqs = topTermDocFreqs;
+    }
+
+    /**
+     * @param minTerm the smallest term, or Long.MAX_VALUE if there are no terms
+     * @param maxTerm the largest term, or Long.MIN_VALUE if there are no terms
+     * @param topTerms the sampled terms, in descending order of doc freq
+     * @param topTermDocFreqs the doc freqs of topTerms
+     */
+    public static FieldStats forIntField(long numTerms, long totalDocFreq, long maxDocFreq, long termsBytes, long docsBytes,
+                                         long minTerm, long maxTerm, long[] topTerms, long[] topTermDocFreqs) {
+        if (topTerms.length != topTermDocFreqs.length) {
+            throw new IllegalArgumentException("got " + topTerms.length + " top terms but " + topTermDocFreqs.length + " doc freqs");
+        }
+        return new FieldStats(true, numTerms, totalDocFreq, maxDocFreq, termsBytes, docsBytes,
+                minTerm, maxTerm, null, null, topTerms, null, topTermDocFreqs);
+    }
+
+    /**
+     * @param minTerm the smallest term, or null if there are no terms
+     * @param maxTerm the largest term, or null if there are no terms
+     * @param topTerms the sampled terms, in descending order of doc freq
+     * @param topTermDocFreqs the doc freqs of topTerms
+     */
+    public static FieldStats forStringField(long numTerms, long totalDocFreq, long maxDocFreq, long termsBytes, long docsBytes,
+                                            String minTerm, String maxTerm, String[] topTerms, long[] topTermDocFreqs) {
+        if (topTerms.length != topTermDocFreqs.length) {
+            throw new IllegalArgumentException("got " + topTerms.length + " top terms but " + topTermDocFreqs.length + " doc freqs");
+        }
+        return new FieldStats(false, numTerms, totalDocFreq, maxDocFreq, termsBytes, docsBytes,
+                Long.MAX_VALUE, Long.MIN_VALUE, minTerm, maxTerm, null, topTerms, topTermDocFreqs);
+    }
+
+    public boolean isIntField() {
+        return intField;
+    }
+
+    public long getNumTerms() {
+        return numTerms;
+    }
+
+    public long getTotalDocFreq() {
+        return totalDocFreq;
+    }
+
+    public long getMaxDocFreq() {
+        return maxDocFreq;
+    }
+
+    /**
+     * @return the size of the term list on disk
+     */
+    public long getTermsBytes() {
+        return termsBytes;
+    }
+
+    /**
+     * @return the size of the doc lists on disk
+     */
+    public long getDocsBytes() {
+        return docsBytes;
+    }
+
+    public long getBytes() {
+        return termsBytes + docsBytes;
+    }
+
+    public long getMinIntTerm() {
+        return minIntTerm;
+    }
+
+    public long getMaxIntTerm() {
+        return maxIntTerm;
+    }
+
+    public String getMinStringTerm() {
+        return minStringTerm;
+    }
+
+    public String getMaxStringTerm() {
+        return maxStringTerm;
+    }
+
+    public int getTopTermCount() {
+        return topTermDocFreqs.length;
+    }
+
+    /**
+     * @return whether the top term sample holds every term of the field
+     */
+    public boolean isTopTermSampleComplete() {
+        return topTermDocFreqs.length == numTerms;
+    }
+
+    public long getTopIntTerm(int i) {
+        return topIntTerms[i];
+    }
+
+    public String getTopStringTerm(int i) {
+        return topStringTerms[i];
+    }
+
+    public long getTopTermDocFreq(int i) {
+        return topTermDocFreqs[i];
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * implemented by readers that may have {@link FieldStats} recorded for their fields
+ */
+public interface FieldStatsProvider {
+    /**
+     * @return the stats of an int field, or null if none were recorded
+     */
+    FieldStats getIntFieldStats(String field);
+
+    /**
+     * @return the stats of a string field, or null if none were recorded
+     */
+    FieldStats getStringFieldStats(String field);
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * Walks the terms of a field that are in a sorted set of terms, as one merge-style sweep of an {@link IntTermIterator}
+ * instead of a reset per term. Small gaps between wanted terms are stepped over with next(), so a set that is dense in
+ * the field reads the term list sequentially, and only larger gaps pay for a reset. Runs of the set that fall between
+ * two terms of the field are skipped with a galloping search, so a large set over a field with few terms costs about
+ * the number of terms in the field.
+ *
+ * After {@link #next()} returns true the wrapped iterator is on the matched term and can be passed to
+ * {@link DocIdStream#reset(TermIterator)}. The wrapped iterator is not closed by this class.
+ */
+public final class IntTermSetIterator {
+    // about what a reset costs in terms read, and the most that are stepped over before resetting instead
+    static final int MAX_SCAN = 64;
+
+    private final IntTermIterator iterator;
+    private final long[] terms;
+
+    private int termsIndex = 0;
+    private int matchIndex = -1;
+    private boolean positioned = false;
+    private boolean done = false;
+    private long current;
+
+    /**
+     * @param iterator the term iterator of the field, which should not have been used yet
+     * @param terms the terms to look for, sorted in ascending order, may contain duplicates
+     */
+    public IntTermSetIterator(IntTermIterator iterator, long[] terms) {
+        this.iterator = iterator;
+        this.terms = terms;
+    }
+
+    /**
+     * @return true if the wrapped iterator moved to the next term of the field that is in the set
+     */
+    public boolean next() {
+        while (!done && termsIndex < terms.length) {
+            final long target = terms[termsIndex];
+            if (!positioned || current < target) {
+                if (!advanceTo(target)) {
+                    done = true;
+                    return false;
+                }
+            }
+            if (current == target) {
+                matchIndex = termsIndex;
+                while (termsIndex < terms.length && terms[termsIndex] == target) {
+                    ++termsIndex;
+                }
+                return true;
+            }
+            termsIndex = gallop(terms, termsIndex + 1, current);
+        }
+        done = true;
+        return false;
+    }
+
+    private boolean advanceTo(long target) {
+        if (positioned) {
+            for (int i = 0; i < MAX_SCAN; ++i) {
+                if (!iterator.next()) return false;
+                current = iterator.term();
+                if (current >= target) return true;
+            }
+        }
+        iterator.reset(target);
+        if (!iterator.next()) return false;
+        current = iterator.term();
+        positioned = true;
+        return true;
+    }
+
+    /**
+     * @return the first index at or after from of a term that is >= key, or terms.length if there is none
+     */
+    private static int gallop(long[] terms, int from, long key) {
+        int lo = from;
+        int step = 1;
+        while (lo + step < terms.length && terms[lo + step - 1] < key) {
+            lo += step;
+            step <<= 1;
+        }
+        int hi = Math.min(lo + step, terms.length);
+        // the answer is in [lo, hi]
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (terms[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the matched term, valid after next() returned true
+     */
+    public long term() {
+        return current;
+    }
+
+    /**
+     * @return the doc freq of the matched term, valid after next() returned true
+     */
+    public int docFreq() {
+        return iterator.docFreq();
+    }
+
+    /**
+     * @return the index in the set of the matched term, the first one if it is there more than once
+     */
+    public int getIndex() {
+        return matchIndex;
+    }
+}
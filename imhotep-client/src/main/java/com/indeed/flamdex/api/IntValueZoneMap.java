@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * The smallest and largest value in every zone of {@link #ZONE_SIZE} consecutive docs of an int value lookup. A range
+ * filter can handle a zone whose values all fall inside or all fall outside the range as a whole instead of looking up
+ * each of its docs, so a selective filter on a field the docs are ordered by, like time, only looks at the few zones
+ * where the range starts and ends.
+ */
+public final class IntValueZoneMap {
+    public static final int ZONE_SIZE = 4096;
+
+    public static final int NONE_IN_RANGE = 0;
+    public static final int SOME_IN_RANGE = 1;
+    public static final int ALL_IN_RANGE = 2;
+
+    private final int numDocs;
+    private final long[] mins;
+    private final long[] maxes;
+
+    private IntValueZoneMap(int numDocs, long[] mins, long[] maxes) {
+        this.numDocs = numDocs;
+        this.mins = mins;
+        this.maxes = maxes;
+    }
+
+    public static IntValueZoneMap build(IntValueLookup lookup, int numDocs) {
+        final int numZones = getNumZones(numDocs);
+        final long[] mins = new long[numZones];
+        final long[] maxes = new long[numZones];
+        final int[] docIds = new int[ZONE_SIZE];
+        final long[] values = new long[ZONE_SIZE];
+        for (int zone = 0; zone < numZones; ++zone) {
+            final int start = zone * ZONE_SIZE;
+            final int n = Math.min(ZONE_SIZE, numDocs - start);
+            for (int i = 0; i < n; ++i) {
+                docIds[i] = start + i;
+            }
+            lookup.lookup(docIds, values, n);
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < n; ++i) {
+                min = Math.min(min, values[i]);
+                max = Math.max(max, values[i]);
+            }
+            mins[zone] = min;
+            maxes[zone] = max;
+        }
+        return new IntValueZoneMap(numDocs, mins, maxes);
+    }
+
+    /**
+     * @return the zone map of lookup if it has one, otherwise null
+     */
+    public static IntValueZoneMap of(IntValueLookup lookup) {
+        return lookup instanceof IntValueZoneMapProvider ? ((IntValueZoneMapProvider)lookup).getZoneMap() : null;
+    }
+
+    public static long memoryRequired(int numDocs) {
+        return 16L * getNumZones(numDocs);
+    }
+
+    private static int getNumZones(int numDocs) {
+        return (int)(((long)numDocs + ZONE_SIZE - 1) / ZONE_SIZE);
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    public int getNumZones() {
+        return mins.length;
+    }
+
+    public long getMin(int zone) {
+        return mins[zone];
+    }
+
+    public long getMax(int zone) {
+        return maxes[zone];
+    }
+
+    /**
+     * @return {@link #NONE_IN_RANGE}, {@link #SOME_IN_RANGE} or {@link #ALL_IN_RANGE} as none, some or all of the
+     *         values in zone are between min and max inclusive, where some means that they might be
+     */
+    public int rangeOverlap(int zone, long min, long max) {
+        if (maxes[zone] < min || mins[zone] > max) {
+            return NONE_IN_RANGE;
+        }
+        if (mins[zone] >= min && maxes[zone] <= max) {
+            return ALL_IN_RANGE;
+        }
+        return SOME_IN_RANGE;
+    }
+
+    public long memoryUsed() {
+        return 16L * mins.length;
+    }
+}
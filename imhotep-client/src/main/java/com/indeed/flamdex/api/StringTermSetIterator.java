@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.api;
+
+/**
+ * {@link IntTermSetIterator} for string fields. After {@link #next()} returns true the wrapped iterator is on the
+ * matched term and can be passed to {@link DocIdStream#reset(TermIterator)}. The wrapped iterator is not closed by
+ * this class.
+ */
+public final class StringTermSetIterator {
+    private final StringTermIterator iterator;
+    private final String[] terms;
+
+    private int termsIndex = 0;
+    private int matchIndex = -1;
+    private boolean positioned = false;
+    private boolean done = false;
+    private String current;
+
+    /**
+     * @param iterator the term iterator of the field, which should not have been used yet
+     * @param terms the terms to look for, sorted in ascending order by String.compareTo, may contain duplicates
+     */
+    public StringTermSetIterator(StringTermIterator iterator, String[] terms) {
+        this.iterator = iterator;
+        this.terms = terms;
+    }
+
+    /**
+     * @return true if the wrapped iterator moved to the next term of the field that is in the set
+     */
+    public boolean next() {
+        while (!done && termsIndex < terms.length) {
+            final String target = terms[termsIndex];
+            if (!positioned || current.compareTo(target) < 0) {
+                if (!advanceTo(target)) {
+                    done = true;
+                    return false;
+                }
+            }
+            if (current.equals(target)) {
+                matchIndex = termsIndex;
+                while (termsIndex < terms.length && terms[termsIndex].equals(target)) {
+                    ++termsIndex;
+                }
+                return true;
+            }
+            termsIndex = gallop(terms, termsIndex + 1, current);
+        }
+        done = true;
+        return false;
+    }
+
+    private boolean advanceTo(String target) {
+        if (positioned) {
+            for (int i = 0; i < IntTermSetIterator.MAX_SCAN; ++i) {
+                if (!iterator.next()) return false;
+                current = iterator.term();
+                if (current.compareTo(target) >= 0) return true;
+            }
+        }
+        iterator.reset(target);
+        if (!iterator.next()) return false;
+        current = iterator.term();
+        positioned = true;
+        return true;
+    }
+
+    /**
+     * @return the first index at or after from of a term that is >= key, or terms.length if there is none
+     */
+    private static int gallop(String[] terms, int from, String key) {
+        int lo = from;
+        int step = 1;
+        while (lo + step < terms.length && terms[lo + step - 1].compareTo(key) < 0) {
+            lo += step;
+            step <<= 1;
+        }
+        int hi = Math.min(lo + step, terms.length);
+        // the answer is in [lo, hi]
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the matched term, valid after next() returned true
+     */
+    public String term() {
+        return current;
+    }
+
+    /**
+     * @return the doc freq of the matched term, valid after next() returned true
+     */
+    public int docFreq() {
+        return iterator.docFreq();
+    }
+
+    /**
+     * @return the index in the set of the matched term, the first one if it is there more than once
+     */
+    public int getIndex() {
+        return matchIndex;
+    }
+}
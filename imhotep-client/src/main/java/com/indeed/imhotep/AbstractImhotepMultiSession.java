@@ -23,6 +23,7 @@ import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.threads.LogOnUncaughtExceptionHandler;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.utils.BlockingCopyableIterator;
+import com.indeed.imhotep.api.AsyncImhotepSession;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -92,9 +93,14 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
                     .build()
     );
 
-    protected int numStats = 0;
+    // volatile since the async view updates these from the threads that complete its futures
+    protected volatile int numStats = 0;
 
-    private int numGroups = 2;
+    private volatile int numGroups = 2;
+
+    private boolean sessionStateModified = false;
+
+    private boolean indexesRebuilt = false;
 
     @SuppressWarnings({"unchecked"})
     protected AbstractImhotepMultiSession(ImhotepSession[] sessions) {
@@ -113,7 +119,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public long getTotalDocFreq(final String[] intFields, final String[] stringFields) {
-        executeRuntimeException(totalDocFreqBuf, new ThrowingFunction<ImhotepSession, Long>() {
+        executeIdempotentRuntimeException(totalDocFreqBuf, false, new ThrowingFunction<ImhotepSession, Long>() {
             @Override
             public Long apply(ImhotepSession session) throws Exception {
                 return session.getTotalDocFreq(intFields, stringFields);
@@ -128,7 +134,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public long[] getGroupStats(final int stat) {
-        executeRuntimeException(groupStatsBuf, new ThrowingFunction<ImhotepSession, long[]>() {
+        executeIdempotentRuntimeException(groupStatsBuf, true, new ThrowingFunction<ImhotepSession, long[]>() {
             @Override
             public long[] apply(ImhotepSession session) throws Exception {
                 return session.getGroupStats(stat);
@@ -151,8 +157,42 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         return totalStats;
     }
 
+    @Override
+    protected AsyncImhotepSession newAsyncSession() {
+        return new AsyncImhotepMultiSession(this, sessions);
+    }
+
+    @Override
+    public long[][] getGroupStatsMulti(final int[] stats) {
+        final long[][][] groupStatsMultiBuf = new long[sessions.length][][];
+        executeIdempotentRuntimeException(groupStatsMultiBuf, true, new ThrowingFunction<ImhotepSession, long[][]>() {
+            @Override
+            public long[][] apply(ImhotepSession session) throws Exception {
+                return session.getGroupStatsMulti(stats);
+            }
+        });
+
+        final long[][] ret = new long[stats.length][];
+        for (int i = 0; i < stats.length; ++i) {
+            int numGroups = 0;
+            for (final long[][] sessionStats : groupStatsMultiBuf) {
+                numGroups = Math.max(numGroups, sessionStats[i].length);
+            }
+            final long[] totalStats = new long[numGroups];
+            for (final long[][] sessionStats : groupStatsMultiBuf) {
+                final long[] statsBuf = sessionStats[i];
+                for (int group = 1; group < statsBuf.length; ++group) {
+                    totalStats[group] += statsBuf[group];
+                }
+            }
+            ret[i] = totalStats;
+        }
+        return ret;
+    }
+
     @Override
     public int regroup(final GroupMultiRemapRule[] rawRules, final boolean errorOnCollisions) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -166,6 +206,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public int regroup(final int numRawRules, final Iterator<GroupMultiRemapRule> rawRules, final boolean errorOnCollisions) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         final BlockingCopyableIterator<GroupMultiRemapRule> copyableIterator = new BlockingCopyableIterator<GroupMultiRemapRule>(rawRules, sessions.length, 256);
 
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
@@ -181,6 +222,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public int regroup(final GroupRemapRule[] rawRules) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -193,6 +235,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     }
 
     public int regroup2(final int numRules, final Iterator<GroupRemapRule> rules) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         final BlockingCopyableIterator<GroupRemapRule> copyableIterator = new BlockingCopyableIterator<GroupRemapRule>(rules, sessions.length, 256);
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
@@ -207,6 +250,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public int regroup(final QueryRemapRule rule) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -220,6 +264,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void intOrRegroup(final String field, final long[] terms, final int targetGroup, final int negativeGroup, final int positiveGroup) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession session) throws Exception {
@@ -231,6 +276,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void stringOrRegroup(final String field, final String[] terms, final int targetGroup, final int negativeGroup, final int positiveGroup) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession session) throws Exception {
@@ -243,6 +289,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     @Override
     public void randomRegroup(final String field, final boolean isIntField, final String salt, final double p, final int targetGroup,
                               final int negativeGroup, final int positiveGroup) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession session) throws Exception {
@@ -255,6 +302,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     @Override
     public void randomMultiRegroup(final String field, final boolean isIntField, final String salt, final int targetGroup,
                                    final double[] percentages, final int[] resultGroups) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession session) throws Exception {
@@ -266,6 +314,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public int metricRegroup(final int stat, final long min, final long max, final long intervalSize, final boolean noGutters) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -280,6 +329,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     @Override
     public int metricRegroup2D(final int xStat, final long xMin, final long xMax, final long xIntervalSize,
                                final int yStat, final long yMin, final long yMax, final long yIntervalSize) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -292,6 +342,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     }
 
     public int metricFilter(final int stat, final long min, final long max, final boolean negate) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeMemoryException(integerBuf, new ThrowingFunction<ImhotepSession, Integer>() {
             @Override
             public Integer apply(ImhotepSession session) throws Exception {
@@ -307,7 +358,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     public List<TermCount> approximateTopTerms(final String field, final boolean isIntField, final int k) {
         final int subSessionK = k * 2;
 
-        executeRuntimeException(termCountListBuf, new ThrowingFunction<ImhotepSession, List<TermCount>>() {
+        executeIdempotentRuntimeException(termCountListBuf, false, new ThrowingFunction<ImhotepSession, List<TermCount>>() {
             @Override
             public List<TermCount> apply(ImhotepSession session) throws Exception {
                 return session.approximateTopTerms(field, isIntField, subSessionK);
@@ -408,6 +459,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void createDynamicMetric(final String name) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
         executeRuntimeException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession imhotepSession) throws Exception {
@@ -419,6 +471,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void updateDynamicMetric(final String name, final int[] deltas) {
+        sessionStateModified = true;
         executeRuntimeException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession imhotepSession) throws Exception {
@@ -430,6 +483,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void conditionalUpdateDynamicMetric(final String name, final RegroupCondition[] conditions, final int[] deltas) {
+        sessionStateModified = true;
         executeRuntimeException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession imhotepSession) throws Exception {
@@ -441,6 +495,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
 
     @Override
     public void groupConditionalUpdateDynamicMetric(final String name, final int[] groups, final RegroupCondition[] conditions, final int[] deltas) {
+        sessionStateModified = true;
         executeRuntimeException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession imhotepSession) throws Exception {
@@ -464,7 +519,7 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     public FTGSIterator getFTGSIterator(final String[] intFields, final String[] stringFields) {
         if (sessions.length == 1) return sessions[0].getFTGSIterator(intFields, stringFields);
         final RawFTGSIterator[] iterators = new RawFTGSIterator[sessions.length];
-        executeRuntimeException(iterators, new ThrowingFunction<ImhotepSession, RawFTGSIterator>() {
+        executeIdempotentRuntimeException(iterators, true, new ThrowingFunction<ImhotepSession, RawFTGSIterator>() {
             public RawFTGSIterator apply(final ImhotepSession imhotepSession) throws Exception {
                 return persist(imhotepSession.getFTGSIterator(intFields, stringFields));
             }
@@ -617,6 +672,8 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
     @Override
     public void rebuildAndFilterIndexes(final List<String> intFields, 
                                 final List<String> stringFields) throws ImhotepOutOfMemoryException {
+        sessionStateModified = true;
+        indexesRebuilt = true;
         executeMemoryException(nullBuf, new ThrowingFunction<ImhotepSession, Object>() {
             @Override
             public Object apply(ImhotepSession imhotepSession) throws Exception {
@@ -691,6 +748,44 @@ public abstract class AbstractImhotepMultiSession extends AbstractImhotepSession
         }
     }
 
+    protected <T> void executeIdempotentRuntimeException(final T[] ret, final boolean dependsOnSessionState, final ThrowingFunction<? super ImhotepSession, ? extends T> function) {
+        try {
+            executeIdempotent(ret, dependsOnSessionState, function);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs a read that has no side effects on the sessions. Subclasses may run it more than once per session,
+     * e.g. against a replica.
+     * @param dependsOnSessionState whether the result depends on groups, stats or dynamic metrics, as opposed to only
+     *                              the shards' indexes
+     */
+    protected <T> void executeIdempotent(final T[] ret, final boolean dependsOnSessionState, final ThrowingFunction<? super ImhotepSession, ? extends T> function) throws ExecutionException {
+        executeSessions(ret, function);
+    }
+
+    /**
+     * @return true once groups or dynamic metrics have been changed in a way that can't be reproduced by replaying
+     * pushStat/popStat calls
+     */
+    protected final boolean isSessionStateModified() {
+        return sessionStateModified;
+    }
+
+    final void setSessionStateModified() {
+        sessionStateModified = true;
+    }
+
+    final void setNumGroups(int numGroups) {
+        this.numGroups = numGroups;
+    }
+
+    protected final boolean isIndexesRebuilt() {
+        return indexesRebuilt;
+    }
+
     protected abstract <E,T> void execute(final T[] ret, E[] things, final ThrowingFunction<? super E, ? extends T> function) throws ExecutionException;
 
     protected <T> void executeSessions(final T[] ret, final ThrowingFunction<? super ImhotepSession, ? extends T> function) throws ExecutionException {
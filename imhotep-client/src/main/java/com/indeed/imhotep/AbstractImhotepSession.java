@@ -13,6 +13,7 @@
  */
  package com.indeed.imhotep;
 
+import com.indeed.imhotep.api.AsyncImhotepSession;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 
@@ -23,6 +24,8 @@ import java.util.Iterator;
  */
 public abstract class AbstractImhotepSession implements ImhotepSession {
 
+    private AsyncImhotepSession asyncSession;
+
     public int regroup(final int numRawRules, final Iterator<GroupMultiRemapRule> rawRules) throws ImhotepOutOfMemoryException {
         return regroup(numRawRules, rawRules, false);
     }
@@ -54,4 +57,28 @@ public abstract class AbstractImhotepSession implements ImhotepSession {
     public int metricRegroup(int stat, long min, long max, long intervalSize) throws ImhotepOutOfMemoryException {
         return metricRegroup(stat, min, max, intervalSize, false);
     }
+
+    @Override
+    public long[][] getGroupStatsMulti(int[] stats) {
+        final long[][] ret = new long[stats.length][];
+        for (int i = 0; i < stats.length; i++) {
+            ret[i] = getGroupStats(stats[i]);
+        }
+        return ret;
+    }
+
+    @Override
+    public AsyncImhotepSession getAsyncSession() {
+        if (asyncSession == null) {
+            asyncSession = newAsyncSession();
+        }
+        return asyncSession;
+    }
+
+    /**
+     * override to provide a native async implementation, the default one runs queued commands serially on flush
+     */
+    protected AsyncImhotepSession newAsyncSession() {
+        return new SerialAsyncImhotepSession(this);
+    }
 }
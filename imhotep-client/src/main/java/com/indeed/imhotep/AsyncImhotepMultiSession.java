@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.indeed.imhotep.api.AsyncImhotepSession;
+import com.indeed.imhotep.api.ImhotepSession;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fans each queued command out to the async views of the sub-sessions and combines their futures the same way
+ * AbstractImhotepMultiSession combines blocking results. No thread is held while the sub-sessions work.
+ */
+class AsyncImhotepMultiSession implements AsyncImhotepSession {
+    private final AbstractImhotepMultiSession multiSession;
+    private final AsyncImhotepSession[] sessions;
+
+    private final Function<List<Integer>, Integer> numGroupsCombiner = new Function<List<Integer>, Integer>() {
+        public Integer apply(final List<Integer> numGroupsList) {
+            final int numGroups = Collections.max(numGroupsList);
+            multiSession.setNumGroups(numGroups);
+            return numGroups;
+        }
+    };
+
+    private final Function<List<Integer>, Integer> numStatsCombiner = new Function<List<Integer>, Integer>() {
+        public Integer apply(final List<Integer> numStatsList) {
+            final int numStats = numStatsList.get(0);
+            for (final int sessionNumStats : numStatsList) {
+                if (sessionNumStats != numStats) {
+                    throw new RuntimeException("bug, one session did not return the same number of stats as the others");
+                }
+            }
+            multiSession.numStats = numStats;
+            return numStats;
+        }
+    };
+
+    AsyncImhotepMultiSession(AbstractImhotepMultiSession multiSession, ImhotepSession[] sessions) {
+        this.multiSession = multiSession;
+        this.sessions = new AsyncImhotepSession[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            this.sessions[i] = sessions[i].getAsyncSession();
+        }
+    }
+
+    private <T, R> ListenableFuture<R> fanOut(Function<AsyncImhotepSession, ListenableFuture<T>> command, Function<List<T>, R> combiner) {
+        final List<ListenableFuture<T>> futures = Lists.newArrayListWithCapacity(sessions.length);
+        for (final AsyncImhotepSession session : sessions) {
+            futures.add(command.apply(session));
+        }
+        return Futures.transform(Futures.allAsList(futures), combiner);
+    }
+
+    private ListenableFuture<Integer> regroupFanOut(Function<AsyncImhotepSession, ListenableFuture<Integer>> command) {
+        multiSession.setSessionStateModified();
+        return fanOut(command, numGroupsCombiner);
+    }
+
+    private ListenableFuture<Integer> statsFanOut(Function<AsyncImhotepSession, ListenableFuture<Integer>> command) {
+        // stats pushed here bypass the bookkeeping of the blocking calls, so reads that depend on them must not be hedged
+        multiSession.setSessionStateModified();
+        return fanOut(command, numStatsCombiner);
+    }
+
+    private static long[] sumGroupStats(List<long[]> sessionStats) {
+        int numGroups = 0;
+        for (final long[] stats : sessionStats) {
+            numGroups = Math.max(numGroups, stats.length);
+        }
+        final long[] totalStats = new long[numGroups];
+        for (final long[] stats : sessionStats) {
+            for (int group = 1; group < stats.length; ++group) {
+                totalStats[group] += stats[group];
+            }
+        }
+        return totalStats;
+    }
+
+    @Override
+    public ListenableFuture<Long> getTotalDocFreq(final String[] intFields, final String[] stringFields) {
+        return fanOut(new Function<AsyncImhotepSession, ListenableFuture<Long>>() {
+            public ListenableFuture<Long> apply(final AsyncImhotepSession session) {
+                return session.getTotalDocFreq(intFields, stringFields);
+            }
+        }, new Function<List<Long>, Long>() {
+            public Long apply(final List<Long> totalDocFreqs) {
+                long sum = 0L;
+                for (final long totalDocFreq : totalDocFreqs) {
+                    sum += totalDocFreq;
+                }
+                return sum;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<long[]> getGroupStats(final int stat) {
+        return fanOut(new Function<AsyncImhotepSession, ListenableFuture<long[]>>() {
+            public ListenableFuture<long[]> apply(final AsyncImhotepSession session) {
+                return session.getGroupStats(stat);
+            }
+        }, new Function<List<long[]>, long[]>() {
+            public long[] apply(final List<long[]> sessionStats) {
+                return sumGroupStats(sessionStats);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<long[][]> getGroupStatsMulti(final int[] stats) {
+        return fanOut(new Function<AsyncImhotepSession, ListenableFuture<long[][]>>() {
+            public ListenableFuture<long[][]> apply(final AsyncImhotepSession session) {
+                return session.getGroupStatsMulti(stats);
+            }
+        }, new Function<List<long[][]>, long[][]>() {
+            public long[][] apply(final List<long[][]> sessionStatsMulti) {
+                final long[][] ret = new long[stats.length][];
+                for (int i = 0; i < stats.length; ++i) {
+                    final List<long[]> sessionStats = Lists.newArrayListWithCapacity(sessionStatsMulti.size());
+                    for (final long[][] statsMulti : sessionStatsMulti) {
+                        sessionStats.add(statsMulti[i]);
+                    }
+                    ret[i] = sumGroupStats(sessionStats);
+                }
+                return ret;
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final GroupMultiRemapRule[] rawRules, final boolean errorOnCollisions) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.regroup(rawRules, errorOnCollisions);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final GroupRemapRule[] rawRules) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.regroup(rawRules);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final QueryRemapRule rule) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.regroup(rule);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricRegroup(final int stat, final long min, final long max, final long intervalSize, final boolean noGutters) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.metricRegroup(stat, min, max, intervalSize, noGutters);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricRegroup2D(final int xStat, final long xMin, final long xMax, final long xIntervalSize,
+                                                     final int yStat, final long yMin, final long yMax, final long yIntervalSize) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.metricRegroup2D(xStat, xMin, xMax, xIntervalSize, yStat, yMin, yMax, yIntervalSize);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricFilter(final int stat, final long min, final long max, final boolean negate) {
+        return regroupFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.metricFilter(stat, min, max, negate);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> pushStat(final String statName) {
+        return statsFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.pushStat(statName);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> pushStats(final List<String> statNames) {
+        return statsFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.pushStats(statNames);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> popStat() {
+        return statsFanOut(new Function<AsyncImhotepSession, ListenableFuture<Integer>>() {
+            public ListenableFuture<Integer> apply(final AsyncImhotepSession session) {
+                return session.popStat();
+            }
+        });
+    }
+
+    @Override
+    public void flush() {
+        for (final AsyncImhotepSession session : sessions) {
+            session.flush();
+        }
+    }
+}
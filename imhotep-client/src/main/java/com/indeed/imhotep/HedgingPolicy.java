@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when an idempotent read against a slow daemon should be duplicated onto a replica, and keeps
+ * counts of how often that happened and how much time it saved.
+ *
+ * A hedge is issued once a primary request has been outstanding for longer than the configured percentile
+ * of recently observed primary latencies, clamped to [minDelayMillis, maxDelayMillis]. Until enough
+ * latencies have been observed the delay is maxDelayMillis.
+ *
+ * One policy is meant to be shared by all sessions created by a client so that the latency history is useful. The
+ * latency of every primary that answers is recorded, including primaries that lost to their hedge.
+ */
+public class HedgingPolicy {
+    private static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+
+    private final long[] latencies;
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    private final AtomicLong hedgesIssued = new AtomicLong(0);
+    private final AtomicLong hedgesWon = new AtomicLong(0);
+    private final AtomicLong savedMillis = new AtomicLong(0);
+
+    public HedgingPolicy() {
+        this(0.95, 50, 5000, 1024);
+    }
+
+    /**
+     * @param exportNamespace namespace to export the hedging counters under, each policy needs its own
+     */
+    public HedgingPolicy(String exportNamespace) {
+        this(0.95, 50, 5000, 1024, exportNamespace);
+    }
+
+    public HedgingPolicy(double percentile, long minDelayMillis, long maxDelayMillis, int historyLength) {
+        this(percentile, minDelayMillis, maxDelayMillis, historyLength, null);
+    }
+
+    /**
+     * @param percentile latency percentile in (0, 1) after which a hedge is issued
+     * @param minDelayMillis lower bound on the hedge delay
+     * @param maxDelayMillis upper bound on the hedge delay, also used until enough latencies have been observed
+     * @param historyLength number of recent primary latencies to compute the percentile over
+     * @param exportNamespace if not null, namespace to export the hedging counters under, each policy needs its own
+     */
+    public HedgingPolicy(double percentile, long minDelayMillis, long maxDelayMillis, int historyLength,
+                         @Nullable String exportNamespace) {
+        if (percentile <= 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1): " + percentile);
+        }
+        if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis) {
+            throw new IllegalArgumentException("invalid delay bounds: [" + minDelayMillis + ", " + maxDelayMillis + "]");
+        }
+        if (historyLength < MIN_SAMPLES) {
+            throw new IllegalArgumentException("historyLength must be at least " + MIN_SAMPLES);
+        }
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        latencies = new long[historyLength];
+
+        if (exportNamespace != null) {
+            VarExporter.forNamespace(exportNamespace).export(this, "");
+        }
+    }
+
+    public synchronized void recordLatency(long millis) {
+        latencies[nextLatency] = millis;
+        nextLatency = (nextLatency + 1) % latencies.length;
+        numLatencies = Math.min(numLatencies + 1, latencies.length);
+    }
+
+    synchronized int getNumLatencies() {
+        return numLatencies;
+    }
+
+    public synchronized long getHedgeDelayMillis() {
+        if (numLatencies < MIN_SAMPLES) {
+            return maxDelayMillis;
+        }
+        final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        final long delay = sorted[Math.min(numLatencies - 1, (int)(percentile * numLatencies))];
+        return Math.max(minDelayMillis, Math.min(maxDelayMillis, delay));
+    }
+
+    void hedgeIssued() {
+        hedgesIssued.incrementAndGet();
+    }
+
+    void hedgeWon(long millisSaved) {
+        hedgesWon.incrementAndGet();
+        savedMillis.addAndGet(millisSaved);
+    }
+
+    @Export(name = "hedges-issued", doc = "number of requests duplicated onto a replica")
+    public long getHedgesIssued() {
+        return hedgesIssued.get();
+    }
+
+    @Export(name = "hedges-won", doc = "number of hedged requests where the replica answered first")
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    @Export(name = "saved-latency-millis", doc = "total time by which winning hedges beat their primaries")
+    public long getSavedLatencyMillis() {
+        return savedMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "HedgingPolicy{" +
+                "hedgesIssued=" + getHedgesIssued() +
+                ", hedgesWon=" + getHedgesWon() +
+                ", savedLatencyMillis=" + getSavedLatencyMillis() +
+                ", hedgeDelayMillis=" + getHedgeDelayMillis() +
+                '}';
+    }
+}
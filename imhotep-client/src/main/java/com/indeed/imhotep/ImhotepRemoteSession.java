@@ -21,6 +21,11 @@ import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.imhotep.api.AsyncImhotepSession;
 import com.indeed.imhotep.api.DocIterator;
 import com.indeed.imhotep.api.FTGSIterator;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
@@ -42,6 +47,7 @@ import com.indeed.imhotep.protobuf.StringFieldAndTerms;
 import com.indeed.imhotep.service.InputStreamDocIterator;
 
 import com.indeed.util.core.Throwables2;
+import com.indeed.util.core.threads.LogOnUncaughtExceptionHandler;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nullable;
@@ -57,11 +63,15 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -76,6 +86,13 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     private static final int DEFAULT_SOCKET_TIMEOUT = (int)TimeUnit.MINUTES.toMillis(30);
 
+    private static final ExecutorService asyncExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("ImhotepRemoteSession-async-%d")
+                    .setUncaughtExceptionHandler(new LogOnUncaughtExceptionHandler(log))
+                    .build()
+    );
+
     private static final int CURRENT_CLIENT_VERSION = 2; // id to be incremented as changes to the client are done
 
     private final String host;
@@ -83,7 +100,8 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
     private final String sessionId;
     private final int socketTimeout;
 
-    private int numStats = 0;
+    // also written by the callbacks of async requests
+    private volatile int numStats = 0;
 
     public ImhotepRemoteSession(String host, int port, String sessionId) {
         this(host, port, sessionId, DEFAULT_SOCKET_TIMEOUT);
@@ -190,11 +208,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public long getTotalDocFreq(String[] intFields, String[] stringFields) {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_TOTAL_DOC_FREQ)
-                .setSessionId(sessionId)
-                .addAllIntFields(Arrays.asList(intFields))
-                .addAllStringFields(Arrays.asList(stringFields))
-                .build();
+        final ImhotepRequest request = newTotalDocFreqRequest(intFields, stringFields);
 
         try {
             final ImhotepResponse response = sendRequest(request, host, port, socketTimeout);
@@ -204,19 +218,38 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
-    @Override
-    public long[] getGroupStats(int stat) {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STATS)
+    private ImhotepRequest newTotalDocFreqRequest(String[] intFields, String[] stringFields) {
+        return getBuilderForType(ImhotepRequest.RequestType.GET_TOTAL_DOC_FREQ)
                 .setSessionId(sessionId)
-                .setStat(stat)
+                .addAllIntFields(Arrays.asList(intFields))
+                .addAllStringFields(Arrays.asList(stringFields))
                 .build();
+    }
+
+    @Override
+    public long[] getGroupStats(int stat) {
         final ImhotepResponse response;
         try {
-            response = sendRequest(request, host, port, socketTimeout);
+            response = sendRequest(newGroupStatsRequest(stat), host, port, socketTimeout);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        return groupStatsFromResponse(response);
+    }
+
+    private ImhotepRequest newGroupStatsRequest(int stat) {
+        return getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STATS)
+                .setSessionId(sessionId)
+                .setStat(stat)
+                .setSparseGroupStats(true)
+                .build();
+    }
 
+    private static long[] groupStatsFromResponse(ImhotepResponse response) {
+        // daemons that predate sparse group stats ignore the flag and answer with the dense list
+        if (response.getSparseGroupStatsCount() > 0) {
+            return ImhotepClientMarshaller.marshal(response.getSparseGroupStats(0));
+        }
         final List<Long> groupStats = response.getGroupStatList();
         final long[] ret = new long[groupStats.size()];
         for (int i = 0; i < ret.length; ++i) {
@@ -225,6 +258,38 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return ret;
     }
 
+    @Override
+    public long[][] getGroupStatsMulti(int[] stats) {
+        final ImhotepResponse response;
+        try {
+            response = sendRequest(newGroupStatsMultiRequest(stats), host, port, socketTimeout);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return groupStatsMultiFromResponse(response, stats.length);
+    }
+
+    private ImhotepRequest newGroupStatsMultiRequest(int[] stats) {
+        final ImhotepRequest.Builder builder = getBuilderForType(ImhotepRequest.RequestType.GET_GROUP_STATS_MULTI)
+                .setSessionId(sessionId);
+        for (final int stat : stats) {
+            builder.addStats(stat);
+        }
+        return builder.build();
+    }
+
+    private long[][] groupStatsMultiFromResponse(ImhotepResponse response, int numStats) {
+        if (response.getSparseGroupStatsCount() != numStats) {
+            throw new RuntimeException("expected " + numStats + " group stats from " + host + ":" + port
+                    + " but received " + response.getSparseGroupStatsCount());
+        }
+        final long[][] ret = new long[numStats][];
+        for (int i = 0; i < numStats; ++i) {
+            ret[i] = ImhotepClientMarshaller.marshal(response.getSparseGroupStats(i));
+        }
+        return ret;
+    }
+
     @Override
     public FTGSIterator getFTGSIterator(String[] intFields, String[] stringFields) {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.GET_FTGS_ITERATOR)
@@ -424,12 +489,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int regroup(GroupRemapRule[] rawRules) throws ImhotepOutOfMemoryException {
-        final List<GroupRemapMessage> protoRules = ImhotepClientMarshaller.marshal(rawRules);
-
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.REGROUP)
-                .setSessionId(sessionId)
-                .addAllRemapRules(protoRules)
-                .build();
+        final ImhotepRequest request = newRegroupRequest(rawRules);
 
         try {
             final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
@@ -441,12 +501,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int regroup(QueryRemapRule rule) throws ImhotepOutOfMemoryException {
-        final QueryRemapMessage protoRule = ImhotepClientMarshaller.marshal(rule);
-
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.QUERY_REGROUP)
-                .setSessionId(sessionId)
-                .setQueryRemapRule(protoRule)
-                .build();
+        final ImhotepRequest request = newQueryRegroupRequest(rule);
 
         try {
             final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
@@ -456,6 +511,24 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    private ImhotepRequest newRegroupRequest(GroupRemapRule[] rawRules) {
+        final List<GroupRemapMessage> protoRules = ImhotepClientMarshaller.marshal(rawRules);
+
+        return getBuilderForType(ImhotepRequest.RequestType.REGROUP)
+                .setSessionId(sessionId)
+                .addAllRemapRules(protoRules)
+                .build();
+    }
+
+    private ImhotepRequest newQueryRegroupRequest(QueryRemapRule rule) {
+        final QueryRemapMessage protoRule = ImhotepClientMarshaller.marshal(rule);
+
+        return getBuilderForType(ImhotepRequest.RequestType.QUERY_REGROUP)
+                .setSessionId(sessionId)
+                .setQueryRemapRule(protoRule)
+                .build();
+    }
+
     @Override
     public void intOrRegroup(String field, long[] terms, int targetGroup, int negativeGroup, int positiveGroup) throws ImhotepOutOfMemoryException {
         final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.INT_OR_REGROUP)
@@ -535,14 +608,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int metricRegroup(int stat, long min, long max, long intervalSize, boolean noGutters) throws ImhotepOutOfMemoryException {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.METRIC_REGROUP)
-                .setSessionId(sessionId)
-                .setXStat(stat)
-                .setXMin(min)
-                .setXMax(max)
-                .setXIntervalSize(intervalSize)
-                .setNoGutters(noGutters)
-                .build();
+        final ImhotepRequest request = newMetricRegroupRequest(stat, min, max, intervalSize, noGutters);
 
         try {
             final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
@@ -554,7 +620,39 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int metricRegroup2D(int xStat, long xMin, long xMax, long xIntervalSize, int yStat, long yMin, long yMax, long yIntervalSize) throws ImhotepOutOfMemoryException {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.METRIC_REGROUP_2D)
+        final ImhotepRequest request = newMetricRegroup2DRequest(xStat, xMin, xMax, xIntervalSize, yStat, yMin, yMax, yIntervalSize);
+
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            return response.getNumGroups();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int metricFilter(int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException {
+        final ImhotepRequest request = newMetricFilterRequest(stat, min, max, negate);
+        try {
+            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
+            return response.getNumGroups();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private ImhotepRequest newMetricRegroupRequest(int stat, long min, long max, long intervalSize, boolean noGutters) {
+        return getBuilderForType(ImhotepRequest.RequestType.METRIC_REGROUP)
+                .setSessionId(sessionId)
+                .setXStat(stat)
+                .setXMin(min)
+                .setXMax(max)
+                .setXIntervalSize(intervalSize)
+                .setNoGutters(noGutters)
+                .build();
+    }
+
+    private ImhotepRequest newMetricRegroup2DRequest(int xStat, long xMin, long xMax, long xIntervalSize, int yStat, long yMin, long yMax, long yIntervalSize) {
+        return getBuilderForType(ImhotepRequest.RequestType.METRIC_REGROUP_2D)
                 .setSessionId(sessionId)
                 .setXStat(xStat)
                 .setXMin(xMin)
@@ -565,29 +663,16 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
                 .setYMax(yMax)
                 .setYIntervalSize(yIntervalSize)
                 .build();
-
-        try {
-            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
-            return response.getNumGroups();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
     }
 
-    public int metricFilter(int stat, long min, long max, boolean negate) throws ImhotepOutOfMemoryException {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.METRIC_FILTER)
+    private ImhotepRequest newMetricFilterRequest(int stat, long min, long max, boolean negate) {
+        return getBuilderForType(ImhotepRequest.RequestType.METRIC_FILTER)
                 .setSessionId(sessionId)
                 .setXStat(stat)
                 .setXMin(min)
                 .setXMax(max)
                 .setNegate(negate)
                 .build();
-        try {
-            final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
-            return response.getNumGroups();
-        } catch (IOException e) {
-            throw Throwables.propagate(e);
-        }
     }
 
     @Override
@@ -609,10 +694,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int pushStat(String statName) throws ImhotepOutOfMemoryException {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.PUSH_STAT)
-                .setSessionId(sessionId)
-                .setMetric(statName)
-                .build();
+        final ImhotepRequest request = newPushStatRequest(statName);
 
         try {
             final ImhotepResponse response = sendRequestWithMemoryException(request, host, port, socketTimeout);
@@ -634,9 +716,7 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
 
     @Override
     public int popStat() {
-        final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.POP_STAT)
-                .setSessionId(sessionId)
-                .build();
+        final ImhotepRequest request = newPopStatRequest();
 
         try {
             final ImhotepResponse response = sendRequest(request, host, port, socketTimeout);
@@ -647,6 +727,19 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         }
     }
 
+    private ImhotepRequest newPushStatRequest(String statName) {
+        return getBuilderForType(ImhotepRequest.RequestType.PUSH_STAT)
+                .setSessionId(sessionId)
+                .setMetric(statName)
+                .build();
+    }
+
+    private ImhotepRequest newPopStatRequest() {
+        return getBuilderForType(ImhotepRequest.RequestType.POP_STAT)
+                .setSessionId(sessionId)
+                .build();
+    }
+
     @Override
     public int getNumStats() {
         // TODO: really should ask the remote session just to be sure.
@@ -764,6 +857,238 @@ public class ImhotepRemoteSession extends AbstractImhotepSession {
         return host;
     }
 
+    @Override
+    protected AsyncImhotepSession newAsyncSession() {
+        return new AsyncRemoteSession();
+    }
+
+    private static final class PendingRequest<T> {
+        final ImhotepRequest request;
+        final Function<ImhotepResponse, T> parser;
+        final SettableFuture<T> future = SettableFuture.create();
+
+        private PendingRequest(ImhotepRequest request, Function<ImhotepResponse, T> parser) {
+            this.request = request;
+            this.parser = parser;
+        }
+
+        void complete(ImhotepResponse response) {
+            try {
+                future.set(parser.apply(response));
+            } catch (Throwable t) {
+                future.setException(t);
+            }
+        }
+    }
+
+    /**
+     * Queues requests until flush and then sends them from asyncExecutor as a single EXECUTE_BATCH request, one flushed
+     * batch at a time per session so that requests reach the daemon in the order they were queued.
+     */
+    private final class AsyncRemoteSession implements AsyncImhotepSession {
+        private final Function<ImhotepResponse, Integer> numGroupsParser = new Function<ImhotepResponse, Integer>() {
+            public Integer apply(final ImhotepResponse response) {
+                return response.getNumGroups();
+            }
+        };
+
+        private final Function<ImhotepResponse, Integer> numStatsParser = new Function<ImhotepResponse, Integer>() {
+            public Integer apply(final ImhotepResponse response) {
+                numStats = response.getNumStats();
+                return numStats;
+            }
+        };
+
+        private List<PendingRequest<?>> pending = Lists.newArrayList();
+        private final Queue<List<PendingRequest<?>>> flushed = new ArrayDeque<List<PendingRequest<?>>>();
+        private boolean draining = false;
+        // future of the request queued last, flushed or not
+        private ListenableFuture<?> lastRequest = null;
+
+        private <T> ListenableFuture<T> enqueue(ImhotepRequest request, Function<ImhotepResponse, T> parser) {
+            final PendingRequest<T> pendingRequest = new PendingRequest<T>(request, parser);
+            synchronized (this) {
+                pending.add(pendingRequest);
+                lastRequest = pendingRequest.future;
+            }
+            return pendingRequest.future;
+        }
+
+        @Override
+        public ListenableFuture<Long> getTotalDocFreq(String[] intFields, String[] stringFields) {
+            return enqueue(newTotalDocFreqRequest(intFields, stringFields), new Function<ImhotepResponse, Long>() {
+                public Long apply(final ImhotepResponse response) {
+                    return response.getTotalDocFreq();
+                }
+            });
+        }
+
+        @Override
+        public ListenableFuture<long[]> getGroupStats(int stat) {
+            return enqueue(newGroupStatsRequest(stat), new Function<ImhotepResponse, long[]>() {
+                public long[] apply(final ImhotepResponse response) {
+                    return groupStatsFromResponse(response);
+                }
+            });
+        }
+
+        @Override
+        public ListenableFuture<long[][]> getGroupStatsMulti(final int[] stats) {
+            return enqueue(newGroupStatsMultiRequest(stats), new Function<ImhotepResponse, long[][]>() {
+                public long[][] apply(final ImhotepResponse response) {
+                    return groupStatsMultiFromResponse(response, stats.length);
+                }
+            });
+        }
+
+        @Override
+        public ListenableFuture<Integer> regroup(GroupMultiRemapRule[] rawRules, boolean errorOnCollisions) {
+            // the exploded form streams its rules after the request, so a queued regroup carries them inline instead
+            final ImhotepRequest request = getBuilderForType(ImhotepRequest.RequestType.MULTISPLIT_REGROUP)
+                    .setSessionId(sessionId)
+                    .addAllMultisplitRemapRule(ImhotepClientMarshaller.marshal(rawRules))
+                    .setErrorOnCollisions(errorOnCollisions)
+                    .build();
+            return enqueue(request, numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> regroup(GroupRemapRule[] rawRules) {
+            return enqueue(newRegroupRequest(rawRules), numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> regroup(QueryRemapRule rule) {
+            return enqueue(newQueryRegroupRequest(rule), numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> metricRegroup(int stat, long min, long max, long intervalSize, boolean noGutters) {
+            return enqueue(newMetricRegroupRequest(stat, min, max, intervalSize, noGutters), numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> metricRegroup2D(int xStat, long xMin, long xMax, long xIntervalSize, int yStat, long yMin, long yMax, long yIntervalSize) {
+            return enqueue(newMetricRegroup2DRequest(xStat, xMin, xMax, xIntervalSize, yStat, yMin, yMax, yIntervalSize), numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> metricFilter(int stat, long min, long max, boolean negate) {
+            return enqueue(newMetricFilterRequest(stat, min, max, negate), numGroupsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> pushStat(String statName) {
+            return enqueue(newPushStatRequest(statName), numStatsParser);
+        }
+
+        @Override
+        public ListenableFuture<Integer> pushStats(List<String> statNames) {
+            if (statNames.isEmpty()) {
+                // nothing to send, but numStats is only known once the requests queued before this have completed
+                final ListenableFuture<?> previous;
+                synchronized (this) {
+                    previous = lastRequest;
+                }
+                if (previous == null) {
+                    return Futures.immediateFuture(numStats);
+                }
+                return Futures.transform(previous, new Function<Object, Integer>() {
+                    public Integer apply(final Object ignored) {
+                        return numStats;
+                    }
+                });
+            }
+            // a failed push fails every later request of the same flush, so the last push speaks for all of them
+            ListenableFuture<Integer> last = null;
+            for (final String statName : statNames) {
+                last = pushStat(statName);
+            }
+            return last;
+        }
+
+        @Override
+        public ListenableFuture<Integer> popStat() {
+            return enqueue(newPopStatRequest(), numStatsParser);
+        }
+
+        @Override
+        public void flush() {
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                flushed.add(pending);
+                pending = Lists.newArrayList();
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            asyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        private void drain() {
+            while (true) {
+                final List<PendingRequest<?>> batch;
+                synchronized (this) {
+                    batch = flushed.poll();
+                    if (batch == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                sendBatch(batch);
+            }
+        }
+
+        private void sendBatch(List<PendingRequest<?>> batch) {
+            final ImhotepRequest.Builder batchRequest = getBuilderForType(ImhotepRequest.RequestType.EXECUTE_BATCH)
+                    .setSessionId(sessionId);
+            for (final PendingRequest<?> pendingRequest : batch) {
+                batchRequest.addBatchRequest(pendingRequest.request);
+            }
+            final ImhotepResponse response;
+            try {
+                response = sendRequest(batchRequest.build(), host, port, socketTimeout);
+            } catch (Throwable t) {
+                failRemaining(batch, 0, t);
+                return;
+            }
+
+            final List<ImhotepResponse> batchResponses = response.getBatchResponseList();
+            for (int i = 0; i < batch.size(); ++i) {
+                if (i >= batchResponses.size()) {
+                    failRemaining(batch, i, new IOException("imhotep daemon " + host + ":" + port + " returned only "
+                            + batchResponses.size() + " responses for a batch of " + batch.size() + " requests"));
+                    return;
+                }
+                final ImhotepResponse batchResponse = batchResponses.get(i);
+                if (batchResponse.getResponseCode() == ImhotepResponse.ResponseCode.OUT_OF_MEMORY) {
+                    failRemaining(batch, i, new ImhotepOutOfMemoryException());
+                    return;
+                } else if (batchResponse.getResponseCode() == ImhotepResponse.ResponseCode.OTHER_ERROR) {
+                    failRemaining(batch, i, buildExceptionFromResponse(batchResponse, host, port));
+                    return;
+                }
+                batch.get(i).complete(batchResponse);
+            }
+        }
+
+        private void failRemaining(List<PendingRequest<?>> batch, int failedIndex, Throwable cause) {
+            batch.get(failedIndex).future.setException(cause);
+            for (int i = failedIndex + 1; i < batch.size(); ++i) {
+                batch.get(i).future.setException(new IOException(
+                        "not run on " + host + ":" + port + " because the batched " + batch.get(failedIndex).request.getRequestType() + " request before it failed", cause));
+            }
+        }
+    }
+
     private static ImhotepRequest.Builder getBuilderForType(ImhotepRequest.RequestType requestType) {
         return ImhotepRequest.newBuilder().setRequestType(requestType);
     }
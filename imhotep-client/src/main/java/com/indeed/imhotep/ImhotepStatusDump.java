@@ -192,12 +192,21 @@ public class ImhotepStatusDump {
         public final String dataset;
         public final int numDocs;
         public final List<MetricDump> loadedMetrics;
+        public final boolean loaded;
 
         public ShardDump(String shardId, String dataset, int numDocs, List<MetricDump> loadedMetrics) {
+            this(shardId, dataset, numDocs, loadedMetrics, true);
+        }
+
+        /**
+         * @param loaded whether the shard's reader is open, as opposed to the shard only being known to the daemon
+         */
+        public ShardDump(String shardId, String dataset, int numDocs, List<MetricDump> loadedMetrics, boolean loaded) {
             this.shardId = shardId;
             this.dataset = dataset;
             this.numDocs = numDocs;
             this.loadedMetrics = loadedMetrics;
+            this.loaded = loaded;
         }
 
         public String getShardId() {
@@ -216,11 +225,16 @@ public class ImhotepStatusDump {
             return loadedMetrics;
         }
 
+        public boolean isLoaded() {
+            return loaded;
+        }
+
         public ShardDumpMessage toProto() {
             final ShardDumpMessage.Builder builder = ShardDumpMessage.newBuilder()
                     .setShardId(shardId)
                     .setDataset(dataset)                    
-                    .setNumDocs(numDocs);
+                    .setNumDocs(numDocs)
+                    .setLoaded(loaded);
 
             for (final MetricDump metricDump : loadedMetrics) {
                 builder.addLoadedMetric(metricDump.toProto());
@@ -234,7 +248,7 @@ public class ImhotepStatusDump {
             for (final MetricDumpMessage protoMetricDump : protoDump.getLoadedMetricList()) {
                 loadedMetrics.add(MetricDump.fromProto(protoMetricDump));
             }
-            return new ShardDump(protoDump.getShardId(), protoDump.getDataset(), protoDump.getNumDocs(), loadedMetrics);
+            return new ShardDump(protoDump.getShardId(), protoDump.getDataset(), protoDump.getNumDocs(), loadedMetrics, protoDump.getLoaded());
         }
     }
 }
@@ -14,23 +14,40 @@
  package com.indeed.imhotep;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.indeed.util.core.Pair;
+import com.indeed.util.core.io.Closeables2;
 import com.indeed.imhotep.api.FTGSIterator;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.api.RawFTGSIterator;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author jsgroth
@@ -39,13 +56,51 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
     private static final Logger log = Logger.getLogger(RemoteImhotepMultiSession.class);
 
     private final ExecutorService executor;
+    private final ListeningExecutorService listeningExecutor;
 
     private final String sessionId;
     private final InetSocketAddress[] nodes;
 
     private final boolean shutDownExecutorOnClose;
 
+    @Nullable
+    private final HedgingPolicy hedgingPolicy;
+    @Nullable
+    private final ReplicaSessionFactory replicaSessionFactory;
+
+    // replicaSessions[i] is opened lazily the first time sessions[i] needs to be hedged, guarded by replicaLocks[i]
+    private final Object[] replicaLocks;
+    private final ImhotepSession[] replicaSessions;
+    private final boolean[] replicaUnavailable;
+    private final List<String>[] replicaStats;
+
+    // stats pushed so far, replayed onto replica sessions so that they can answer the same reads. only touched by the
+    // thread using the session, hedges get a copy taken when they are submitted
+    private final List<String> pushedStats = Lists.newArrayList();
+
+    /**
+     * Opens a session over the same shards as one of this session's sub-sessions on other daemons.
+     */
+    public static interface ReplicaSessionFactory {
+        /**
+         * @param index index of the sub-session to be replicated
+         * @return a new session over the same shards as the sub-session, or null if no replica exists
+         */
+        @Nullable
+        ImhotepSession openReplicaSession(int index) throws ImhotepOutOfMemoryException, IOException;
+    }
+
     public RemoteImhotepMultiSession(ImhotepSession[] sessions, final String sessionId, final InetSocketAddress[] nodes) {
+        this(sessions, sessionId, nodes, null, null);
+    }
+
+    /**
+     * @param hedgingPolicy if not null, idempotent reads whose sub-session is slower than the policy allows are
+     *                      retried against a replica session and the first answer is used
+     * @param replicaSessionFactory opens the replica sessions used for hedging, must not be null if hedgingPolicy isn't
+     */
+    public RemoteImhotepMultiSession(ImhotepSession[] sessions, final String sessionId, final InetSocketAddress[] nodes,
+                                     @Nullable HedgingPolicy hedgingPolicy, @Nullable ReplicaSessionFactory replicaSessionFactory) {
         this(sessions, Executors.newCachedThreadPool(new ThreadFactory() {
             int i = 0;
 
@@ -55,16 +110,35 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
                 t.setDaemon(true);
                 return t;
             }
-        }), sessionId, nodes, true);
+        }), sessionId, nodes, true, hedgingPolicy, replicaSessionFactory);
     }
 
     public RemoteImhotepMultiSession(ImhotepSession[] sessions, ExecutorService executor, final String sessionId, final InetSocketAddress[] nodes, boolean shutDownExecutorOnClose) {
+        this(sessions, executor, sessionId, nodes, shutDownExecutorOnClose, null, null);
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public RemoteImhotepMultiSession(ImhotepSession[] sessions, ExecutorService executor, final String sessionId, final InetSocketAddress[] nodes, boolean shutDownExecutorOnClose,
+                                     @Nullable HedgingPolicy hedgingPolicy, @Nullable ReplicaSessionFactory replicaSessionFactory) {
         super(sessions);
-        
+        if (hedgingPolicy != null && replicaSessionFactory == null) {
+            throw new IllegalArgumentException("hedging requires a replicaSessionFactory");
+        }
+
         this.executor = executor;
+        listeningExecutor = MoreExecutors.listeningDecorator(executor);
         this.sessionId = sessionId;
         this.nodes = nodes;
         this.shutDownExecutorOnClose = shutDownExecutorOnClose;
+        this.hedgingPolicy = hedgingPolicy;
+        this.replicaSessionFactory = replicaSessionFactory;
+        replicaLocks = new Object[sessions.length];
+        for (int i = 0; i < replicaLocks.length; i++) {
+            replicaLocks[i] = new Object();
+        }
+        replicaSessions = new ImhotepSession[sessions.length];
+        replicaUnavailable = new boolean[sessions.length];
+        replicaStats = new List[sessions.length];
     }
 
     @Override
@@ -72,6 +146,7 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
         if (sessions.length == 1) {
             return sessions[0].getFTGSIterator(intFields, stringFields);
         }
+        // the split merge is not hedged, merging on the client instead would cost more than an occasional slow daemon
         final RawFTGSIterator[] mergers = getFTGSIteratorSplits(intFields, stringFields);
         return new FTGSInterleaver(mergers);
     }
@@ -120,8 +195,250 @@ public class RemoteImhotepMultiSession extends AbstractImhotepMultiSession {
         return new FTGSInterleaver(mergers);
     }
 
+    @Override
+    public int pushStat(final String statName) throws ImhotepOutOfMemoryException {
+        final int result = super.pushStat(statName);
+        pushedStats.add(statName);
+        return result;
+    }
+
+    @Override
+    public int pushStats(final List<String> statNames) throws ImhotepOutOfMemoryException {
+        final int result = super.pushStats(statNames);
+        pushedStats.addAll(statNames);
+        return result;
+    }
+
+    @Override
+    public int popStat() {
+        final int result = super.popStat();
+        if (!pushedStats.isEmpty()) {
+            pushedStats.remove(pushedStats.size() - 1);
+        }
+        return result;
+    }
+
+    private boolean canHedge(boolean dependsOnSessionState) {
+        if (hedgingPolicy == null || isIndexesRebuilt()) {
+            return false;
+        }
+        return !dependsOnSessionState || !isSessionStateModified();
+    }
+
+    @Override
+    protected <T> void executeIdempotent(final T[] ret, final boolean dependsOnSessionState, final ThrowingFunction<? super ImhotepSession, ? extends T> function) throws ExecutionException {
+        if (!canHedge(dependsOnSessionState)) {
+            super.executeIdempotent(ret, dependsOnSessionState, function);
+            return;
+        }
+        // every request and hedge is submitted from this thread, so no task ever waits on another in the executor
+        final long start = System.currentTimeMillis();
+        final long hedgeAt = start + hedgingPolicy.getHedgeDelayMillis();
+        final List<ListenableFuture<T>> results = new ArrayList<ListenableFuture<T>>(sessions.length);
+        for (int i = 0; i < sessions.length; i++) {
+            results.add(submitPrimary(i, start, function));
+        }
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                final ListenableFuture<T> primary = results.get(i);
+                try {
+                    primary.get(Math.max(0L, hedgeAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    results.set(i, hedge(i, start, primary, function));
+                }
+            }
+            for (int i = 0; i < sessions.length; i++) {
+                ret[i] = results.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            safeClose();
+            throw e;
+        } catch (InterruptedException e) {
+            safeClose();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <T> ListenableFuture<T> submitPrimary(final int index, final long start, final ThrowingFunction<? super ImhotepSession, ? extends T> function) {
+        final ListenableFuture<T> primary = listeningExecutor.submit(newCallable(sessions[index], function));
+        // the primary's latency is recorded whether or not a hedge beats it, so that slow daemons keep the delay honest
+        Futures.addCallback(primary, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                hedgingPolicy.recordLatency(System.currentTimeMillis() - start);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+            }
+        });
+        return primary;
+    }
+
+    /**
+     * issues a hedge of a slow primary against a replica of its sub-session and returns the first successful result
+     * of the two. the replica is opened by the hedge itself, so this never blocks. a hedge that has not started by the
+     * time the primary answers is cancelled, and one that has does not open or sync the replica once it is not needed.
+     */
+    private <T> ListenableFuture<T> hedge(final int index, final long start, final ListenableFuture<T> primary,
+                                          final ThrowingFunction<? super ImhotepSession, ? extends T> function) {
+        final SettableFuture<T> first = SettableFuture.create();
+        final List<String> stats = ImmutableList.copyOf(pushedStats);
+        final ListenableFuture<T> hedge = listeningExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                final ImhotepSession replica = getReplicaSession(index, stats, first);
+                if (replica == null) {
+                    throw new NoReplicaException();
+                }
+                hedgingPolicy.hedgeIssued();
+                return function.apply(replica);
+            }
+        });
+
+        final AtomicInteger failures = new AtomicInteger(0);
+        final AtomicLong hedgeWonAt = new AtomicLong(-1L);
+        Futures.addCallback(hedge, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                if (first.set(result)) {
+                    final long now = System.currentTimeMillis();
+                    hedgeWonAt.set(now);
+                    log.info("replica answered first for session " + index + " after " + (now - start) + " ms");
+                } else {
+                    closeLoser(result);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!(t instanceof NoReplicaException) && !(t instanceof CancellationException)) {
+                    log.warn("hedged request failed on replica for session " + index, t);
+                }
+                if (failures.incrementAndGet() == 2) {
+                    first.setException(t);
+                }
+            }
+        });
+        Futures.addCallback(primary, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                if (first.set(result)) {
+                    hedge.cancel(false);
+                } else {
+                    closeLoser(result);
+                }
+                recordHedgeWon(hedgeWonAt.get());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("hedged request failed on primary for session " + index, t);
+                if (failures.incrementAndGet() == 2) {
+                    first.setException(t);
+                }
+                recordHedgeWon(hedgeWonAt.get());
+            }
+        });
+        return first;
+    }
+
+    private void recordHedgeWon(long hedgeWonAt) {
+        if (hedgeWonAt >= 0) {
+            hedgingPolicy.hedgeWon(System.currentTimeMillis() - hedgeWonAt);
+        }
+    }
+
+    private static void closeLoser(Object result) {
+        if (result instanceof Closeable) {
+            Closeables2.closeQuietly((Closeable)result, log);
+        }
+    }
+
+    private static final class NoReplicaException extends Exception {
+        private NoReplicaException() {
+            super("no replica session");
+        }
+    }
+
+    private static <T> Callable<T> newCallable(final ImhotepSession session, final ThrowingFunction<? super ImhotepSession, ? extends T> function) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return function.apply(session);
+            }
+        };
+    }
+
+    /**
+     * opens the replica of sessions[index] the first time it is needed and brings its stats up to date. only that
+     * index is locked meanwhile, so opening one replica does not hold up hedges of the other sub-sessions.
+     *
+     * @param stats the stats pushed when the hedge was submitted
+     * @param result the result of the hedged request, once it is done the replica is not needed
+     */
+    @Nullable
+    private ImhotepSession getReplicaSession(final int index, final List<String> stats, final Future<?> result) {
+        synchronized (replicaLocks[index]) {
+            if (replicaUnavailable[index] || result.isDone()) {
+                return null;
+            }
+            try {
+                if (replicaSessions[index] == null) {
+                    replicaSessions[index] = replicaSessionFactory.openReplicaSession(index);
+                    if (replicaSessions[index] == null) {
+                        replicaUnavailable[index] = true;
+                        return null;
+                    }
+                    replicaStats[index] = Lists.newArrayList();
+                }
+                syncReplicaStats(index, stats);
+                return replicaSessions[index];
+            } catch (Exception e) {
+                log.warn("unable to open replica session for session " + index + ", not hedging it", e);
+                replicaUnavailable[index] = true;
+                if (replicaSessions[index] != null) {
+                    Closeables2.closeQuietly(replicaSessions[index], log);
+                    replicaSessions[index] = null;
+                }
+                return null;
+            }
+        }
+    }
+
+    private void syncReplicaStats(final int index, final List<String> pushed) throws ImhotepOutOfMemoryException {
+        final ImhotepSession replica = replicaSessions[index];
+        final List<String> stats = replicaStats[index];
+        int commonPrefix = 0;
+        while (commonPrefix < stats.size() && commonPrefix < pushed.size() && stats.get(commonPrefix).equals(pushed.get(commonPrefix))) {
+            commonPrefix++;
+        }
+        while (stats.size() > commonPrefix) {
+            replica.popStat();
+            stats.remove(stats.size() - 1);
+        }
+        if (pushed.size() > commonPrefix) {
+            final List<String> toPush = Lists.newArrayList(pushed.subList(commonPrefix, pushed.size()));
+            replica.pushStats(toPush);
+            stats.addAll(toPush);
+        }
+    }
+
     @Override
     protected void postClose() {
+        for (int i = 0; i < replicaSessions.length; i++) {
+            synchronized (replicaLocks[i]) {
+                if (replicaSessions[i] != null) {
+                    Closeables2.closeQuietly(replicaSessions[i], log);
+                    replicaSessions[i] = null;
+                }
+                // a hedge still in flight must not open it again
+                replicaUnavailable[i] = true;
+            }
+        }
+        if (hedgingPolicy != null) {
+            log.info("closed session " + sessionId + ", " + hedgingPolicy);
+        }
         if (shutDownExecutorOnClose) {
             executor.shutdownNow();
             try {
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.imhotep.api.AsyncImhotepSession;
+import com.indeed.imhotep.api.ImhotepSession;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AsyncImhotepSession for sessions without a native one. Each flush runs its queued commands against the blocking
+ * session on a shared pool, after the previous flush of the same session has finished.
+ */
+class SerialAsyncImhotepSession implements AsyncImhotepSession {
+    private static final ExecutorService flushExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SerialAsyncImhotepSession-%d").build()
+    );
+
+    private final ImhotepSession session;
+
+    private List<Command<?>> pending = Lists.newArrayList();
+    // completes when the last flushed batch has run
+    private ListenableFuture<?> lastFlush = Futures.immediateFuture(null);
+
+    SerialAsyncImhotepSession(ImhotepSession session) {
+        this.session = session;
+    }
+
+    private static final class Command<T> {
+        final Callable<T> callable;
+        final SettableFuture<T> future = SettableFuture.create();
+
+        private Command(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        /**
+         * @return the failure, or null if the command succeeded
+         */
+        Throwable run() {
+            try {
+                future.set(callable.call());
+                return null;
+            } catch (Throwable t) {
+                future.setException(t);
+                return t;
+            }
+        }
+    }
+
+    private <T> ListenableFuture<T> enqueue(Callable<T> callable) {
+        final Command<T> command = new Command<T>(callable);
+        pending.add(command);
+        return command.future;
+    }
+
+    @Override
+    public ListenableFuture<Long> getTotalDocFreq(final String[] intFields, final String[] stringFields) {
+        return enqueue(new Callable<Long>() {
+            public Long call() {
+                return session.getTotalDocFreq(intFields, stringFields);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<long[]> getGroupStats(final int stat) {
+        return enqueue(new Callable<long[]>() {
+            public long[] call() {
+                return session.getGroupStats(stat);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<long[][]> getGroupStatsMulti(final int[] stats) {
+        return enqueue(new Callable<long[][]>() {
+            public long[][] call() {
+                return session.getGroupStatsMulti(stats);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final GroupMultiRemapRule[] rawRules, final boolean errorOnCollisions) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.regroup(rawRules, errorOnCollisions);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final GroupRemapRule[] rawRules) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.regroup(rawRules);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> regroup(final QueryRemapRule rule) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.regroup(rule);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricRegroup(final int stat, final long min, final long max, final long intervalSize, final boolean noGutters) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.metricRegroup(stat, min, max, intervalSize, noGutters);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricRegroup2D(final int xStat, final long xMin, final long xMax, final long xIntervalSize,
+                                                     final int yStat, final long yMin, final long yMax, final long yIntervalSize) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.metricRegroup2D(xStat, xMin, xMax, xIntervalSize, yStat, yMin, yMax, yIntervalSize);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> metricFilter(final int stat, final long min, final long max, final boolean negate) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.metricFilter(stat, min, max, negate);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> pushStat(final String statName) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.pushStat(statName);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> pushStats(final List<String> statNames) {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return session.pushStats(statNames);
+            }
+        });
+    }
+
+    @Override
+    public ListenableFuture<Integer> popStat() {
+        return enqueue(new Callable<Integer>() {
+            public Integer call() {
+                return session.popStat();
+            }
+        });
+    }
+
+    @Override
+    public void flush() {
+        final List<Command<?>> batch = pending;
+        pending = Lists.newArrayList();
+        if (batch.isEmpty()) {
+            return;
+        }
+        final SettableFuture<Void> done = SettableFuture.create();
+        final ListenableFuture<?> previous = lastFlush;
+        lastFlush = done;
+        previous.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runBatch(batch);
+                } finally {
+                    done.set(null);
+                }
+            }
+        }, flushExecutor);
+    }
+
+    private static void runBatch(List<Command<?>> batch) {
+        for (int i = 0; i < batch.size(); ++i) {
+            final Throwable failure = batch.get(i).run();
+            if (failure != null) {
+                for (int j = i + 1; j < batch.size(); ++j) {
+                    batch.get(j).future.setException(new IllegalStateException("not run because an earlier command failed", failure));
+                }
+                return;
+            }
+        }
+    }
+}
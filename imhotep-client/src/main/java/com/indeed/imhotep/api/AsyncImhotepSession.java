@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.api;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.indeed.imhotep.GroupMultiRemapRule;
+import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.QueryRemapRule;
+
+import java.util.List;
+
+/**
+ * Non-blocking view of an {@link ImhotepSession}, obtained with {@link ImhotepSession#getAsyncSession()}.
+ *
+ * Commands are queued in the order they are called and nothing is sent until {@link #flush()}, which hands all queued
+ * commands to the session to be executed in order and returns without waiting for them. Each command's future
+ * completes with the value its blocking counterpart would have returned, or fails with the exception it would have
+ * thrown. If a command fails, every command queued after it in the same flush fails as well, since the session state
+ * they depend on is unknown.
+ *
+ * A query plan such as pushStats, regroup, getGroupStats can therefore be issued as one flush and only the final
+ * futures awaited. Futures of commands that are never flushed never complete.
+ *
+ * The async view shares state with its session. Do not issue blocking calls on the session while flushed commands are
+ * still outstanding.
+ */
+public interface AsyncImhotepSession {
+    ListenableFuture<Long> getTotalDocFreq(String[] intFields, String[] stringFields);
+
+    ListenableFuture<long[]> getGroupStats(int stat);
+
+    ListenableFuture<long[][]> getGroupStatsMulti(int[] stats);
+
+    ListenableFuture<Integer> regroup(GroupMultiRemapRule[] rawRules, boolean errorOnCollisions);
+
+    ListenableFuture<Integer> regroup(GroupRemapRule[] rawRules);
+
+    ListenableFuture<Integer> regroup(QueryRemapRule rule);
+
+    ListenableFuture<Integer> metricRegroup(int stat, long min, long max, long intervalSize, boolean noGutters);
+
+    ListenableFuture<Integer> metricRegroup2D(int xStat, long xMin, long xMax, long xIntervalSize,
+                                              int yStat, long yMin, long yMax, long yIntervalSize);
+
+    ListenableFuture<Integer> metricFilter(int stat, long min, long max, boolean negate);
+
+    ListenableFuture<Integer> pushStat(String statName);
+
+    ListenableFuture<Integer> pushStats(List<String> statNames);
+
+    ListenableFuture<Integer> popStat();
+
+    /**
+     * start executing all commands queued since the last flush, without waiting for them to finish
+     */
+    void flush();
+}
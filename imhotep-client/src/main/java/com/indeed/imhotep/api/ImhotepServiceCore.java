@@ -58,6 +58,7 @@ public interface ImhotepServiceCore {
     void handleGetDocIterator(String sessionId, String[] intFields, String[] stringFields, OutputStream os) throws ImhotepOutOfMemoryException, IOException;
     long handleGetTotalDocFreq(String sessionId, String[] intFields, String[] stringFields);
     long[] handleGetGroupStats(String sessionId, int stat);
+    long[][] handleGetGroupStatsMulti(String sessionId, int[] stats);
     List<String> getShardIdsForSession(String sessionId);
     boolean sessionIsValid(String sessionId);
     void handleCloseSession(String sessionId);
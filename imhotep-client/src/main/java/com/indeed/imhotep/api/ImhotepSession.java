@@ -45,6 +45,15 @@ public interface ImhotepSession extends Closeable {
      */
     long[] getGroupStats(int stat);
 
+    /**
+     * get the current totals of several metrics for each group in a single call
+     * As with {@link #getGroupStats(int)}, trailing groups with 0 values can cause the returned arrays to be shorter
+     * than the total number of groups.
+     * @param stats the indexes of the metrics
+     * @return one array of metric values per requested stat, in the order of stats, each indexed by group
+     */
+    long[][] getGroupStatsMulti(int[] stats);
+
     /**
      * get an iterator over all (field, term, group, stat) tuples for the given fields
      * @param intFields list of int fields
@@ -317,4 +326,9 @@ public interface ImhotepSession extends Closeable {
      * @throws ImhotepOutOfMemoryException 
      */
     void rebuildAndFilterIndexes(List<String> intFields, List<String> stringFields) throws ImhotepOutOfMemoryException;
+
+    /**
+     * @return a non-blocking view of this session that queues commands until flushed, always the same instance
+     */
+    AsyncImhotepSession getAsyncSession();
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.client;
+
+import com.google.common.collect.Sets;
+import com.indeed.imhotep.ImhotepStatusDump;
+
+import java.util.Set;
+
+/**
+ * Load of one daemon as seen from its status dump, used to weigh replicas against each other when assigning shards.
+ */
+class HostLoad {
+    static final HostLoad UNKNOWN = new HostLoad(0, 0, 0, Sets.<String>newHashSet());
+
+    // open sessions at which a host counts as twice as expensive as an idle one
+    private static final double SESSIONS_PER_DOUBLING = 16;
+    // status round trip at which a host counts as twice as expensive as a local one
+    private static final double LATENCY_MILLIS_PER_DOUBLING = 200;
+    // memory pool usage above which a host becomes more expensive, reaching 3x when the pool is full
+    private static final double MEMORY_PRESSURE_THRESHOLD = 0.8;
+    private static final double MEMORY_PRESSURE_WEIGHT = 2 / (1 - MEMORY_PRESSURE_THRESHOLD);
+
+    private final double memoryUsedFraction;
+    private final int openSessions;
+    private final double latencyMillis;
+    // dataset + "/" + shardId of every shard the daemon currently has open
+    private final Set<String> loadedShards;
+
+    private HostLoad(double memoryUsedFraction, int openSessions, double latencyMillis, Set<String> loadedShards) {
+        this.memoryUsedFraction = memoryUsedFraction;
+        this.openSessions = openSessions;
+        this.latencyMillis = latencyMillis;
+        this.loadedShards = loadedShards;
+    }
+
+    static HostLoad fromStatusDump(ImhotepStatusDump statusDump, double latencyMillis) {
+        final Set<String> loadedShards = Sets.newHashSetWithExpectedSize(statusDump.shards.size());
+        for (final ImhotepStatusDump.ShardDump shard : statusDump.shards) {
+            // the dump lists every shard the daemon serves, only some of which have their readers open
+            if (shard.loaded) {
+                loadedShards.add(shard.dataset + "/" + shard.shardId);
+            }
+        }
+        final double memoryUsedFraction = statusDump.totalMemory > 0 ? (double)statusDump.usedMemory / statusDump.totalMemory : 0;
+        return new HostLoad(memoryUsedFraction, statusDump.openSessions.size(), latencyMillis, loadedShards);
+    }
+
+    boolean isShardLoaded(String dataset, String shardId) {
+        return loadedShards.contains(dataset + "/" + shardId);
+    }
+
+    /**
+     * @return a factor of at least 1 by which work assigned to this host is scaled, 1 for an idle nearby host
+     */
+    double getPenalty() {
+        final double memoryPressure = Math.max(0, memoryUsedFraction - MEMORY_PRESSURE_THRESHOLD) * MEMORY_PRESSURE_WEIGHT;
+        return 1 + openSessions / SESSIONS_PER_DOUBLING + latencyMillis / LATENCY_MILLIS_PER_DOUBLING + memoryPressure;
+    }
+
+    @Override
+    public String toString() {
+        return "HostLoad{" +
+                "memoryUsedFraction=" + memoryUsedFraction +
+                ", openSessions=" + openSessions +
+                ", latencyMillis=" + latencyMillis +
+                ", loadedShards=" + loadedShards.size() +
+                '}';
+    }
+}
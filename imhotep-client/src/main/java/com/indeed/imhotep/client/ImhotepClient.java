@@ -23,10 +23,12 @@ import com.google.common.collect.Sets;
 import com.google.common.primitives.Longs;
 import com.indeed.util.core.Pair;
 import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.HedgingPolicy;
 import com.indeed.imhotep.RemoteImhotepMultiSession;
 import com.indeed.imhotep.ImhotepRemoteSession;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.ShardInfo;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
@@ -65,10 +67,14 @@ import java.util.concurrent.TimeUnit;
 public class ImhotepClient implements Closeable {
     private static final Logger log = Logger.getLogger(ImhotepClient.class);
 
+    // extra cost of sending a shard to a replica that does not have it open yet
+    private static final double COLD_SHARD_PENALTY = 1.25;
+
     private final HostsReloader hostsSource;
     private final ExecutorService rpcExecutor;
     private final ScheduledExecutorService reloader;
     private final ImhotepClientShardListReloader shardListReloader;
+    private final ImhotepClientLoadReloader loadReloader;
 
     /**
      * create an imhotep client that will periodically reload its list of hosts from a text file
@@ -118,6 +124,9 @@ public class ImhotepClient implements Closeable {
         shardListReloader = new ImhotepClientShardListReloader(hostsSource, rpcExecutor);
         shardListReloader.run();
         reloader.scheduleAtFixedRate(shardListReloader, 60L, 60L, TimeUnit.SECONDS);
+        loadReloader = new ImhotepClientLoadReloader(hostsSource, rpcExecutor);
+        // replicas are picked by doc count alone until the first status dumps are in, so don't wait for them
+        reloader.scheduleAtFixedRate(loadReloader, 0L, 15L, TimeUnit.SECONDS);
     }
 
     public Map<Host, List<DatasetInfo>> getShardList() {
@@ -278,6 +287,7 @@ public class ImhotepClient implements Closeable {
         private String username;
         private boolean optimizeGroupZeroLookups = false;
         private int socketTimeout = -1;
+        private HedgingPolicy hedgingPolicy = null;
 
         private List<ShardIdWithVersion> chosenShards = null;
         private List<String> shardsOverride = null;
@@ -314,6 +324,16 @@ public class ImhotepClient implements Closeable {
             return this;
         }
 
+        /**
+         * Enables hedging of idempotent reads: when a daemon is slower than the policy allows, the same read is
+         * issued against a replica of its shards and whichever answers first is used.
+         * The policy should be shared across sessions so that its latency history is meaningful.
+         */
+        public SessionBuilder hedgingPolicy(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
         public SessionBuilder shardsOverride(List<String> requiredShards) {
             this.shardsOverride = Lists.newArrayList(requiredShards);
             return this;
@@ -367,7 +387,7 @@ public class ImhotepClient implements Closeable {
                 username = ImhotepRemoteSession.getUsername();
             }
             List<String> chosenShardIDs = shardsOverride != null ? shardsOverride : ShardIdWithVersion.keepShardIds(getChosenShards());
-            return getSessionForShards(dataset, chosenShardIDs, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout);
+            return getSessionForShards(dataset, chosenShardIDs, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, hedgingPolicy);
         }
 
     }
@@ -449,12 +469,13 @@ public class ImhotepClient implements Closeable {
                                      final int mergeThreadLimit, final int priority, final String username,
                                      final boolean optimizeGroupZeroLookups, final int socketTimeout) {
 
-        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout);
+        return getSessionForShards(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, null);
     }
 
     private ImhotepSession getSessionForShards(final String dataset, final Collection<String> requestedShards, final Collection<String> requestedMetrics,
                                      final int mergeThreadLimit, final String username,
-                                     final boolean optimizeGroupZeroLookups, final int socketTimeout) {
+                                     final boolean optimizeGroupZeroLookups, final int socketTimeout,
+                                     @Nullable final HedgingPolicy hedgingPolicy) {
 
         if(requestedShards == null || requestedShards.size() == 0) {
             throw new IllegalArgumentException("No shards");
@@ -462,7 +483,8 @@ public class ImhotepClient implements Closeable {
         int retries = 3;
         while (retries > 0) {
             final String sessionId = UUID.randomUUID().toString();
-            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, requestedMetrics, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId);
+            final Map<Host, List<String>> shardRequestMap = buildShardRequestMap(dataset, requestedShards, requestedMetrics);
+            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, requestedShards, shardRequestMap, mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId);
             if (remoteSessions == null) {
                 --retries;
                 if (retries > 0) {
@@ -474,7 +496,12 @@ public class ImhotepClient implements Closeable {
             for (int i = 0; i < remoteSessions.length; i++) {
                 nodes[i] = remoteSessions[i].getInetSocketAddress();
             }
-            return new RemoteImhotepMultiSession(remoteSessions, sessionId, nodes);
+            if (hedgingPolicy == null) {
+                return new RemoteImhotepMultiSession(remoteSessions, sessionId, nodes);
+            }
+            final ReplicaSessionOpener replicaSessionOpener = new ReplicaSessionOpener(dataset, shardRequestMap,
+                    mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout);
+            return new RemoteImhotepMultiSession(remoteSessions, sessionId, nodes, hedgingPolicy, replicaSessionOpener);
         }
         throw new RuntimeException("unable to open session");
     }
@@ -603,12 +630,81 @@ public class ImhotepClient implements Closeable {
         }
     }
 
+    /**
+     * Opens sessions over the same shards as one of the hosts of a multi-session on other hosts that have the same
+     * shard versions, for hedging requests against that host.
+     */
+    private class ReplicaSessionOpener implements RemoteImhotepMultiSession.ReplicaSessionFactory {
+        private final String dataset;
+        private final List<Host> primaryHosts;
+        private final List<List<String>> shardLists;
+        private final int mergeThreadLimit;
+        private final String username;
+        private final boolean optimizeGroupZeroLookups;
+        private final int socketTimeout;
+
+        private ReplicaSessionOpener(String dataset, Map<Host, List<String>> shardRequestMap, int mergeThreadLimit,
+                                     String username, boolean optimizeGroupZeroLookups, int socketTimeout) {
+            this.dataset = dataset;
+            // same iteration order as the sessions returned by internalGetSession
+            primaryHosts = Lists.newArrayList(shardRequestMap.keySet());
+            shardLists = Lists.newArrayList(shardRequestMap.values());
+            this.mergeThreadLimit = mergeThreadLimit;
+            this.username = username;
+            this.optimizeGroupZeroLookups = optimizeGroupZeroLookups;
+            this.socketTimeout = socketTimeout;
+        }
+
+        @Override
+        public ImhotepSession openReplicaSession(int index) throws ImhotepOutOfMemoryException, IOException {
+            final Host primaryHost = primaryHosts.get(index);
+            final Map<String, ShardData> shardMap = constructPotentialShardMap(dataset, Collections.<String>emptySet());
+            final Map<Host, List<String>> replicaRequestMap = new TreeMap<Host, List<String>>();
+            for (final String shard : shardLists.get(index)) {
+                final ShardData shardData = shardMap.get(shard);
+                if (shardData == null) {
+                    return null;
+                }
+                Host replicaHost = null;
+                for (final Pair<Host, Integer> p : shardData.hostToLoadedMetrics) {
+                    final Host host = p.getFirst();
+                    if (host.equals(primaryHost)) continue;
+                    // prefer hosts already chosen for other shards to keep the number of sessions down
+                    if (replicaHost == null || (replicaRequestMap.containsKey(host) && !replicaRequestMap.containsKey(replicaHost))) {
+                        replicaHost = host;
+                    }
+                }
+                if (replicaHost == null) {
+                    log.info("no replica of shard " + shard + " other than " + primaryHost + ", not hedging");
+                    return null;
+                }
+                if (!replicaRequestMap.containsKey(replicaHost)) {
+                    replicaRequestMap.put(replicaHost, new ArrayList<String>());
+                }
+                replicaRequestMap.get(replicaHost).add(shard);
+            }
+
+            final String sessionId = UUID.randomUUID().toString();
+            final ImhotepRemoteSession[] remoteSessions = internalGetSession(dataset, shardLists.get(index), replicaRequestMap,
+                    mergeThreadLimit, username, optimizeGroupZeroLookups, socketTimeout, sessionId);
+            if (remoteSessions == null) {
+                throw new IOException("unable to open replica session for shards of " + primaryHost);
+            }
+            if (remoteSessions.length == 1) {
+                return remoteSessions[0];
+            }
+            final InetSocketAddress[] nodes = new InetSocketAddress[remoteSessions.length];
+            for (int i = 0; i < remoteSessions.length; i++) {
+                nodes[i] = remoteSessions[i].getInetSocketAddress();
+            }
+            return new RemoteImhotepMultiSession(remoteSessions, sessionId, nodes);
+        }
+    }
+
     // returns null on error
-    private ImhotepRemoteSession[] internalGetSession(final String dataset, Collection<String> requestedShards, Collection<String> requestedMetrics, final int mergeThreadLimit,
+    private ImhotepRemoteSession[] internalGetSession(final String dataset, Collection<String> requestedShards, final Map<Host, List<String>> shardRequestMap, final int mergeThreadLimit,
                                                       final String username, final boolean optimizeGroupZeroLookups, final int socketTimeout, @Nullable final String sessionId) {
 
-        final Map<Host, List<String>> shardRequestMap = buildShardRequestMap(dataset, requestedShards, requestedMetrics);
-
         if (shardRequestMap.isEmpty()) {
             log.error("unable to find all of the requested shards in dataset " + dataset + " (shard list = " + requestedShards + ")");
             return null;
@@ -663,8 +759,18 @@ public class ImhotepClient implements Closeable {
     }
 
     private Map<Host, List<String>> buildShardRequestMap(String dataset, Collection<String> requestedShards, Collection<String> requestedMetrics) {
+        return buildShardRequestMap(dataset, requestedShards, requestedMetrics, getShardList(), loadReloader.getHostLoads());
+    }
+
+    /**
+     * assign each requested shard to the cheapest host that has its newest version, largest shards first
+     *
+     * @param hostLoads the last known load of each host, hosts without one are taken as {@link HostLoad#UNKNOWN}
+     */
+    static Map<Host, List<String>> buildShardRequestMap(String dataset, Collection<String> requestedShards, Collection<String> requestedMetrics,
+                                                        Map<Host, List<DatasetInfo>> shardListMap, Map<Host, HostLoad> hostLoads) {
         final Set<String> requestedMetricsSet = new HashSet<String>(requestedMetrics);
-        final Map<String, ShardData> shardMap = constructPotentialShardMap(dataset, requestedMetricsSet);
+        final Map<String, ShardData> shardMap = constructPotentialShardMap(dataset, requestedMetricsSet, shardListMap);
 
         boolean error = false;
         for (final String shard : requestedShards) {
@@ -688,21 +794,29 @@ public class ImhotepClient implements Closeable {
             }
         });
 
-        final Map<Host, Integer> hostDocCounts = new HashMap<Host, Integer>();
+        final int numRequestedMetrics = requestedMetricsSet.size();
+        final Map<Host, Long> hostDocCounts = new HashMap<Host, Long>();
         final Map<Host, List<String>> shardRequestMap = new TreeMap<Host, List<String>>();
         for (final String shard : sortedShards) {
-            final List<Pair<Host, Integer>> potentialHosts = shardMap.get(shard).hostToLoadedMetrics;
-            int minHostDocCount = Integer.MAX_VALUE;
-            int minHostLoadedMetricCount = 0;
+            final ShardData shardData = shardMap.get(shard);
+            double minCost = Double.MAX_VALUE;
             Host minHost = null;
-            for (final Pair<Host, Integer> p : potentialHosts) {
+            for (final Pair<Host, Integer> p : shardData.hostToLoadedMetrics) {
                 final Host host = p.getFirst();
                 final int loadedMetricCount = p.getSecond();
 
-                if (!hostDocCounts.containsKey(host)) hostDocCounts.put(host, 0);
-                if (loadedMetricCount > minHostLoadedMetricCount || hostDocCounts.get(host) < minHostDocCount) {
-                    minHostDocCount = hostDocCounts.get(host);
-                    minHostLoadedMetricCount = loadedMetricCount;
+                if (!hostDocCounts.containsKey(host)) hostDocCounts.put(host, 0L);
+                final HostLoad hostLoad = hostLoads.containsKey(host) ? hostLoads.get(host) : HostLoad.UNKNOWN;
+                // prefer replicas that already have the shard open and the requested metrics loaded, spread the rest by load
+                double cost = (hostDocCounts.get(host) + shardData.numDocs) * hostLoad.getPenalty();
+                if (numRequestedMetrics > 0) {
+                    cost *= 1 + (double)(numRequestedMetrics - loadedMetricCount) / numRequestedMetrics;
+                }
+                if (!hostLoad.isShardLoaded(dataset, shard)) {
+                    cost *= COLD_SHARD_PENALTY;
+                }
+                if (cost < minCost) {
+                    minCost = cost;
                     minHost = host;
                 }
             }
@@ -712,7 +826,7 @@ public class ImhotepClient implements Closeable {
                 shardRequestMap.put(minHost, new ArrayList<String>());
             }
             shardRequestMap.get(minHost).add(shard);
-            hostDocCounts.put(minHost, hostDocCounts.get(minHost) + shardMap.get(shard).numDocs);
+            hostDocCounts.put(minHost, hostDocCounts.get(minHost) + shardData.numDocs);
         }
         return shardRequestMap;
     }
@@ -726,8 +840,11 @@ public class ImhotepClient implements Closeable {
      * @return The resulting map
      */
     private Map<String, ShardData> constructPotentialShardMap(String dataset, Set<String> requestedMetricsSet) {
+        return constructPotentialShardMap(dataset, requestedMetricsSet, getShardList());
+    }
+
+    private static Map<String, ShardData> constructPotentialShardMap(String dataset, Set<String> requestedMetricsSet, Map<Host, List<DatasetInfo>> shardListMap) {
         final Map<String, ShardData> shardMap = Maps.newHashMap();
-        final Map<Host, List<DatasetInfo>> shardListMap = getShardList();
         for (final Map.Entry<Host, List<DatasetInfo>> e : shardListMap.entrySet()) {
             final Host host = e.getKey();
             final List<DatasetInfo> shardList = e.getValue();
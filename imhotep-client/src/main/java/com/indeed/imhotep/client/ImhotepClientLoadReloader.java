@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.client;
+
+import com.google.common.collect.Maps;
+import com.indeed.util.core.DataLoadingRunnable;
+import com.indeed.imhotep.ImhotepRemoteSession;
+import com.indeed.imhotep.ImhotepStatusDump;
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Periodically fetches the status dump of every daemon and keeps a HostLoad for each. Latency is a moving average over
+ * the status round trips only, since those do the same small amount of work on every daemon, unlike session opens.
+ */
+class ImhotepClientLoadReloader extends DataLoadingRunnable {
+    private static final Logger log = Logger.getLogger(ImhotepClientLoadReloader.class);
+
+    // weight of the newest sample in the latency moving average
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    private final HostsReloader hostsReloader;
+    private final ExecutorService rpcExecutor;
+
+    private final ConcurrentMap<Host, Double> latencies = Maps.newConcurrentMap();
+
+    private volatile Map<Host, HostLoad> hostLoads = Collections.emptyMap();
+
+    ImhotepClientLoadReloader(HostsReloader hostsReloader, ExecutorService rpcExecutor) {
+        super("ImhotepClientLoadReloader");
+
+        this.hostsReloader = hostsReloader;
+        this.rpcExecutor = rpcExecutor;
+    }
+
+    @Override
+    public boolean load() {
+        try {
+            final Map<Host, HostLoad> newHostLoads = statusDumpRpc();
+            if (newHostLoads.isEmpty()) {
+                log.error("unable to retrieve status dump from any imhotep daemons");
+                loadFailed();
+                return false;
+            }
+            hostLoads = newHostLoads;
+            return true;
+        } catch (Exception e) {
+            log.error("Error reloading host loads", e);
+            loadFailed();
+            return false;
+        }
+    }
+
+    /**
+     * @return the last known load of every host that has one
+     */
+    public Map<Host, HostLoad> getHostLoads() {
+        return hostLoads;
+    }
+
+    private void recordLatency(Host host, long millis) {
+        while (true) {
+            final Double previous = latencies.get(host);
+            if (previous == null) {
+                if (latencies.putIfAbsent(host, (double)millis) == null) {
+                    return;
+                }
+            } else {
+                final double updated = previous + LATENCY_SMOOTHING * (millis - previous);
+                if (latencies.replace(host, previous, updated)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Map<Host, HostLoad> statusDumpRpc() {
+        final List<Host> hosts = hostsReloader.getHosts();
+
+        final Map<Host, Future<ImhotepStatusDump>> futures = Maps.newHashMap();
+        for (final Host host : hosts) {
+            final Future<ImhotepStatusDump> future = rpcExecutor.submit(new Callable<ImhotepStatusDump>() {
+                @Override
+                public ImhotepStatusDump call() throws Exception {
+                    final long start = System.currentTimeMillis();
+                    final ImhotepStatusDump statusDump = ImhotepRemoteSession.getStatusDump(host.hostname, host.port);
+                    recordLatency(host, System.currentTimeMillis() - start);
+                    return statusDump;
+                }
+            });
+            futures.put(host, future);
+        }
+
+        final Map<Host, HostLoad> ret = Maps.newHashMapWithExpectedSize(hosts.size());
+        for (final Host host : futures.keySet()) {
+            try {
+                final ImhotepStatusDump statusDump = futures.get(host).get();
+                ret.put(host, HostLoad.fromStatusDump(statusDump, latencies.get(host)));
+            } catch (ExecutionException e) {
+                log.error("error getting status dump from " + host, e);
+            } catch (InterruptedException e) {
+                log.error("error getting status dump from " + host, e);
+            }
+        }
+        return ret;
+    }
+}
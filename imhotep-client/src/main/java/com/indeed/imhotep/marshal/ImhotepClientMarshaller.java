@@ -13,8 +13,10 @@
  */
  package com.indeed.imhotep.marshal;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.protobuf.CodedInputStream;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
@@ -25,6 +27,7 @@ import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.protobuf.GroupMultiRemapMessage;
 import com.indeed.imhotep.protobuf.GroupRemapMessage;
+import com.indeed.imhotep.protobuf.GroupStatsMessage;
 import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
@@ -32,6 +35,7 @@ import com.indeed.imhotep.protobuf.RegroupConditionMessage;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -148,4 +152,20 @@ public final class ImhotepClientMarshaller {
         }
         return ret;
     }
+
+    public static long[] marshal(final GroupStatsMessage message) {
+        final long[] ret = new long[message.getNumGroups()];
+        final CodedInputStream in = message.getPackedStats().newCodedInput();
+        in.setSizeLimit(Integer.MAX_VALUE);
+        try {
+            int group = -1;
+            while (!in.isAtEnd()) {
+                group += in.readRawVarint32();
+                ret[group] = in.readSInt64();
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return ret;
+    }
 }
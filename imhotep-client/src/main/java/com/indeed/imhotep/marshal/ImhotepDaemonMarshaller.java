@@ -13,8 +13,11 @@
  */
  package com.indeed.imhotep.marshal;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
@@ -25,6 +28,7 @@ import com.indeed.imhotep.RegroupCondition;
 import com.indeed.imhotep.TermCount;
 import com.indeed.imhotep.protobuf.GroupMultiRemapMessage;
 import com.indeed.imhotep.protobuf.GroupRemapMessage;
+import com.indeed.imhotep.protobuf.GroupStatsMessage;
 import com.indeed.imhotep.protobuf.Operator;
 import com.indeed.imhotep.protobuf.QueryMessage;
 import com.indeed.imhotep.protobuf.QueryRemapMessage;
@@ -32,6 +36,7 @@ import com.indeed.imhotep.protobuf.RegroupConditionMessage;
 import com.indeed.imhotep.protobuf.TermCountMessage;
 import com.indeed.imhotep.protobuf.TermMessage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -144,4 +149,34 @@ public final class ImhotepDaemonMarshaller {
         }
         return ret;
     }
+
+    public static GroupStatsMessage marshalGroupStats(final long[] groupStats) {
+        final ByteString.Output out = ByteString.newOutput();
+        final CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+        try {
+            int previous = -1;
+            for (int group = 0; group < groupStats.length; ++group) {
+                if (groupStats[group] != 0) {
+                    codedOut.writeRawVarint32(group - previous);
+                    codedOut.writeSInt64NoTag(groupStats[group]);
+                    previous = group;
+                }
+            }
+            codedOut.flush();
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        return GroupStatsMessage.newBuilder()
+                .setNumGroups(groupStats.length)
+                .setPackedStats(out.toByteString())
+                .build();
+    }
+
+    public static List<GroupStatsMessage> marshalGroupStatsList(final long[][] groupStatsList) {
+        final List<GroupStatsMessage> ret = Lists.newArrayListWithCapacity(groupStatsList.length);
+        for (final long[] groupStats : groupStatsList) {
+            ret.add(marshalGroupStats(groupStats));
+        }
+        return ret;
+    }
 }
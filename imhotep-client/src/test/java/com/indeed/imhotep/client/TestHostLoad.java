@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.client;
+
+import com.indeed.imhotep.ImhotepStatusDump;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestHostLoad {
+    private static ImhotepStatusDump statusDump(long usedMemory, int openSessions, ImhotepStatusDump.ShardDump... shards) {
+        final List<ImhotepStatusDump.SessionDump> sessions = new ArrayList<ImhotepStatusDump.SessionDump>();
+        for (int i = 0; i < openSessions; ++i) {
+            sessions.add(new ImhotepStatusDump.SessionDump("session" + i, "dataset", "host", "user", "127.0.0.1", 0,
+                    Collections.<ImhotepStatusDump.ShardDump>emptyList()));
+        }
+        return new ImhotepStatusDump(usedMemory, 1000, sessions, Arrays.asList(shards));
+    }
+
+    private static ImhotepStatusDump.ShardDump shard(String shardId, boolean loaded) {
+        return new ImhotepStatusDump.ShardDump(shardId, "dataset", 10, Collections.<ImhotepStatusDump.MetricDump>emptyList(), loaded);
+    }
+
+    @Test
+    public void testLoadedShards() {
+        final HostLoad load = HostLoad.fromStatusDump(statusDump(0, 0, shard("shard1", true), shard("shard2", false)), 0);
+        assertTrue(load.isShardLoaded("dataset", "shard1"));
+        assertFalse(load.isShardLoaded("dataset", "shard2"));
+        assertFalse(load.isShardLoaded("dataset", "shard3"));
+        assertFalse(load.isShardLoaded("dataset2", "shard1"));
+        assertFalse(HostLoad.UNKNOWN.isShardLoaded("dataset", "shard1"));
+    }
+
+    @Test
+    public void testPenalty() {
+        assertEquals(1.0, HostLoad.UNKNOWN.getPenalty(), 1e-9);
+        assertEquals(1.0, HostLoad.fromStatusDump(statusDump(0, 0), 0).getPenalty(), 1e-9);
+        assertEquals(2.0, HostLoad.fromStatusDump(statusDump(0, 16), 0).getPenalty(), 1e-9);
+        assertEquals(2.0, HostLoad.fromStatusDump(statusDump(0, 0), 200).getPenalty(), 1e-9);
+        // memory only counts past 80% used
+        assertEquals(1.0, HostLoad.fromStatusDump(statusDump(800, 0), 0).getPenalty(), 1e-9);
+        assertEquals(2.0, HostLoad.fromStatusDump(statusDump(900, 0), 0).getPenalty(), 1e-9);
+        assertEquals(3.0, HostLoad.fromStatusDump(statusDump(1000, 0), 0).getPenalty(), 1e-9);
+        assertEquals(4.0, HostLoad.fromStatusDump(statusDump(0, 32), 200).getPenalty(), 1e-9);
+    }
+}
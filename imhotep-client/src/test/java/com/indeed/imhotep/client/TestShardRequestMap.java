@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.indeed.imhotep.DatasetInfo;
+import com.indeed.imhotep.ImhotepStatusDump;
+import com.indeed.imhotep.ShardInfo;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestShardRequestMap {
+    private static final Host HOST1 = new Host("host1", 1234);
+    private static final Host HOST2 = new Host("host2", 1234);
+
+    private static List<DatasetInfo> datasets(ShardInfo... shards) {
+        return Collections.singletonList(new DatasetInfo("dataset", Arrays.asList(shards), Collections.<String>emptyList(),
+                Collections.<String>emptyList(), Collections.<String>emptyList()));
+    }
+
+    private static ShardInfo shard(String shardId, int numDocs, long version, String... loadedMetrics) {
+        return new ShardInfo("dataset", shardId, Arrays.asList(loadedMetrics), numDocs, version);
+    }
+
+    private static HostLoad load(int openSessions, String... loadedShards) {
+        final List<ImhotepStatusDump.SessionDump> sessions = new ArrayList<ImhotepStatusDump.SessionDump>();
+        for (int i = 0; i < openSessions; ++i) {
+            sessions.add(new ImhotepStatusDump.SessionDump("session" + i, "dataset", "host", "user", "127.0.0.1", 0,
+                    Collections.<ImhotepStatusDump.ShardDump>emptyList()));
+        }
+        final List<ImhotepStatusDump.ShardDump> shards = new ArrayList<ImhotepStatusDump.ShardDump>();
+        for (final String shardId : loadedShards) {
+            shards.add(new ImhotepStatusDump.ShardDump(shardId, "dataset", 100, Collections.<ImhotepStatusDump.MetricDump>emptyList(), true));
+        }
+        // a shard the daemon knows about but has not opened
+        shards.add(new ImhotepStatusDump.ShardDump("cold", "dataset", 100, Collections.<ImhotepStatusDump.MetricDump>emptyList(), false));
+        return HostLoad.fromStatusDump(new ImhotepStatusDump(0, 1000, sessions, shards), 0);
+    }
+
+    private static Map<Host, List<String>> build(List<String> shards, List<String> metrics,
+                                                 Map<Host, List<DatasetInfo>> shardList, Map<Host, HostLoad> hostLoads) {
+        return ImhotepClient.buildShardRequestMap("dataset", shards, metrics, shardList, hostLoads);
+    }
+
+    @Test
+    public void testPreferLoadedShard() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(
+                HOST1, datasets(shard("shard1", 100, 1), shard("cold", 100, 1)),
+                HOST2, datasets(shard("shard1", 100, 1), shard("cold", 100, 1)));
+        final Map<Host, HostLoad> hostLoads = ImmutableMap.of(HOST1, load(0), HOST2, load(0, "shard1"));
+        assertEquals(ImmutableMap.of(HOST2, Arrays.asList("shard1")),
+                build(Arrays.asList("shard1"), Collections.<String>emptyList(), shardList, hostLoads));
+        // being listed by the daemon doesn't make a shard loaded, so this is a tie that goes to the first replica
+        assertEquals(ImmutableMap.of(HOST1, Arrays.asList("cold")),
+                build(Arrays.asList("cold"), Collections.<String>emptyList(), shardList, hostLoads));
+    }
+
+    @Test
+    public void testBusyHostAvoided() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(
+                HOST1, datasets(shard("shard1", 100, 1)),
+                HOST2, datasets(shard("shard1", 100, 1)));
+        // 32 open sessions triple the cost, which outweighs the shard not being loaded
+        final Map<Host, HostLoad> hostLoads = ImmutableMap.of(HOST1, load(32, "shard1"), HOST2, load(0));
+        assertEquals(ImmutableMap.of(HOST2, Arrays.asList("shard1")),
+                build(Arrays.asList("shard1"), Collections.<String>emptyList(), shardList, hostLoads));
+    }
+
+    @Test
+    public void testSpreadByAssignedDocs() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(
+                HOST1, datasets(shard("shard1", 300, 1), shard("shard2", 200, 1), shard("shard3", 100, 1)),
+                HOST2, datasets(shard("shard1", 300, 1), shard("shard2", 200, 1), shard("shard3", 100, 1)));
+        // no loads known yet
+        final Map<Host, List<String>> requestMap = build(Arrays.asList("shard3", "shard2", "shard1"),
+                Collections.<String>emptyList(), shardList, Collections.<Host, HostLoad>emptyMap());
+        assertEquals(ImmutableMap.of(HOST1, Arrays.asList("shard1"), HOST2, Arrays.asList("shard2", "shard3")), requestMap);
+    }
+
+    @Test
+    public void testPreferLoadedMetrics() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(
+                HOST1, datasets(shard("shard1", 100, 1)),
+                HOST2, datasets(shard("shard1", 100, 1, "metric1")));
+        final Map<Host, HostLoad> hostLoads = ImmutableMap.of(HOST1, load(0, "shard1"), HOST2, load(0, "shard1"));
+        assertEquals(ImmutableMap.of(HOST2, Arrays.asList("shard1")),
+                build(Arrays.asList("shard1"), Arrays.asList("metric1"), shardList, hostLoads));
+    }
+
+    @Test
+    public void testOnlyNewestVersion() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(
+                HOST1, datasets(shard("shard1", 100, 2)),
+                HOST2, datasets(shard("shard1", 100, 1, "metric1")));
+        final Map<Host, HostLoad> hostLoads = ImmutableMap.of(HOST1, load(64), HOST2, load(0, "shard1"));
+        assertEquals(ImmutableMap.of(HOST1, Arrays.asList("shard1")),
+                build(Arrays.asList("shard1"), Arrays.asList("metric1"), shardList, hostLoads));
+    }
+
+    @Test
+    public void testMissingShard() {
+        final Map<Host, List<DatasetInfo>> shardList = ImmutableMap.of(HOST1, datasets(shard("shard1", 100, 1)));
+        assertEquals(Collections.<Host, List<String>>emptyMap(),
+                build(Arrays.asList("shard1", "shard2"), Collections.<String>emptyList(), shardList, Collections.<Host, HostLoad>emptyMap()));
+    }
+}
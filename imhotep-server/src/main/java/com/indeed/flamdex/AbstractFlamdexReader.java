@@ -21,11 +21,13 @@ import com.indeed.flamdex.api.GenericIntTermDocIterator;
 import com.indeed.flamdex.api.GenericStringTermDocIterator;
 import com.indeed.flamdex.api.IntTermDocIterator;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIteratorImpl;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 
 import java.io.IOException;
 import java.util.Map;
@@ -84,20 +86,21 @@ public abstract class AbstractFlamdexReader implements FlamdexReader {
     private IntValueLookup cacheField(UnsortedIntTermDocIterator iterator, String metric, FieldCacher fieldCacher) {
         if (useMMapMetrics) {
             try {
-                return fieldCacher.newMMapFieldCache(iterator, numDocs, metric, directory);
+                return new ZoneMappedIntValueLookup(fieldCacher.newMMapFieldCache(iterator, numDocs, metric, directory), numDocs);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
-        return fieldCacher.newFieldCache(iterator, numDocs);
+        return new ZoneMappedIntValueLookup(fieldCacher.newFieldCache(iterator, numDocs), numDocs);
     }
 
     @Override
     public final long memoryRequired(String metric) {
-        if (useMMapMetrics) return 0;
+        // the zone map is on the heap even when the field cache is mapped
+        if (useMMapMetrics) return IntValueZoneMap.memoryRequired(numDocs);
 
         final FieldCacher fieldCacher = getMetricCacher(metric);
-        return fieldCacher.memoryRequired(numDocs);
+        return fieldCacher.memoryRequired(numDocs) + IntValueZoneMap.memoryRequired(numDocs);
     }
 
     private FieldCacher getMetricCacher(String metric) {
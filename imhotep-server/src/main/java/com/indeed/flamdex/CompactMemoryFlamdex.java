@@ -0,0 +1,701 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.GenericIntTermDocIterator;
+import com.indeed.flamdex.api.GenericStringTermDocIterator;
+import com.indeed.flamdex.api.IntTermDocIterator;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.StringTermDocIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.api.TermIterator;
+import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
+import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.flamdex.writer.FlamdexDocWriter;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * A document buffer with the same on disk format as {@link MemoryFlamdex}, for building indexes. Instead of a tree
+ * map of doc lists per field, each field is a pair of append only primitive columns of (term, doc), with string terms
+ * replaced by an id into a dictionary of the distinct terms. Adding a document is an array append per term, and a
+ * field is only put in term order when it is read or written, with a stable radix sort that keeps the docs of each
+ * term in order. That makes the buffer a few times smaller than a MemoryFlamdex of the same docs, and leaves almost
+ * nothing behind per term for the garbage collector.
+ *
+ * Term iterators see the docs added before they were opened, and must not be used once more docs have been added.
+ */
+public final class CompactMemoryFlamdex implements FlamdexReader, FlamdexDocWriter {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long STRING_USAGE = 8 + 4 + 12 + 4 + 4 + 4;
+    // dictionary hash slot, id list slot and the rank computed when sorting
+    private static final long DICTIONARY_ENTRY_USAGE = 4 + 4 + 4 + 4;
+
+    private final SortedMap<String, IntPostings> intFields = Maps.newTreeMap();
+    private final SortedMap<String, StringPostings> stringFields = Maps.newTreeMap();
+
+    private final CharsetEncoder encoder;
+
+    private int numDocs;
+
+    public CompactMemoryFlamdex() {
+        this(false);
+    }
+
+    public CompactMemoryFlamdex(final boolean replaceMalformedInput) {
+        if (replaceMalformedInput) {
+            encoder = Charsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } else {
+            encoder = Charsets.UTF_8.newEncoder();
+        }
+    }
+
+    @Override
+    public void addDocument(FlamdexDocument doc) {
+        for (final Map.Entry<String, LongList> e : doc.getIntFields().entrySet()) {
+            IntPostings postings = intFields.get(e.getKey());
+            if (postings == null) {
+                intFields.put(e.getKey(), postings = new IntPostings());
+            }
+            final LongList terms = e.getValue();
+            for (int i = 0; i < terms.size(); ++i) {
+                postings.add(terms.getLong(i), numDocs);
+            }
+        }
+
+        for (final Map.Entry<String, List<String>> e : doc.getStringFields().entrySet()) {
+            StringPostings postings = stringFields.get(e.getKey());
+            if (postings == null) {
+                stringFields.put(e.getKey(), postings = new StringPostings());
+            }
+            for (final String term : e.getValue()) {
+                postings.add(term, numDocs);
+            }
+        }
+
+        ++numDocs;
+    }
+
+    public long getMemoryUsageEstimate() {
+        long size = 0;
+        for (final Map.Entry<String, IntPostings> e : intFields.entrySet()) {
+            size += usage(e.getKey()) + e.getValue().usage();
+        }
+        for (final Map.Entry<String, StringPostings> e : stringFields.entrySet()) {
+            size += usage(e.getKey()) + e.getValue().usage();
+        }
+        return size;
+    }
+
+    private static long usage(String s) {
+        return STRING_USAGE + 2 * s.length();
+    }
+
+    /**
+     * write the docs in the format of {@link MemoryFlamdex#write(DataOutput)}
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(numDocs);
+        out.writeInt(intFields.size());
+        for (final String intField : intFields.keySet()) {
+            MemoryFlamdex.writeString(out, intField);
+        }
+
+        out.writeInt(stringFields.size());
+        for (final String stringField : stringFields.keySet()) {
+            MemoryFlamdex.writeString(out, stringField);
+        }
+
+        for (final IntPostings postings : intFields.values()) {
+            postings.sort();
+            final long[] terms = postings.terms;
+            final int[] docs = postings.docs;
+            final int size = postings.size;
+
+            MemoryFlamdex.writeVLong(postings.numTerms, out);
+            long lastTerm = 0;
+            for (int start = 0, end; start < size; start = end) {
+                final long term = terms[start];
+                end = start + 1;
+                while (end < size && terms[end] == term) {
+                    ++end;
+                }
+
+                MemoryFlamdex.writeVLong(term - lastTerm, out);
+                lastTerm = term;
+                writeDocs(docs, start, end, out);
+            }
+        }
+
+        for (final StringPostings postings : stringFields.values()) {
+            postings.sort();
+            final int[] ids = postings.ids;
+            final int[] docs = postings.docs;
+            final int size = postings.size;
+
+            MemoryFlamdex.writeVLong(postings.terms.size(), out);
+            byte[] lastTermBytes = new byte[0];
+            int lastTermLength = 0;
+            for (int start = 0, end; start < size; start = end) {
+                final int id = ids[start];
+                end = start + 1;
+                while (end < size && ids[end] == id) {
+                    ++end;
+                }
+
+                final ByteBuffer encoded = encoder.encode(CharBuffer.wrap(postings.terms.get(id)));
+                final byte[] termBytes = encoded.array();
+                final int termLength = encoded.limit();
+                final int prefixLen = getPrefixLen(lastTermBytes, termBytes, Math.min(lastTermLength, termLength));
+                final int newLen = termLength - prefixLen;
+                MemoryFlamdex.writeVLong(prefixLen, out);
+                MemoryFlamdex.writeVLong(newLen, out);
+                out.write(termBytes, prefixLen, newLen);
+                lastTermBytes = termBytes;
+                lastTermLength = termLength;
+
+                writeDocs(docs, start, end, out);
+            }
+        }
+    }
+
+    private static void writeDocs(int[] docs, int start, int end, DataOutput out) throws IOException {
+        MemoryFlamdex.writeVLong(end - start, out);
+        int lastDoc = 0;
+        for (int i = start; i < end; ++i) {
+            MemoryFlamdex.writeVLong(docs[i] - lastDoc, out);
+            lastDoc = docs[i];
+        }
+    }
+
+    private static int getPrefixLen(byte[] a, byte[] b, int n) {
+        for (int i = 0; i < n; ++i) {
+            if (a[i] != b[i]) return i;
+        }
+        return n;
+    }
+
+    @Override
+    public Collection<String> getIntFields() {
+        return Collections.unmodifiableSet(intFields.keySet());
+    }
+
+    @Override
+    public Collection<String> getStringFields() {
+        return Collections.unmodifiableSet(stringFields.keySet());
+    }
+
+    @Override
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /*
+     * Does nothing
+     */
+    @Override
+    public String getDirectory() {
+        return ".";
+    }
+
+    @Override
+    public DocIdStream getDocIdStream() {
+        return new CompactDocIdStream();
+    }
+
+    @Override
+    public IntTermIterator getIntTermIterator(String field) {
+        IntPostings postings = intFields.get(field);
+        if (postings == null) {
+            postings = new IntPostings();
+        }
+        postings.sort();
+        return new CompactIntTermIterator(postings.terms, postings.docs, postings.size);
+    }
+
+    @Override
+    public StringTermIterator getStringTermIterator(String field) {
+        StringPostings postings = stringFields.get(field);
+        if (postings == null) {
+            postings = new StringPostings();
+        }
+        postings.sort();
+        return new CompactStringTermIterator(postings);
+    }
+
+    @Override
+    public IntTermDocIterator getIntTermDocIterator(String field) {
+        return new GenericIntTermDocIterator(getIntTermIterator(field), getDocIdStream());
+    }
+
+    @Override
+    public StringTermDocIterator getStringTermDocIterator(String field) {
+        return new GenericStringTermDocIterator(getStringTermIterator(field), getDocIdStream());
+    }
+
+    @Override
+    public long getIntTotalDocFreq(String field) {
+        final IntPostings postings = intFields.get(field);
+        if (postings == null) {
+            return 0;
+        }
+        postings.sort();
+        return postings.size;
+    }
+
+    @Override
+    public long getStringTotalDocFreq(String field) {
+        final StringPostings postings = stringFields.get(field);
+        if (postings == null) {
+            return 0;
+        }
+        postings.sort();
+        return postings.size;
+    }
+
+    @Override
+    public Collection<String> getAvailableMetrics() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+        return new IntArrayIntValueLookup(FlamdexUtils.cacheIntField(metric, this));
+    }
+
+    @Override
+    public StringValueLookup getStringLookup(String field) throws FlamdexOutOfMemoryException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long memoryRequired(String metric) {
+        return 0L;
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * (term, doc) pairs in the order they were added until sorted by term, with the docs of each term in increasing
+     * order and repeats of a term in one doc removed
+     */
+    private static final class IntPostings {
+        private long[] terms = new long[INITIAL_CAPACITY];
+        private int[] docs = new int[INITIAL_CAPACITY];
+        private int size;
+        private int numTerms;
+        private volatile boolean sorted = true;
+
+        void add(long term, int doc) {
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, 2 * size);
+                docs = Arrays.copyOf(docs, 2 * size);
+            }
+            terms[size] = term;
+            docs[size] = doc;
+            ++size;
+            sorted = false;
+        }
+
+        synchronized void sort() {
+            if (sorted) return;
+            radixSort(terms, docs, size);
+            int n = 0;
+            int distinct = 0;
+            for (int i = 0; i < size; ++i) {
+                if (n > 0 && terms[i] == terms[n - 1]) {
+                    if (docs[i] == docs[n - 1]) continue;
+                } else {
+                    ++distinct;
+                }
+                terms[n] = terms[i];
+                docs[n] = docs[i];
+                ++n;
+            }
+            size = n;
+            numTerms = distinct;
+            sorted = true;
+        }
+
+        long usage() {
+            return 8L * terms.length + 4L * docs.length;
+        }
+    }
+
+    /**
+     * like {@link IntPostings} with the terms replaced by ids into a dictionary. once sorted the ids are in term order.
+     */
+    private static final class StringPostings {
+        private final Object2IntOpenHashMap<String> dictionary = new Object2IntOpenHashMap<String>();
+        private final List<String> terms = new ArrayList<String>();
+        private long termsUsage = 0;
+
+        private int[] ids = new int[INITIAL_CAPACITY];
+        private int[] docs = new int[INITIAL_CAPACITY];
+        private int size;
+        private volatile boolean sorted = true;
+
+        // the terms in order and the position of each id in that order, set when sorted
+        private String[] sortedTerms = new String[0];
+        private int[] ranks = new int[0];
+
+        StringPostings() {
+            dictionary.defaultReturnValue(-1);
+        }
+
+        void add(String term, int doc) {
+            int id = dictionary.getInt(term);
+            if (id < 0) {
+                id = terms.size();
+                dictionary.put(term, id);
+                terms.add(term);
+                termsUsage += CompactMemoryFlamdex.usage(term) + DICTIONARY_ENTRY_USAGE;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * size);
+                docs = Arrays.copyOf(docs, 2 * size);
+            }
+            ids[size] = id;
+            docs[size] = doc;
+            ++size;
+            sorted = false;
+        }
+
+        synchronized void sort() {
+            if (sorted) return;
+            final String[] newSortedTerms = terms.toArray(new String[terms.size()]);
+            Arrays.sort(newSortedTerms);
+            final int[] idsByRank = new int[newSortedTerms.length];
+            final int[] newRanks = new int[newSortedTerms.length];
+            for (int rank = 0; rank < newSortedTerms.length; ++rank) {
+                final int id = dictionary.getInt(newSortedTerms[rank]);
+                idsByRank[rank] = id;
+                newRanks[id] = rank;
+            }
+
+            final int[] keys = new int[size];
+            for (int i = 0; i < size; ++i) {
+                keys[i] = newRanks[ids[i]];
+            }
+            radixSort(keys, docs, size);
+            int n = 0;
+            for (int i = 0; i < size; ++i) {
+                if (n > 0 && keys[i] == keys[n - 1] && docs[i] == docs[n - 1]) continue;
+                keys[n] = keys[i];
+                docs[n] = docs[i];
+                ids[n] = idsByRank[keys[i]];
+                ++n;
+            }
+            size = n;
+            sortedTerms = newSortedTerms;
+            ranks = newRanks;
+            sorted = true;
+        }
+
+        long usage() {
+            return 4L * ids.length + 4L * docs.length + termsUsage;
+        }
+    }
+
+    /**
+     * stable lsd radix sort of keys as signed longs, moving values along with them. bytes that are the same in every
+     * key are skipped, so small ranges of terms take few passes.
+     */
+    static void radixSort(long[] keys, int[] values, int n) {
+        long[] srcKeys = keys;
+        int[] srcValues = values;
+        long[] dstKeys = new long[n];
+        int[] dstValues = new int[n];
+        final int[] counts = new int[257];
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; ++i) {
+                ++counts[longDigit(srcKeys[i], shift) + 1];
+            }
+            if (n == 0 || counts[longDigit(srcKeys[0], shift) + 1] == n) continue;
+            for (int i = 1; i < counts.length; ++i) {
+                counts[i] += counts[i - 1];
+            }
+            for (int i = 0; i < n; ++i) {
+                final int index = counts[longDigit(srcKeys[i], shift)]++;
+                dstKeys[index] = srcKeys[i];
+                dstValues[index] = srcValues[i];
+            }
+            final long[] tmpKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tmpKeys;
+            final int[] tmpValues = srcValues;
+            srcValues = dstValues;
+            dstValues = tmpValues;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcValues, 0, values, 0, n);
+        }
+    }
+
+    private static int longDigit(long key, int shift) {
+        return (int)(((key ^ Long.MIN_VALUE) >>> shift) & 0xFF);
+    }
+
+    /**
+     * stable lsd radix sort of non-negative keys, moving values along with them
+     */
+    static void radixSort(int[] keys, int[] values, int n) {
+        int[] srcKeys = keys;
+        int[] srcValues = values;
+        int[] dstKeys = new int[n];
+        int[] dstValues = new int[n];
+        final int[] counts = new int[257];
+        for (int shift = 0; shift < 32; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; ++i) {
+                ++counts[((srcKeys[i] >>> shift) & 0xFF) + 1];
+            }
+            if (n == 0 || counts[((srcKeys[0] >>> shift) & 0xFF) + 1] == n) continue;
+            for (int i = 1; i < counts.length; ++i) {
+                counts[i] += counts[i - 1];
+            }
+            for (int i = 0; i < n; ++i) {
+                final int index = counts[(srcKeys[i] >>> shift) & 0xFF]++;
+                dstKeys[index] = srcKeys[i];
+                dstValues[index] = srcValues[i];
+            }
+            final int[] tmpKeys = srcKeys;
+            srcKeys = dstKeys;
+            dstKeys = tmpKeys;
+            final int[] tmpValues = srcValues;
+            srcValues = dstValues;
+            dstValues = tmpValues;
+        }
+        if (srcKeys != keys) {
+            System.arraycopy(srcKeys, 0, keys, 0, n);
+            System.arraycopy(srcValues, 0, values, 0, n);
+        }
+    }
+
+    /**
+     * a term iterator positioned on the run of postings [start, end) of its current term
+     */
+    private interface PostingsRange extends TermIterator {
+        int[] getDocs();
+        int getStart();
+        int getEnd();
+    }
+
+    private static final class CompactIntTermIterator implements IntTermIterator, PostingsRange {
+        private final long[] terms;
+        private final int[] docs;
+        private final int size;
+
+        private int start = 0;
+        private int end = 0;
+
+        private CompactIntTermIterator(long[] terms, int[] docs, int size) {
+            this.terms = terms;
+            this.docs = docs;
+            this.size = size;
+        }
+
+        @Override
+        public void reset(long term) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (terms[mid] < term) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            start = lo;
+            end = lo;
+        }
+
+        @Override
+        public long term() {
+            return terms[start];
+        }
+
+        @Override
+        public boolean next() {
+            start = end;
+            if (start >= size) return false;
+            end = start + 1;
+            while (end < size && terms[end] == terms[start]) {
+                ++end;
+            }
+            return true;
+        }
+
+        @Override
+        public int docFreq() {
+            return end - start;
+        }
+
+        @Override
+        public int[] getDocs() {
+            return docs;
+        }
+
+        @Override
+        public int getStart() {
+            return start;
+        }
+
+        @Override
+        public int getEnd() {
+            return end;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class CompactStringTermIterator implements StringTermIterator, PostingsRange {
+        private final List<String> terms;
+        private final String[] sortedTerms;
+        private final int[] ranks;
+        private final int[] ids;
+        private final int[] docs;
+        private final int size;
+
+        private int start = 0;
+        private int end = 0;
+
+        private CompactStringTermIterator(StringPostings postings) {
+            terms = postings.terms;
+            sortedTerms = postings.sortedTerms;
+            ranks = postings.ranks;
+            ids = postings.ids;
+            docs = postings.docs;
+            size = postings.size;
+        }
+
+        @Override
+        public void reset(String term) {
+            int rank = Arrays.binarySearch(sortedTerms, term);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (ranks[ids[mid]] < rank) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            start = lo;
+            end = lo;
+        }
+
+        @Override
+        public String term() {
+            return terms.get(ids[start]);
+        }
+
+        @Override
+        public boolean next() {
+            start = end;
+            if (start >= size) return false;
+            end = start + 1;
+            while (end < size && ids[end] == ids[start]) {
+                ++end;
+            }
+            return true;
+        }
+
+        @Override
+        public int docFreq() {
+            return end - start;
+        }
+
+        @Override
+        public int[] getDocs() {
+            return docs;
+        }
+
+        @Override
+        public int getStart() {
+            return start;
+        }
+
+        @Override
+        public int getEnd() {
+            return end;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class CompactDocIdStream implements DocIdStream {
+        private int[] docs;
+        private int index;
+        private int end;
+
+        @Override
+        public void reset(TermIterator term) {
+            if (!(term instanceof PostingsRange)) {
+                throw new IllegalArgumentException("invalid term iterator");
+            }
+            final PostingsRange range = (PostingsRange)term;
+            docs = range.getDocs();
+            index = range.getStart();
+            end = range.getEnd();
+        }
+
+        @Override
+        public int fillDocIdBuffer(int[] docIdBuffer) {
+            final int n = Math.min(docIdBuffer.length, end - index);
+            System.arraycopy(docs, index, docIdBuffer, 0, n);
+            index += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
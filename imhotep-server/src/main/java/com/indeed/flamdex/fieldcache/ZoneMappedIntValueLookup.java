@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.fieldcache;
+
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
+import com.indeed.flamdex.api.IntValueZoneMapProvider;
+
+/**
+ * A field cache with an {@link IntValueZoneMap} of its values. The zone map is built the first time a range filter
+ * asks for it, so fields that are only ever summed never pay for the pass over their values, but its memory is
+ * counted from the start so that {@link #memoryUsed()} does not change while the cache is shared.
+ */
+public final class ZoneMappedIntValueLookup implements IntValueLookup, IntValueZoneMapProvider {
+    private final IntValueLookup lookup;
+    private final int numDocs;
+
+    private volatile IntValueZoneMap zoneMap;
+
+    public ZoneMappedIntValueLookup(IntValueLookup lookup, int numDocs) {
+        this.lookup = lookup;
+        this.numDocs = numDocs;
+    }
+
+    @Override
+    public IntValueZoneMap getZoneMap() {
+        IntValueZoneMap ret = zoneMap;
+        if (ret == null) {
+            synchronized (this) {
+                ret = zoneMap;
+                if (ret == null) {
+                    ret = IntValueZoneMap.build(lookup, numDocs);
+                    zoneMap = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public long getMin() {
+        return lookup.getMin();
+    }
+
+    @Override
+    public long getMax() {
+        return lookup.getMax();
+    }
+
+    @Override
+    public void lookup(int[] docIds, long[] values, int n) {
+        lookup.lookup(docIds, values, n);
+    }
+
+    @Override
+    public long memoryUsed() {
+        return lookup.memoryUsed() + IntValueZoneMap.memoryRequired(numDocs);
+    }
+
+    @Override
+    public void close() {
+        zoneMap = null;
+        lookup.close();
+    }
+}
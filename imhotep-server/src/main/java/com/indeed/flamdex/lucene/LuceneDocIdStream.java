@@ -21,10 +21,12 @@ import java.io.IOException;
 
 public class LuceneDocIdStream implements DocIdStream {
     private final TermDocs termDocs;
+    private final LuceneDocReader docReader;
     private boolean valid = false;
 
     public LuceneDocIdStream(final TermDocs termDocs) {
         this.termDocs = termDocs;
+        docReader = new LuceneDocReader(termDocs);
     }
 
     @Override
@@ -35,7 +37,8 @@ public class LuceneDocIdStream implements DocIdStream {
 
     private void internalReset(final LuceneTermIterator term) {
         try {
-            termDocs.seek(term.termEnum());
+            term.seek(termDocs);
+            docReader.reset();
         } catch (final IOException e) {
             throw e(e);
         }
@@ -53,12 +56,7 @@ public class LuceneDocIdStream implements DocIdStream {
     }
 
     private int internalFillDocIdBuffer(final int[] docIdBuffer) throws IOException {
-        int i = 0;
-        for (; i < docIdBuffer.length; i++) {
-            if (!termDocs.next()) break; // todo: think about setting valid = false
-            docIdBuffer[i] = termDocs.doc();
-        }
-        return i;
+        return docReader.read(docIdBuffer);
     }
 
     @Override
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.lucene;
+
+import org.apache.lucene.index.TermDocs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bulk reads the docs of the term a {@link TermDocs} is positioned on. A multi-segment index stops each read at the
+ * end of a segment, and read always fills from the start of the array it is given, so reads that stop short continue
+ * into a scratch buffer that is kept between calls. Docs read into it that don't fit are handed out by the next call.
+ */
+final class LuceneDocReader {
+    private final TermDocs termDocs;
+
+    private int[] freqBuffer = new int[0];
+    private int[] scratch = new int[0];
+    private int scratchStart = 0;
+    private int scratchEnd = 0;
+
+    LuceneDocReader(TermDocs termDocs) {
+        this.termDocs = termDocs;
+    }
+
+    /**
+     * drop any docs left over from the previous term, to be called after termDocs is seeked
+     */
+    void reset() {
+        scratchStart = 0;
+        scratchEnd = 0;
+    }
+
+    /**
+     * @return the number of docs read into docIdBuffer, which is filled unless the docs run out
+     */
+    int read(final int[] docIdBuffer) throws IOException {
+        if (scratch.length < docIdBuffer.length) {
+            scratch = Arrays.copyOf(scratch, docIdBuffer.length);
+            freqBuffer = new int[docIdBuffer.length];
+        }
+        int n;
+        if (scratchStart < scratchEnd) {
+            n = Math.min(scratchEnd - scratchStart, docIdBuffer.length);
+            System.arraycopy(scratch, scratchStart, docIdBuffer, 0, n);
+            scratchStart += n;
+        } else {
+            n = termDocs.read(docIdBuffer, freqBuffer);
+        }
+        while (n > 0 && n < docIdBuffer.length) {
+            final int read = termDocs.read(scratch, freqBuffer);
+            if (read == 0) break;
+            final int copied = Math.min(read, docIdBuffer.length - n);
+            System.arraycopy(scratch, 0, docIdBuffer, n, copied);
+            n += copied;
+            scratchStart = copied;
+            scratchEnd = read;
+        }
+        return n;
+    }
+}
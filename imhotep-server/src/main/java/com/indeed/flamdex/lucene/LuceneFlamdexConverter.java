@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.lucene;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.FlamdexWriter;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Writes simple flamdex copies of lucene indexes into a work directory of their own, one index at a time on a
+ * background thread, and stops converting once the copies take up its byte budget. Each copy is written to a temporary
+ * directory and renamed into place once it is complete, so anything opening the index sees either no copy or a whole
+ * one. Temporary directories left behind by a previous process are deleted when the converter is created.
+ * GenericFlamdexReader opens the copy instead of the lucene index once it is there, so a shard switches over the next
+ * time it is loaded.
+ *
+ * Each copy records the path of its index and the total size and newest modification time of the index's files, and
+ * is only used while they still match. Copies of indexes that no longer exist are deleted when the converter is
+ * created, along with copies of indexes that have changed since, and again whenever a conversion doesn't fit in the
+ * budget.
+ */
+public final class LuceneFlamdexConverter implements Closeable {
+    private static final Logger log = Logger.getLogger(LuceneFlamdexConverter.class);
+
+    private static final String TEMP_PREFIX = "tmp-";
+    // the path and version of the index a copy was converted from, one per line
+    private static final String SOURCE_FILENAME = "lucene-source.txt";
+
+    private final File workDir;
+    private final long maxBytes;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LuceneFlamdexConverter-%d").build());
+    private final Set<String> pending = Collections.synchronizedSet(new HashSet<String>());
+
+    // bytes taken by the copies in workDir, plus the estimate for the one being written
+    private long usedBytes;
+
+    /**
+     * @param maxBytes how much the copies may take up in workDir in total
+     */
+    public LuceneFlamdexConverter(final File workDir, final long maxBytes) throws IOException {
+        this.workDir = workDir;
+        this.maxBytes = maxBytes;
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("unable to create directory at " + workDir);
+        }
+        final File[] files = workDir.listFiles();
+        if (files == null) {
+            throw new IOException(workDir + " is not a directory");
+        }
+        long used = 0;
+        for (final File file : files) {
+            if (file.getName().startsWith(TEMP_PREFIX)) {
+                log.info("deleting stale conversion " + file);
+                FileUtils.deleteDirectory(file);
+            } else if (file.isDirectory() && !isCurrent(file)) {
+                log.info("deleting conversion of a lucene index that has changed or is gone " + file);
+                FileUtils.deleteDirectory(file);
+            } else {
+                used += file.isDirectory() ? FileUtils.sizeOfDirectory(file) : file.length();
+            }
+        }
+        usedBytes = used;
+    }
+
+    /**
+     * @return where the simple flamdex copy of the lucene index in indexDir goes
+     */
+    public File getConvertedDirectory(final File indexDir) {
+        final File absolute = indexDir.getAbsoluteFile();
+        final File parent = absolute.getParentFile();
+        // the shard and dataset names for whoever looks in here, and the hash to keep other roots apart
+        final String name = (parent != null ? parent.getName() + "-" : "") + absolute.getName() + "-" +
+                Integer.toHexString(absolute.getPath().hashCode());
+        return new File(workDir, name);
+    }
+
+    /**
+     * @return whether indexDir has a complete simple flamdex copy of its current version
+     */
+    public boolean isConverted(final File indexDir) {
+        final File convertedDir = getConvertedDirectory(indexDir);
+        if (!new File(convertedDir, "metadata.txt").exists()) {
+            return false;
+        }
+        final List<String> source = readSource(convertedDir);
+        return source != null && source.get(0).equals(indexDir.getAbsolutePath()) &&
+                source.get(1).equals(getSourceVersion(indexDir));
+    }
+
+    /**
+     * @return the total size and the newest modification time of the files of the index in indexDir, which change
+     *         whenever it is written to
+     */
+    private static String getSourceVersion(final File indexDir) {
+        long size = 0;
+        long lastModified = 0;
+        for (final File file : FileUtils.listFiles(indexDir, null, true)) {
+            size += file.length();
+            lastModified = Math.max(lastModified, file.lastModified());
+        }
+        return size + " " + lastModified;
+    }
+
+    /**
+     * @return the path and version of the index the copy in convertedDir was converted from, or null if it doesn't say
+     */
+    @Nullable
+    private static List<String> readSource(final File convertedDir) {
+        final File sourceFile = new File(convertedDir, SOURCE_FILENAME);
+        if (!sourceFile.exists()) {
+            return null;
+        }
+        try {
+            final List<String> lines = FileUtils.readLines(sourceFile);
+            return lines.size() == 2 ? lines : null;
+        } catch (IOException e) {
+            log.warn("unable to read " + sourceFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the index the copy in convertedDir was converted from still exists and hasn't changed since
+     */
+    private static boolean isCurrent(final File convertedDir) {
+        final List<String> source = readSource(convertedDir);
+        if (source == null) {
+            return false;
+        }
+        final File indexDir = new File(source.get(0));
+        return indexDir.isDirectory() && source.get(1).equals(getSourceVersion(indexDir));
+    }
+
+    /**
+     * queue a conversion of the lucene index in indexDir unless it is already converted or queued
+     *
+     * @param opener opens a reader of its own over the index, for the conversion to close when done, so that it doesn't
+     *               depend on how long the caller keeps its reader open
+     */
+    public void convertInBackground(final File indexDir, final Callable<? extends LuceneFlamdexReader> opener) {
+        final String path = indexDir.getAbsolutePath();
+        if (!pending.add(path)) return;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!isConverted(indexDir)) {
+                            log.info("converting lucene index " + path + " to simple flamdex");
+                            if (convert(indexDir, opener)) {
+                                log.info("converted lucene index " + path);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        log.error("error converting lucene index " + path, t);
+                    } finally {
+                        pending.remove(path);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+            pending.remove(path);
+        }
+    }
+
+    /**
+     * stop converting. a conversion in progress is interrupted and its temporary directory deleted.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * write a simple flamdex copy of the index reader is over to outputDirectory, with b-trees. for indexes that don't
+     * say which fields are ints, every field with int terms is written as both an int and a string field.
+     */
+    public static void write(final LuceneFlamdexReader reader, final String outputDirectory) throws IOException {
+        write(reader, new SimpleFlamdexWriter(outputDirectory, reader.getNumDocs(), true, true));
+    }
+
+    /**
+     * like {@link #write(LuceneFlamdexReader, String)} but through w, which is closed when done
+     */
+    public static void write(final LuceneFlamdexReader reader, final FlamdexWriter w) throws IOException {
+        SimpleFlamdexWriter.writeFlamdex(reader, w, reader.getIntFieldsWithTerms(), reader.getStringFields());
+    }
+
+    /**
+     * @return false if the copy was not kept because it would not fit in the budget
+     */
+    boolean convert(final File indexDir, final Callable<? extends LuceneFlamdexReader> opener) throws IOException {
+        // the copy is about the size of the index, so don't start one that clearly won't fit
+        final long estimate = FileUtils.sizeOfDirectory(indexDir);
+        if (!reserveRemovingOrphans(estimate)) {
+            log.info("not converting " + indexDir + ", " + usedBytes() + " of " + maxBytes + " bytes already used");
+            return false;
+        }
+        long reserved = estimate;
+        final File tmpDir = new File(workDir, TEMP_PREFIX + UUID.randomUUID());
+        final File convertedDir = getConvertedDirectory(indexDir);
+        boolean success = false;
+        try {
+            // taken before reading the index, so that a change made while converting makes the copy out of date
+            final String sourceVersion = getSourceVersion(indexDir);
+            final LuceneFlamdexReader reader;
+            try {
+                reader = opener.call();
+            } catch (Exception e) {
+                Throwables.propagateIfInstanceOf(e, IOException.class);
+                throw Throwables.propagate(e);
+            }
+            try {
+                write(reader, tmpDir.getPath());
+            } finally {
+                reader.close();
+            }
+            FileUtils.writeLines(new File(tmpDir, SOURCE_FILENAME), Arrays.asList(indexDir.getAbsolutePath(), sourceVersion));
+            final long size = FileUtils.sizeOfDirectory(tmpDir);
+            release(reserved);
+            reserved = 0;
+            if (!reserveRemovingOrphans(size)) {
+                log.info("not keeping the conversion of " + indexDir + ", its " + size + " bytes don't fit in " + maxBytes);
+                return false;
+            }
+            reserved = size;
+            if (convertedDir.exists()) {
+                // a copy of an earlier version of the index
+                remove(convertedDir);
+            }
+            if (!tmpDir.renameTo(convertedDir)) {
+                throw new IOException("unable to rename " + tmpDir + " to " + convertedDir);
+            }
+            success = true;
+            return true;
+        } finally {
+            if (!success) {
+                release(reserved);
+                FileUtils.deleteDirectory(tmpDir);
+            }
+        }
+    }
+
+    /**
+     * reserve bytes, deleting the copies of indexes that no longer exist to make room if they don't fit
+     */
+    private boolean reserveRemovingOrphans(final long bytes) throws IOException {
+        return reserve(bytes) || (removeOrphans() > 0 && reserve(bytes));
+    }
+
+    /**
+     * delete the copies of indexes that no longer exist
+     *
+     * @return the number of bytes freed
+     */
+    private long removeOrphans() throws IOException {
+        final File[] files = workDir.listFiles();
+        if (files == null) {
+            throw new IOException(workDir + " is not a directory");
+        }
+        long freed = 0;
+        for (final File file : files) {
+            if (!file.isDirectory() || file.getName().startsWith(TEMP_PREFIX)) {
+                continue;
+            }
+            final List<String> source = readSource(file);
+            if (source == null || !new File(source.get(0)).exists()) {
+                log.info("deleting conversion of a lucene index that is gone " + file);
+                freed += remove(file);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return the number of bytes freed
+     */
+    private long remove(final File convertedDir) throws IOException {
+        final long size = FileUtils.sizeOfDirectory(convertedDir);
+        FileUtils.deleteDirectory(convertedDir);
+        release(size);
+        return size;
+    }
+
+    private synchronized boolean reserve(final long bytes) {
+        if (usedBytes + bytes > maxBytes) {
+            return false;
+        }
+        usedBytes += bytes;
+        return true;
+    }
+
+    private synchronized void release(final long bytes) {
+        usedBytes -= bytes;
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+}
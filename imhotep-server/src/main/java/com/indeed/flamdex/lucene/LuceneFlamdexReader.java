@@ -13,6 +13,10 @@
  */
  package com.indeed.flamdex.lucene;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.indeed.flamdex.AbstractFlamdexReader;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.IntTermIterator;
@@ -26,6 +30,9 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 public class LuceneFlamdexReader extends AbstractFlamdexReader {
     private static final Logger log = Logger.getLogger(LuceneFlamdexReader.class);
@@ -35,6 +42,19 @@ public class LuceneFlamdexReader extends AbstractFlamdexReader {
     protected final Collection<String> intFields;
     protected final Collection<String> stringFields;
 
+    // shared by every reader and bounded by the heap the tables take, since they are not charged to any session
+    private static final long MAX_INT_TERM_TABLE_BYTES =
+            Long.parseLong(System.getProperty("flamdex.lucene.intTermTableBytes", String.valueOf(64L * 1024 * 1024)));
+    private static final Cache<TableKey, LuceneIntTermTable> intTermTables = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_INT_TERM_TABLE_BYTES)
+            .weigher(new Weigher<TableKey, LuceneIntTermTable>() {
+                @Override
+                public int weigh(TableKey key, LuceneIntTermTable table) {
+                    return (int)Math.min(Integer.MAX_VALUE, table.memoryUsed());
+                }
+            })
+            .build();
+
     public LuceneFlamdexReader(IndexReader reader) {
         this(reader, Collections.<String>emptyList(), getStringFieldsFromIndex(reader));
     }
@@ -65,6 +85,23 @@ public class LuceneFlamdexReader extends AbstractFlamdexReader {
         return stringFields;
     }
 
+    /**
+     * @return the int fields of the index, or when the index doesn't say which fields are ints, every field with an int
+     * term, since any field of a lucene index can be read as ints
+     */
+    Collection<String> getIntFieldsWithTerms() {
+        if (!intFields.isEmpty()) {
+            return intFields;
+        }
+        final Collection<String> ret = new HashSet<String>();
+        for (final String field : getStringFieldsFromIndex(reader)) {
+            if (getIntTermTable(field).size() > 0) {
+                ret.add(field);
+            }
+        }
+        return ret;
+    }
+
     private static Collection<String> getStringFieldsFromIndex(final IndexReader reader) {
         final Collection<String> ret = new HashSet<String>();
         // don't like having to use Object and downcast, but in Lucene versions prior to 3 getFieldNames() returns an un-genericized Collection instead of a Collection<String>
@@ -90,7 +127,24 @@ public class LuceneFlamdexReader extends AbstractFlamdexReader {
 
     @Override
     public IntTermIterator getIntTermIterator(final String field) {
-        return new LuceneIntTermIterator(reader, field);
+        return new LuceneIntTermIterator(field, getIntTermTable(field));
+    }
+
+    private LuceneIntTermTable getIntTermTable(final String field) {
+        try {
+            return intTermTables.get(new TableKey(this, field), new Callable<LuceneIntTermTable>() {
+                @Override
+                public LuceneIntTermTable call() throws IOException {
+                    return LuceneIntTermTable.build(reader, field);
+                }
+            });
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw LuceneUtils.ioRuntimeException((IOException)cause);
+            }
+            throw Throwables.propagate(cause);
+        }
     }
 
     @Override
@@ -124,6 +178,35 @@ public class LuceneFlamdexReader extends AbstractFlamdexReader {
 
     @Override
     public void close() throws IOException {
+        final Iterator<TableKey> keys = intTermTables.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().reader == this) {
+                keys.remove();
+            }
+        }
         reader.close();
     }
+
+    private static final class TableKey {
+        private final LuceneFlamdexReader reader;
+        private final String field;
+
+        private TableKey(LuceneFlamdexReader reader, String field) {
+            this.reader = reader;
+            this.field = field;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TableKey)) return false;
+            final TableKey other = (TableKey)o;
+            return reader == other.reader && field.equals(other.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(reader) + field.hashCode();
+        }
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.lucene;
+
+import com.indeed.util.core.sort.Quicksortable;
+import com.indeed.util.core.sort.Quicksortables;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The int terms of a field in numeric order, with their doc freqs. Lucene only has string terms, sorted as strings,
+ * so walking a field in numeric order otherwise means parsing every term and merging the runs of terms of each length.
+ * The table is built with one pass over the terms of the field and then shared by every int term iterator over it.
+ *
+ * A term is an int term only if it is exactly how its value prints, so "007" and "+7" are not the term 7.
+ */
+final class LuceneIntTermTable {
+    private final long[] terms;
+    private final int[] docFreqs;
+
+    private LuceneIntTermTable(long[] terms, int[] docFreqs) {
+        this.terms = terms;
+        this.docFreqs = docFreqs;
+    }
+
+    @SuppressWarnings({"StringEquality"})
+    static LuceneIntTermTable build(final IndexReader reader, String field) throws IOException {
+        field = field.intern();
+        long[] terms = new long[16];
+        int[] docFreqs = new int[16];
+        int size = 0;
+        final TermEnum termEnum = reader.terms(new Term(field, ""));
+        try {
+            do {
+                final Term term = termEnum.term();
+                if (term == null || term.field() != field) break;
+
+                final String text = term.text();
+                final long value;
+                try {
+                    value = Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (!Long.toString(value).equals(text)) continue;
+
+                if (size == terms.length) {
+                    terms = Arrays.copyOf(terms, 2 * size);
+                    docFreqs = Arrays.copyOf(docFreqs, 2 * size);
+                }
+                terms[size] = value;
+                docFreqs[size] = termEnum.docFreq();
+                ++size;
+            } while (termEnum.next());
+        } finally {
+            termEnum.close();
+        }
+
+        final long[] sortedTerms = Arrays.copyOf(terms, size);
+        final int[] sortedDocFreqs = Arrays.copyOf(docFreqs, size);
+        Quicksortables.sort(new Quicksortable() {
+            @Override
+            public void swap(int i, int j) {
+                Quicksortables.swap(sortedTerms, i, j);
+                Quicksortables.swap(sortedDocFreqs, i, j);
+            }
+
+            @Override
+            public int compare(int i, int j) {
+                return sortedTerms[i] < sortedTerms[j] ? -1 : sortedTerms[i] > sortedTerms[j] ? 1 : 0;
+            }
+        }, size);
+        return new LuceneIntTermTable(sortedTerms, sortedDocFreqs);
+    }
+
+    int size() {
+        return terms.length;
+    }
+
+    long getTerm(int index) {
+        return terms[index];
+    }
+
+    int getDocFreq(int index) {
+        return docFreqs[index];
+    }
+
+    /**
+     * @return the index of the first term greater than or equal to term, or size() if there is none
+     */
+    int ceiling(long term) {
+        final int i = Arrays.binarySearch(terms, term);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    long memoryUsed() {
+        return 12L * terms.length;
+    }
+}
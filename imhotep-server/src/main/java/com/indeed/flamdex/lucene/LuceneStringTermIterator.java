@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.StringTermIterator;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 
 import java.io.IOException;
@@ -103,9 +104,9 @@ class LuceneStringTermIterator implements StringTermIterator, LuceneTermIterator
     }
 
     @Override
-    public TermEnum termEnum() {
+    public void seek(final TermDocs termDocs) throws IOException {
         sanityCheck();
-        return termEnum;
+        termDocs.seek(termEnum);
     }
 
     private void sanityCheck() {
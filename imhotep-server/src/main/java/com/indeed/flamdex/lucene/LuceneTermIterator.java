@@ -13,8 +13,13 @@
  */
  package com.indeed.flamdex.lucene;
 
-import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermDocs;
+
+import java.io.IOException;
 
 interface LuceneTermIterator {
-    public TermEnum termEnum();
+    /**
+     * position termDocs at the docs of the current term
+     */
+    public void seek(TermDocs termDocs) throws IOException;
 }
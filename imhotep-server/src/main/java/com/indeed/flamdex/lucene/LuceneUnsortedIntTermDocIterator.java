@@ -31,6 +31,7 @@ final class LuceneUnsortedIntTermDocIterator implements UnsortedIntTermDocIterat
     private final String field;
     private final TermEnum terms;
     private final TermDocs termDocs;
+    private final LuceneDocReader docReader;
 
     private long currentTerm;
     private boolean first = true;
@@ -39,6 +40,7 @@ final class LuceneUnsortedIntTermDocIterator implements UnsortedIntTermDocIterat
         this.field = field.intern();
         this.terms = terms;
         this.termDocs = termDocs;
+        docReader = new LuceneDocReader(termDocs);
     }
 
     static LuceneUnsortedIntTermDocIterator create(final IndexReader r, final String field) throws IOException {
@@ -85,6 +87,7 @@ final class LuceneUnsortedIntTermDocIterator implements UnsortedIntTermDocIterat
             }
             
             termDocs.seek(terms);
+            docReader.reset();
 
             return true;
         }
@@ -105,11 +108,7 @@ final class LuceneUnsortedIntTermDocIterator implements UnsortedIntTermDocIterat
     }
 
     private int innerNextDocs(int[] docIdBuffer) throws IOException {
-        int i = 0;
-        while (i < docIdBuffer.length && termDocs.next()) {
-            docIdBuffer[i++] = termDocs.doc();
-        }
-        return i;
+        return docReader.read(docIdBuffer);
     }
 
     @Override
@@ -29,6 +29,7 @@ import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.fieldcache.FieldCacher;
 import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
+import com.indeed.flamdex.lucene.LuceneFlamdexConverter;
 import com.indeed.flamdex.lucene.LuceneFlamdexReader;
 import com.indeed.flamdex.ramses.RamsesFlamdexWrapper;
 import com.indeed.flamdex.simple.SimpleFlamdexReader;
@@ -43,6 +44,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Callable;
 
 /**
  * @author jplaisance
@@ -50,6 +52,9 @@ import java.util.Collection;
 public final class GenericFlamdexReader implements FlamdexReader {
     private static final Logger log = Logger.getLogger(GenericFlamdexReader.class);
 
+    // set with -Dflamdex.lucene.convert=<work dir> and optionally -Dflamdex.lucene.convert.maxBytes, or null
+    private static final LuceneFlamdexConverter converter = createConverter();
+
     private final String directory;
 
     private final GenericFlamdexFactory factory;
@@ -82,7 +87,7 @@ public final class GenericFlamdexReader implements FlamdexReader {
         return r;
     }
 
-    private static FlamdexReader internalOpen(String directory) throws IOException {
+    private static FlamdexReader internalOpen(final String directory) throws IOException {
         final CachedFile dir = CachedFile.create(directory);
         final String metadataPath = CachedFile.buildPath(directory, "metadata.txt");
         final CachedFile metadataFile = CachedFile.create(metadataPath);
@@ -96,41 +101,16 @@ public final class GenericFlamdexReader implements FlamdexReader {
         }
 
         if (! metadataFile.exists()) {
-            final IndexReader luceneIndex;
             final File indexDir = dir.loadDirectory();
-            
-            if (IndexReader.indexExists(indexDir)) {
-                luceneIndex = IndexReader.open(indexDir);
-            } else {
+            if (! IndexReader.indexExists(indexDir)) {
                 throw new IOException("directory " + directory + " does not have a metadata.txt and is not a lucene index");
             }
-
-            // try finding and loading subindexes
-            final ParallelReader pReader = new ParallelReader();
-            pReader.add(luceneIndex);
-            final int maxDoc = luceneIndex.maxDoc();
-            final File[] files = indexDir.listFiles();
-            if (files != null) {
-                for (final File file : files) {
-                    if (!file.isDirectory() || !IndexReader.indexExists(file)) {
-                        continue; // only interested in Lucene indexes in subdirectories
-                    }
-
-                    try {
-                        final IndexReader subIndexReader = IndexReader.open(file);
-                        final int siMaxDoc = subIndexReader.maxDoc();
-                        if (siMaxDoc != maxDoc) {
-                            log.warn("unable to load subindex. (maxDoc) do not match index (" + siMaxDoc + ") != (" + maxDoc + ") for " + file.getAbsolutePath());
-                            continue;
-                        }
-                        pReader.add(subIndexReader, true);
-                    } catch (IOException e) {
-                        log.warn("unable to open subindex: " + file.getAbsolutePath());
-                    }
+            return openLucene(indexDir, new Callable<LuceneFlamdexReader>() {
+                @Override
+                public LuceneFlamdexReader call() throws IOException {
+                    return openLuceneWithSubindexes(directory, indexDir);
                 }
-            }
-
-            return new LuceneFlamdexReader(pReader, directory);
+            });
         }
 
         final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(directory);
@@ -139,13 +119,84 @@ public final class GenericFlamdexReader implements FlamdexReader {
             case 1 : throw new UnsupportedOperationException("pfordelta is no longer supported");
             case 2 : 
                 final File indexDir = dir.loadDirectory();
-                return new LuceneFlamdexReader(IndexReader.open(indexDir), 
-                                               metadata.getIntFields(), 
-                                               metadata.getStringFields());
+                return openLucene(indexDir, new Callable<LuceneFlamdexReader>() {
+                    @Override
+                    public LuceneFlamdexReader call() throws IOException {
+                        return new LuceneFlamdexReader(IndexReader.open(indexDir),
+                                                       metadata.getIntFields(),
+                                                       metadata.getStringFields());
+                    }
+                });
         }
         throw new IllegalArgumentException("index format version "+metadata.getFormatVersion()+" not supported");
     }
 
+    private static LuceneFlamdexConverter createConverter() {
+        final String workDir = System.getProperty("flamdex.lucene.convert");
+        if (workDir == null) {
+            return null;
+        }
+        final File dir = new File(workDir);
+        try {
+            final String maxBytes = System.getProperty("flamdex.lucene.convert.maxBytes");
+            // by default leave at least half of the disk the copies are on free
+            return new LuceneFlamdexConverter(dir, maxBytes != null ? Long.parseLong(maxBytes) : dir.getUsableSpace() / 2);
+        } catch (IOException e) {
+            log.error("unable to use " + workDir + " for lucene conversions, not converting", e);
+            return null;
+        }
+    }
+
+    /**
+     * open the simple flamdex copy of a lucene index if it has one, otherwise open the index itself and, when
+     * flamdex.lucene.convert is set, start writing the copy for next time
+     */
+    private static FlamdexReader openLucene(File indexDir, Callable<LuceneFlamdexReader> opener) throws IOException {
+        if (converter != null) {
+            if (converter.isConverted(indexDir)) {
+                return SimpleFlamdexReader.open(converter.getConvertedDirectory(indexDir).getPath());
+            }
+            converter.convertInBackground(indexDir, opener);
+        }
+        try {
+            return opener.call();
+        } catch (Exception e) {
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static LuceneFlamdexReader openLuceneWithSubindexes(String directory, File indexDir) throws IOException {
+        final IndexReader luceneIndex = IndexReader.open(indexDir);
+
+        // try finding and loading subindexes
+        final ParallelReader pReader = new ParallelReader();
+        pReader.add(luceneIndex);
+        final int maxDoc = luceneIndex.maxDoc();
+        final File[] files = indexDir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (!file.isDirectory() || !IndexReader.indexExists(file)) {
+                    continue; // only interested in Lucene indexes in subdirectories
+                }
+
+                try {
+                    final IndexReader subIndexReader = IndexReader.open(file);
+                    final int siMaxDoc = subIndexReader.maxDoc();
+                    if (siMaxDoc != maxDoc) {
+                        log.warn("unable to load subindex. (maxDoc) do not match index (" + siMaxDoc + ") != (" + maxDoc + ") for " + file.getAbsolutePath());
+                        continue;
+                    }
+                    pReader.add(subIndexReader, true);
+                } catch (IOException e) {
+                    log.warn("unable to open subindex: " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        return new LuceneFlamdexReader(pReader, directory);
+    }
+
 
     public static GenericFlamdexReader open(
             String directory,
@@ -16,11 +16,15 @@
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.query.Term;
 
 /**
+ * Looks up the values of the field for every doc, except in zones of docs that the {@link IntValueZoneMap} of the
+ * field shows to be entirely inside or outside the range, which are handled with one range operation on the bit set.
+ *
  * @author jsgroth
  */
 class IntRangeQueryEvaluator implements QueryEvaluator {
@@ -48,49 +52,33 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
 
     private void internalAnd(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
         final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                bitSet.clearAll();
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val <= endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.clearRange(lastDoc, doc);
-                        }
-                        lastDoc = doc + 1;
-                    }
+        final long endVal = getInclusiveEndVal();
+        if (isEmpty() || endVal < metric.getMin() || startVal > metric.getMax()) {
+            bitSet.clearAll();
+            return;
+        }
+        if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
+            return;
+        }
+        final IntValueZoneMap zoneMap = getZoneMap(metric, numDocs);
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        int lastDoc = 0;
+        for (int zoneStart = 0; zoneStart < numDocs; zoneStart += IntValueZoneMap.ZONE_SIZE) {
+            final int zoneEnd = zoneStart + Math.min(IntValueZoneMap.ZONE_SIZE, numDocs - zoneStart);
+            final int overlap = rangeOverlap(zoneMap, zoneStart, startVal, endVal);
+            if (overlap == IntValueZoneMap.NONE_IN_RANGE) {
+                continue;
+            }
+            if (overlap == IntValueZoneMap.ALL_IN_RANGE) {
+                if (lastDoc != zoneStart) {
+                    bitSet.clearRange(lastDoc, zoneStart);
                 }
+                lastDoc = zoneEnd;
+                continue;
             }
-            bitSet.clearRange(lastDoc, numDocs);
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                bitSet.clearAll();
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal > metric.getMax()) {
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+            for (int docStart = zoneStart; docStart < zoneEnd; docStart += BUFFER_SIZE) {
+                final int n = Math.min(zoneEnd, docStart + BUFFER_SIZE) - docStart;
                 for (int i = 0; i < n; ++i) {
                     docBuf[i] = docStart + i;
                 }
@@ -98,7 +86,7 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 for (int i = 0; i < n; ++i) {
                     final int doc = docBuf[i];
                     final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
+                    if (val >= startVal && val <= endVal) {
                         if (lastDoc != doc) {
                             bitSet.clearRange(lastDoc, doc);
                         }
@@ -106,8 +94,8 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                     }
                 }
             }
-            bitSet.clearRange(lastDoc, numDocs);
         }
+        bitSet.clearRange(lastDoc, numDocs);
     }
 
     @Override
@@ -122,19 +110,29 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
 
     private void internalOr(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
         final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+        final long endVal = getInclusiveEndVal();
+        if (isEmpty() || endVal < metric.getMin() || startVal > metric.getMax()) {
+            return;
+        }
+        if (startVal <= metric.getMin() && endVal >= metric.getMax()) {
+            bitSet.setAll();
+            return;
+        }
+        final IntValueZoneMap zoneMap = getZoneMap(metric, numDocs);
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        for (int zoneStart = 0; zoneStart < numDocs; zoneStart += IntValueZoneMap.ZONE_SIZE) {
+            final int zoneEnd = zoneStart + Math.min(IntValueZoneMap.ZONE_SIZE, numDocs - zoneStart);
+            final int overlap = rangeOverlap(zoneMap, zoneStart, startVal, endVal);
+            if (overlap == IntValueZoneMap.NONE_IN_RANGE) {
+                continue;
+            }
+            if (overlap == IntValueZoneMap.ALL_IN_RANGE) {
+                bitSet.setRange(zoneStart, zoneEnd);
+                continue;
+            }
+            for (int docStart = zoneStart; docStart < zoneEnd; docStart += BUFFER_SIZE) {
+                final int n = Math.min(zoneEnd, docStart + BUFFER_SIZE) - docStart;
                 for (int i = 0; i < n; ++i) {
                     docBuf[i] = docStart + i;
                 }
@@ -147,30 +145,6 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                     }
                 }
             }
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                return;
-            }
-            if (startVal <= metric.getMin() && endVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
-                        bitSet.set(doc);
-                    }
-                }
-            }
         }
     }
 
@@ -186,44 +160,31 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
 
     private void internalNot(IntValueLookup metric, int numDocs, FastBitSet bitSet) {
         final long startVal = startTerm.getTermIntVal();
-        final long endVal = endTerm.getTermIntVal();
-        if (isMaxInclusive) {
-            if (endVal < metric.getMin() || startVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
-                for (int i = 0; i < n; ++i) {
-                    docBuf[i] = docStart + i;
-                }
-                metric.lookup(docBuf, valueBuf, n);
-                for (int i = 0; i < n; ++i) {
-                    final int doc = docBuf[i];
-                    final long val = valueBuf[i];
-                    if (val >= startVal && val <= endVal) {
-                        if (lastDoc != doc) {
-                            bitSet.setRange(lastDoc, doc);
-                        }
-                        bitSet.clear(doc);
-                        lastDoc = doc + 1;
-                    }
+        final long endVal = getInclusiveEndVal();
+        if (isEmpty() || endVal < metric.getMin() || startVal > metric.getMax()) {
+            bitSet.setAll();
+            return;
+        }
+        final IntValueZoneMap zoneMap = getZoneMap(metric, numDocs);
+        final int[] docBuf = new int[BUFFER_SIZE];
+        final long[] valueBuf = new long[BUFFER_SIZE];
+        int lastDoc = 0;
+        for (int zoneStart = 0; zoneStart < numDocs; zoneStart += IntValueZoneMap.ZONE_SIZE) {
+            final int zoneEnd = zoneStart + Math.min(IntValueZoneMap.ZONE_SIZE, numDocs - zoneStart);
+            final int overlap = rangeOverlap(zoneMap, zoneStart, startVal, endVal);
+            if (overlap == IntValueZoneMap.NONE_IN_RANGE) {
+                continue;
+            }
+            if (overlap == IntValueZoneMap.ALL_IN_RANGE) {
+                if (lastDoc != zoneStart) {
+                    bitSet.setRange(lastDoc, zoneStart);
                 }
+                bitSet.clearRange(zoneStart, zoneEnd);
+                lastDoc = zoneEnd;
+                continue;
             }
-            bitSet.setRange(lastDoc, numDocs);
-        } else {
-            if (endVal <= metric.getMin() || startVal > metric.getMax()) {
-                bitSet.setAll();
-                return;
-            }
-            final int[] docBuf = new int[BUFFER_SIZE];
-            final long[] valueBuf = new long[BUFFER_SIZE];
-            int lastDoc = 0;
-            for (int docStart = 0; docStart < numDocs; docStart += BUFFER_SIZE) {
-                final int n = Math.min(numDocs, docStart + BUFFER_SIZE) - docStart;
+            for (int docStart = zoneStart; docStart < zoneEnd; docStart += BUFFER_SIZE) {
+                final int n = Math.min(zoneEnd, docStart + BUFFER_SIZE) - docStart;
                 for (int i = 0; i < n; ++i) {
                     docBuf[i] = docStart + i;
                 }
@@ -231,7 +192,7 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                 for (int i = 0; i < n; ++i) {
                     final int doc = docBuf[i];
                     final long val = valueBuf[i];
-                    if (val >= startVal && val < endVal) {
+                    if (val >= startVal && val <= endVal) {
                         if (lastDoc != doc) {
                             bitSet.setRange(lastDoc, doc);
                         }
@@ -240,7 +201,28 @@ class IntRangeQueryEvaluator implements QueryEvaluator {
                     }
                 }
             }
-            bitSet.setRange(lastDoc, numDocs);
         }
+        bitSet.setRange(lastDoc, numDocs);
+    }
+
+    // an exclusive end of Long.MIN_VALUE has no inclusive equivalent and matches nothing
+    private boolean isEmpty() {
+        return !isMaxInclusive && endTerm.getTermIntVal() == Long.MIN_VALUE;
+    }
+
+    private long getInclusiveEndVal() {
+        return isMaxInclusive ? endTerm.getTermIntVal() : endTerm.getTermIntVal() - 1;
+    }
+
+    private static IntValueZoneMap getZoneMap(IntValueLookup metric, int numDocs) {
+        final IntValueZoneMap zoneMap = IntValueZoneMap.of(metric);
+        return zoneMap != null && zoneMap.getNumDocs() == numDocs ? zoneMap : null;
+    }
+
+    private static int rangeOverlap(IntValueZoneMap zoneMap, int zoneStart, long startVal, long endVal) {
+        if (zoneMap == null) {
+            return IntValueZoneMap.SOME_IN_RANGE;
+        }
+        return zoneMap.rangeOverlap(zoneStart / IntValueZoneMap.ZONE_SIZE, startVal, endVal);
     }
 }
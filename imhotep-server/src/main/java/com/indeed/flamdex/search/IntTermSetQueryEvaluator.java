@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntTermSetIterator;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 
@@ -65,15 +66,12 @@ public class IntTermSetQueryEvaluator implements QueryEvaluator {
 
     private void internalSearch(FlamdexReader r, FastBitSet bitSet) {
         final IntTermIterator iterator = r.getIntTermIterator(field);
-        int ix = 0;
         try {
             final DocIdStream docIdStream = r.getDocIdStream();
             try {
-                while (ix < terms.length) {
-                    final int[] docIdBuffer = new int[BUFFER_SIZE];
-                    iterator.reset(terms[ix++]);
-                    if (!iterator.next()) break;
-                    if(iterator.term() != terms[ix-1]) continue;
+                final int[] docIdBuffer = new int[BUFFER_SIZE];
+                final IntTermSetIterator matches = new IntTermSetIterator(iterator, terms);
+                while (matches.next()) {
                     docIdStream.reset(iterator);
                     readDocIdStream(docIdStream, docIdBuffer, bitSet);
                 }
@@ -17,6 +17,7 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.StringTermSetIterator;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 
@@ -65,15 +66,12 @@ public class StringTermSetQueryEvaluator implements QueryEvaluator {
 
     private void internalSearch(FlamdexReader r, FastBitSet bitSet) {
         final StringTermIterator iterator = r.getStringTermIterator(field);
-        int ix = 0;
         try {
             final DocIdStream docIdStream = r.getDocIdStream();
             try {
-                while (ix < terms.length) {
-                    final int[] docIdBuffer = new int[BUFFER_SIZE];
-                    iterator.reset(terms[ix++]);
-                    if (!iterator.next()) break;
-                    if(!iterator.term().equals(terms[ix-1])) continue;
+                final int[] docIdBuffer = new int[BUFFER_SIZE];
+                final StringTermSetIterator matches = new StringTermSetIterator(iterator, terms);
+                while (matches.next()) {
                     docIdStream.reset(iterator);
                     readDocIdStream(docIdStream, docIdBuffer, bitSet);
                 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+/**
+ * Tournament tree for a k-way merge of sorted sources numbered 0 to size - 1. Subclasses keep the current key of each
+ * source wherever suits them, in a primitive array for int terms, and compare sources by index, so nothing is boxed
+ * or wrapped per term. Replacing the smallest key takes log(k) comparisons against the recorded losers, about half
+ * of what a binary heap needs. Equal keys come out in order of source.
+ */
+abstract class LoserTree {
+    private final int size;
+    /* losers[n] is the source that lost at internal node n, the leaf of source i is node size + i */
+    private final int[] losers;
+    private final boolean[] exhausted;
+    private int winner = -1;
+
+    LoserTree(int size) {
+        this.size = size;
+        losers = new int[size];
+        exhausted = new boolean[size];
+    }
+
+    /**
+     * @return negative, zero or positive as the current key of source a is less than, equal to or greater than that of b
+     */
+    protected abstract int compare(int a, int b);
+
+    /**
+     * mark a source as having no keys, only before {@link #init()}
+     */
+    void exhaust(int source) {
+        exhausted[source] = true;
+    }
+
+    /**
+     * build the tree once the first key of every source that has one is in place
+     */
+    void init() {
+        winner = size == 0 ? -1 : build(1);
+    }
+
+    private int build(int node) {
+        if (node >= size) {
+            return node - size;
+        }
+        final int left = build(2 * node);
+        final int right = build(2 * node + 1);
+        if (beats(left, right)) {
+            losers[node] = right;
+            return left;
+        } else {
+            losers[node] = left;
+            return right;
+        }
+    }
+
+    boolean isEmpty() {
+        return winner < 0 || exhausted[winner];
+    }
+
+    /**
+     * @return the source with the smallest current key
+     */
+    int top() {
+        return winner;
+    }
+
+    /**
+     * call after advancing the top source to its next key
+     */
+    void topChanged() {
+        int source = winner;
+        for (int node = (source + size) >>> 1; node > 0; node >>>= 1) {
+            if (beats(losers[node], source)) {
+                final int tmp = losers[node];
+                losers[node] = source;
+                source = tmp;
+            }
+        }
+        winner = source;
+    }
+
+    /**
+     * call instead of {@link #topChanged()} when the top source has run out of keys
+     */
+    void topExhausted() {
+        exhausted[winner] = true;
+        topChanged();
+    }
+
+    private boolean beats(int a, int b) {
+        if (exhausted[a]) {
+            return exhausted[b] && a < b;
+        }
+        if (exhausted[b]) {
+            return true;
+        }
+        final int cmp = compare(a, b);
+        return cmp < 0 || (cmp == 0 && a < b);
+    }
+}
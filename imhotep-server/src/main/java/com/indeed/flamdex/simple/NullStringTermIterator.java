@@ -55,6 +55,11 @@ final class NullStringTermIterator implements SimpleStringTermIterator {
         return 0;
     }
 
+    @Override
+    public long getOrdinal() {
+        return -1L;
+    }
+
     @Override
     public void close() {
     }
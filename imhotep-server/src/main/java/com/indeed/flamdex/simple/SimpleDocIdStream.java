@@ -16,11 +16,14 @@
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.TermIterator;
+import com.indeed.imhotep.io.caching.CachedFile;
+import com.indeed.imhotep.io.caching.RemoteFileBuffer;
 import com.indeed.util.mmap.DirectMemory;
 import com.indeed.util.mmap.MMapBuffer;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
 
 /**
  * @author jsgroth
@@ -31,6 +34,8 @@ final class SimpleDocIdStream implements DocIdStream {
     public static final int BUFFER_SIZE = 8192;
 
     private final MapCache mapCache;
+    // read the docs of each term through a RemoteFileBuffer instead of loading and mapping the whole docs file
+    private final boolean rangedReads;
 
     private final byte[] buffer;
     private long bufferOffset;
@@ -39,17 +44,27 @@ final class SimpleDocIdStream implements DocIdStream {
 
     private DirectMemory memory;
     private SharedReference<MMapBuffer> file;
+    private RemoteFileBuffer rangedFile;
     private int docsRemaining;
     private int lastDoc;
 
     private String currentFileOpen;
 
     SimpleDocIdStream(MapCache mapCache) {
-        this(mapCache, new byte[BUFFER_SIZE]);
+        this(mapCache, false);
+    }
+
+    SimpleDocIdStream(MapCache mapCache, boolean rangedReads) {
+        this(mapCache, new byte[BUFFER_SIZE], rangedReads);
     }
 
     SimpleDocIdStream(MapCache mapCache, byte[] buffer) {
+        this(mapCache, buffer, false);
+    }
+
+    SimpleDocIdStream(MapCache mapCache, byte[] buffer, boolean rangedReads) {
         this.mapCache = mapCache;
+        this.rangedReads = rangedReads;
         this.buffer = buffer;
         bufferOffset = 0L;
         bufferLen = 0;
@@ -73,9 +88,13 @@ final class SimpleDocIdStream implements DocIdStream {
         if (!filename.equals(currentFileOpen)) {
 
             if (file != null) file.close();
-            file = mapCache.copyOrOpen(filename);
-
-            memory = file.get().memory();
+            if (rangedReads) {
+                file = null;
+                rangedFile = CachedFile.create(filename).openBuffer(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                file = mapCache.copyOrOpen(filename);
+                memory = file.get().memory();
+            }
             currentFileOpen = filename;
             // to force a refill
             bufferOffset = 0L;
@@ -138,9 +157,13 @@ final class SimpleDocIdStream implements DocIdStream {
     }
 
     private void refillBuffer(long offset) throws IOException {
-        bufferLen = (int)Math.min(buffer.length, memory.length() - offset);
-        if (bufferLen > 0) {
-            memory.getBytes(offset, buffer, 0, bufferLen);
+        if (rangedReads) {
+            bufferLen = rangedFile.read(offset, buffer, 0, buffer.length);
+        } else {
+            bufferLen = (int)Math.min(buffer.length, memory.length() - offset);
+            if (bufferLen > 0) {
+                memory.getBytes(offset, buffer, 0, bufferLen);
+            }
         }
         bufferOffset = offset;
         bufferPtr = 0;
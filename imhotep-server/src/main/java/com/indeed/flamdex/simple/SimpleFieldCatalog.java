@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.io.caching.CachedFile;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of a simple flamdex shard and the files they are stored in, taken from a single listing of the shard
+ * directory, and the {@link SimpleFlamdexManifest} if there is one, when it is opened. Opening a term iterator is a
+ * lookup in here instead of a round of {@link CachedFile} calls, each of which may be a remote stat. The catalog is
+ * immutable apart from memoized file lengths, so it is safe to read from any number of threads without locking.
+ */
+public final class SimpleFieldCatalog {
+    private static final Logger log = Logger.getLogger(SimpleFieldCatalog.class);
+
+    private static final String FIELD_PREFIX = "fld-";
+    private static final String INT_TERMS_SUFFIX = ".intterms";
+    private static final String STRING_TERMS_SUFFIX = ".strterms";
+
+    private final String directory;
+    private final Map<String, FieldFiles> intFields;
+    private final Map<String, FieldFiles> stringFields;
+
+    private SimpleFieldCatalog(String directory, Map<String, FieldFiles> intFields, Map<String, FieldFiles> stringFields) {
+        this.directory = directory;
+        this.intFields = intFields;
+        this.stringFields = stringFields;
+    }
+
+    public static SimpleFieldCatalog scan(final String directory) throws IOException {
+        final String[] names = CachedFile.create(directory).list();
+        if (names == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        final Set<String> files = Sets.newHashSet(names);
+        final SimpleFlamdexManifest manifest = files.contains(SimpleFlamdexManifest.FILENAME)
+                ? readManifest(directory)
+                : new SimpleFlamdexManifest();
+        final ImmutableMap.Builder<String, FieldFiles> intFields = ImmutableMap.builder();
+        final ImmutableMap.Builder<String, FieldFiles> stringFields = ImmutableMap.builder();
+        for (final String name : Sets.newTreeSet(files)) {
+            if (!name.startsWith(FIELD_PREFIX)) {
+                continue;
+            }
+            if (name.endsWith(INT_TERMS_SUFFIX)) {
+                final String field = name.substring(FIELD_PREFIX.length(), name.length() - INT_TERMS_SUFFIX.length());
+                final String intIndex64 = FIELD_PREFIX + field + ".intindex64";
+                final String intIndex = FIELD_PREFIX + field + ".intindex";
+                final String indexFilename = files.contains(intIndex64) ? intIndex64 : files.contains(intIndex) ? intIndex : null;
+                intFields.put(field, new FieldFiles(directory,
+                                                    SimpleIntFieldWriter.getTermsFilename(field),
+                                                    SimpleIntFieldWriter.getDocsFilename(field),
+                                                    indexFilename,
+                                                    !intIndex.equals(indexFilename),
+                                                    manifest.getIntFields().get(field)));
+            } else if (name.endsWith(STRING_TERMS_SUFFIX)) {
+                final String field = name.substring(FIELD_PREFIX.length(), name.length() - STRING_TERMS_SUFFIX.length());
+                final String strIndex = FIELD_PREFIX + field + ".strindex";
+                stringFields.put(field, new FieldFiles(directory,
+                                                       SimpleStringFieldWriter.getTermsFilename(field),
+                                                       SimpleStringFieldWriter.getDocsFilename(field),
+                                                       files.contains(strIndex) ? strIndex : null,
+                                                       false,
+                                                       manifest.getStringFields().get(field)));
+            }
+        }
+        return new SimpleFieldCatalog(directory, intFields.build(), stringFields.build());
+    }
+
+    private static SimpleFlamdexManifest readManifest(String directory) {
+        final String path = CachedFile.buildPath(directory, SimpleFlamdexManifest.FILENAME);
+        try {
+            return SimpleFlamdexManifest.read(CachedFile.create(path).loadFile());
+        } catch (IOException e) {
+            // only an optimization, the stats can still be had by scanning terms
+            log.warn("unable to read " + path + ", ignoring it", e);
+            return new SimpleFlamdexManifest();
+        }
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the int fields in sorted order
+     */
+    public Collection<String> getIntFields() {
+        return Collections.unmodifiableSet(intFields.keySet());
+    }
+
+    /**
+     * @return the string fields in sorted order
+     */
+    public Collection<String> getStringFields() {
+        return Collections.unmodifiableSet(stringFields.keySet());
+    }
+
+    /**
+     * @return the recorded stats of an int field, or null if the field or its stats are missing
+     */
+    public FieldStats getIntFieldStats(String field) {
+        final FieldFiles files = intFields.get(field);
+        return files != null ? files.stats : null;
+    }
+
+    /**
+     * @return the recorded stats of a string field, or null if the field or its stats are missing
+     */
+    public FieldStats getStringFieldStats(String field) {
+        final FieldFiles files = stringFields.get(field);
+        return files != null ? files.stats : null;
+    }
+
+    /**
+     * drop the loaded term dictionaries of the string fields, giving back the memory they were charged to
+     */
+    void releaseTermDictionaries() {
+        for (final FieldFiles files : stringFields.values()) {
+            files.releaseTermDictionary();
+        }
+    }
+
+    /**
+     * @return the files of an int field, or null if the shard does not have it
+     */
+    FieldFiles getIntField(String field) {
+        return intFields.get(field);
+    }
+
+    /**
+     * @return the files of a string field, or null if the shard does not have it
+     */
+    FieldFiles getStringField(String field) {
+        return stringFields.get(field);
+    }
+
+    static final class FieldFiles {
+        final String termsPath;
+        final String docsPath;
+        final String indexPath;
+        final boolean use64BitIndex;
+        /* null if the shard has no manifest */
+        final FieldStats stats;
+
+        private volatile long termsLength;
+        private volatile SimpleStringTermDictionary termDictionary;
+        /* what the dictionary was charged to, if anything */
+        private MemoryReserver termDictionaryMemory;
+        /* set if memory could not be claimed for the dictionary, so it is not built again for every iterator */
+        private volatile boolean termDictionaryDenied;
+
+        private FieldFiles(String directory, String termsFilename, String docsFilename, String indexFilename, boolean use64BitIndex, FieldStats stats) {
+            termsPath = CachedFile.buildPath(directory, termsFilename);
+            docsPath = CachedFile.buildPath(directory, docsFilename);
+            indexPath = indexFilename != null ? CachedFile.buildPath(directory, indexFilename) : null;
+            this.use64BitIndex = use64BitIndex;
+            this.stats = stats;
+            termsLength = stats != null ? stats.getTermsBytes() : -1;
+        }
+
+        /**
+         * taken from the manifest if there is one, otherwise looked up on first use and remembered, since on a remote
+         * mount the length is only known once the file has been loaded. racing threads may both look it up, but they
+         * get the same answer.
+         */
+        long getTermsLength() {
+            long length = termsLength;
+            if (length < 0) {
+                length = CachedFile.create(termsPath).length();
+                termsLength = length;
+            }
+            return length;
+        }
+
+        /**
+         * read from the b-tree of a string field, or built from its term list if it has none, on first use and shared
+         * from then on. the dictionary lives until {@link #releaseTermDictionary()}, so it is charged to the memory of
+         * the reader, which releases it when it is closed.
+         *
+         * @param memory the memory of the reader, or null if it is not accounted for
+         * @return null if memory could not be claimed for the dictionary, now or on an earlier call
+         */
+        SimpleStringTermDictionary getTermDictionary(MapCache mapCache, @Nullable MemoryReserver memory) throws IOException {
+            SimpleStringTermDictionary dictionary = termDictionary;
+            if (dictionary == null) {
+                if (termDictionaryDenied) {
+                    return null;
+                }
+                synchronized (this) {
+                    dictionary = termDictionary;
+                    if (dictionary == null) {
+                        if (termDictionaryDenied) {
+                            return null;
+                        }
+                        dictionary = SimpleStringTermDictionary.build(mapCache, termsPath, indexPath);
+                        if (memory != null && !memory.claimMemory(dictionary.memoryUsed())) {
+                            log.warn("not enough memory to keep the term dictionary of " + termsPath + ", seeks will use "
+                                     + (indexPath != null ? "the b-tree" : "a scan of the term list"));
+                            termDictionaryDenied = true;
+                            return null;
+                        }
+                        termDictionaryMemory = memory;
+                        termDictionary = dictionary;
+                    }
+                }
+            }
+            return dictionary;
+        }
+
+        synchronized void releaseTermDictionary() {
+            final SimpleStringTermDictionary dictionary = termDictionary;
+            if (dictionary != null && termDictionaryMemory != null) {
+                termDictionaryMemory.releaseMemory(dictionary.memoryUsed());
+            }
+            termDictionary = null;
+            termDictionaryMemory = null;
+        }
+    }
+}
@@ -13,15 +13,30 @@
  */
  package com.indeed.flamdex.simple;
 
+import com.google.common.collect.Lists;
+import com.indeed.flamdex.api.FieldStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * @author jsgroth
  */
 abstract class SimpleFieldWriter {
+    static final int TOP_TERMS_SAMPLE_SIZE = 100;
+
+    private static final Comparator<TermSample> DOC_FREQ_ORDER = new Comparator<TermSample>() {
+        @Override
+        public int compare(TermSample o1, TermSample o2) {
+            return o1.docFreq < o2.docFreq ? -1 : o1.docFreq > o2.docFreq ? 1 : 0;
+        }
+    };
+
     protected final OutputStream termsOutput;
     protected final OutputStream docsOutput;
     protected final long numDocs;
@@ -36,6 +51,13 @@ abstract class SimpleFieldWriter {
 
     private boolean nextTermCalled = false;
     private boolean nextDocCalled = false;
+    private boolean closed = false;
+
+    // stats for the manifest, see SimpleFlamdexManifest
+    protected long numTermsWritten = 0L;
+    private long totalDocFreq = 0L;
+    private long maxDocFreq = 0L;
+    private final PriorityQueue<TermSample> topTerms = new PriorityQueue<TermSample>(TOP_TERMS_SAMPLE_SIZE, DOC_FREQ_ORDER);
 
     protected SimpleFieldWriter(OutputStream termsOutput, OutputStream docsOutput, long numDocs) {
         this.termsOutput = termsOutput;
@@ -77,6 +99,33 @@ abstract class SimpleFieldWriter {
         ++currentTermDocFreq;
     }
 
+    /**
+     * add n docs for the current term, each offset by docOffset, with the same checks as {@link #nextDoc(int)}
+     */
+    void nextDocs(int[] docs, int n, int docOffset) throws IOException {
+        if (n == 0) return;
+        if (!nextTermCalled) throw new IllegalStateException("nextTerm must be called before nextDoc");
+        if (docs[0] + docOffset < 0) throw new IllegalArgumentException("doc cannot be negative");
+        if (docs[n - 1] + docOffset >= numDocs) throw new IllegalArgumentException("doc is >= maxDoc: doc="+(docs[n - 1] + docOffset)+", maxDoc="+ numDocs);
+
+        long lastDoc = lastDocWritten;
+        boolean first = !nextDocCalled;
+        long bytesWritten = 0;
+        for (int i = 0; i < n; ++i) {
+            final int doc = docs[i] + docOffset;
+            if (!first && doc <= lastDoc) {
+                throw new IllegalArgumentException("docs must be in sorted order: "+doc+" is not greater than "+lastDoc);
+            }
+            first = false;
+            bytesWritten += FlamdexUtils.writeVLong(doc - lastDoc, docsOutput);
+            lastDoc = doc;
+        }
+        nextDocCalled = true;
+        docsBytesWritten += bytesWritten;
+        lastDocWritten = lastDoc;
+        currentTermDocFreq += n;
+    }
+
     protected void writeTerm() throws IOException {
         if (currentTermDocFreq == 0) return;
 
@@ -87,10 +136,51 @@ abstract class SimpleFieldWriter {
         lastOffsetWritten = currentTermOffset;
 
         FlamdexUtils.writeVLong(currentTermDocFreq, termsOutput);
+
+        ++numTermsWritten;
+        totalDocFreq += currentTermDocFreq;
+        maxDocFreq = Math.max(maxDocFreq, currentTermDocFreq);
+        if (topTerms.size() < TOP_TERMS_SAMPLE_SIZE) {
+            topTerms.add(new TermSample(currentTermValue(), currentTermDocFreq));
+        } else if (currentTermDocFreq > topTerms.peek().docFreq) {
+            topTerms.poll();
+            topTerms.add(new TermSample(currentTermValue(), currentTermDocFreq));
+        }
     }
 
     protected abstract void writeTermDelta() throws IOException;
 
+    /**
+     * @return the current term, boxed, for the top terms sample
+     */
+    protected abstract Object currentTermValue();
+
+    /**
+     * @return the stats of the field, only valid once the writer is closed
+     */
+    abstract FieldStats getStats();
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    protected long getTotalDocFreq() {
+        return totalDocFreq;
+    }
+
+    protected long getMaxDocFreq() {
+        return maxDocFreq;
+    }
+
+    /**
+     * @return the sampled terms with the highest doc freqs, highest first
+     */
+    protected List<TermSample> getTopTerms() {
+        final List<TermSample> ret = Lists.newArrayList(topTerms);
+        Collections.sort(ret, Collections.reverseOrder(DOC_FREQ_ORDER));
+        return ret;
+    }
+
     protected abstract void writeBTreeIndex() throws IOException;
 
     public void close() throws IOException {
@@ -100,5 +190,16 @@ abstract class SimpleFieldWriter {
         if (nextTermCalled) {
             writeBTreeIndex();
         }
+        closed = true;
+    }
+
+    protected static final class TermSample {
+        final Object term;
+        final long docFreq;
+
+        private TermSample(Object term, long docFreq) {
+            this.term = term;
+            this.docFreq = docFreq;
+        }
     }
 }
@@ -13,35 +13,76 @@
  */
  package com.indeed.flamdex.simple;
 
-import com.google.common.collect.Iterables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.io.BufferedFileDataInputStream;
 import com.indeed.util.io.BufferedFileDataOutputStream;
+import com.indeed.flamdex.CompactMemoryFlamdex;
 import com.indeed.flamdex.MemoryFlamdex;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.utils.FlamdexSort;
 import com.indeed.flamdex.writer.FlamdexDocWriter;
 import com.indeed.flamdex.writer.FlamdexDocument;
 import com.indeed.flamdex.writer.FlamdexWriter;
+import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Buffers documents in a {@link CompactMemoryFlamdex} and writes them out as segments which are merged into the final
+ * index. While one full buffer is written out on a background thread the next one keeps filling, and segments are
+ * merged on a separate pool of {@link Config#getMergeThreads()} threads, so adding documents only waits when a buffer
+ * fills up before the previous one has been written out. The final merge into the output directory merges that many
+ * fields at a time.
+ *
+ * With {@link Config#setSortFields(List)} the docs of the final index are clustered by the terms of a few fields, for
+ * example low cardinality fields the index is usually filtered or grouped on followed by time. Each term of those
+ * fields then has its docs in a few runs of consecutive doc ids, which makes the doc lists much smaller and filters
+ * and regroups on them touch far fewer pages.
+ *
  * @author jsgroth
  */
 public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
+    private static final Logger log = Logger.getLogger(SimpleFlamdexDocWriter.class);
+
+    private static final Comparator<Segment> FIRST_DOC_ORDER = new Comparator<Segment>() {
+        @Override
+        public int compare(Segment o1, Segment o2) {
+            return o1.firstDoc < o2.firstDoc ? -1 : o1.firstDoc > o2.firstDoc ? 1 : 0;
+        }
+    };
+
     private final String outputDirectory;
     private final int docBufferSize;
     private final int mergeFactor;
+    private final int mergeThreads;
+    private final List<String> sortFields;
 
-    private final List<List<File>> segmentsOnDisk;
+    private final ExecutorService flushExecutor;
+    private final ExecutorService mergeExecutor;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
-    private MemoryFlamdex currentBuffer = new MemoryFlamdex();
+    // guarded by this
+    private final List<List<Segment>> segmentsOnDisk;
     private String currentSegment = "_0";
+    private int runningMerges = 0;
+
+    private CompactMemoryFlamdex currentBuffer = new CompactMemoryFlamdex();
+    private long currentBufferFirstDoc = 0;
+    private Future<?> pendingFlush;
 
     public SimpleFlamdexDocWriter(String outputDirectory, Config config) throws IOException {
         createOutputDir(outputDirectory);
@@ -49,9 +90,16 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
         this.outputDirectory = outputDirectory;
         this.docBufferSize = config.getDocBufferSize();
         this.mergeFactor = config.getMergeFactor();
+        this.mergeThreads = config.getMergeThreads();
+        this.sortFields = config.getSortFields();
 
         segmentsOnDisk = Lists.newArrayList();
-        segmentsOnDisk.add(new ArrayList<File>());
+        segmentsOnDisk.add(new ArrayList<Segment>());
+
+        flushExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexDocWriter-flush-%d").build());
+        mergeExecutor = Executors.newFixedThreadPool(mergeThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexDocWriter-merge-%d").build());
     }
 
     private static void createOutputDir(String outputDirectory) throws IOException {
@@ -66,94 +114,235 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
 
     @Override
     public void addDocument(FlamdexDocument doc) throws IOException {
+        checkFailure();
         currentBuffer.addDocument(doc);
         if (currentBuffer.getNumDocs() == docBufferSize) {
             flush();
-            currentBuffer = new MemoryFlamdex();
         }
     }
 
+    /**
+     * hands the current buffer off to the flush thread, first waiting for the previous one to be written out so that
+     * at most two buffers are in memory
+     */
     private void flush() throws IOException {
+        waitForFlush();
         if (currentBuffer.getNumDocs() == 0) return;
 
-        final File outFile = new File(outputDirectory, currentSegment);
-        final BufferedFileDataOutputStream out = new BufferedFileDataOutputStream(outFile, ByteOrder.nativeOrder(), 65536);
-        currentBuffer.write(out);
-        out.close();
+        final CompactMemoryFlamdex buffer = currentBuffer;
+        final Segment segment = new Segment(new File(outputDirectory, nextSegmentDirectory()), currentBufferFirstDoc, buffer.getNumDocs(), 0);
+        currentBuffer = new CompactMemoryFlamdex();
+        currentBufferFirstDoc += segment.numDocs;
+
+        pendingFlush = flushExecutor.submit(new BackgroundTask() {
+            @Override
+            protected void execute() throws IOException {
+                final BufferedFileDataOutputStream out = new BufferedFileDataOutputStream(segment.file, ByteOrder.nativeOrder(), 65536);
+                buffer.write(out);
+                out.close();
+                addSegment(segment);
+            }
+        });
+    }
 
-        segmentsOnDisk.get(0).add(outFile);
+    private void waitForFlush() throws IOException {
+        if (pendingFlush == null) return;
+        try {
+            pendingFlush.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        pendingFlush = null;
+        checkFailure();
+    }
 
-        currentSegment = nextSegmentDirectory(currentSegment);
+    private synchronized void addSegment(Segment segment) {
+        while (segmentsOnDisk.size() <= segment.level) {
+            segmentsOnDisk.add(new ArrayList<Segment>());
+        }
+        final List<Segment> segments = segmentsOnDisk.get(segment.level);
+        segments.add(segment);
+        Collections.sort(segments, FIRST_DOC_ORDER);
+
+        // merges finish in any order, so only merge segments holding adjacent docs to keep docs in the order they were added
+        int runStart = 0;
+        for (int i = 1; i <= segments.size(); ++i) {
+            if (i - runStart == mergeFactor) {
+                final List<Segment> run = segments.subList(runStart, i);
+                startMerge(new ArrayList<Segment>(run), segment.level + 1);
+                run.clear();
+                i = runStart;
+            } else if (i < segments.size() && segments.get(i).firstDoc != segments.get(i - 1).getEndDoc()) {
+                runStart = i;
+            }
+        }
+    }
 
-        int i = 0;
-        while (segmentsOnDisk.get(i).size() == mergeFactor) {
-            final List<File> segments = segmentsOnDisk.get(i);
-            final List<FlamdexReader> readers = Lists.newArrayListWithCapacity(segments.size());
-            long numDocs = 0;
-            for (final File segment : segments) {
-                final FlamdexReader reader;
-                if (i == 0) {
-                    reader = MemoryFlamdex.streamer(new BufferedFileDataInputStream(segment, ByteOrder.nativeOrder(), 65536));
-                } else {
-                    reader = SimpleFlamdexReader.open(segment.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+    private synchronized void startMerge(final List<Segment> segments, int level) {
+        long numDocs = 0;
+        for (final Segment segment : segments) {
+            numDocs += segment.numDocs;
+        }
+        final Segment merged = new Segment(new File(outputDirectory, nextSegmentDirectory()), segments.get(0).firstDoc, numDocs, level);
+        ++runningMerges;
+        mergeExecutor.execute(new BackgroundTask() {
+            @Override
+            protected void execute() throws IOException {
+                try {
+                    final List<FlamdexReader> readers = openSegments(segments);
+                    final FlamdexWriter w = new SimpleFlamdexWriter(merged.file.getAbsolutePath(), merged.numDocs, true, false);
+                    SimpleFlamdexWriter.merge(readers, w);
+                    w.close();
+
+                    for (final FlamdexReader reader : readers) {
+                        reader.close();
+                    }
+
+                    for (final Segment segment : segments) {
+                        rmrf(segment.file);
+                    }
+                    addSegment(merged);
+                } finally {
+                    mergeFinished();
                 }
-                readers.add(reader);
-                numDocs += reader.getNumDocs();
             }
+        });
+    }
 
-            final File mergeDir = new File(outputDirectory, currentSegment);
-            currentSegment = nextSegmentDirectory(currentSegment);
-            final FlamdexWriter w = new SimpleFlamdexWriter(mergeDir.getAbsolutePath(), numDocs, true, false);
-            SimpleFlamdexWriter.merge(readers, w);
-            w.close();
+    private synchronized void mergeFinished() {
+        --runningMerges;
+        notifyAll();
+    }
 
-            for (final FlamdexReader reader : readers) {
-                reader.close();
+    private synchronized void waitForMerges() {
+        while (runningMerges > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
             }
+        }
+    }
 
-            for (final File segment : segments) {
-                rmrf(segment);
+    /**
+     * @return true if there are segments above level 0 or merges still running that will make one
+     */
+    private synchronized boolean hasMergedSegments() {
+        if (runningMerges > 0) {
+            return true;
+        }
+        for (int level = 1; level < segmentsOnDisk.size(); ++level) {
+            if (!segmentsOnDisk.get(level).isEmpty()) {
+                return true;
             }
-            segments.clear();
+        }
+        return false;
+    }
 
-            if (i == segmentsOnDisk.size() - 1) {
-                segmentsOnDisk.add(new ArrayList<File>());
+    private static List<FlamdexReader> openSegments(List<Segment> segments) throws IOException {
+        final List<FlamdexReader> readers = Lists.newArrayListWithCapacity(segments.size());
+        for (final Segment segment : segments) {
+            if (segment.level == 0) {
+                readers.add(MemoryFlamdex.streamer(new BufferedFileDataInputStream(segment.file, ByteOrder.nativeOrder(), 65536)));
+            } else {
+                readers.add(SimpleFlamdexReader.open(segment.file.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false)));
             }
-            segmentsOnDisk.get(i + 1).add(mergeDir);
+        }
+        return readers;
+    }
 
-            ++i;
+    private void checkFailure() throws IOException {
+        final Throwable t = failure.get();
+        if (t != null) {
+            throw new IOException("writing segments to " + outputDirectory + " failed", t);
         }
     }
 
     @Override
     public void close() throws IOException {
-        flush();
-        long numDocs = 0;
-        final List<FlamdexReader> allReaders = Lists.newArrayList();
-        for (final File file : Iterables.concat(Lists.reverse(segmentsOnDisk.subList(1, segmentsOnDisk.size())))) {
-            final SimpleFlamdexReader reader = SimpleFlamdexReader.open(file.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
-            allReaders.add(reader);
-            numDocs += reader.getNumDocs();
-        }
-        for (final File file : segmentsOnDisk.get(0)) {
-            final FlamdexReader reader = MemoryFlamdex.streamer(new BufferedFileDataInputStream(file, ByteOrder.nativeOrder(), 65536));
-            allReaders.add(reader);
-            numDocs += reader.getNumDocs();
-        }
+        try {
+            flush();
+            waitForFlush();
+            waitForMerges();
+            checkFailure();
+
+            // the buffered segments can only be streamed a field at a time in order, so if there is anything else to
+            // merge them with turn them into one simple flamdex first, letting the final merge do fields in parallel
+            synchronized (this) {
+                final List<Segment> buffered = segmentsOnDisk.get(0);
+                if (mergeThreads > 1 && !buffered.isEmpty() && hasMergedSegments()) {
+                    startMerge(new ArrayList<Segment>(buffered), 1);
+                    buffered.clear();
+                }
+            }
+            waitForMerges();
+            checkFailure();
 
-        final FlamdexWriter w = new SimpleFlamdexWriter(outputDirectory, numDocs, true, true);
-        SimpleFlamdexWriter.merge(allReaders, w);
-        w.close();
+            final List<Segment> allSegments = Lists.newArrayList();
+            synchronized (this) {
+                for (final List<Segment> segments : segmentsOnDisk) {
+                    allSegments.addAll(segments);
+                }
+            }
+            Collections.sort(allSegments, FIRST_DOC_ORDER);
+
+            boolean streamed = false;
+            for (final Segment segment : allSegments) {
+                streamed |= segment.level == 0;
+            }
+
+            long numDocs = 0;
+            for (final Segment segment : allSegments) {
+                numDocs += segment.numDocs;
+            }
+            final List<FlamdexReader> allReaders = openSegments(allSegments);
+
+            // when sorting, merge into one more segment first and write the sorted index from that
+            final File unsorted = sortFields.isEmpty() ? null : new File(outputDirectory, nextSegmentDirectory());
+            final FlamdexWriter w = unsorted == null
+                    ? new SimpleFlamdexWriter(outputDirectory, numDocs, true, true)
+                    : new SimpleFlamdexWriter(unsorted.getAbsolutePath(), numDocs, true, false);
+            // the background merges are done, so their pool does the fields of this one
+            SimpleFlamdexWriter.merge(allReaders.toArray(new FlamdexReader[allReaders.size()]), w,
+                                      streamed || mergeThreads <= 1 ? null : mergeExecutor);
+            w.close();
+
+            for (final FlamdexReader reader : allReaders) {
+                reader.close();
+            }
+
+            for (final Segment segment : allSegments) {
+                rmrf(segment.file);
+            }
 
-        for (final FlamdexReader reader : allReaders) {
-            reader.close();
+            if (unsorted != null) {
+                writeSorted(unsorted, numDocs);
+                rmrf(unsorted);
+            }
+        } finally {
+            flushExecutor.shutdownNow();
+            mergeExecutor.shutdownNow();
         }
+    }
 
-        for (final File file : Iterables.concat(segmentsOnDisk)) {
-            rmrf(file);
+    private void writeSorted(File unsorted, long numDocs) throws IOException {
+        final FlamdexReader r = SimpleFlamdexReader.open(unsorted.getAbsolutePath(), new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+        try {
+            final int[] oldDocIdToNewDocId = FlamdexSort.computeOrder(r, sortFields);
+            FlamdexSort.sort(r, new SimpleFlamdexWriter(outputDirectory, numDocs, true, true), oldDocIdToNewDocId);
+        } finally {
+            r.close();
         }
     }
 
+    private synchronized String nextSegmentDirectory() {
+        final String ret = currentSegment;
+        currentSegment = nextSegmentDirectory(currentSegment);
+        return ret;
+    }
+
     private static String nextSegmentDirectory(String s) {
         int i = s.length() - 1;
         while (s.charAt(i) == 'z') {
@@ -176,6 +365,8 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
     public static class Config {
         private int docBufferSize = 500;
         private int mergeFactor = 100;
+        private int mergeThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        private List<String> sortFields = Collections.emptyList();
 
         public int getDocBufferSize() {
             return docBufferSize;
@@ -185,6 +376,14 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             return mergeFactor;
         }
 
+        public int getMergeThreads() {
+            return mergeThreads;
+        }
+
+        public List<String> getSortFields() {
+            return sortFields;
+        }
+
         public Config setDocBufferSize(int docBufferSize) {
             this.docBufferSize = docBufferSize;
             return this;
@@ -194,6 +393,61 @@ public final class SimpleFlamdexDocWriter implements FlamdexDocWriter {
             this.mergeFactor = mergeFactor;
             return this;
         }
+
+        public Config setMergeThreads(int mergeThreads) {
+            if (mergeThreads < 1) {
+                throw new IllegalArgumentException("mergeThreads must be positive, got " + mergeThreads);
+            }
+            this.mergeThreads = mergeThreads;
+            return this;
+        }
+
+        /**
+         * order the docs of the index by these fields instead of the order they were added in, see
+         * {@link FlamdexSort#computeOrder(FlamdexReader, List)}. docs are written out and merged in the order they
+         * were added as usual and the merged index is then rewritten in sorted order, so this costs one more pass over
+         * the index on close.
+         */
+        public Config setSortFields(List<String> sortFields) {
+            this.sortFields = ImmutableList.copyOf(sortFields);
+            return this;
+        }
+    }
+
+    private static final class Segment {
+        /* a MemoryFlamdex file at level 0, a simple flamdex directory above it */
+        final File file;
+        final long firstDoc;
+        final long numDocs;
+        final int level;
+
+        private Segment(File file, long firstDoc, long numDocs, int level) {
+            this.file = file;
+            this.firstDoc = firstDoc;
+            this.numDocs = numDocs;
+            this.level = level;
+        }
+
+        long getEndDoc() {
+            return firstDoc + numDocs;
+        }
+    }
+
+    /**
+     * records the first failure so that the next call from the writing thread throws it
+     */
+    private abstract class BackgroundTask implements Runnable {
+        @Override
+        public final void run() {
+            try {
+                execute();
+            } catch (Throwable t) {
+                log.error("error writing segments to " + outputDirectory, t);
+                failure.compareAndSet(null, t);
+            }
+        }
+
+        protected abstract void execute() throws IOException;
     }
 
     private static void rmrf(final File file) throws IOException {
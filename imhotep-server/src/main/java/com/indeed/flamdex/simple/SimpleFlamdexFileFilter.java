@@ -24,6 +24,7 @@ public class SimpleFlamdexFileFilter implements FileFilter {
     public boolean accept(File pathname) {
         final String name = pathname.getName();
         if ("metadata.txt".equals(name)) return true;
+        if (SimpleFlamdexManifest.FILENAME.equals(name)) return true;
         if (name.startsWith("fld-")) {
             if (name.endsWith(".intterms")) return true;
             if (name.endsWith(".strterms")) return true;
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.indeed.flamdex.api.FieldStats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.UUID;
+
+/**
+ * The {@link FieldStats} of every field in a simple flamdex index, written next to metadata.txt by
+ * {@link SimpleFlamdexWriter#close()}. Indexes written before the manifest existed, or by other writers, just don't
+ * have one, and readers fall back to scanning terms.
+ */
+public final class SimpleFlamdexManifest {
+    public static final String FILENAME = "fieldstats.bin";
+
+    private static final int VERSION = 1;
+
+    private final SortedMap<String, FieldStats> intFields;
+    private final SortedMap<String, FieldStats> stringFields;
+
+    public SimpleFlamdexManifest() {
+        this(Maps.<String, FieldStats>newTreeMap(), Maps.<String, FieldStats>newTreeMap());
+    }
+
+    private SimpleFlamdexManifest(SortedMap<String, FieldStats> intFields, SortedMap<String, FieldStats> stringFields) {
+        this.intFields = intFields;
+        this.stringFields = stringFields;
+    }
+
+    public Map<String, FieldStats> getIntFields() {
+        return intFields;
+    }
+
+    public Map<String, FieldStats> getStringFields() {
+        return stringFields;
+    }
+
+    public static SimpleFlamdexManifest read(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported manifest version " + version + " in " + file);
+            }
+            final SortedMap<String, FieldStats> intFields = Maps.newTreeMap();
+            final SortedMap<String, FieldStats> stringFields = Maps.newTreeMap();
+            for (int i = in.readInt(); i > 0; --i) {
+                final String field = readString(in);
+                intFields.put(field, readIntStats(in));
+            }
+            for (int i = in.readInt(); i > 0; --i) {
+                final String field = readString(in);
+                stringFields.put(field, readStringStats(in));
+            }
+            return new SimpleFlamdexManifest(intFields, stringFields);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * write the manifest to directory, replacing any existing one atomically
+     */
+    public void write(String directory) throws IOException {
+        final File tmp = new File(directory, FILENAME + "." + UUID.randomUUID() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(intFields.size());
+            for (final Map.Entry<String, FieldStats> entry : intFields.entrySet()) {
+                writeString(out, entry.getKey());
+                writeIntStats(out, entry.getValue());
+            }
+            out.writeInt(stringFields.size());
+            for (final Map.Entry<String, FieldStats> entry : stringFields.entrySet()) {
+                writeString(out, entry.getKey());
+                writeStringStats(out, entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(directory, FILENAME))) {
+            tmp.delete();
+            throw new IOException("unable to rename " + tmp + " to " + FILENAME);
+        }
+    }
+
+    private static void writeCommonStats(DataOutput out, FieldStats stats) throws IOException {
+        out.writeLong(stats.getNumTerms());
+        out.writeLong(stats.getTotalDocFreq());
+        out.writeLong(stats.getMaxDocFreq());
+        out.writeLong(stats.getTermsBytes());
+        out.writeLong(stats.getDocsBytes());
+    }
+
+    private static void writeIntStats(DataOutput out, FieldStats stats) throws IOException {
+        writeCommonStats(out, stats);
+        out.writeLong(stats.getMinIntTerm());
+        out.writeLong(stats.getMaxIntTerm());
+        out.writeInt(stats.getTopTermCount());
+        for (int i = 0; i < stats.getTopTermCount(); ++i) {
+            out.writeLong(stats.getTopIntTerm(i));
+            out.writeLong(stats.getTopTermDocFreq(i));
+        }
+    }
+
+    private static void writeStringStats(DataOutput out, FieldStats stats) throws IOException {
+        writeCommonStats(out, stats);
+        out.writeBoolean(stats.getNumTerms() > 0);
+        if (stats.getNumTerms() > 0) {
+            writeString(out, stats.getMinStringTerm());
+            writeString(out, stats.getMaxStringTerm());
+        }
+        out.writeInt(stats.getTopTermCount());
+        for (int i = 0; i < stats.getTopTermCount(); ++i) {
+            writeString(out, stats.getTopStringTerm(i));
+            out.writeLong(stats.getTopTermDocFreq(i));
+        }
+    }
+
+    private static FieldStats readIntStats(DataInput in) throws IOException {
+        final long numTerms = in.readLong();
+        final long totalDocFreq = in.readLong();
+        final long maxDocFreq = in.readLong();
+        final long termsBytes = in.readLong();
+        final long docsBytes = in.readLong();
+        final long minTerm = in.readLong();
+        final long maxTerm = in.readLong();
+        final int topTermCount = in.readInt();
+        final long[] topTerms = new long[topTermCount];
+        final long[] topTermDocFreqs = new long[topTermCount];
+        for (int i = 0; i < topTermCount; ++i) {
+            topTerms[i] = in.readLong();
+            topTermDocFreqs[i] = in.readLong();
+        }
+        return FieldStats.forIntField(numTerms, totalDocFreq, maxDocFreq, termsBytes, docsBytes,
+                minTerm, maxTerm, topTerms, topTermDocFreqs);
+    }
+
+    private static FieldStats readStringStats(DataInput in) throws IOException {
+        final long numTerms = in.readLong();
+        final long totalDocFreq = in.readLong();
+        final long maxDocFreq = in.readLong();
+        final long termsBytes = in.readLong();
+        final long docsBytes = in.readLong();
+        final boolean hasTerms = in.readBoolean();
+        final String minTerm = hasTerms ? readString(in) : null;
+        final String maxTerm = hasTerms ? readString(in) : null;
+        final int topTermCount = in.readInt();
+        final String[] topTerms = new String[topTermCount];
+        final long[] topTermDocFreqs = new long[topTermCount];
+        for (int i = 0; i < topTermCount; ++i) {
+            topTerms[i] = readString(in);
+            topTermDocFreqs[i] = in.readLong();
+        }
+        return FieldStats.forStringField(numTerms, totalDocFreq, maxDocFreq, termsBytes, docsBytes,
+                minTerm, maxTerm, topTerms, topTermDocFreqs);
+    }
+
+    // terms can be longer than writeUTF allows
+    private static void writeString(DataOutput out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -15,10 +15,11 @@
 
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.AbstractFlamdexReader;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.flamdex.api.FieldStatsProvider;
 import com.indeed.flamdex.api.GenericIntTermDocIterator;
 import com.indeed.flamdex.api.GenericRawStringTermDocIterator;
 import com.indeed.flamdex.api.IntTermDocIterator;
@@ -27,39 +28,46 @@ import com.indeed.flamdex.api.RawStringTermDocIterator;
 import com.indeed.flamdex.fieldcache.UnsortedIntTermDocIterator;
 import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.utils.FlamdexUtils;
+import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.io.caching.CachedFile;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
 
 /**
  * @author jsgroth
 */
-public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFlamdexReader {
+public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFlamdexReader, FieldStatsProvider {
+    private final SimpleFieldCatalog catalog;
     private final Collection<String> intFields;
     private final Collection<String> stringFields;
     private final MapCache mapCache = new MapCache();
+    /* charged for the term dictionaries of string fields as they are loaded */
+    private volatile MemoryReserver termDictionaryMemory;
 
     private static final boolean useNativeDocIdStream;
+    private static final boolean useRangedDocReads;
 
     static {
         final String useNative = System.getProperties().getProperty("com.indeed.flamdex.simple.useNative");
         useNativeDocIdStream = "true".equalsIgnoreCase(useNative);
+        // only fetch the parts of the docs files that are read, for shards that are mostly queried a few terms at a time
+        final String useRanged = System.getProperties().getProperty("com.indeed.flamdex.simple.rangedDocReads");
+        useRangedDocReads = "true".equalsIgnoreCase(useRanged);
     }
 
     protected SimpleFlamdexReader(String directory,
                                   int numDocs,
-                                  Collection<String> intFields,
-                                  Collection<String> stringFields,
+                                  SimpleFieldCatalog catalog,
                                   boolean useMMapMetrics) {
         super(directory, numDocs, useMMapMetrics);
 
-        this.intFields = intFields;
-        this.stringFields = stringFields;
+        this.catalog = catalog;
+        this.intFields = catalog.getIntFields();
+        this.stringFields = catalog.getStringFields();
     }
 
     public static SimpleFlamdexReader open(String directory) throws IOException {
@@ -68,26 +76,24 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
 
     public static SimpleFlamdexReader open(String directory, Config config) throws IOException {
         final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(directory);
-        final Collection<String> intFields = scan(directory, ".intterms");
-        final Collection<String> stringFields = scan(directory, ".strterms");
-        if (config.writeBTreesIfNotExisting) {
-            buildIntBTrees(directory, Lists.newArrayList(intFields));
-            buildStringBTrees(directory, Lists.newArrayList(stringFields));
-        }
-        return new SimpleFlamdexReader(directory, metadata.numDocs, intFields, stringFields, config.useMMapMetrics);
+        return new SimpleFlamdexReader(directory, metadata.numDocs, scanFields(directory, config), config.useMMapMetrics);
     }
 
-    protected static Collection<String> scan(final String directory, final String ending) throws IOException {
-        final Set<String> fields = Sets.newTreeSet();
-        final CachedFile dir = CachedFile.create(directory);
-        
-        for (final String name : dir.list()) {
-            if (name.startsWith("fld-") && name.endsWith(ending)) {
-                fields.add(name.substring(4, name.length() - ending.length()));
+    /**
+     * list the fields of the shard in directory, building any missing b-trees first if config says to. string fields
+     * are seeked through a {@link SimpleStringTermDictionary}, and through their b-trees if there is no memory for it.
+     */
+    protected static SimpleFieldCatalog scanFields(final String directory, final Config config) throws IOException {
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(directory);
+        if (config.writeBTreesIfNotExisting) {
+            final boolean builtIntBTrees = buildIntBTrees(directory, Lists.newArrayList(catalog.getIntFields()));
+            final boolean builtStringBTrees = buildStringBTrees(directory, Lists.newArrayList(catalog.getStringFields()));
+            if (builtIntBTrees || builtStringBTrees) {
+                // pick up the new indexes
+                return SimpleFieldCatalog.scan(directory);
             }
         }
-
-        return fields;
+        return catalog;
     }
 
     @Override
@@ -102,34 +108,49 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
 
     @Override
     public DocIdStream getDocIdStream() {
+        if (useRangedDocReads) {
+            // the native stream needs the whole file mapped
+            return new SimpleDocIdStream(mapCache, true);
+        }
         return useNativeDocIdStream ? new NativeDocIdStream(mapCache) : new SimpleDocIdStream(mapCache);
     }
 
     @Override
     public SimpleIntTermIterator getIntTermIterator(String field) {
-        final String termsFilename = CachedFile.buildPath(directory, SimpleIntFieldWriter.getTermsFilename(field));
-        final String docsFilename = CachedFile.buildPath(directory, SimpleIntFieldWriter.getDocsFilename(field));
-        if (CachedFile.create(termsFilename).length() == 0L) {
-            return new NullIntTermIterator(docsFilename);
+        final SimpleFieldCatalog.FieldFiles files = catalog.getIntField(field);
+        if (files == null) {
+            return new NullIntTermIterator(CachedFile.buildPath(directory, SimpleIntFieldWriter.getDocsFilename(field)));
+        }
+        if (files.getTermsLength() == 0L) {
+            return new NullIntTermIterator(files.docsPath);
         }
-        final String indexFilename = CachedFile.buildPath(directory, "fld-"+field);
         try {
-            return new SimpleIntTermIteratorImpl(mapCache, termsFilename, docsFilename, indexFilename);
+            return new SimpleIntTermIteratorImpl(mapCache, files.termsPath, files.docsPath, files.indexPath, files.use64BitIndex);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * charge the term dictionaries of string fields to memory as they are loaded, for a reader whose memory is
+     * accounted for by its owner. call it before opening any string term iterators. the dictionaries are released back
+     * to memory when the reader is closed.
+     */
+    public void setTermDictionaryMemory(@Nullable MemoryReserver memory) {
+        termDictionaryMemory = memory;
+    }
+
     @Override
     public SimpleStringTermIterator getStringTermIterator(String field) {
-        final String termsFilename = CachedFile.buildPath(directory, SimpleStringFieldWriter.getTermsFilename(field));
-        final String docsFilename = CachedFile.buildPath(directory, SimpleStringFieldWriter.getDocsFilename(field));
-        if (CachedFile.create(termsFilename).length() == 0L) {
-            return new NullStringTermIterator(docsFilename);
+        final SimpleFieldCatalog.FieldFiles files = catalog.getStringField(field);
+        if (files == null) {
+            return new NullStringTermIterator(CachedFile.buildPath(directory, SimpleStringFieldWriter.getDocsFilename(field)));
+        }
+        if (files.getTermsLength() == 0L) {
+            return new NullStringTermIterator(files.docsPath);
         }
-        final String indexFilename = CachedFile.buildPath(directory, "fld-"+field+".strindex");
         try {
-            return new SimpleStringTermIteratorImpl(mapCache, termsFilename, docsFilename, indexFilename);
+            return new SimpleStringTermIteratorImpl(mapCache, files, termDictionaryMemory);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -143,7 +164,7 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
     @Override
     public IntTermDocIterator getIntTermDocIterator(final String field) {
         final SimpleIntTermIterator termIterator = getIntTermIterator(field);
-        if (useNativeDocIdStream && CachedFile.create(termIterator.getFilename()).length() > 0) {
+        if (useNativeDocIdStream && !(termIterator instanceof NullIntTermIterator)) {
             try {
                 return new NativeIntTermDocIterator(termIterator, mapCache);
             } catch (IOException e) {
@@ -157,7 +178,7 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
     @Override
     public RawStringTermDocIterator getStringTermDocIterator(final String field) {
         final SimpleStringTermIterator termIterator = getStringTermIterator(field);
-        if (useNativeDocIdStream && CachedFile.create(termIterator.getFilename()).length() > 0) {
+        if (useNativeDocIdStream && !(termIterator instanceof NullStringTermIterator)) {
             try {
                 return new NativeStringTermDocIterator(termIterator, mapCache);
             } catch (IOException e) {
@@ -170,12 +191,24 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
 
     @Override
     public long getIntTotalDocFreq(String field) {
-        return FlamdexUtils.getIntTotalDocFreq(this, field);
+        final FieldStats stats = catalog.getIntFieldStats(field);
+        return stats != null ? stats.getTotalDocFreq() : FlamdexUtils.getIntTotalDocFreq(this, field);
     }
 
     @Override
     public long getStringTotalDocFreq(String field) {
-        return FlamdexUtils.getStringTotalDocFreq(this, field);
+        final FieldStats stats = catalog.getStringFieldStats(field);
+        return stats != null ? stats.getTotalDocFreq() : FlamdexUtils.getStringTotalDocFreq(this, field);
+    }
+
+    @Override
+    public FieldStats getIntFieldStats(String field) {
+        return catalog.getIntFieldStats(field);
+    }
+
+    @Override
+    public FieldStats getStringFieldStats(String field) {
+        return catalog.getStringFieldStats(field);
     }
 
     @Override
@@ -185,26 +218,39 @@ public class SimpleFlamdexReader extends AbstractFlamdexReader implements RawFla
 
     @Override
     public void close() throws IOException {
+        catalog.releaseTermDictionaries();
         mapCache.close();
     }
 
-    protected static void buildIntBTrees(final String directory, final List<String> intFields) throws IOException {
+    /**
+     * @return whether any b-trees were built
+     */
+    protected static boolean buildIntBTrees(final String directory, final List<String> intFields) throws IOException {
+        boolean built = false;
         for (final String intField : intFields) {
             final File btreeDir = new File(Files.buildPath(directory, "fld-" + intField + ".intindex"));
             final File btreeDir64 = new File(Files.buildPath(directory, "fld-" + intField + ".intindex64"));
             if (!btreeDir.exists() && !btreeDir64.exists()) {
                 SimpleFlamdexWriter.writeIntBTree(directory, intField, btreeDir64);
+                built = true;
             }
         }
+        return built;
     }
 
-    protected static void buildStringBTrees(final String directory, final List<String> stringFields) throws IOException {
+    /**
+     * @return whether any b-trees were built
+     */
+    protected static boolean buildStringBTrees(final String directory, final List<String> stringFields) throws IOException {
+        boolean built = false;
         for (final String stringField : stringFields) {
             final File btreeDir = new File(Files.buildPath(directory, "fld-" + stringField + ".strindex"));
             if (!btreeDir.exists()) {
                 SimpleFlamdexWriter.writeStringBTree(directory, stringField, btreeDir);
+                built = true;
             }
         }
+        return built;
     }
 
     public static final class Config {
@@ -14,17 +14,18 @@
  package com.indeed.flamdex.simple;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
 import com.google.common.collect.AbstractIterator;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingInputStream;
-import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.indeed.util.core.sort.Quicksortable;
 import com.indeed.util.core.sort.Quicksortables;
 import com.indeed.util.io.Files;
 import com.indeed.util.serialization.LongSerializer;
 import com.indeed.util.serialization.StringSerializer;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
@@ -37,11 +38,10 @@ import com.indeed.lsmtree.core.Generation;
 import com.indeed.lsmtree.core.ImmutableBTreeIndex;
 import com.indeed.util.mmap.IntArray;
 import com.indeed.util.mmap.MMapBuffer;
-import it.unimi.dsi.fastutil.IndirectPriorityQueue;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
-import it.unimi.dsi.fastutil.objects.ObjectHeapSemiIndirectPriorityQueue;
 import org.apache.log4j.Logger;
 
+import javax.annotation.Nullable;
 import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -56,9 +56,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author jsgroth
@@ -80,6 +86,10 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     private final Set<String> intFields;
     private final Set<String> stringFields;
 
+    private final SimpleFlamdexManifest manifest;
+    private final List<SimpleIntFieldWriter> intFieldWriters = new ArrayList<SimpleIntFieldWriter>();
+    private final List<SimpleStringFieldWriter> stringFieldWriters = new ArrayList<SimpleStringFieldWriter>();
+
     public SimpleFlamdexWriter(String outputDirectory, long numDocs) throws IOException {
         this(outputDirectory, numDocs, true, true);
     }
@@ -100,6 +110,7 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
             intFields = new HashSet<String>();
             stringFields = new HashSet<String>();
+            manifest = new SimpleFlamdexManifest();
         } else {
             final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(outputDirectory);
             if (metadata.numDocs != numDocs) {
@@ -107,6 +118,8 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             }
             intFields = new HashSet<String>(metadata.intFields);
             stringFields = new HashSet<String>(metadata.stringFields);
+            final File manifestFile = new File(outputDirectory, SimpleFlamdexManifest.FILENAME);
+            manifest = manifestFile.exists() ? SimpleFlamdexManifest.read(manifestFile) : new SimpleFlamdexManifest();
         }
     }
     
@@ -124,12 +137,14 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         return getIntFieldWriter(field, false);
     }
 
-    public IntFieldWriter getIntFieldWriter(String field, boolean blowAway) throws FileNotFoundException {
+    public synchronized IntFieldWriter getIntFieldWriter(String field, boolean blowAway) throws FileNotFoundException {
         if (!blowAway && intFields.contains(field)) {
             throw new IllegalArgumentException("already added int field "+field);
         }
         intFields.add(field);
-        return SimpleIntFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        final SimpleIntFieldWriter writer = SimpleIntFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        intFieldWriters.add(writer);
+        return writer;
     }
 
     @Override
@@ -137,26 +152,49 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         return getStringFieldWriter(field, false);
     }
 
-    public StringFieldWriter getStringFieldWriter(String field, boolean blowAway) throws FileNotFoundException {
+    public synchronized StringFieldWriter getStringFieldWriter(String field, boolean blowAway) throws FileNotFoundException {
         if (!blowAway && stringFields.contains(field)) {
             throw new IllegalArgumentException("already added string field "+field);
         }
         stringFields.add(field);
-        return SimpleStringFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        final SimpleStringFieldWriter writer = SimpleStringFieldWriter.open(outputDirectory, field, maxDocs, writeBTreesOnClose);
+        stringFieldWriters.add(writer);
+        return writer;
     }
 
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         final List<String> intFieldsList = new ArrayList<String>(intFields);
         Collections.sort(intFieldsList);
 
         final List<String> stringFieldsList = new ArrayList<String>(stringFields);
         Collections.sort(stringFieldsList);
 
+        // later writers for the same field replaced the files of earlier ones
+        for (final SimpleIntFieldWriter writer : intFieldWriters) {
+            updateManifest(manifest.getIntFields(), writer.getField(), writer);
+        }
+        for (final SimpleStringFieldWriter writer : stringFieldWriters) {
+            updateManifest(manifest.getStringFields(), writer.getField(), writer);
+        }
+        manifest.getIntFields().keySet().retainAll(intFields);
+        manifest.getStringFields().keySet().retainAll(stringFields);
+        manifest.write(outputDirectory);
+
         final FlamdexMetadata metadata = new FlamdexMetadata((int)maxDocs, intFieldsList, stringFieldsList, FORMAT_VERSION);
         FlamdexMetadata.writeMetadata(outputDirectory, metadata);
     }
 
+    private static void updateManifest(Map<String, FieldStats> stats, String field, SimpleFieldWriter writer) {
+        if (writer.isClosed()) {
+            stats.put(field, writer.getStats());
+        } else {
+            // left unfinished, so the files don't match anything that could be recorded
+            log.warn("field " + field + " was not closed before the index was, leaving it out of the manifest");
+            stats.remove(field);
+        }
+    }
+
     public static void writeIntBTree(String directory, String intField, File btreeDir) throws IOException {
         final String termsFilename = Files.buildPath(directory, SimpleIntFieldWriter.getTermsFilename(intField));
         if (!new File(termsFilename).exists() || new File(termsFilename).length() == 0L) return;
@@ -285,10 +323,17 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
     }
 
     public static void writeFlamdex(final FlamdexReader fdx, final FlamdexWriter w) throws IOException {
+        writeFlamdex(fdx, w, fdx.getIntFields(), fdx.getStringFields());
+    }
+
+    /**
+     * write only the given fields of fdx, for readers that can read fields they don't list, like lucene indexes
+     */
+    public static void writeFlamdex(final FlamdexReader fdx, final FlamdexWriter w, final Collection<String> intFields, final Collection<String> stringFields) throws IOException {
         final DocIdStream dis = fdx.getDocIdStream();
         final int[] docIdBuf = new int[DOC_ID_BUFFER_SIZE];
 
-        for (final String intField : fdx.getIntFields()) {
+        for (final String intField : intFields) {
             final IntFieldWriter ifw = w.getIntFieldWriter(intField);
             final IntTermIterator iter = fdx.getIntTermIterator(intField);
             while (iter.next()) {
@@ -306,7 +351,7 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
             ifw.close();
         }
 
-        for (final String stringField : fdx.getStringFields()) {
+        for (final String stringField : stringFields) {
             final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
             final StringTermIterator iter = fdx.getStringTermIterator(stringField);
             while (iter.next()) {
@@ -332,128 +377,257 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         merge(readers.toArray(new FlamdexReader[readers.size()]), w);
     }
 
+    public static void merge(Collection<? extends FlamdexReader> readers, FlamdexWriter w, int numThreads) throws IOException {
+        merge(readers.toArray(new FlamdexReader[readers.size()]), w, numThreads);
+    }
+
     public static void merge(FlamdexReader[] readers, FlamdexWriter w) throws IOException {
-        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        merge(readers, w, 1);
+    }
+
+    /**
+     * merge readers into w, which get doc ids in the order of readers. if w is a SimpleFlamdexWriter, up to numThreads
+     * fields are merged at a time, each writing its b-tree index as soon as it is done. the readers must then allow
+     * their fields to be read concurrently and in any order, which {@link com.indeed.flamdex.MemoryFlamdex#streamer}
+     * does not.
+     */
+    public static void merge(final FlamdexReader[] readers, final FlamdexWriter w, int numThreads) throws IOException {
+        if (numThreads <= 1 || !(w instanceof SimpleFlamdexWriter)) {
+            merge(readers, w, (ExecutorService)null);
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("SimpleFlamdexWriter-merge-%d").build());
+        try {
+            merge(readers, w, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * like {@link #merge(FlamdexReader[], FlamdexWriter, int)}, but merges fields on executor, for callers that already
+     * have a pool for merging. fields are merged one at a time on the calling thread if executor is null or w is not a
+     * SimpleFlamdexWriter.
+     */
+    public static void merge(final FlamdexReader[] readers, final FlamdexWriter w, @Nullable ExecutorService executor) throws IOException {
         final int[] segmentStartDocs = new int[readers.length];
         int totalNumDocs = 0;
         for (int i = 0; i < readers.length; ++i) {
-            docIdStreams[i] = readers[i].getDocIdStream();
             segmentStartDocs[i] = totalNumDocs;
             totalNumDocs += readers[i].getNumDocs();
         }
 
         log.info("merging " + readers.length + " readers with a total of " + totalNumDocs + " docs");
 
-        final int[] indexBuf = new int[readers.length];
-        final int[] docIdBuf = new int[64];
+        if (executor == null || !(w instanceof SimpleFlamdexWriter)) {
+            final DocIdStream[] docIdStreams = getDocIdStreams(readers);
+            for (final String intField : mergeIntFields(readers)) {
+                mergeIntField(readers, segmentStartDocs, docIdStreams, intField, w);
+            }
+            for (final String stringField : mergeStringFields(readers)) {
+                mergeStringField(readers, segmentStartDocs, docIdStreams, stringField, w);
+            }
+            closeDocIdStreams(docIdStreams);
+            return;
+        }
 
-        for (final String intField : mergeIntFields(readers)) {
-            final IntFieldWriter ifw = w.getIntFieldWriter(intField);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (final String intField : mergeIntFields(readers)) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final DocIdStream[] docIdStreams = getDocIdStreams(readers);
+                        mergeIntField(readers, segmentStartDocs, docIdStreams, intField, w);
+                        closeDocIdStreams(docIdStreams);
+                        return null;
+                    }
+                }));
+            }
+            for (final String stringField : mergeStringFields(readers)) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final DocIdStream[] docIdStreams = getDocIdStreams(readers);
+                        mergeStringField(readers, segmentStartDocs, docIdStreams, stringField, w);
+                        closeDocIdStreams(docIdStreams);
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            // the pool may outlive this merge, so stop whatever is left of it on failure
+            for (final Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
-            final IntTermIteratorWrapper[] iterators = new IntTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<IntTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<IntTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getIntFields().contains(intField)) continue;
-                final IntTermIterator it = readers[i].getIntTermIterator(intField);
+    private static DocIdStream[] getDocIdStreams(FlamdexReader[] readers) {
+        final DocIdStream[] docIdStreams = new DocIdStream[readers.length];
+        for (int i = 0; i < readers.length; ++i) {
+            docIdStreams[i] = readers[i].getDocIdStream();
+        }
+        return docIdStreams;
+    }
+
+    private static void closeDocIdStreams(DocIdStream[] docIdStreams) {
+        for (final DocIdStream dis : docIdStreams) {
+            dis.close();
+        }
+    }
+
+    private static void mergeIntField(FlamdexReader[] readers, int[] segmentStartDocs, DocIdStream[] docIdStreams, String intField, FlamdexWriter w) throws IOException {
+        final IntFieldWriter ifw = w.getIntFieldWriter(intField);
+        final SimpleFieldWriter batchWriter = ifw instanceof SimpleFieldWriter ? (SimpleFieldWriter)ifw : null;
+
+        final IntTermIterator[] iterators = new IntTermIterator[readers.length];
+        final long[] terms = new long[readers.length];
+        final LoserTree tree = new LoserTree(readers.length) {
+            @Override
+            protected int compare(int a, int b) {
+                return terms[a] < terms[b] ? -1 : terms[a] > terms[b] ? 1 : 0;
+            }
+        };
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getIntFields().contains(intField)) {
+                tree.exhaust(i);
+                continue;
+            }
+            final IntTermIterator it = readers[i].getIntTermIterator(intField);
+            if (it.next()) {
+                iterators[i] = it;
+                terms[i] = it.term();
+            } else {
+                it.close();
+                tree.exhaust(i);
+            }
+        }
+        tree.init();
+
+        final int[] indexBuf = new int[readers.length];
+        final int[] docIdBuf = new int[64];
+        while (!tree.isEmpty()) {
+            final long term = terms[tree.top()];
+            int numIndexes = 0;
+            while (!tree.isEmpty() && terms[tree.top()] == term) {
+                final int index = tree.top();
+                final IntTermIterator it = iterators[index];
+                docIdStreams[index].reset(it);
+                indexBuf[numIndexes++] = index;
                 if (it.next()) {
-                    iterators[i] = new IntTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
+                    terms[index] = it.term();
+                    tree.topChanged();
                 } else {
                     it.close();
+                    tree.topExhausted();
                 }
             }
 
-            while (!pq.isEmpty()) {
-                final long term = iterators[pq.first()].it.term();
-                int numIndexes = 0;
-                IntTermIteratorWrapper wrap;
-                while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term() == term) {
-                    final int index = wrap.index;
-                    docIdStreams[index].reset(wrap.it);
-                    indexBuf[numIndexes++] = index;
-                    if (wrap.it.next()) {
-                        pq.changed();
-                    } else {
-                        wrap.it.close();
-                        pq.dequeue();
-                    }
-                }
-
-                ifw.nextTerm(term);
-                for (int i = 0; i < numIndexes; ++i) {
-                    final int index = indexBuf[i];
-                    final int startDoc = segmentStartDocs[index];
-                    final DocIdStream dis = docIdStreams[index];
-                    while (true) {
-                        final int n = dis.fillDocIdBuffer(docIdBuf);
+            ifw.nextTerm(term);
+            for (int i = 0; i < numIndexes; ++i) {
+                final int index = indexBuf[i];
+                final int startDoc = segmentStartDocs[index];
+                final DocIdStream dis = docIdStreams[index];
+                while (true) {
+                    final int n = dis.fillDocIdBuffer(docIdBuf);
 
+                    if (batchWriter != null) {
+                        batchWriter.nextDocs(docIdBuf, n, startDoc);
+                    } else {
                         for (int j = 0; j < n; ++j) {
                             ifw.nextDoc(docIdBuf[j]+startDoc);
                         }
-
-                        if (n < docIdBuf.length) break;
                     }
+
+                    if (n < docIdBuf.length) break;
                 }
             }
-
-            ifw.close();
         }
 
-        for (final String stringField : mergeStringFields(readers)) {
-            final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+        ifw.close();
+    }
+
+    private static void mergeStringField(FlamdexReader[] readers, int[] segmentStartDocs, DocIdStream[] docIdStreams, String stringField, FlamdexWriter w) throws IOException {
+        final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+        final SimpleFieldWriter batchWriter = sfw instanceof SimpleFieldWriter ? (SimpleFieldWriter)sfw : null;
+
+        final StringTermIterator[] iterators = new StringTermIterator[readers.length];
+        final String[] terms = new String[readers.length];
+        final LoserTree tree = new LoserTree(readers.length) {
+            @Override
+            protected int compare(int a, int b) {
+                return terms[a].compareTo(terms[b]);
+            }
+        };
+        for (int i = 0; i < readers.length; ++i) {
+            if (!readers[i].getStringFields().contains(stringField)) {
+                tree.exhaust(i);
+                continue;
+            }
+            final StringTermIterator it = readers[i].getStringTermIterator(stringField);
+            if (it.next()) {
+                iterators[i] = it;
+                terms[i] = it.term();
+            } else {
+                it.close();
+                tree.exhaust(i);
+            }
+        }
+        tree.init();
 
-            final StringTermIteratorWrapper[] iterators = new StringTermIteratorWrapper[readers.length];
-            final IndirectPriorityQueue<StringTermIteratorWrapper> pq = new ObjectHeapSemiIndirectPriorityQueue<StringTermIteratorWrapper>(iterators, iterators.length);
-            for (int i = 0; i < readers.length; ++i) {
-                if (!readers[i].getStringFields().contains(stringField)) continue;
-                final StringTermIterator it = readers[i].getStringTermIterator(stringField);
+        final int[] indexBuf = new int[readers.length];
+        final int[] docIdBuf = new int[64];
+        while (!tree.isEmpty()) {
+            final String term = terms[tree.top()];
+            int numIndexes = 0;
+            while (!tree.isEmpty() && terms[tree.top()].equals(term)) {
+                final int index = tree.top();
+                final StringTermIterator it = iterators[index];
+                docIdStreams[index].reset(it);
+                indexBuf[numIndexes++] = index;
                 if (it.next()) {
-                    iterators[i] = new StringTermIteratorWrapper(it, i);
-                    pq.enqueue(i);
+                    terms[index] = it.term();
+                    tree.topChanged();
                 } else {
                     it.close();
+                    tree.topExhausted();
                 }
             }
 
-            while (!pq.isEmpty()) {
-                final String term = iterators[pq.first()].it.term();
-                int numIndexes = 0;
-                StringTermIteratorWrapper wrap;
-                while (!pq.isEmpty() && (wrap = iterators[pq.first()]).it.term().equals(term)) {
-                    final int index = wrap.index;
-                    docIdStreams[index].reset(wrap.it);
-                    indexBuf[numIndexes++] = index;
-                    if (wrap.it.next()) {
-                        pq.changed();
-                    } else {
-                        wrap.it.close();
-                        pq.dequeue();
-                    }
-                }
-
-                sfw.nextTerm(term);
-                for (int i = 0; i < numIndexes; ++i) {
-                    final int index = indexBuf[i];
-                    final int startDoc = segmentStartDocs[index];
-                    final DocIdStream dis = docIdStreams[index];
-                    while (true) {
-                        final int n = dis.fillDocIdBuffer(docIdBuf);
+            sfw.nextTerm(term);
+            for (int i = 0; i < numIndexes; ++i) {
+                final int index = indexBuf[i];
+                final int startDoc = segmentStartDocs[index];
+                final DocIdStream dis = docIdStreams[index];
+                while (true) {
+                    final int n = dis.fillDocIdBuffer(docIdBuf);
 
+                    if (batchWriter != null) {
+                        batchWriter.nextDocs(docIdBuf, n, startDoc);
+                    } else {
                         for (int j = 0; j < n; ++j) {
                             sfw.nextDoc(docIdBuf[j]+startDoc);
                         }
-
-                        if (n < docIdBuf.length) break;
                     }
+
+                    if (n < docIdBuf.length) break;
                 }
             }
-
-            sfw.close();
         }
 
-        for (final DocIdStream dis : docIdStreams) {
-            dis.close();
-        }
+        sfw.close();
     }
 
     private static Set<String> mergeIntFields(FlamdexReader[] readers) {
@@ -472,38 +646,6 @@ public class SimpleFlamdexWriter implements FlamdexWriter {
         return ret;
     }
 
-    private static final class IntTermIteratorWrapper implements Comparable<IntTermIteratorWrapper> {
-        private final IntTermIterator it;
-        private final int index;
-
-        private IntTermIteratorWrapper(IntTermIterator it, int index) {
-            this.it = it;
-            this.index = index;
-        }
-
-        @Override
-        public int compareTo(IntTermIteratorWrapper o) {
-            final int cmp;
-            return (cmp = Longs.compare(it.term(), o.it.term())) != 0 ? cmp : Ints.compare(index, o.index);
-        }
-    }
-
-    private static final class StringTermIteratorWrapper implements Comparable<StringTermIteratorWrapper> {
-        private final StringTermIterator it;
-        private final int index;
-
-        private StringTermIteratorWrapper(StringTermIterator it, int index) {
-            this.it = it;
-            this.index = index;
-        }
-
-        @Override
-        public int compareTo(StringTermIteratorWrapper o) {
-            final int c = it.term().compareTo(o.it.term());
-            return c != 0 ? c : index - o.index;
-        }
-    }
-
     public static void addField(String dir, String fieldName, FlamdexReader r, final long[] cache) throws IOException {
         final File tempFile = new File(dir, "temp-" + fieldName + "-" + UUID.randomUUID() + ".intarray.bin");
         try {
@@ -14,6 +14,7 @@
  package com.indeed.flamdex.simple;
 
 import com.indeed.util.io.Files;
+import com.indeed.flamdex.api.FieldStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.IntFieldWriter;
 
@@ -23,6 +24,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * @author jsgroth
@@ -33,6 +35,7 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
     private final boolean writeBTreesOnClose;
 
     private long lastTermWritten = 0L;
+    private long firstTermWritten = 0L;
     private boolean hasCurrentTerm = false;
     private long currentTerm;
 
@@ -43,6 +46,10 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
         this.writeBTreesOnClose = writeBTreesOnClose;
     }
 
+    String getField() {
+        return field;
+    }
+
     public static String getTermsFilename(String field) {
         return "fld-"+field+".intterms";
     }
@@ -77,9 +84,35 @@ final class SimpleIntFieldWriter extends SimpleFieldWriter implements IntFieldWr
     protected void writeTermDelta() throws IOException {
         final long termDelta = currentTerm - lastTermWritten;
         FlamdexUtils.writeVLong(termDelta, termsOutput);
+        if (numTermsWritten == 0) {
+            firstTermWritten = currentTerm;
+        }
         lastTermWritten = currentTerm;
     }
 
+    @Override
+    protected Object currentTermValue() {
+        return currentTerm;
+    }
+
+    @Override
+    FieldStats getStats() {
+        final List<TermSample> topTerms = getTopTerms();
+        final long[] terms = new long[topTerms.size()];
+        final long[] docFreqs = new long[topTerms.size()];
+        for (int i = 0; i < terms.length; ++i) {
+            terms[i] = (Long)topTerms.get(i).term;
+            docFreqs[i] = topTerms.get(i).docFreq;
+        }
+        final boolean empty = numTermsWritten == 0;
+        return FieldStats.forIntField(numTermsWritten, getTotalDocFreq(), getMaxDocFreq(),
+                new File(outputDirectory, getTermsFilename(field)).length(),
+                new File(outputDirectory, getDocsFilename(field)).length(),
+                empty ? Long.MAX_VALUE : firstTermWritten,
+                empty ? Long.MIN_VALUE : lastTermWritten,
+                terms, docFreqs);
+    }
+
     @Override
     protected void writeBTreeIndex() throws IOException {
         if (writeBTreesOnClose) {
@@ -59,24 +59,18 @@ final class SimpleIntTermIteratorImpl implements SimpleIntTermIterator {
     private boolean bufferNext = false;
     private boolean closed = false;
 
-    SimpleIntTermIteratorImpl(MapCache mapCache, String filename, String docsFilename, String indexFilename) throws IOException {
+    /**
+     * @param indexFilename the b-tree index directory, or null if the field does not have one
+     * @param use64BitIndex whether the index is an intindex64 rather than an intindex
+     */
+    SimpleIntTermIteratorImpl(MapCache mapCache, String filename, String docsFilename, String indexFilename, boolean use64BitIndex) throws IOException {
         buffer = new byte[BUFFER_SIZE];
 
         this.filename = filename;
         this.docsFilename = docsFilename;
 
-        final CachedFile intIndex = CachedFile.create(indexFilename+".intindex");
-        final CachedFile intIndex64 = CachedFile.create(indexFilename+".intindex64");
-        if (intIndex64.exists()) {
-            indexFile = intIndex64.loadDirectory();
-            use64BitIndex = true;
-        } else if (intIndex.exists()) {
-            indexFile = intIndex.loadDirectory();
-            use64BitIndex = false;
-        } else {
-            use64BitIndex = true;
-            indexFile = null;
-        }
+        indexFile = indexFilename != null ? CachedFile.create(indexFilename).loadDirectory() : null;
+        this.use64BitIndex = use64BitIndex;
         //file = new MMapBuffer(new File(filename), FileChannel.MapMode.READ_ONLY, ByteOrder.LITTLE_ENDIAN);
         file = mapCache.copyOrOpen(filename);
         memory = file.get().memory();
@@ -15,6 +15,7 @@
 
 import com.google.common.base.Charsets;
 import com.indeed.util.io.Files;
+import com.indeed.flamdex.api.FieldStats;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.flamdex.writer.StringFieldWriter;
 
@@ -24,6 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 /**
  * @author jsgroth
@@ -35,6 +37,8 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
 
     private byte[] lastWrittenTermBytes = new byte[0];
     private String currentTerm = null;
+    private String firstTermWritten = null;
+    private String lastTermWritten = null;
 
     private SimpleStringFieldWriter(String outputDirectory, String field, boolean writeBTreesOnClose, OutputStream termsOutput, OutputStream docsOutput, long numDocs) {
         super(termsOutput, docsOutput, numDocs);
@@ -43,6 +47,10 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
         this.writeBTreesOnClose = writeBTreesOnClose;
     }
 
+    String getField() {
+        return field;
+    }
+
     public static String getTermsFilename(String field) {
         return "fld-"+field+".strterms";
     }
@@ -84,6 +92,30 @@ class SimpleStringFieldWriter extends SimpleFieldWriter implements StringFieldWr
         FlamdexUtils.writeVLong(currentTermBytes.length - prefixLen, termsOutput);
         termsOutput.write(currentTermBytes, prefixLen, currentTermBytes.length - prefixLen);
         lastWrittenTermBytes = currentTermBytes;
+        if (numTermsWritten == 0) {
+            firstTermWritten = currentTerm;
+        }
+        lastTermWritten = currentTerm;
+    }
+
+    @Override
+    protected Object currentTermValue() {
+        return currentTerm;
+    }
+
+    @Override
+    FieldStats getStats() {
+        final List<TermSample> topTerms = getTopTerms();
+        final String[] terms = new String[topTerms.size()];
+        final long[] docFreqs = new long[topTerms.size()];
+        for (int i = 0; i < terms.length; ++i) {
+            terms[i] = (String)topTerms.get(i).term;
+            docFreqs[i] = topTerms.get(i).docFreq;
+        }
+        return FieldStats.forStringField(numTermsWritten, getTotalDocFreq(), getMaxDocFreq(),
+                new File(outputDirectory, getTermsFilename(field)).length(),
+                new File(outputDirectory, getDocsFilename(field)).length(),
+                firstTermWritten, lastTermWritten, terms, docFreqs);
     }
 
     @Override
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.base.Charsets;
+import com.indeed.imhotep.io.caching.CachedFile;
+import com.indeed.lsmtree.core.Generation;
+import com.indeed.lsmtree.core.ImmutableBTreeIndex;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.mmap.DirectMemory;
+import com.indeed.util.mmap.MMapBuffer;
+import com.indeed.util.serialization.StringSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * In memory block index over the term list of a string field: the first term of every {@link #BLOCK_SIZE} terms,
+ * with where its entry is in the term list and where its docs start. These are the entries of the b-tree written
+ * next to the field, read once per field when a shard first seeks in it and then shared by every term iterator, so a
+ * seek is a binary search plus a scan of at most one block instead of opening and walking the b-tree. Shards without
+ * a b-tree get the same entries from a scan of the term list.
+ *
+ * The terms are kept as their UTF-8 bytes in one array, and only decoded to compare them during a seek. Since the
+ * blocks are a fixed number of terms, it also gives the ordinal of each block.
+ */
+final class SimpleStringTermDictionary {
+    static final int BLOCK_SIZE = 64;
+
+    private final byte[] termData;
+    // where each block's first term starts in termData, plus the end of the last one
+    private final int[] termStarts;
+    // offset in the term list of the doc freq of each block's first term, and where its docs start
+    private final long[] termOffsets;
+    private final long[] docOffsets;
+
+    private SimpleStringTermDictionary(byte[] termData, int[] termStarts, long[] termOffsets, long[] docOffsets) {
+        this.termData = termData;
+        this.termStarts = termStarts;
+        this.termOffsets = termOffsets;
+        this.docOffsets = docOffsets;
+    }
+
+    /**
+     * @param indexFilename the b-tree index directory, or null if the field does not have one
+     */
+    static SimpleStringTermDictionary build(MapCache mapCache, String termsFilename, String indexFilename) throws IOException {
+        if (indexFilename != null) {
+            return readIndex(CachedFile.create(indexFilename).loadDirectory());
+        }
+        final SharedReference<MMapBuffer> file = mapCache.copyOrOpen(termsFilename);
+        try {
+            return scanTerms(file.get().memory());
+        } finally {
+            file.close();
+        }
+    }
+
+    private static SimpleStringTermDictionary readIndex(File indexDir) throws IOException {
+        final ImmutableBTreeIndex.Reader<String, LongPair> index =
+                new ImmutableBTreeIndex.Reader<String, LongPair>(indexDir, new StringSerializer(), new LongPairSerializer(), false);
+        try {
+            final Builder builder = new Builder();
+            final Iterator<Generation.Entry<String, LongPair>> entries = index.iterator();
+            while (entries.hasNext()) {
+                final Generation.Entry<String, LongPair> entry = entries.next();
+                final byte[] term = entry.getKey().getBytes(Charsets.UTF_8);
+                builder.add(term, term.length, entry.getValue().getFirst(), entry.getValue().getSecond());
+            }
+            return builder.build();
+        } finally {
+            index.close();
+        }
+    }
+
+    private static SimpleStringTermDictionary scanTerms(DirectMemory memory) {
+        final Builder builder = new Builder();
+        final long length = memory.length();
+        final long[] pos = new long[1];
+        byte[] term = new byte[100];
+        int termLength = 0;
+        long docOffset = 0L;
+        long numTerms = 0L;
+        while (pos[0] < length) {
+            final int removeLen = (int)readVLong(memory, pos);
+            final int newLen = (int)readVLong(memory, pos);
+            final int newTermLength = termLength - removeLen + newLen;
+            if (newTermLength > term.length) {
+                term = Arrays.copyOf(term, Math.max(newTermLength, 2 * term.length));
+            }
+            memory.getBytes(pos[0], term, termLength - removeLen, newLen);
+            pos[0] += newLen;
+            termLength = newTermLength;
+            docOffset += readVLong(memory, pos);
+
+            if (numTerms % BLOCK_SIZE == 0) {
+                builder.add(term, termLength, pos[0], docOffset);
+            }
+            readVLong(memory, pos); // docFreq
+            ++numTerms;
+        }
+        return builder.build();
+    }
+
+    private static long readVLong(DirectMemory memory, long[] pos) {
+        long ret = 0L;
+        int shift = 0;
+        while (true) {
+            final int b = memory.getByte(pos[0]++) & 0xFF;
+            ret |= ((long)(b & 0x7F) << shift);
+            if (b < 0x80) return ret;
+            shift += 7;
+        }
+    }
+
+    /**
+     * @return the heap taken by the dictionary, to be charged to whoever keeps it
+     */
+    long memoryUsed() {
+        return termData.length + 4L * termStarts.length + 8L * termOffsets.length + 8L * docOffsets.length;
+    }
+
+    int getNumBlocks() {
+        return termOffsets.length;
+    }
+
+    /**
+     * @return the last block starting at or before term, or 0 if term is before every term in the field
+     */
+    int floorBlock(String term) {
+        int lo = 0;
+        int hi = termOffsets.length - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            // compared as strings to match the order the terms were written in
+            final int cmp = new String(termData, termStarts[mid], getTermLength(mid), Charsets.UTF_8).compareTo(term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return Math.max(0, hi);
+    }
+
+    int getTermLength(int block) {
+        return termStarts[block + 1] - termStarts[block];
+    }
+
+    /**
+     * copies the first term of block into dest, which must have room for {@link #getTermLength}(block) bytes
+     */
+    void copyTerm(int block, byte[] dest) {
+        System.arraycopy(termData, termStarts[block], dest, 0, getTermLength(block));
+    }
+
+    long getTermOffset(int block) {
+        return termOffsets[block];
+    }
+
+    long getDocOffset(int block) {
+        return docOffsets[block];
+    }
+
+    long getOrdinal(int block) {
+        return (long)block * BLOCK_SIZE;
+    }
+
+    private static final class Builder {
+        private byte[] termData = new byte[1024];
+        private int termDataLength = 0;
+        private int[] termStarts = new int[17];
+        private long[] termOffsets = new long[16];
+        private long[] docOffsets = new long[16];
+        private int numBlocks = 0;
+
+        void add(byte[] term, int termLength, long termOffset, long docOffset) {
+            if (termDataLength + termLength > termData.length) {
+                termData = Arrays.copyOf(termData, Math.max(termDataLength + termLength, 2 * termData.length));
+            }
+            if (numBlocks == termOffsets.length) {
+                termStarts = Arrays.copyOf(termStarts, 2 * numBlocks + 1);
+                termOffsets = Arrays.copyOf(termOffsets, 2 * numBlocks);
+                docOffsets = Arrays.copyOf(docOffsets, 2 * numBlocks);
+            }
+            System.arraycopy(term, 0, termData, termDataLength, termLength);
+            termStarts[numBlocks] = termDataLength;
+            termDataLength += termLength;
+            termOffsets[numBlocks] = termOffset;
+            docOffsets[numBlocks] = docOffset;
+            ++numBlocks;
+            termStarts[numBlocks] = termDataLength;
+        }
+
+        SimpleStringTermDictionary build() {
+            return new SimpleStringTermDictionary(Arrays.copyOf(termData, termDataLength),
+                                                  Arrays.copyOf(termStarts, numBlocks + 1),
+                                                  Arrays.copyOf(termOffsets, numBlocks),
+                                                  Arrays.copyOf(docOffsets, numBlocks));
+        }
+    }
+}
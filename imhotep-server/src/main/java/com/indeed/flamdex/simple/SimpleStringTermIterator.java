@@ -18,4 +18,10 @@ import com.indeed.flamdex.api.RawStringTermIterator;
 /**
  * @author jplaisance
  */
-public interface SimpleStringTermIterator extends SimpleTermIterator, RawStringTermIterator {}
+public interface SimpleStringTermIterator extends SimpleTermIterator, RawStringTermIterator {
+    /**
+     * @return the position of the current term in the sorted term list of the field, or -1 if there is no current term
+     *         or the iterator was positioned without the term dictionary and does not know it
+     */
+    long getOrdinal();
+}
@@ -14,17 +14,18 @@
  package com.indeed.flamdex.simple;
 
 import com.google.common.base.Charsets;
-import com.indeed.util.core.reference.SharedReference;
-import com.indeed.util.serialization.StringSerializer;
+import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.io.caching.CachedFile;
 import com.indeed.lsmtree.core.Generation;
 import com.indeed.lsmtree.core.ImmutableBTreeIndex;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.serialization.StringSerializer;
 import com.indeed.util.mmap.DirectMemory;
 import com.indeed.util.mmap.MMapBuffer;
 
 import org.apache.log4j.Logger;
 
-import java.io.File;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
@@ -45,8 +46,12 @@ final class SimpleStringTermIteratorImpl implements SimpleStringTermIterator {
     private int bufferPtr;
 
     private final String docsFilename;
+    private final MapCache mapCache;
+    private final SimpleFieldCatalog.FieldFiles files;
+    private final MemoryReserver reserver;
+    // set once the dictionary could not be had, so every reset after that goes through the b-tree or scans
+    private boolean noDictionary = false;
     private ImmutableBTreeIndex.Reader<String, LongPair> index;
-    private final File indexFile;
 
     private final CharsetDecoder decoder = Charsets.UTF_8.newDecoder();
 
@@ -59,23 +64,26 @@ final class SimpleStringTermIteratorImpl implements SimpleStringTermIterator {
     private long lastTermOffset = 0L;
     private int lastTermDocFreq = 0;
     private String lastString = null;
+    private long lastTermOrdinal = -1L;
+    // a seek through the b-tree does not say where in the term list it landed
+    private boolean ordinalKnown = true;
 
     private boolean done = false;
     private boolean bufferNext = false;
     private boolean closed = false;
 
-    SimpleStringTermIteratorImpl(MapCache mapCache, String filename, String docsFilename, String indexFilename) throws IOException {
+    /**
+     * @param reserver the memory of the reader, charged for the field's term dictionary when it is loaded, or null
+     */
+    SimpleStringTermIteratorImpl(MapCache mapCache, SimpleFieldCatalog.FieldFiles files, @Nullable MemoryReserver reserver) throws IOException {
         buffer = new byte[BUFFER_SIZE];
 
-        this.docsFilename = docsFilename;
-        final CachedFile cf = CachedFile.create(indexFilename);
-        if (cf.exists()) {
-            indexFile = cf.loadDirectory();
-        } else {
-            indexFile = null;
-        }
+        this.docsFilename = files.docsPath;
+        this.mapCache = mapCache;
+        this.files = files;
+        this.reserver = reserver;
 
-        file = mapCache.copyOrOpen(filename);
+        file = mapCache.copyOrOpen(files.termsPath);
         memory = file.get().memory();
         done = false;
         bufferLen = 0;
@@ -94,46 +102,82 @@ final class SimpleStringTermIteratorImpl implements SimpleStringTermIterator {
     }
 
     private void internalReset(String term) throws IOException {
-        if (indexFile != null) {
-            if (index == null) {
-                index = new ImmutableBTreeIndex.Reader<String,LongPair>(
-                    indexFile,
-                    new StringSerializer(),
-                    new LongPairSerializer(),
-                    false
-                );
-            }
-            Generation.Entry<String, LongPair> e = index.floor(term);
-            if (e == null) {
-                e = index.first();
+        final SimpleStringTermDictionary dictionary = noDictionary ? null : files.getTermDictionary(mapCache, reserver);
+        if (dictionary == null) {
+            noDictionary = true;
+            if (files.indexPath != null) {
+                seekIndex(term);
+            } else {
+                scanTo(term);
             }
-            lastTermBytes = e.getKey().getBytes(Charsets.UTF_8);
-            lastTermByteBuffer = ByteBuffer.wrap(lastTermBytes);
-            lastTermLength = lastTermBytes.length;
-            lastString = null;
-            final LongPair p = e.getValue();
-            refillBuffer(p.getFirst());
-            lastTermOffset = p.getSecond();
-            lastTermDocFreq = (int)readVLong();
-            done = false;
-
-            while (decoder.decode((ByteBuffer)lastTermByteBuffer.position(0).limit(lastTermLength)).toString().compareTo(term) < 0 && next()) {}
-            bufferNext = true;
-        } else {
-            lastTermLength = 0;
-            lastTermOffset = 0L;
-            lastTermDocFreq = 0;
-            lastString = null;
-
-            bufferLen = 0;
-            bufferOffset = 0L;
-            bufferPtr = 0;
-
-            done = false;
-
-            while (next() && new String(lastTermBytes, 0, lastTermLength, Charsets.UTF_8).compareTo(term) < 0) {}
-            bufferNext = true;
+            return;
+        }
+        if (dictionary.getNumBlocks() == 0) {
+            done = true;
+            bufferNext = false;
+            return;
         }
+        final int block = dictionary.floorBlock(term);
+        ensureCapacity(dictionary.getTermLength(block));
+        dictionary.copyTerm(block, lastTermBytes);
+        lastTermLength = dictionary.getTermLength(block);
+        lastString = null;
+        refillBuffer(dictionary.getTermOffset(block));
+        lastTermOffset = dictionary.getDocOffset(block);
+        lastTermDocFreq = (int)readVLong();
+        lastTermOrdinal = dictionary.getOrdinal(block);
+        ordinalKnown = true;
+        done = false;
+
+        while (term().compareTo(term) < 0 && next()) {}
+        bufferNext = true;
+    }
+
+    private void seekIndex(String term) throws IOException {
+        if (index == null) {
+            index = new ImmutableBTreeIndex.Reader<String, LongPair>(
+                CachedFile.create(files.indexPath).loadDirectory(),
+                new StringSerializer(),
+                new LongPairSerializer(),
+                false
+            );
+        }
+        Generation.Entry<String, LongPair> e = index.floor(term);
+        if (e == null) {
+            e = index.first();
+        }
+        final byte[] termBytes = e.getKey().getBytes(Charsets.UTF_8);
+        ensureCapacity(termBytes.length);
+        System.arraycopy(termBytes, 0, lastTermBytes, 0, termBytes.length);
+        lastTermLength = termBytes.length;
+        lastString = null;
+        final LongPair p = e.getValue();
+        refillBuffer(p.getFirst());
+        lastTermOffset = p.getSecond();
+        lastTermDocFreq = (int)readVLong();
+        ordinalKnown = false;
+        done = false;
+
+        while (term().compareTo(term) < 0 && next()) {}
+        bufferNext = true;
+    }
+
+    private void scanTo(String term) throws IOException {
+        lastTermLength = 0;
+        lastTermOffset = 0L;
+        lastTermDocFreq = 0;
+        lastString = null;
+        lastTermOrdinal = -1L;
+        ordinalKnown = true;
+
+        bufferLen = 0;
+        bufferOffset = 0L;
+        bufferPtr = 0;
+
+        done = false;
+
+        while (next() && term().compareTo(term) < 0) {}
+        bufferNext = true;
     }
 
     @Override
@@ -193,6 +237,7 @@ final class SimpleStringTermIteratorImpl implements SimpleStringTermIterator {
         lastTermOffset += offsetDelta;
 
         lastTermDocFreq = (int)readVLong();
+        ++lastTermOrdinal;
 
         return true;
     }
@@ -210,16 +255,14 @@ final class SimpleStringTermIteratorImpl implements SimpleStringTermIterator {
         return lastTermDocFreq;
     }
 
+    @Override
+    public long getOrdinal() {
+        return ordinalKnown ? lastTermOrdinal : -1L;
+    }
+
     @Override
     public void close() {
         if (!closed) {
-            try {
-                if (index != null) {
-                    index.close();
-                }
-            } catch (IOException e) {
-                log.error("error closing index", e);
-            }
             try {
                 file.close();
             } catch (IOException e) {
@@ -18,19 +18,108 @@ import com.indeed.flamdex.api.DocIdStream;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.TermIterator;
 import com.indeed.flamdex.writer.FlamdexWriter;
 import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.flamdex.writer.StringFieldWriter;
 import com.indeed.util.core.sort.RadixSort;
+import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author jsgroth
  */
 public class FlamdexSort {
+    private static final Logger log = Logger.getLogger(FlamdexSort.class);
+
     private static final int MAGIC_SORTING_NUMBER = 50000;    
 
+    /**
+     * Computes an order for the docs of r that clusters them by the terms of sortFields: docs are ordered by their
+     * smallest term in the first field, then by their smallest term in the second, and so on, and docs that tie on
+     * every field keep their relative order. A field is sorted as an int field if r has it as one, otherwise as a string
+     * field. Docs without a term in a field come after all docs that have one.
+     *
+     * Each field is one stable counting sort over the ordinals of its terms, so this takes time linear in the number of
+     * docs and postings of the sort fields and memory for a few ints per doc plus one per term.
+     *
+     * @return the new doc id of each doc, to pass to {@link #sort(FlamdexReader, FlamdexWriter, int[])}
+     */
+    public static int[] computeOrder(FlamdexReader r, List<String> sortFields) {
+        final int numDocs = r.getNumDocs();
+        int[] newDocIdToOldDocId = new int[numDocs];
+        for (int i = 0; i < numDocs; ++i) {
+            newDocIdToOldDocId[i] = i;
+        }
+        int[] scratch = new int[numDocs];
+        final int[] termOrdinals = new int[numDocs];
+
+        // least significant field first, each pass keeps the order of the previous one for docs it puts in the same place
+        for (int k = sortFields.size() - 1; k >= 0; --k) {
+            final int numTerms = getTermOrdinals(r, sortFields.get(k), termOrdinals);
+            final int[] counts = new int[numTerms + 2];
+            for (int doc = 0; doc < numDocs; ++doc) {
+                ++counts[termOrdinals[doc] + 1];
+            }
+            for (int i = 1; i < counts.length; ++i) {
+                counts[i] += counts[i - 1];
+            }
+            for (int i = 0; i < numDocs; ++i) {
+                final int doc = newDocIdToOldDocId[i];
+                scratch[counts[termOrdinals[doc]]++] = doc;
+            }
+            final int[] tmp = newDocIdToOldDocId;
+            newDocIdToOldDocId = scratch;
+            scratch = tmp;
+        }
+
+        final int[] oldDocIdToNewDocId = scratch;
+        for (int i = 0; i < numDocs; ++i) {
+            oldDocIdToNewDocId[newDocIdToOldDocId[i]] = i;
+        }
+        return oldDocIdToNewDocId;
+    }
+
+    /**
+     * fills termOrdinals with the ordinal of the smallest term of each doc in field, or the number of terms if it has none
+     *
+     * @return the number of terms in field
+     */
+    private static int getTermOrdinals(FlamdexReader r, String field, int[] termOrdinals) {
+        Arrays.fill(termOrdinals, -1);
+        final int[] docIdBuffer = new int[1024];
+        final DocIdStream dis = r.getDocIdStream();
+        final TermIterator iter = r.getIntFields().contains(field) ? r.getIntTermIterator(field) : r.getStringTermIterator(field);
+        int numTerms = 0;
+        try {
+            while (iter.next()) {
+                dis.reset(iter);
+                while (true) {
+                    final int n = dis.fillDocIdBuffer(docIdBuffer);
+                    for (int i = 0; i < n; ++i) {
+                        if (termOrdinals[docIdBuffer[i]] < 0) {
+                            termOrdinals[docIdBuffer[i]] = numTerms;
+                        }
+                    }
+                    if (n < docIdBuffer.length) break;
+                }
+                ++numTerms;
+            }
+        } finally {
+            iter.close();
+            dis.close();
+        }
+        for (int doc = 0; doc < termOrdinals.length; ++doc) {
+            if (termOrdinals[doc] < 0) {
+                termOrdinals[doc] = numTerms;
+            }
+        }
+        return numTerms;
+    }
+
     // this method DOES close the FlamdexWriter upon completion
     public static void sort(FlamdexReader r, FlamdexWriter w, int[] oldDocIdToNewDocId) throws IOException {
         sort(r, w, oldDocIdToNewDocId, r.getIntFields(), r.getStringFields());
@@ -44,7 +133,7 @@ public class FlamdexSort {
         final DocIdStream dis = r.getDocIdStream();
 
         for (final String intField : intFields) {
-            System.out.println("intField:"+intField);
+            log.debug("sorting int field " + intField);
             final IntTermIterator iter = r.getIntTermIterator(intField);
             final IntFieldWriter ifw = w.getIntFieldWriter(intField);
             while (iter.next()) {
@@ -68,7 +157,7 @@ public class FlamdexSort {
         }
 
         for (final String stringField : stringFields) {
-            System.out.println("stringField:"+stringField);
+            log.debug("sorting string field " + stringField);
             final StringTermIterator iter = r.getStringTermIterator(stringField);
             final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
             while (iter.next()) {
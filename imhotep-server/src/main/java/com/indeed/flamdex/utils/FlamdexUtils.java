@@ -16,6 +16,8 @@
 import com.indeed.util.core.threads.ThreadSafeBitSet;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.flamdex.api.FieldStatsProvider;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.StringTermIterator;
@@ -458,6 +460,12 @@ public class FlamdexUtils {
     }
 
     public static long[] getMinMaxTerm(String field, FlamdexReader r) {
+        if (r instanceof FieldStatsProvider) {
+            final FieldStats stats = ((FieldStatsProvider)r).getIntFieldStats(field);
+            if (stats != null) {
+                return new long[]{stats.getMinIntTerm(), stats.getMaxIntTerm()};
+            }
+        }
         final IntTermIterator iterator = r.getIntTermIterator(field);
         long minTerm = Long.MAX_VALUE;
         long maxTerm = Long.MIN_VALUE;
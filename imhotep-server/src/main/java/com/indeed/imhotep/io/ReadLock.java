@@ -58,6 +58,12 @@ public class ReadLock implements Closeable {
     private static void acquireReadLock(Map<File, RandomAccessFile> lockFileMap, File indexDir) throws IOException,
                                                                                                LockAquisitionException {
         final File writeLock = new File(indexDir, "delete.lock");
+        synchronized (lockFileMap) {
+            // checked up front too, so that rescanning a loaded shard doesn't touch the disk
+            if (lockFileMap.containsKey(indexDir)) {
+                throw new AlreadyOpenException();
+            }
+        }
         writeLock.createNewFile();
         while (true) {
             synchronized (lockFileMap) {
@@ -38,6 +38,7 @@ public class Shard implements Closeable {
     private final ReloadableSharedReference<CachedFlamdexReader, IOException> ref;
     private final SharedReference<ReadLock> readLock;
     private final ShardId shardId;
+    private final long reportedVersion;
     private final int numDocs;
     private final Collection<String> intFields;
     private final Collection<String> stringFields;
@@ -50,9 +51,24 @@ public class Shard implements Closeable {
                   final String indexDir,
                   final String dataset,
                   final String shardId) throws IOException {
+        this(ref, readLock, shardVersion, shardVersion, indexDir, dataset, shardId);
+    }
+
+    /**
+     * @param reportedVersion the version reported to clients, which is older than shardVersion for a shard that is
+     *                        a rewrite of an older version with the same contents
+     */
+    public Shard(final ReloadableSharedReference<CachedFlamdexReader, IOException> ref,
+                  final SharedReference<ReadLock> readLock,
+                  final long shardVersion,
+                  final long reportedVersion,
+                  final String indexDir,
+                  final String dataset,
+                  final String shardId) throws IOException {
         this.ref = ref;
         this.readLock = readLock;
         this.shardId = new ShardId(dataset, shardId, shardVersion, indexDir);
+        this.reportedVersion = reportedVersion;
         final SharedReference<CachedFlamdexReader> copy = ref.copy();
         numDocs = copy.get().getNumDocs();
         intFields = copy.get().getIntFields();
@@ -76,6 +92,10 @@ public class Shard implements Closeable {
         return shardId.getShardVersion();
     }
 
+    public long getReportedVersion() {
+        return reportedVersion;
+    }
+
     public String getIndexDir() {
         return shardId.getIndexDir();
     }
@@ -88,6 +108,18 @@ public class Shard implements Closeable {
         return numDocs;
     }
 
+    /**
+     * @return whether the reader is currently open, as opposed to waiting to be loaded by the next session
+     */
+    public boolean isLoaded() {
+        final SharedReference<CachedFlamdexReader> copy = ref.copyIfLoaded();
+        if (copy != null) {
+            Closeables2.closeQuietly(copy, log);
+            return true;
+        }
+        return false;
+    }
+
     public Set<String> getLoadedMetrics() {
         final SharedReference<CachedFlamdexReader> copy = ref.copyIfLoaded();
         if (copy != null) {
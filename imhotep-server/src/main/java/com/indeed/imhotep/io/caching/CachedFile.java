@@ -15,6 +15,7 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,31 +29,42 @@ import com.indeed.imhotep.io.caching.RemoteFileSystem.RemoteFileInfo;
 public class CachedFile {
     public static final String DELIMITER = "/";
     public static final int CHAR_DELIMITER = '/';
-    private static RemoteFileSystemMounter mounter = null;
+    /* volatile so that create() only needs the lock before the first mount */
+    private static volatile RemoteFileSystemMounter mounter = null;
     
     protected String fullPath;
     protected RemoteFileInfo info;
     protected RemoteFileSystem topFS;
     
 
-    public static final synchronized CachedFile create(String path) {
+    public static final CachedFile create(String path) {
         CachedFile ret;
         
-        if (mounter == null) {
-            try {
-                mounter = new RemoteFileSystemMounter(null, "/", true);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
-        
         ret = new CachedFile();
         ret.info = null;
         ret.fullPath = path;
-        ret.topFS = mounter.getTopFileSystem();
+        ret.topFS = getMounter().getTopFileSystem();
         
         return ret;
     }
+
+    private static RemoteFileSystemMounter getMounter() {
+        final RemoteFileSystemMounter current = mounter;
+
+        if (current != null) {
+            return current;
+        }
+        synchronized (CachedFile.class) {
+            if (mounter == null) {
+                try {
+                    mounter = new RemoteFileSystemMounter(null, "/", true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return mounter;
+        }
+    }
     
     public static final synchronized void initWithFile(String filename, 
                                                        String root) throws IOException {
@@ -161,6 +173,23 @@ public class CachedFile {
         return data.get(fullPath);
     }
 
+    /*
+     * Reads part of the file without loading all of it locally when the
+     * underlying file systems support it.  Returns the number of bytes read,
+     * or -1 at the end of the file.
+     */
+    public int readRange(long position, byte[] b, int off, int len) throws IOException {
+        return topFS.readRange(fullPath, position, b, off, len);
+    }
+
+    /*
+     * Returns a view of the file that only reads the parts that are accessed,
+     * instead of loading the whole file like loadFile() does.
+     */
+    public RemoteFileBuffer openBuffer(ByteOrder order) {
+        return new RemoteFileBuffer(this, order);
+    }
+
     public String getCanonicalPath() throws IOException {
         return this.fullPath;
     }
@@ -17,13 +17,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.log4j.Logger;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -32,19 +39,39 @@ import com.google.common.cache.RemovalCause;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
 
 public class CachedRemoteFileSystem extends RemoteFileSystem {
+    private static final Logger log = Logger.getLogger(CachedRemoteFileSystem.class);
+
+    /* share of cacheSizeMB given to the chunk cache unless chunkCacheSizeMB says otherwise */
+    private static final int DEFAULT_CHUNK_CACHE_FRACTION = 8;
+
     private RemoteFileSystem parentFS;
     private String mountPoint;
     private RemoteFileSystemMounter mounter;
     private File localCacheDir;
     private LoadingCache<String, File> cache;
+    private ChunkCache chunkCache;
+    /*
+     * Cached files that are hard links of each other, by content key, for
+     * linking instead of downloading files that are unchanged across shard
+     * versions.  The links share their blocks, so each one is weighed at its
+     * share of the size.  Guarded by itself, along with contentKeysByPath.
+     */
+    private final Map<String, Set<String>> pathsByContent = new HashMap<String, Set<String>>();
+    private final Map<String, String> contentKeysByPath = new HashMap<String, String>();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong linkedBytes = new AtomicLong();
 
     public CachedRemoteFileSystem(Map<String,Object> settings, 
                                   RemoteFileSystem parentFS,
                                   RemoteFileSystemMounter mounter) throws IOException {
         final int cacheSize;
         final String cacheDir;
+        final String chunkCacheDir;
+        final int chunkCacheSize;
         
         this.parentFS = parentFS;
         mountPoint = (String)settings.get("mountpoint");
@@ -62,16 +89,24 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         localCacheDir = new File(cacheDir);
         localCacheDir.mkdir();
         
+        /* whole files and chunks share one disk budget */
         cacheSize = (Integer)settings.get("cacheSizeMB");
+        chunkCacheSize = settings.containsKey("chunkCacheSizeMB")
+                ? (Integer)settings.get("chunkCacheSizeMB")
+                : Math.max(1, cacheSize / DEFAULT_CHUNK_CACHE_FRACTION);
+        if (chunkCacheSize < 1 || chunkCacheSize >= cacheSize) {
+            throw new IllegalArgumentException("chunkCacheSizeMB must be at least 1 and less than cacheSizeMB ("
+                    + cacheSize + "): " + chunkCacheSize);
+        }
 
         cache =
                 CacheBuilder.newBuilder()
                             .initialCapacity(8192)
-                            .maximumWeight(cacheSize * 1024)
+                            .maximumWeight((cacheSize - chunkCacheSize) * 1024L)
                             .weigher(new Weigher<String, File>() {
                                 public int weigh(String path, File cachedFile) {
                                     int kb;
-                                    kb = (int)(cachedFile.length() / 1024);
+                                    kb = (int)(cachedFile.length() / 1024 / getLinkCount(path));
                                     /* don't return weights of 0 */
                                     if (kb == 0) {
                                         kb = 1;
@@ -85,7 +120,7 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
                                         /* don't delete replaced files */
                                         return;
                                     }
-                                    removeFile(rn.getValue());
+                                    removeFile(rn.getKey(), rn.getValue());
                                 }
                             })
                             .build(new CacheLoader<String, File>() {
@@ -95,6 +130,24 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
                             });
 
         scanExistingFiles();
+        findExistingContentKeys();
+
+        /*
+         * partial reads are cached by chunk in a separate directory so that
+         * scanExistingFiles() never mistakes a chunk for a whole file
+         */
+        chunkCacheDir = settings.containsKey("chunk-cache-dir")
+                ? (String)settings.get("chunk-cache-dir")
+                : localCacheDir.getPath() + ".chunks";
+        chunkCache = new ChunkCache(chunkCacheDir,
+                                    chunkCacheSize,
+                                    (Integer)settings.get("chunkSizeKB"),
+                                    (Integer)settings.get("readAheadChunks"),
+                                    parentFS,
+                                    mounter,
+                                    mountPoint);
+
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
     }
     
     private void scanExistingFiles() throws IOException {
@@ -108,28 +161,187 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         while (filesInCache.hasNext()) {
             final File cachedFile = filesInCache.next();
             final String path = cachedFile.getCanonicalPath();
-            String cachePath = path.substring(prefixLen);
+            /* keyed the same way as loadFile() looks files up */
+            String cachePath = mountPoint + path.substring(prefixLen);
             cache.put(cachePath, cachedFile);
         }
     }
-    
-    private void removeFile(File cachedFile) {
+
+    /*
+     * Looks up the content keys of the files left from before a restart, so
+     * that new shard versions can link to them again.  Copies with equal
+     * contents may or may not be links of each other by now, so only one of
+     * each is recorded.  This can mean a round trip per file, so it happens in
+     * the background.
+     */
+    private void findExistingContentKeys() {
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (final String path : cache.asMap().keySet()) {
+                    final String contentKey;
+                    try {
+                        contentKey = parentFS.getContentKey(path);
+                    } catch (IOException e) {
+                        log.warn("unable to get the content key of cached file " + path, e);
+                        continue;
+                    } catch (RuntimeException e) {
+                        log.warn("unable to get the content key of cached file " + path, e);
+                        continue;
+                    }
+                    if (contentKey != null && cache.getIfPresent(path) != null) {
+                        addLink(contentKey, path, true);
+                    }
+                }
+            }
+        }, "CachedRemoteFileSystem.ContentKeys");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void removeFile(String path, File cachedFile) {
+        removeLink(path);
         cachedFile.delete();
     }
+
+    private int getLinkCount(String path) {
+        synchronized (pathsByContent) {
+            final String contentKey = contentKeysByPath.get(path);
+            return contentKey != null ? pathsByContent.get(contentKey).size() : 1;
+        }
+    }
+
+    /*
+     * Records path as a hard link to the other cached files with contentKey.
+     * If onlyIfFirst is set and there already are some, path is left out
+     * instead.
+     */
+    private void addLink(String contentKey, String path, boolean onlyIfFirst) {
+        final String[] others;
+
+        synchronized (pathsByContent) {
+            Set<String> paths = pathsByContent.get(contentKey);
+            if (paths == null) {
+                paths = new LinkedHashSet<String>();
+                pathsByContent.put(contentKey, paths);
+            } else if (onlyIfFirst) {
+                return;
+            }
+            others = paths.toArray(new String[paths.size()]);
+            paths.add(path);
+            contentKeysByPath.put(path, contentKey);
+        }
+        reweigh(others);
+    }
+
+    private void removeLink(String path) {
+        final String[] others;
+
+        synchronized (pathsByContent) {
+            final String contentKey = contentKeysByPath.remove(path);
+            if (contentKey == null) {
+                return;
+            }
+            final Set<String> paths = pathsByContent.get(contentKey);
+            paths.remove(path);
+            if (paths.isEmpty()) {
+                pathsByContent.remove(contentKey);
+            }
+            others = paths.toArray(new String[paths.size()]);
+        }
+        reweigh(others);
+    }
+
+    /* puts paths back into the cache so that their weights reflect a new number of links */
+    private void reweigh(String[] paths) {
+        for (final String path : paths) {
+            final File cachedFile = cache.getIfPresent(path);
+            if (cachedFile != null) {
+                cache.put(path, cachedFile);
+            }
+        }
+    }
+
+    /* returns a cached file with the contents of contentKey, or null if there is none */
+    private File getCachedCopy(String contentKey) {
+        final String[] paths;
+
+        synchronized (pathsByContent) {
+            final Set<String> linked = pathsByContent.get(contentKey);
+            if (linked == null) {
+                return null;
+            }
+            paths = linked.toArray(new String[linked.size()]);
+        }
+        for (final String path : paths) {
+            /* only completely downloaded files that have not been evicted are in the cache */
+            final File cachedFile = cache.getIfPresent(path);
+            if (cachedFile != null) {
+                return cachedFile;
+            }
+        }
+        return null;
+    }
     
     private File downloadFile(String fullPath) throws IOException {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
         final File localFile;
+        final String contentKey;
+        final File sameContent;
         
         localFile = new File(localCacheDir, relativePath);
         /* create all the directories on the path to the file */
         localFile.getParentFile().mkdirs();
 
+        contentKey = parentFS.getContentKey(fullPath);
+        if (contentKey != null) {
+            sameContent = getCachedCopy(contentKey);
+            if (sameContent != null && link(sameContent, localFile)) {
+                linkedBytes.addAndGet(localFile.length());
+                addLink(contentKey, fullPath, false);
+                return localFile;
+            }
+        }
+
         parentFS.copyFileInto(fullPath, localFile);
+        downloadedBytes.addAndGet(localFile.length());
 
+        if (contentKey != null) {
+            /* a separate copy is not a link of any others there may be, so it is only recorded if it is the first */
+            addLink(contentKey, fullPath, true);
+        }
         return localFile;
     }
 
+    /*
+     * Hard links target to an existing cached file with the same contents.
+     * Cached files are never modified in place, and evicting either name
+     * leaves the other intact, so the two can share their blocks.  Returns
+     * false if the link could not be made, in which case the file should be
+     * downloaded as usual.
+     *
+     * Java 6 has no hard link API, hence the ln.  A fork costs about a
+     * millisecond, against a download of the whole file otherwise, and
+     * happens at most once per file of a new shard version, so it is not
+     * worth batching.
+     */
+    private static boolean link(File existing, File target) {
+        final Process ln;
+
+        target.delete();
+        try {
+            ln = Runtime.getRuntime().exec(new String[] { "ln",
+                                                          existing.getAbsolutePath(),
+                                                          target.getAbsolutePath() });
+            return ln.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     @Override
     public File loadFile(String fullPath) throws IOException {
         try {
@@ -139,6 +351,25 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         }
     }
 
+    /*
+     * Files are only ever unlinked by the removal listener, so readers that
+     * have the copy open or mapped keep it until they close it.  Other paths
+     * linked to the same contents share the bad blocks, so they go too.
+     */
+    @Override
+    public void invalidate(String fullPath) {
+        final String[] paths;
+
+        synchronized (pathsByContent) {
+            final String contentKey = contentKeysByPath.get(fullPath);
+            final Set<String> linked = contentKey != null ? pathsByContent.get(contentKey) : null;
+            paths = linked != null ? linked.toArray(new String[linked.size()]) : new String[] { fullPath };
+        }
+        for (final String path : paths) {
+            cache.invalidate(path);
+        }
+    }
+
     @Override
     public String getMountPoint() {
         return this.mountPoint;
@@ -193,6 +424,40 @@ public class CachedRemoteFileSystem extends RemoteFileSystem {
         return files;
     }
 
+    @Override
+    public int readRange(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        final File cachedFile = cache.getIfPresent(fullPath);
+        final RandomAccessFile raf;
+
+        if (cachedFile == null) {
+            /* only pull the chunks covering the range into the cache */
+            return chunkCache.read(fullPath, position, b, off, len);
+        }
+
+        raf = new RandomAccessFile(cachedFile, "r");
+        try {
+            raf.seek(position);
+            return readFully(Channels.newInputStream(raf.getChannel()), b, off, len);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public String getContentKey(String fullPath) throws IOException {
+        return parentFS.getContentKey(fullPath);
+    }
+
+    @Export(name = "downloaded-file-bytes", doc = "bytes of whole files downloaded into the cache")
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    @Export(name = "linked-file-bytes", doc = "bytes of whole files linked to a cached file with the same contents instead of being downloaded")
+    public long getLinkedBytes() {
+        return linkedBytes.get();
+    }
+
     @Override
     public InputStream getInputStreamForFile(String fullPath, 
                                              long startOffset, 
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+
+/*
+ * Caches fixed size chunks of remote files, keyed by (path, chunk index), so a
+ * partial read of a huge file only downloads the chunks it touches.  Chunks are
+ * stored as <chunk-dir>/<path>@<index> and are picked up again after a restart.
+ * Reads that continue where the previous read of a file left off prefetch the
+ * next few chunks in the background.
+ *
+ * An evicted chunk is deleted under the same lock that reads open it with, so a
+ * read either has the file open before it goes, which keeps it readable, or
+ * finds it gone and fetches the chunk again.
+ */
+class ChunkCache {
+    private static final Logger log = Logger.getLogger(ChunkCache.class);
+
+    private static final char INDEX_SEPARATOR = '@';
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int DEFAULT_CHUNK_SIZE_KB = 1024;
+    private static final int DEFAULT_READ_AHEAD_CHUNKS = 2;
+    private static final int MAX_OPEN_ATTEMPTS = 3;
+
+    private final RemoteFileSystem parentFS;
+    private final RemoteFileSystemMounter mounter;
+    private final String mountPoint;
+    private final File chunkDir;
+    private final int chunkSize;
+    private final int readAheadChunks;
+    private final LoadingCache<ChunkKey, Chunk> chunks;
+    /* index of the chunk the last read of each file ended in, to detect sequential scans */
+    private final Cache<String, Long> lastChunkRead;
+    private final ExecutorService readAheadExecutor;
+
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private final AtomicLong readAheadChunkCount = new AtomicLong();
+
+    ChunkCache(String chunkCacheDir,
+               int cacheSizeMB,
+               Integer chunkSizeKB,
+               Integer readAheadChunks,
+               RemoteFileSystem parentFS,
+               RemoteFileSystemMounter mounter,
+               String mountPoint) throws IOException {
+        this.parentFS = parentFS;
+        this.mounter = mounter;
+        this.mountPoint = mountPoint;
+        this.chunkSize = (chunkSizeKB != null ? chunkSizeKB : DEFAULT_CHUNK_SIZE_KB) * 1024;
+        this.readAheadChunks = readAheadChunks != null ? readAheadChunks : DEFAULT_READ_AHEAD_CHUNKS;
+
+        chunkDir = new File(chunkCacheDir);
+        chunkDir.mkdirs();
+
+        chunks =
+                CacheBuilder.newBuilder()
+                            .maximumWeight(cacheSizeMB * 1024L)
+                            .weigher(new Weigher<ChunkKey, Chunk>() {
+                                public int weigh(ChunkKey key, Chunk chunk) {
+                                    /* don't return weights of 0 */
+                                    return Math.max(1, (int)(chunk.length / 1024));
+                                }
+                            })
+                            .removalListener(new RemovalListener<ChunkKey, Chunk>() {
+                                public void onRemoval(RemovalNotification<ChunkKey, Chunk> rn) {
+                                    if (rn.getCause().equals(RemovalCause.REPLACED)) {
+                                        /* don't delete replaced files */
+                                        return;
+                                    }
+                                    rn.getValue().delete();
+                                }
+                            })
+                            .build(new CacheLoader<ChunkKey, Chunk>() {
+                                public Chunk load(ChunkKey key) throws Exception {
+                                    return downloadChunk(key);
+                                }
+                            });
+        lastChunkRead = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+        readAheadExecutor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, "ChunkCache.ReadAhead");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        scanExistingChunks();
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    private void scanExistingChunks() throws IOException {
+        final Iterator<File> filesInCache;
+        final int prefixLen;
+
+        prefixLen = chunkDir.getCanonicalPath().length() + RemoteFileSystem.DELIMITER.length();
+        filesInCache = FileUtils.iterateFiles(chunkDir,
+                                              TrueFileFilter.INSTANCE,
+                                              TrueFileFilter.INSTANCE);
+        while (filesInCache.hasNext()) {
+            final File chunkFile = filesInCache.next();
+            final String path = chunkFile.getCanonicalPath();
+            final int separator = path.lastIndexOf(INDEX_SEPARATOR);
+
+            if (path.endsWith(TMP_SUFFIX) || separator <= prefixLen) {
+                /* partial download from before a restart */
+                chunkFile.delete();
+                continue;
+            }
+            try {
+                final long index = Long.parseLong(path.substring(separator + 1));
+                chunks.put(new ChunkKey(mountPoint + path.substring(prefixLen, separator), index),
+                           new Chunk(chunkFile, chunkFile.length()));
+            } catch (NumberFormatException e) {
+                log.warn("ignoring unexpected file in chunk cache: " + path);
+            }
+        }
+    }
+
+    private File getChunkFile(ChunkKey key) {
+        final String relativePath = mounter.getMountRelativePath(key.fullPath, mountPoint);
+
+        return new File(chunkDir, relativePath + INDEX_SEPARATOR + key.index);
+    }
+
+    private Chunk downloadChunk(ChunkKey key) throws IOException {
+        final File chunkFile = getChunkFile(key);
+        final File tmpFile = new File(chunkFile.getPath() + TMP_SUFFIX);
+        final byte[] buf = new byte[chunkSize];
+        final int n;
+
+        /* create all the directories on the path to the file */
+        chunkFile.getParentFile().mkdirs();
+
+        /* a short read only means the end of the file when it returns -1, and read() takes short chunks for the last one */
+        n = readFully(key.fullPath, key.index * chunkSize, buf);
+        final OutputStream os = new FileOutputStream(tmpFile);
+        try {
+            os.write(buf, 0, n);
+        } finally {
+            os.close();
+        }
+        if (!tmpFile.renameTo(chunkFile)) {
+            tmpFile.delete();
+            throw new IOException("unable to move " + tmpFile + " to " + chunkFile);
+        }
+        downloadedBytes.addAndGet(n);
+        return new Chunk(chunkFile, n);
+    }
+
+    private int readFully(String fullPath, long position, byte[] buf) throws IOException {
+        int n = 0;
+
+        while (n < buf.length) {
+            final int read = parentFS.readRange(fullPath, position + n, buf, n, buf.length - n);
+            if (read <= 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
+    private Chunk getChunk(ChunkKey key) throws IOException {
+        try {
+            return chunks.get(key);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /*
+     * Opens the chunk of key, fetching it again if it was evicted between
+     * looking it up and opening it.
+     */
+    private RandomAccessFile openChunk(ChunkKey key) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            final Chunk chunk = getChunk(key);
+            try {
+                final RandomAccessFile raf = chunk.open();
+                if (raf != null) {
+                    return raf;
+                }
+            } catch (FileNotFoundException e) {
+                /* deleted by the eviction of an earlier download of the same chunk */
+                if (attempt >= MAX_OPEN_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            if (attempt >= MAX_OPEN_ATTEMPTS) {
+                throw new IOException("chunk " + key + " was evicted on every attempt to read it");
+            }
+            chunks.asMap().remove(key, chunk);
+        }
+    }
+
+    /*
+     * Same contract as RemoteFileSystem.readRange.
+     */
+    int read(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        long chunkIndex = position / chunkSize;
+        int n = 0;
+
+        while (n < len) {
+            final ChunkKey key;
+            final boolean hit;
+            final RandomAccessFile raf;
+            final long chunkLength;
+            final int read;
+
+            chunkIndex = (position + n) / chunkSize;
+            key = new ChunkKey(fullPath, chunkIndex);
+            hit = chunks.getIfPresent(key) != null;
+            raf = openChunk(key);
+            try {
+                chunkLength = raf.length();
+                read = readChunk(raf, (int)((position + n) % chunkSize), b, off + n, len - n);
+            } finally {
+                raf.close();
+            }
+            if (read <= 0) {
+                break;
+            }
+            (hit ? hitBytes : missBytes).addAndGet(read);
+            n += read;
+            if (chunkLength < chunkSize) {
+                /* last chunk of the file */
+                break;
+            }
+        }
+
+        readAhead(fullPath, position / chunkSize, chunkIndex);
+        return (n == 0 && len > 0) ? -1 : n;
+    }
+
+    private static int readChunk(RandomAccessFile raf, int chunkOffset, byte[] b, int off, int len) throws IOException {
+        final int available = (int)Math.min(len, raf.length() - chunkOffset);
+        if (available <= 0) {
+            return -1;
+        }
+        raf.seek(chunkOffset);
+        raf.readFully(b, off, available);
+        return available;
+    }
+
+    private void readAhead(final String fullPath, long firstChunk, long lastChunk) {
+        final Long previous = lastChunkRead.getIfPresent(fullPath);
+
+        lastChunkRead.put(fullPath, lastChunk);
+        if (readAheadChunks <= 0 || previous == null || (firstChunk != previous && firstChunk != previous + 1)) {
+            /* not a sequential scan */
+            return;
+        }
+        for (long i = lastChunk + 1; i <= lastChunk + readAheadChunks; i++) {
+            final ChunkKey key = new ChunkKey(fullPath, i);
+            if (chunks.getIfPresent(key) != null) {
+                continue;
+            }
+            readAheadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        chunks.get(key);
+                        readAheadChunkCount.incrementAndGet();
+                    } catch (ExecutionException e) {
+                        log.warn("read ahead of " + key + " failed", e.getCause());
+                    }
+                }
+            });
+        }
+    }
+
+    @Export(name = "hit-bytes", doc = "bytes read from chunks that were already cached")
+    public long getHitBytes() {
+        return hitBytes.get();
+    }
+
+    @Export(name = "miss-bytes", doc = "bytes read from chunks that had to be downloaded first")
+    public long getMissBytes() {
+        return missBytes.get();
+    }
+
+    @Export(name = "downloaded-bytes", doc = "bytes downloaded into the chunk cache, including read ahead")
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    @Export(name = "read-ahead-chunks", doc = "chunks prefetched for sequential reads")
+    public long getReadAheadChunkCount() {
+        return readAheadChunkCount.get();
+    }
+
+    @Export(name = "cached-chunks", doc = "number of chunks in the cache")
+    public long getCachedChunks() {
+        return chunks.size();
+    }
+
+    /*
+     * A downloaded chunk file.  Opening and deleting it are serialized, so a
+     * read that got the chunk from the cache never races its eviction.
+     */
+    private static final class Chunk {
+        final File file;
+        final long length;
+        private boolean deleted = false;
+
+        Chunk(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        /*
+         * Returns null if the chunk was evicted and its file deleted.  Once
+         * open the file stays readable even if the chunk is evicted.
+         */
+        synchronized RandomAccessFile open() throws IOException {
+            if (deleted) {
+                return null;
+            }
+            return new RandomAccessFile(file, "r");
+        }
+
+        synchronized void delete() {
+            deleted = true;
+            file.delete();
+        }
+    }
+
+    private static final class ChunkKey {
+        final String fullPath;
+        final long index;
+
+        ChunkKey(String fullPath, long index) {
+            this.fullPath = fullPath;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final ChunkKey that = (ChunkKey) o;
+            return index == that.index && fullPath.equals(that.fullPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fullPath.hashCode() + (int) (index ^ (index >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return fullPath + INDEX_SEPARATOR + index;
+        }
+    }
+}
@@ -87,6 +87,22 @@ public class RemappingRemoteFileSystem extends RemoteFileSystem {
         return fs.loadDirectory(fullPath, location);
     }
 
+    @Override
+    public int readRange(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        RemoteFileSystem fs;
+
+        fs = mounter.findMountPoint(fullPath);
+        return fs.readRange(fullPath, position, b, off, len);
+    }
+
+    @Override
+    public String getContentKey(String fullPath) throws IOException {
+        RemoteFileSystem fs;
+
+        fs = mounter.findMountPoint(fullPath);
+        return fs.getContentKey(fullPath);
+    }
+
     @Override
     public InputStream getInputStreamForFile(String fullPath, 
                                              long startOffset, 
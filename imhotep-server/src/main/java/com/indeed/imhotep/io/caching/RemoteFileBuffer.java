@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.io.caching;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Read only view of a remote file with the same positional accessors as
+ * MMapBuffer's memory.  Nothing is loaded up front; each access faults in the
+ * page around it through CachedFile.readRange, so with a chunk cache below it
+ * only the touched chunks of the file are ever downloaded.  The length of the
+ * file is not known without loading it, so reads that may run into the end of
+ * the file use read() instead of getBytes().
+ */
+public class RemoteFileBuffer {
+    private static final int PAGE_SIZE = 64 * 1024;
+
+    private final CachedFile file;
+    private final ByteBuffer page;
+    private long pageStart = -1;
+    private int pageLength = 0;
+
+    RemoteFileBuffer(CachedFile file, ByteOrder order) {
+        this.file = file;
+        page = ByteBuffer.allocate(PAGE_SIZE);
+        page.order(order);
+    }
+
+    public ByteOrder getOrder() {
+        return page.order();
+    }
+
+    /* returns the offset into page of address, with at least len bytes after it */
+    private int fault(long address, int len) {
+        final int n;
+
+        if (address < 0) {
+            throw new IndexOutOfBoundsException("address " + address + " is negative");
+        }
+        if (pageStart >= 0 && address >= pageStart && address + len <= pageStart + pageLength) {
+            return (int)(address - pageStart);
+        }
+        try {
+            n = readFully(address, page.array(), 0, PAGE_SIZE);
+        } catch (IOException e) {
+            pageStart = -1;
+            throw new RuntimeException(e);
+        }
+        pageStart = address;
+        pageLength = n;
+        if (n < len) {
+            throw new IndexOutOfBoundsException("address " + (address + len) + " is past the end of " + file.fullPath);
+        }
+        return 0;
+    }
+
+    private int readFully(long address, byte[] b, int off, int len) throws IOException {
+        int n = 0;
+
+        while (n < len) {
+            final int read = file.readRange(address + n, b, off + n, len - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
+    public synchronized byte getByte(long address) {
+        return page.get(fault(address, 1));
+    }
+
+    public synchronized short getShort(long address) {
+        return page.getShort(fault(address, 2));
+    }
+
+    public synchronized int getInt(long address) {
+        return page.getInt(fault(address, 4));
+    }
+
+    public synchronized long getLong(long address) {
+        return page.getLong(fault(address, 8));
+    }
+
+    public synchronized void getBytes(long address, byte[] b, int off, int len) {
+        if (len > PAGE_SIZE) {
+            /* too big for the page, read straight into the destination */
+            try {
+                if (address < 0 || readFully(address, b, off, len) < len) {
+                    throw new IndexOutOfBoundsException("address " + (address + len) + " is past the end of " + file.fullPath);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+        System.arraycopy(page.array(), fault(address, len), b, off, len);
+    }
+
+    public void getBytes(long address, byte[] b) {
+        getBytes(address, b, 0, b.length);
+    }
+
+    /*
+     * Copies up to len bytes starting at address into b, fewer only at the end
+     * of the file.  Returns the number of bytes copied.
+     */
+    public synchronized int read(long address, byte[] b, int off, int len) {
+        if (address < 0) {
+            throw new IndexOutOfBoundsException("address " + address + " is negative");
+        }
+        if (len > PAGE_SIZE) {
+            try {
+                return readFully(address, b, off, len);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        final boolean inPage = pageStart >= 0 && address >= pageStart && address + len <= pageStart + pageLength;
+        /* a short page already runs to the end of the file */
+        final boolean pastEnd = pageStart >= 0 && address >= pageStart && pageLength < PAGE_SIZE;
+        if (!inPage && !pastEnd) {
+            try {
+                pageLength = readFully(address, page.array(), 0, PAGE_SIZE);
+                pageStart = address;
+            } catch (IOException e) {
+                pageStart = -1;
+                throw new RuntimeException(e);
+            }
+        }
+        final long available = Math.max(0, Math.min(len, pageStart + pageLength - address));
+        if (available > 0) {
+            System.arraycopy(page.array(), (int)(address - pageStart), b, off, (int)available);
+        }
+        return (int)available;
+    }
+}
@@ -75,4 +75,47 @@ public abstract class RemoteFileSystem {
                                                       long startOffset, 
                                                       long maxReadLength) throws IOException;
 
+    /*
+     * Reads up to len bytes of the file starting at position without loading the
+     * whole file locally.  Returns the number of bytes read, which is only less
+     * than len at the end of the file, or -1 if position is past the end.
+     */
+    public int readRange(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        final InputStream is = getInputStreamForFile(fullPath, position, len);
+        try {
+            return readFully(is, b, off, len);
+        } finally {
+            is.close();
+        }
+    }
+
+    /*
+     * Returns a key that is equal for any two files with the same contents,
+     * or null if the file system has no cheap way of telling.  Caches use it
+     * to reuse a copy they already have instead of loading the file again.
+     */
+    public String getContentKey(String fullPath) throws IOException {
+        return null;
+    }
+
+    /*
+     * Drops any local copy of the file, for example because it turned out to
+     * be corrupt, so that the next load fetches it again.  Anything that
+     * already has the copy open keeps reading it until it closes it.
+     */
+    public void invalidate(String fullPath) {
+    }
+
+    protected static int readFully(InputStream is, byte[] b, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            final int read = is.read(b, off + n, len - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return (n == 0 && len > 0) ? -1 : n;
+    }
+
 }
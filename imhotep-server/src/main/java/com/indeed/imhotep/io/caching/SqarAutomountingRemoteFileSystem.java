@@ -116,6 +116,47 @@ public class SqarAutomountingRemoteFileSystem extends RemoteFileSystem {
         }
     }
 
+    @Override
+    public int readRange(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        final String sqarPath;
+        final SqarRemoteFileSystem newFS;
+
+        try {
+            return parentFS.readRange(fullPath, position, b, off, len);
+        } catch(IOException e) {
+            sqarPath = scanPathForSqar(fullPath);
+            if (sqarPath == null) {
+                /* no sqar archives found */
+                throw e;
+            }
+            newFS = mountNewSqarFS(sqarPath);
+
+            /* now rerun query with new fs */
+            return newFS.readRange(fullPath, position, b, off, len);
+        }
+    }
+
+    @Override
+    public String getContentKey(String fullPath) throws IOException {
+        final String sqarPath;
+        final SqarRemoteFileSystem newFS;
+
+        if (parentFS.stat(fullPath) != null) {
+            /* not in an archive */
+            return parentFS.getContentKey(fullPath);
+        }
+
+        sqarPath = scanPathForSqar(fullPath);
+        if (sqarPath == null) {
+            /* no sqar archives found */
+            return null;
+        }
+        newFS = mountNewSqarFS(sqarPath);
+
+        /* now rerun query with new fs */
+        return newFS.getContentKey(fullPath);
+    }
+
     @Override
     public RemoteFileInfo stat(String fullPath) {
         final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
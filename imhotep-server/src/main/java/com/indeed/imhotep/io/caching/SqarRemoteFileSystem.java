@@ -14,29 +14,107 @@
  package com.indeed.imhotep.io.caching;
 
 import java.io.*;
-import java.security.DigestInputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import com.indeed.imhotep.archive.ArchiveUtils;
+import com.indeed.imhotep.archive.ChecksumInputStream;
 import com.indeed.imhotep.archive.FileMetadata;
+import com.indeed.imhotep.archive.SquallArchiveIndex;
+import com.indeed.imhotep.archive.compression.BlockCompressedEntryReader;
 import com.indeed.imhotep.archive.compression.SquallArchiveCompressor;
 
 public class SqarRemoteFileSystem extends RemoteFileSystem {
+    private static final Logger log = Logger.getLogger(SqarRemoteFileSystem.class);
+
     private static final String SUFFIX = ".sqar";
     private static final String METADATA_FILE = "metadata.txt";
 
+    /*
+     * When to verify the checksum of a file copied out of the archive: on
+     * every copy, only on the first copy of each file by this mount, or on a
+     * background thread after the copy has already been handed out.
+     */
+    public static enum VerifyPolicy {
+        ALWAYS("always"),
+        FIRST_READ("first-read"),
+        BACKGROUND("background");
+
+        private final String key;
+
+        private VerifyPolicy(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public static VerifyPolicy fromKey(String key) {
+            for (final VerifyPolicy policy : values()) {
+                if (policy.key.equals(key)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException("unknown checksum verification policy: " + key);
+        }
+    }
+
+    private static final ExecutorService backgroundVerifier =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "SqarChecksumVerifier");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /*
+     * Open readers of block compressed entries, shared by all mounts and keyed
+     * by archive file and entry offset.  Each one holds a block sized buffer
+     * and an inflater, so only the most recently used are kept.
+     */
+    private static final int MAX_BLOCK_READERS = 64;
+    private static final Cache<String, BlockCompressedEntryReader> blockReaders =
+            CacheBuilder.newBuilder()
+                        .maximumSize(MAX_BLOCK_READERS)
+                        .removalListener(new RemovalListener<String, BlockCompressedEntryReader>() {
+                            public void onRemoval(RemovalNotification<String, BlockCompressedEntryReader> rn) {
+                                rn.getValue().close();
+                            }
+                        })
+                        .build();
+
     final private String mountPoint;
     final private RemoteFileSystemMounter mounter;
     final private RemoteFileSystem parentFS;
+    final private VerifyPolicy verifyPolicy;
+    final private Set<String> verifiedFiles =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private SquallArchiveIndex index;
 
     public SqarRemoteFileSystem(Map<String,Object> settings, 
                               RemoteFileSystem parent,
@@ -54,82 +132,74 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
         mountPoint = mp.replace("//", "/");
         
         this.mounter = mounter;
+
+        if (settings.containsKey("checksum-verification")) {
+            verifyPolicy = VerifyPolicy.fromKey((String)settings.get("checksum-verification"));
+        } else {
+            verifyPolicy = VerifyPolicy.ALWAYS;
+        }
     }
 
 
-    private static FileMetadata parseMetadata(String line) throws IOException {
-        final String[] split = line.split("\t");
-        
-        if (split.length < 5) {
-            throw new IOException("malformed metadata line: " + line);
-        }
-        final String filename = split[0];
-        final long size = Long.parseLong(split[1]);
-        final long timestamp = Long.parseLong(split[2]);
-        final String checksum = split[3];
-        final long startOffset = Long.parseLong(split[4]);
-        final SquallArchiveCompressor compressor = split.length > 5 ?
-                SquallArchiveCompressor.fromKey(split[5]) : SquallArchiveCompressor.NONE;
-        final String archiveFilename = split.length > 6 ? split[6] : "archive.bin";
-        return new FileMetadata(filename, size, timestamp, checksum, startOffset, compressor,
-                                archiveFilename);
-   }
-    
-    private FileMetadata scanMetadataForFile(String file) throws IOException {
-        final InputStream metadataIS;
+    /*
+     * Loads the archive index on first use and keeps it for the life of this mount, so
+     * lookups are binary searches instead of a download and scan of metadata.txt each.
+     */
+    private synchronized SquallArchiveIndex getIndex() throws IOException {
         final String sqarpath;
-        final BufferedReader r;
-        
-        /* download metadata file */
-        sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
-        metadataIS = parentFS.getInputStreamForFile(sqarpath + DELIMITER + METADATA_FILE, 0, -1);
-        
-        /* parse file */
-        r = new BufferedReader(new InputStreamReader(metadataIS, Charsets.UTF_8));
+        final String metadataPath;
 
-        try {
-            for (String line = r.readLine(); line != null; line = r.readLine()) {
-                final FileMetadata metadata = parseMetadata(line);
-                if (file.equals(metadata.getFilename())) {
-                    return metadata;
-                }
+        if (index != null) {
+            return index;
+        }
+
+        sqarpath = getSqarPath();
+        metadataPath = sqarpath + DELIMITER + METADATA_FILE;
+        if (parentFS.stat(sqarpath + DELIMITER + SquallArchiveIndex.INDEX_FILENAME) != null) {
+            final SquallArchiveIndex idx = SquallArchiveIndex.read(
+                    parentFS.getInputStreamForFile(sqarpath + DELIMITER + SquallArchiveIndex.INDEX_FILENAME, 0, -1));
+            if (isIndexCurrent(metadataPath, idx)) {
+                index = idx;
+                return index;
             }
-            /* found nothing */
-            return null;
-        } finally {
-            r.close();
-            metadataIS.close();
+            /* metadata.txt was appended to by a writer that does not update metadata.idx */
         }
+        /* archive predates metadata.idx, or its metadata.idx is out of date */
+        index = SquallArchiveIndex.readText(parentFS.getInputStreamForFile(metadataPath, 0, -1));
+        return index;
+    }
+
+    /*
+     * Whether metadata.txt still has the length recorded in the index.  The
+     * file system has no cheap way to get the length, so this reads the last
+     * byte the index covers and the one after it instead, which only the
+     * first of exists if metadata.txt has not grown.
+     */
+    private boolean isIndexCurrent(String metadataPath, SquallArchiveIndex idx) throws IOException {
+        final long length = idx.getMetadataTextLength();
+        final byte[] probe = new byte[2];
+
+        if (length < 0) {
+            /* written before the index recorded it */
+            return false;
+        }
+        if (length == 0) {
+            return parentFS.readRange(metadataPath, 0, probe, 0, 1) < 0;
+        }
+        return parentFS.readRange(metadataPath, length - 1, probe, 0, 2) == 1;
+    }
+
+    private FileMetadata scanMetadataForFile(String file) throws IOException {
+        return getIndex().get(file);
     }
 
     private List<FileMetadata> scanMetadataForPrefix(String prefix, boolean stopAfterFirst) throws IOException {
-        final InputStream metadataIS;
-        final String sqarpath;
-        final BufferedReader r;
-        final List<FileMetadata> results = new ArrayList<FileMetadata>(500);
-        
-        /* download metadata file */
-        sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
-        metadataIS = parentFS.getInputStreamForFile(sqarpath + DELIMITER + METADATA_FILE, 0, -1);
-        
-        /* parse file */
-        r = new BufferedReader(new InputStreamReader(metadataIS, Charsets.UTF_8));
+        final List<FileMetadata> results = getIndex().getWithPrefix(prefix);
 
-        try {
-            for (String line = r.readLine(); line != null; line = r.readLine()) {
-                final FileMetadata metadata = parseMetadata(line);
-                if (metadata.getFilename().startsWith(prefix)) {
-                    results.add(metadata);
-                    if (stopAfterFirst) {
-                        break;
-                    }
-                }
-            }
-            return results;
-        } finally {
-            r.close();
-            metadataIS.close();
+        if (stopAfterFirst && results.size() > 1) {
+            return results.subList(0, 1);
         }
+        return results;
     }
 
     
@@ -149,36 +219,150 @@ public class SqarRemoteFileSystem extends RemoteFileSystem {
         /* download compressed file */
         final long startOffset = metadata.getStartOffset();
         final long originalSize = metadata.getSize();
-        final String archiveFile = metadata.getArchiveFilename();
-        final String sqarpath;
         final String archivePath;
-        final DigestInputStream digestStream;
+        final boolean verify;
+        final ChecksumInputStream checksumStream;
         final OutputStream os;
 
-        sqarpath = mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
-        archivePath = sqarpath + DELIMITER + archiveFile;
+        archivePath = getArchivePath(metadata);
         is = parentFS.getInputStreamForFile(archivePath, 
                                             startOffset, 
-                                            originalSize + 2048 /* for safety */);
+                                            metadata.getCompressedSize() >= 0 ?
+                                                    metadata.getCompressedSize() :
+                                                    originalSize + 2048 /* for safety */);
+        verify = verifyPolicy == VerifyPolicy.ALWAYS
+                || (verifyPolicy == VerifyPolicy.FIRST_READ && !verifiedFiles.contains(relativePath));
         try {
             compressor = metadata.getCompressor();
             
-            digestStream = new DigestInputStream(compressor.newInputStream(is), 
-                                                 ArchiveUtils.getMD5Digest());
+            final InputStream uncompressed = compressor.newInputStream(is);
+            checksumStream = verify ? new ChecksumInputStream(uncompressed, metadata) : null;
             os = new BufferedOutputStream(new FileOutputStream(localFile));
-            ArchiveUtils.streamCopy(digestStream, os, originalSize);
+            ArchiveUtils.streamCopy(verify ? checksumStream : uncompressed, os, originalSize);
             os.close();
         } finally {
             is.close();
         }
 
-        final String checksum = ArchiveUtils.toHex(digestStream.getMessageDigest().digest());
-        if (!checksum.equals(metadata.getChecksum())) {
-            throw new IOException("invalid checksum for file " + fullPath + 
-                                  " in archive " + archivePath + 
-                                  ": file checksum = " + checksum + 
-                                  ", checksum in metadata = " + metadata.getChecksum());
+        if (verify) {
+            checksumStream.verify(fullPath + " in archive " + archivePath);
+            verifiedFiles.add(relativePath);
+        } else if (verifyPolicy == VerifyPolicy.BACKGROUND) {
+            verifyInBackground(fullPath, localFile, metadata);
+        }
+    }
+
+    private void verifyInBackground(final String fullPath,
+                                    final File localFile,
+                                    final FileMetadata metadata) {
+        backgroundVerifier.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!localFile.exists()) {
+                    /* already evicted */
+                    return;
+                }
+                try {
+                    ChecksumInputStream.verify(localFile, metadata);
+                } catch (IOException e) {
+                    /*
+                     * drop it from the cache so that it is not handed out any
+                     * longer than it already has been, and is fetched again
+                     * next time.  the cache deletes it, which leaves it to
+                     * anything still reading it until they close it.
+                     */
+                    log.error("copy of " + fullPath + " is corrupt, invalidating it", e);
+                    mounter.getTopFileSystem().invalidate(fullPath);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int readRange(String fullPath, long position, byte[] b, int off, int len) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        final FileMetadata metadata;
+        final String archivePath;
+
+        metadata = scanMetadataForFile(relativePath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + relativePath + " in archive.");
+        }
+        if (position >= metadata.getSize()) {
+            return -1;
+        }
+        len = (int)Math.min(len, metadata.getSize() - position);
+
+        archivePath = getArchivePath(metadata);
+        if (metadata.getCompressor() == SquallArchiveCompressor.NONE) {
+            /* stored as is, read straight out of the archive file */
+            return parentFS.readRange(archivePath, metadata.getStartOffset() + position, b, off, len);
+        }
+        if (metadata.getCompressor().isRandomAccess() && metadata.getCompressedSize() >= 0) {
+            return getBlockReader(metadata, archivePath).read(position, b, off, len);
+        }
+
+        /*
+         * stream compressed, so reaching a range means decompressing
+         * everything before it.  load the whole file into the cache once
+         * instead, where the cache finds it for every later read.
+         */
+        final File cachedFile = mounter.getTopFileSystem().loadFile(fullPath);
+        final RandomAccessFile raf = new RandomAccessFile(cachedFile, "r");
+        try {
+            raf.seek(position);
+            return readFully(Channels.newInputStream(raf.getChannel()), b, off, len);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private BlockCompressedEntryReader getBlockReader(final FileMetadata metadata,
+                                                      final String archivePath) throws IOException {
+        try {
+            return blockReaders.get(archivePath + "@" + metadata.getStartOffset(),
+                                    new Callable<BlockCompressedEntryReader>() {
+                @Override
+                public BlockCompressedEntryReader call() throws IOException {
+                    return new BlockCompressedEntryReader(new BlockCompressedEntryReader.Source() {
+                        @Override
+                        public void readFully(long position, byte[] b, int off, int len) throws IOException {
+                            final int read = parentFS.readRange(archivePath, metadata.getStartOffset() + position, b, off, len);
+                            if (read != len) {
+                                throw new EOFException("archive " + archivePath + " ended inside " + metadata.getFilename());
+                            }
+                        }
+                    }, metadata.getCompressedSize(), metadata.getSize());
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private String getSqarPath() {
+        return mountPoint.substring(0, mountPoint.length() - DELIMITER.length()) + SUFFIX;
+    }
+
+    /*
+     * Files that a newer version of the archive reused from an older one are
+     * read out of the older version's archive files, which sit next to this
+     * one.
+     */
+    private String getArchivePath(FileMetadata metadata) {
+        return ArchiveUtils.resolveArchivePath(getSqarPath(), metadata.getArchiveFilename());
+    }
+
+    @Override
+    public String getContentKey(String fullPath) throws IOException {
+        final String relativePath = mounter.getMountRelativePath(fullPath, mountPoint);
+        final FileMetadata metadata;
+
+        metadata = scanMetadataForFile(relativePath);
+        if (metadata == null) {
+            throw new FileNotFoundException("Could not locate " + relativePath + " in archive.");
         }
+        return metadata.getContentKey();
     }
 
     @Override
@@ -107,6 +107,17 @@ final class BitSetGroupLookup extends GroupLookup {
         }
     }
 
+    @Override
+    public void fillRange(int start, int end, int group) {
+        if (group == 0) {
+            bitSet.clearRange(start, end);
+        } else if (group == 1) {
+            bitSet.setRange(start, end);
+        } else {
+            throw new IllegalArgumentException("max allowed group is 1, was passed in "+group);
+        }
+    }
+
     @Override
     public void copyInto(GroupLookup other) {
         if (size != other.size()) {
@@ -106,6 +106,15 @@ final class ByteGroupLookup extends GroupLookup {
         Arrays.fill(docIdToGroup, (byte)group);
     }
 
+    @Override
+    public void fillRange(int start, int end, int group) {
+        if (group > 255) {
+            throw new IllegalArgumentException("group is too big: max=255, group="+group);
+        }
+
+        Arrays.fill(docIdToGroup, start, end, (byte)group);
+    }
+
     @Override
     public void copyInto(GroupLookup other) {
         if (docIdToGroup.length != other.size()) {
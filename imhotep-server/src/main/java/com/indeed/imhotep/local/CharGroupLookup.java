@@ -106,6 +106,15 @@ final class CharGroupLookup extends GroupLookup {
         Arrays.fill(docIdToGroup, (char)group);
     }
 
+    @Override
+    public void fillRange(int start, int end, int group) {
+        if (group > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("group is too big: group="+group+", max="+Character.MAX_VALUE);
+        }
+
+        Arrays.fill(docIdToGroup, start, end, (char)group);
+    }
+
     @Override
     public void copyInto(GroupLookup other) {
         if (docIdToGroup.length != other.size()) {
@@ -83,6 +83,11 @@ final class ConstantGroupLookup extends GroupLookup {
         // no-op
     }
 
+    @Override
+    public void fillRange(int start, int end, int group) {
+        throw new UnsupportedOperationException("bug!");
+    }
+
     @Override
     public void copyInto(GroupLookup other) {
         other.fill(constant);
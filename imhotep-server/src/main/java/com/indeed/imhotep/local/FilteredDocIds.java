@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+
+/**
+ * The docs of a session that are kept when an optimize drops the docs in group 0, and their new doc ids. Built in one
+ * pass over the session's {@link GroupLookup} and held as a bit per doc plus a count of the kept docs before every 64
+ * of them, 12 bytes per 64 docs instead of an old to new doc id table of 4 bytes per doc. A new doc id is the count
+ * before the doc's word plus a popcount within it.
+ */
+final class FilteredDocIds {
+    private final long[] kept;
+    private final int[] ranks;
+    private final int numDocs;
+    private final int numKept;
+
+    private FilteredDocIds(long[] kept, int[] ranks, int numDocs, int numKept) {
+        this.kept = kept;
+        this.ranks = ranks;
+        this.numDocs = numDocs;
+        this.numKept = numKept;
+    }
+
+    static FilteredDocIds create(GroupLookup docIdToGroup, MemoryReserver memory) throws ImhotepOutOfMemoryException {
+        final int numDocs = docIdToGroup.size();
+        final int numWords = (numDocs + 63) >>> 6;
+        if (!memory.claimMemory(numWords * 12L)) {
+            throw new ImhotepOutOfMemoryException();
+        }
+        final long[] kept = new long[numWords];
+        final int[] ranks = new int[numWords];
+        int numKept = 0;
+        for (int word = 0; word < numWords; ++word) {
+            ranks[word] = numKept;
+            final int start = word << 6;
+            final int end = Math.min(numDocs, start + 64);
+            long bits = 0L;
+            for (int doc = start; doc < end; ++doc) {
+                if (docIdToGroup.get(doc) != 0) {
+                    bits |= 1L << (doc - start);
+                }
+            }
+            kept[word] = bits;
+            numKept += Long.bitCount(bits);
+        }
+        return new FilteredDocIds(kept, ranks, numDocs, numKept);
+    }
+
+    int getNumDocs() {
+        return numDocs;
+    }
+
+    int getNumKept() {
+        return numKept;
+    }
+
+    boolean isKept(int doc) {
+        return (kept[doc >>> 6] & (1L << doc)) != 0;
+    }
+
+    /**
+     * @return the new doc id of doc, or -1 if it is dropped
+     */
+    int newDocId(int doc) {
+        final long bits = kept[doc >>> 6];
+        final long bit = 1L << doc;
+        if ((bits & bit) == 0) {
+            return -1;
+        }
+        return ranks[doc >>> 6] + Long.bitCount(bits & (bit - 1));
+    }
+
+    long memoryUsed() {
+        return kept.length * 12L;
+    }
+}
@@ -29,6 +29,8 @@ abstract class GroupLookup {
     abstract void set(int doc, int group);
     abstract void batchSet(int[] docIdBuf, int[] docGrpBuffer, int n);
     abstract void fill(int group);
+    /* sets the group of docs start (inclusive) to end (exclusive) */
+    abstract void fillRange(int start, int end, int group);
     abstract void copyInto(GroupLookup other);
     abstract int size();
     abstract int maxGroup();
@@ -25,13 +25,18 @@ import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.flamdex.api.FieldStatsProvider;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntTermSetIterator;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
 import com.indeed.flamdex.api.RawFlamdexReader;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.StringTermSetIterator;
 import com.indeed.flamdex.api.StringValueLookup;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
@@ -39,10 +44,7 @@ import com.indeed.flamdex.fieldcache.ByteArrayIntValueLookup;
 import com.indeed.flamdex.fieldcache.IntArrayIntValueLookup;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
-import com.indeed.flamdex.reader.FlamdexMetadata;
 import com.indeed.flamdex.search.FlamdexSearcher;
-import com.indeed.flamdex.simple.SimpleFlamdexReader;
-import com.indeed.flamdex.simple.SimpleFlamdexWriter;
 import com.indeed.flamdex.utils.FlamdexUtils;
 import com.indeed.imhotep.AbstractImhotepSession;
 import com.indeed.imhotep.FTGSSplitter;
@@ -86,7 +88,6 @@ import com.indeed.imhotep.metrics.NotEqual;
 import com.indeed.imhotep.metrics.ShiftLeftAndDivide;
 import com.indeed.imhotep.metrics.Subtraction;
 import com.indeed.imhotep.protobuf.QueryMessage;
-import com.indeed.imhotep.service.CachedFlamdexReader;
 import com.indeed.imhotep.service.RawCachedFlamdexReader;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.Throwables2;
@@ -99,10 +100,10 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectHeapPriorityQueue;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -115,7 +116,6 @@ import java.io.Serializable;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -155,6 +155,8 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     private SharedReference<FlamdexReader> flamdexReaderRef;
     private FlamdexReader originalReader;
     private SharedReference<FlamdexReader> originalReaderRef;
+    /* the reader under flamdexReader if the session is optimized */
+    private OptimizedFlamdexReader optimizedReader;
 
     private final String optimizedIndexesDir;
 
@@ -259,10 +261,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     }
 
     /*
-     * Finds a good place to store the new, optimized shard and opens a
-     * SimpleFlamdexWriter to it.
+     * Finds a good place to store the new, optimized shard and creates a
+     * directory for it.
      */
-    private SimpleFlamdexWriter createNewTempWriter(int maxDocs) throws IOException {
+    private String createNewTempDirectory() throws IOException {
         final File tempIdxDir;
         final String newShardName;
         final File newShardDir;
@@ -272,44 +274,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         newShardDir = new File(tempIdxDir, newShardName);
         newShardDir.mkdir();
 
-        return new SimpleFlamdexWriter(newShardDir.getCanonicalPath(), maxDocs);
-    }
-
-    /* wrapper for SimpleFlamdexReader which deletes the on disk data on close() */
-    private static class AutoDeletingReader extends SimpleFlamdexReader {
-
-        public AutoDeletingReader(String directory,
-                                  int numDocs,
-                                  Collection<String> intFields,
-                                  Collection<String> stringFields,
-                                  boolean useMMapMetrics) {
-            super(directory, numDocs, intFields, stringFields, useMMapMetrics);
-        }
-
-        public static AutoDeletingReader open(String directory) throws IOException {
-            return open(directory, new Config());
-        }
-
-        public static AutoDeletingReader open(String directory, Config config) throws IOException {
-            final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(directory);
-            final Collection<String> intFields = scan(directory, ".intterms");
-            final Collection<String> stringFields = scan(directory, ".strterms");
-            if (config.isWriteBTreesIfNotExisting()) {
-                buildIntBTrees(directory, Lists.newArrayList(intFields));
-                buildStringBTrees(directory, Lists.newArrayList(stringFields));
-            }
-            return new AutoDeletingReader(directory, metadata.numDocs, intFields, stringFields,
-                                          config.isUseMMapMetrics());
-        }
-
-        @Override
-        public void close() throws IOException {
-            File dir = new File(this.directory);
-            super.close();
-
-            FileUtils.deleteDirectory(dir);
-        }
-
+        return newShardDir.getCanonicalPath();
     }
 
     /* Tweak to ObjectOutputStream which allows it to append to an existing file */
@@ -327,29 +292,48 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     }
 
+    /**
+     * Drops the docs in group 0 from the session. The fields are rewritten lazily, see {@link OptimizedFlamdexReader},
+     * and the stats on the stack are carried over by remapping their values rather than pushed again, unless one of
+     * them reads a dynamic metric, which has to see later updates.
+     */
     @Override
     public synchronized void rebuildAndFilterIndexes(@Nonnull final List<String> intFields,
                                                      @Nonnull final List<String> stringFields) throws ImhotepOutOfMemoryException {
         final IndexReWriter rewriter;
         final ObjectOutputStream oos;
-        final SimpleFlamdexWriter w;
-        final ArrayList<String> statsCopy;
+        final OptimizedFlamdexReader optimized;
 
         long time = System.currentTimeMillis();
 
-        /* pop off all the stats, they will be repushed after the optimization */
-        statsCopy = new ArrayList<String>(this.statCommands);
-        while (this.numStats > 0) {
-            this.popStat();
+        boolean carryOverStats = true;
+        for (String stat : this.statCommands) {
+            if (stat.startsWith("dynamic ")) {
+                carryOverStats = false;
+            }
+        }
+        final ArrayList<String> statsCopy = new ArrayList<String>(this.statCommands);
+        if (!carryOverStats) {
+            /* pop off all the stats, they will be repushed after the optimization */
+            while (this.numStats > 0) {
+                this.popStat();
+            }
+            this.statCommands.clear();
         }
-        this.statCommands.clear();
 
         MemoryReservationContext rewriterMemory = new MemoryReservationContext(memory);
         rewriter = new IndexReWriter(Arrays.asList(this), this, rewriterMemory);
         try {
-            w = createNewTempWriter(this.numDocs);
-            rewriter.optimizeIndecies(intFields, stringFields, w);
-            w.close();
+            rewriter.filterDocIds();
+
+            /*
+             * the previous optimized index is still needed to rewrite fields
+             * from, the new one closes it
+             */
+            final Closeable previous = this.originalReaderRef != null ? this.flamdexReaderRef : null;
+            optimized = new OptimizedFlamdexReader(createNewTempDirectory(), rewriter, intFields,
+                                                   stringFields, memory, previous);
+            rewriterMemory.hoist(rewriter.getFiltersMemoryUsed());
 
             /*
              * save a record of the merge, so it can be unwound later if the
@@ -369,7 +353,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             record.time = time;
             record.intFieldsMerged = intFields;
             record.stringFieldsMerged = stringFields;
-            record.shardLocation = w.getOutputDirectory();
+            record.shardLocation = optimized.getDirectory();
             record.mergedShards = new ArrayList<ShardMergeInfo>();
 
             ShardMergeInfo info = new ShardMergeInfo();
@@ -406,35 +390,36 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             }
             if (this.originalReaderRef == null) {
                 this.originalReaderRef = this.flamdexReaderRef;
-            } else {
-                /* close the unnecessary optimized index */
-                this.flamdexReaderRef.close();
             }
 
-            FlamdexReader flamdex = AutoDeletingReader.open(w.getOutputDirectory());
-            if (flamdex instanceof RawFlamdexReader) {
-                this.flamdexReader =
-                        new RawCachedFlamdexReader(new MemoryReservationContext(memory),
-                                                   (RawFlamdexReader) flamdex, null, null, null,
-                                                   null);
-            } else {
-                this.flamdexReader =
-                        new CachedFlamdexReader(new MemoryReservationContext(memory), flamdex,
-                                                null, null, null, null);
-            }
+            this.flamdexReader =
+                    new RawCachedFlamdexReader(new MemoryReservationContext(memory), optimized,
+                                               null, null, null, null);
             this.flamdexReaderRef = SharedReference.create(this.flamdexReader);
+            this.optimizedReader = optimized;
 
             /* alter tracking fields to reflect the removal of group 0 docs */
             this.numDocs = this.flamdexReader.getNumDocs();
             this.groupDocCount[0] = 0;
 
-            /* push the stats back on */
-            for (String stat : statsCopy) {
-                if ("pop".equals(stat)) {
-                    this.popStat();
-                } else {
-                    this.pushStat(stat);
+            if (carryOverStats) {
+                try {
+                    carryOverStats(info.newDocIdToOldDocId);
+                } catch (ImhotepOutOfMemoryException e) {
+                    /*
+                     * the stats on the stack still look up old doc ids, so
+                     * pop them and push them again against the new index, as
+                     * when they can't be carried over
+                     */
+                    log.warn("not enough memory to carry over stats, pushing them again", e);
+                    while (this.numStats > 0) {
+                        this.popStat();
+                    }
+                    this.statCommands.clear();
+                    replayStats(statsCopy);
                 }
+            } else {
+                replayStats(statsCopy);
             }
 
         } catch (IOException e) {
@@ -443,6 +428,86 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     }
 
+    /**
+     * push the stats back on after they were popped, from a copy of statCommands
+     */
+    private void replayStats(final List<String> statsCopy) throws ImhotepOutOfMemoryException {
+        for (String stat : statsCopy) {
+            if ("pop".equals(stat)) {
+                this.popStat();
+            } else {
+                this.pushStat(stat);
+            }
+        }
+    }
+
+    /**
+     * replace the stats on the stack with their values for the docs that are left, read from the old stats through
+     * the new to old doc id mapping. a {@link CachedMetric} only takes memory for stats that vary, and only as much per
+     * doc as their range needs, so carrying over count() or a flag is free or nearly so.
+     */
+    private void carryOverStats(final int[] newDocIdToOldDocId) throws ImhotepOutOfMemoryException {
+        final IntValueLookup[] carried = new IntValueLookup[numStats];
+        try {
+            for (int i = 0; i < numStats; i++) {
+                carried[i] = new CachedMetric(new RemappedLookup(statLookup[i], newDocIdToOldDocId),
+                                              numDocs, memory);
+            }
+        } catch (ImhotepOutOfMemoryException e) {
+            for (int i = 0; i < numStats && carried[i] != null; i++) {
+                carried[i].close();
+            }
+            throw e;
+        }
+        for (int i = 0; i < numStats; i++) {
+            statLookup[i].close();
+            statLookup[i] = carried[i];
+            needToReCalcGroupStats[i] = true;
+        }
+    }
+
+    private static final class RemappedLookup implements IntValueLookup {
+        private final IntValueLookup wrapped;
+        private final int[] newDocIdToOldDocId;
+        private int[] oldDocIds = new int[0];
+
+        private RemappedLookup(IntValueLookup wrapped, int[] newDocIdToOldDocId) {
+            this.wrapped = wrapped;
+            this.newDocIdToOldDocId = newDocIdToOldDocId;
+        }
+
+        @Override
+        public long getMin() {
+            return wrapped.getMin();
+        }
+
+        @Override
+        public long getMax() {
+            return wrapped.getMax();
+        }
+
+        @Override
+        public void lookup(int[] docIds, long[] values, int n) {
+            if (oldDocIds.length < n) {
+                oldDocIds = new int[n];
+            }
+            for (int i = 0; i < n; i++) {
+                oldDocIds[i] = newDocIdToOldDocId[docIds[i]];
+            }
+            wrapped.lookup(oldDocIds, values, n);
+        }
+
+        @Override
+        public long memoryUsed() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            // the wrapped lookup is still on the stack
+        }
+    }
+
     /*
      * Resets the Falmdex readers to the original un-optimized versions and
      * constructs the DynamicMetrics to match what they should be if no
@@ -556,6 +621,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         this.flamdexReaderRef = this.originalReaderRef;
         this.originalReader = null;
         this.originalReaderRef = null;
+        this.optimizedReader = null;
 
         this.numDocs = this.flamdexReader.getNumDocs();
 
@@ -627,6 +693,9 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 }
             }
         }
+        if (optimizedReader != null) {
+            optimizedReader.rewriteFields(intFields, stringFields);
+        }
         if (flamdexReader instanceof RawFlamdexReader) {
             return new RawFlamdexFTGSIterator(this, flamdexReaderRef.copy(), intFields,
                                               stringFields);
@@ -636,6 +705,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
 
     @Override
     public FTGSIterator getSubsetFTGSIterator(Map<String, long[]> intFields, Map<String, String[]> stringFields) {
+        if (optimizedReader != null) {
+            optimizedReader.rewriteFields(intFields.keySet().toArray(new String[intFields.size()]),
+                                          stringFields.keySet().toArray(new String[stringFields.size()]));
+        }
         if (flamdexReader instanceof RawFlamdexReader) {
             return new RawFlamdexSubsetFTGSIterator(this, flamdexReaderRef.copy(), intFields,
                     stringFields);
@@ -1075,22 +1148,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                                                                             // ==
                                                                             // positiveGroup
 
-        int termsIndex = 0;
-        while (iter.next()) {
-            final long term = iter.term();
-            while (termsIndex < terms.length && terms[termsIndex] < term) {
-                ++termsIndex;
-            }
-
-            if (termsIndex < terms.length && term == terms[termsIndex]) {
-                docIdStream.reset(iter);
-                remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
-                ++termsIndex;
-            }
-
-            if (termsIndex == terms.length) {
-                break;
-            }
+        final IntTermSetIterator matches = new IntTermSetIterator(iter, terms);
+        while (matches.next()) {
+            docIdStream.reset(iter);
+            remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
         }
         docIdStream.close();
         iter.close();
@@ -1118,22 +1179,10 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         final DocIdStream docIdStream = flamdexReader.getDocIdStream();
         final ThreadSafeBitSet docRemapped = new ThreadSafeBitSet(numDocs);
 
-        int termsIndex = 0;
-        while (iter.next()) {
-            final String term = iter.term();
-            while (termsIndex < terms.length && terms[termsIndex].compareTo(term) < 0) {
-                ++termsIndex;
-            }
-
-            if (termsIndex < terms.length && terms[termsIndex].equals(term)) {
-                docIdStream.reset(iter);
-                remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
-                ++termsIndex;
-            }
-
-            if (termsIndex == terms.length) {
-                break;
-            }
+        final StringTermSetIterator matches = new StringTermSetIterator(iter, terms);
+        while (matches.next()) {
+            docIdStream.reset(iter);
+            remapPositiveDocs(docIdStream, docRemapped, targetGroup, positiveGroup);
         }
         docIdStream.close();
         iter.close();
@@ -1312,6 +1361,11 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
     public List<TermCount> approximateTopTerms(String field, boolean isIntField, int k) {
         k = Math.min(k, 1000);
 
+        final List<TermCount> recorded = getRecordedTopTerms(field, isIntField, k);
+        if (recorded != null) {
+            return recorded;
+        }
+
         if (isIntField) {
             final PriorityQueue<IntTermWithFreq> pq =
                     new ObjectHeapPriorityQueue<IntTermWithFreq>(k, INT_FREQ_COMPARATOR);
@@ -1371,6 +1425,27 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
     }
 
+    /* the top terms sampled when the shard was written, or null if they were not or are too few for k */
+    private List<TermCount> getRecordedTopTerms(String field, boolean isIntField, int k) {
+        if (!(flamdexReader instanceof FieldStatsProvider)) {
+            return null;
+        }
+        final FieldStatsProvider statsProvider = (FieldStatsProvider)flamdexReader;
+        final FieldStats stats = isIntField ? statsProvider.getIntFieldStats(field) : statsProvider.getStringFieldStats(field);
+        if (stats == null || (stats.getTopTermCount() < k && !stats.isTopTermSampleComplete())) {
+            return null;
+        }
+        final int n = Math.min(k, stats.getTopTermCount());
+        final List<TermCount> ret = Lists.newArrayListWithCapacity(n);
+        for (int i = 0; i < n; i++) {
+            final Term term = isIntField
+                    ? new Term(field, true, stats.getTopIntTerm(i), "")
+                    : new Term(field, false, 0, stats.getTopStringTerm(i));
+            ret.add(new TermCount(term, stats.getTopTermDocFreq(i)));
+        }
+        return ret;
+    }
+
     private static final Comparator<IntTermWithFreq> INT_FREQ_COMPARATOR =
             new Comparator<IntTermWithFreq>() {
                 @Override
@@ -1486,35 +1561,54 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, newMaxGroup, memory);
 
         final IntValueLookup lookup = statLookup[stat];
+        final IntValueZoneMap zoneMap = getZoneMap(lookup);
 
         final int numDocs = docIdToGroup.size();
-        for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
+        for (int zoneStart = 0; zoneStart < numDocs; zoneStart += IntValueZoneMap.ZONE_SIZE) {
+            final int zoneEnd = zoneStart + Math.min(IntValueZoneMap.ZONE_SIZE, numDocs - zoneStart);
+
+            // when all values in the zone go to the same bucket the docs can be moved without looking them up
+            if (zoneMap != null) {
+                final int zone = zoneStart / IntValueZoneMap.ZONE_SIZE;
+                final int bucket = getZoneBucket(zoneMap.getMin(zone), zoneMap.getMax(zone), min, max, intervalSize, numBuckets);
+                if (bucket > numBuckets && noGutters) {
+                    docIdToGroup.fillRange(zoneStart, zoneEnd, 0);
+                    continue;
+                }
+                if (bucket > 0) {
+                    regroupToBucket(zoneStart, zoneEnd, bucket, noGutters ? numBuckets : numBuckets + 2);
+                    continue;
+                }
+            }
 
-            final int n = Math.min(BUFFER_SIZE, numDocs - doc);
+            for (int doc = zoneStart; doc < zoneEnd; doc += BUFFER_SIZE) {
 
-            docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                final int n = Math.min(BUFFER_SIZE, zoneEnd - doc);
 
-            int numNonZero = 0;
-            for (int i = 0; i < n; ++i) {
-                if (docGroupBuffer[i] != 0) {
-                    docGroupBuffer[numNonZero] = docGroupBuffer[i];
-                    docIdBuf[numNonZero++] = doc + i;
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+
+                int numNonZero = 0;
+                for (int i = 0; i < n; ++i) {
+                    if (docGroupBuffer[i] != 0) {
+                        docGroupBuffer[numNonZero] = docGroupBuffer[i];
+                        docIdBuf[numNonZero++] = doc + i;
+                    }
                 }
-            }
 
-            if (numNonZero == 0) {
-                continue;
-            }
+                if (numNonZero == 0) {
+                    continue;
+                }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+                lookup.lookup(docIdBuf, valBuf, numNonZero);
 
-            if (noGutters) {
-                internalMetricRegroupNoGutters(min, max, intervalSize, numBuckets, numNonZero);
-            } else {
-                internalMetricRegroupGutters(min, max, intervalSize, numBuckets, numNonZero);
-            }
+                if (noGutters) {
+                    internalMetricRegroupNoGutters(min, max, intervalSize, numBuckets, numNonZero);
+                } else {
+                    internalMetricRegroupGutters(min, max, intervalSize, numBuckets, numNonZero);
+                }
 
-            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+            }
         }
 
         finalizeRegroup();
@@ -1522,6 +1616,51 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         return docIdToGroup.getNumGroups();
     }
 
+    /**
+     * @return the zone map of lookup if it has one for the docs of this session, otherwise null
+     */
+    private IntValueZoneMap getZoneMap(IntValueLookup lookup) {
+        final IntValueZoneMap zoneMap = IntValueZoneMap.of(lookup);
+        return zoneMap != null && zoneMap.getNumDocs() == numDocs ? zoneMap : null;
+    }
+
+    /**
+     * @return the bucket of metricRegroup that every value from zoneMin to zoneMax falls into, numBuckets + 1 and
+     *         numBuckets + 2 for the gutters below min and at or above max, or -1 if they fall into more than one
+     */
+    private static int getZoneBucket(long zoneMin, long zoneMax, long min, long max, long intervalSize, int numBuckets) {
+        if (zoneMax < min) {
+            return numBuckets + 1;
+        }
+        if (zoneMin >= max) {
+            return numBuckets + 2;
+        }
+        if (zoneMin < min || zoneMax >= max) {
+            return -1;
+        }
+        final int bucket = (int) ((zoneMin - min) / intervalSize + 1);
+        return bucket == (int) ((zoneMax - min) / intervalSize + 1) ? bucket : -1;
+    }
+
+    private void regroupToBucket(int start, int end, int bucket, int bucketsPerGroup) {
+        for (int doc = start; doc < end; doc += BUFFER_SIZE) {
+            final int n = Math.min(BUFFER_SIZE, end - doc);
+
+            docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+
+            int numNonZero = 0;
+            for (int i = 0; i < n; ++i) {
+                final int group = docGroupBuffer[i];
+                if (group != 0) {
+                    docGroupBuffer[numNonZero] = (group - 1) * bucketsPerGroup + bucket;
+                    docIdBuf[numNonZero++] = doc + i;
+                }
+            }
+
+            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+        }
+    }
+
     private void internalMetricRegroupGutters(long min, long max, long intervalSize, int numBuckets, int numNonZero) {
         for (int i = 0; i < numNonZero; ++i) {
             final int group;
@@ -1654,38 +1793,54 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
         }
         docIdToGroup = GroupLookupFactory.resize(docIdToGroup, docIdToGroup.getNumGroups(), memory);
         final IntValueLookup lookup = statLookup[stat];
+        final IntValueZoneMap zoneMap = getZoneMap(lookup);
 
         final int numDocs = docIdToGroup.size();
-        for (int doc = 0; doc < numDocs; doc += BUFFER_SIZE) {
+        for (int zoneStart = 0; zoneStart < numDocs; zoneStart += IntValueZoneMap.ZONE_SIZE) {
+            final int zoneEnd = zoneStart + Math.min(IntValueZoneMap.ZONE_SIZE, numDocs - zoneStart);
+
+            // zones entirely inside or outside of the range are kept or dropped as a whole
+            if (zoneMap != null) {
+                final int overlap = zoneMap.rangeOverlap(zoneStart / IntValueZoneMap.ZONE_SIZE, min, max);
+                if (overlap != IntValueZoneMap.SOME_IN_RANGE) {
+                    if ((overlap == IntValueZoneMap.ALL_IN_RANGE) == negate) {
+                        docIdToGroup.fillRange(zoneStart, zoneEnd, 0);
+                    }
+                    continue;
+                }
+            }
 
-            final int n = Math.min(BUFFER_SIZE, numDocs - doc);
+            for (int doc = zoneStart; doc < zoneEnd; doc += BUFFER_SIZE) {
 
-            docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+                final int n = Math.min(BUFFER_SIZE, zoneEnd - doc);
 
-            int numNonZero = 0;
-            for (int i = 0; i < n; ++i) {
-                final int group = docGroupBuffer[i];
-                if (group != 0) {
-                    docIdBuf[numNonZero] = doc + i;
-                    docGroupBuffer[numNonZero++] = group;
+                docIdToGroup.fillDocGrpBufferSequential(doc, docGroupBuffer, n);
+
+                int numNonZero = 0;
+                for (int i = 0; i < n; ++i) {
+                    final int group = docGroupBuffer[i];
+                    if (group != 0) {
+                        docIdBuf[numNonZero] = doc + i;
+                        docGroupBuffer[numNonZero++] = group;
+                    }
                 }
-            }
 
-            if (numNonZero == 0) {
-                continue;
-            }
+                if (numNonZero == 0) {
+                    continue;
+                }
 
-            lookup.lookup(docIdBuf, valBuf, numNonZero);
+                lookup.lookup(docIdBuf, valBuf, numNonZero);
 
-            for (int i = 0; i < numNonZero; ++i) {
-                final long val = valBuf[i];
-                final boolean valInRange = val >= min && val <= max;
-                if (valInRange == negate) {
-                    docGroupBuffer[i] = 0;
+                for (int i = 0; i < numNonZero; ++i) {
+                    final long val = valBuf[i];
+                    final boolean valInRange = val >= min && val <= max;
+                    if (valInRange == negate) {
+                        docGroupBuffer[i] = 0;
+                    }
                 }
-            }
 
-            docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+                docIdToGroup.batchSet(docIdBuf, docGroupBuffer, numNonZero);
+            }
         }
 
         finalizeRegroup();
@@ -2131,25 +2286,30 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
             final DocIdStream docIdStream = flamdexReader.getDocIdStream();
             if (fieldIsIntType) {
                 final IntTermIterator termIterator = flamdexReader.getIntTermIterator(fieldName);
-                for (int index : indices) {
-                    final long term = conditions[index].intTerm;
-                    final int delta = deltas[index];
-                    termIterator.reset(term);
-                    if (termIterator.next() && termIterator.term() == term) {
+                final long[] terms = new long[indices.size()];
+                for (int i = 0; i < terms.length; i++) {
+                    terms[i] = conditions[indices.get(i)].intTerm;
+                }
+                final IntTermSetIterator matches = new IntTermSetIterator(termIterator, terms);
+                while (matches.next()) {
+                    // the same term can be in more than one condition
+                    for (int i = matches.getIndex(); i < terms.length && terms[i] == matches.term(); i++) {
                         docIdStream.reset(termIterator);
-                        adjustDeltas(metric, docIdStream, delta);
+                        adjustDeltas(metric, docIdStream, deltas[indices.get(i)]);
                     }
                 }
             } else {
                 final StringTermIterator termIterator =
                         flamdexReader.getStringTermIterator(fieldName);
-                for (int index : indices) {
-                    final String term = conditions[index].stringTerm;
-                    final int delta = deltas[index];
-                    termIterator.reset(term);
-                    if (termIterator.next() && termIterator.term().equals(term)) {
+                final String[] terms = new String[indices.size()];
+                for (int i = 0; i < terms.length; i++) {
+                    terms[i] = conditions[indices.get(i)].stringTerm;
+                }
+                final StringTermSetIterator matches = new StringTermSetIterator(termIterator, terms);
+                while (matches.next()) {
+                    for (int i = matches.getIndex(); i < terms.length && terms[i].equals(matches.term()); i++) {
                         docIdStream.reset(termIterator);
-                        adjustDeltas(metric, docIdStream, delta);
+                        adjustDeltas(metric, docIdStream, deltas[indices.get(i)]);
                     }
                 }
             }
@@ -2222,13 +2382,15 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final String field = entry.getKey();
                 final Long2ObjectMap<Pair<IntArrayList, IntArrayList>> termToGroupDeltas = entry.getValue();
                 intTermIterator = flamdexReader.getIntTermIterator(field);
-                for (Long2ObjectMap.Entry<Pair<IntArrayList, IntArrayList>> entry2 : termToGroupDeltas.long2ObjectEntrySet()) {
+                final long[] terms = termToGroupDeltas.keySet().toLongArray();
+                Arrays.sort(terms);
+                final IntTermSetIterator matches = new IntTermSetIterator(intTermIterator, terms);
+                while (matches.next()) {
                     for (int i = 0; i < groupsSet.size(); i++) {
                         groupsWithCurrentTerm.clear(groupsSet.getInt(i));
                     }
                     groupsSet.clear();
-                    final long term = entry2.getLongKey();
-                    final Pair<IntArrayList, IntArrayList> groupDeltas = entry2.getValue();
+                    final Pair<IntArrayList, IntArrayList> groupDeltas = termToGroupDeltas.get(matches.term());
                     final IntArrayList termGroups = groupDeltas.getFirst();
                     final IntArrayList termDeltas = groupDeltas.getSecond();
                     for (int i = 0; i < termGroups.size(); i++) {
@@ -2237,9 +2399,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                         groupToDelta[group] = termDeltas.getInt(i);
                         groupsSet.add(group);
                     }
-                    intTermIterator.reset(term);
-                    if (!intTermIterator.next()) continue;
-                    if (intTermIterator.term() != term) continue;
                     docIdStream.reset(intTermIterator);
                     updateDocsWithTermDynamicMetric(metric, groupsWithCurrentTerm, groupToDelta, docIdStream);
                 }
@@ -2249,13 +2408,15 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                 final String field = entry.getKey();
                 final Map<String, Pair<IntArrayList, IntArrayList>> termToGroupDeltas = entry.getValue();
                 stringTermIterator = flamdexReader.getStringTermIterator(field);
-                for (Map.Entry<String, Pair<IntArrayList, IntArrayList>> entry2 : termToGroupDeltas.entrySet()) {
+                final String[] terms = termToGroupDeltas.keySet().toArray(new String[termToGroupDeltas.size()]);
+                Arrays.sort(terms);
+                final StringTermSetIterator matches = new StringTermSetIterator(stringTermIterator, terms);
+                while (matches.next()) {
                     for (int i = 0; i < groupsSet.size(); i++) {
                         groupsWithCurrentTerm.clear(groupsSet.getInt(i));
                     }
                     groupsSet.clear();
-                    final String term = entry2.getKey();
-                    final Pair<IntArrayList, IntArrayList> groupDeltas = entry2.getValue();
+                    final Pair<IntArrayList, IntArrayList> groupDeltas = termToGroupDeltas.get(matches.term());
                     final IntArrayList termGroups = groupDeltas.getFirst();
                     final IntArrayList termDeltas = groupDeltas.getSecond();
                     for (int i = 0; i < termGroups.size(); i++) {
@@ -2264,9 +2425,6 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                         groupToDelta[group] = termDeltas.getInt(i);
                         groupsSet.add(group);
                     }
-                    stringTermIterator.reset(term);
-                    if (!stringTermIterator.next()) continue;
-                    if (!stringTermIterator.term().equals(term)) continue;
                     docIdStream.reset(stringTermIterator);
                     updateDocsWithTermDynamicMetric(metric, groupsWithCurrentTerm, groupToDelta, docIdStream);
                 }
@@ -2359,6 +2517,7 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     this.flamdexReaderRef.close();
                     this.flamdexReader = this.originalReader;
                     this.flamdexReaderRef = this.originalReaderRef;
+                    this.optimizedReader = null;
                 }
             } catch (IOException e) {
                 log.error("Could not close optimized reader");
@@ -2514,22 +2673,23 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     } while (true);
                 }
             } else {
-                for (final long term : summary.otherTerms) {
-                    itr.reset(term);
-                    if (itr.next() && itr.term() == term) {
-                        docIdStream.reset(itr);
-                        do {
-                            final int n = docIdStream.fillDocIdBuffer(docIdBuf);
-                            docIdToGroup.applyIntConditionsCallback(n,
-                                                                    docRemapped,
-                                                                    remapRules,
-                                                                    intField,
-                                                                    term);
-                            if (n != docIdBuf.length) {
-                                break;
-                            }
-                        } while (true);
-                    }
+                final long[] terms = Longs.toArray(summary.otherTerms);
+                Arrays.sort(terms);
+                final IntTermSetIterator matches = new IntTermSetIterator(itr, terms);
+                while (matches.next()) {
+                    final long term = matches.term();
+                    docIdStream.reset(itr);
+                    do {
+                        final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                        docIdToGroup.applyIntConditionsCallback(n,
+                                                                docRemapped,
+                                                                remapRules,
+                                                                intField,
+                                                                term);
+                        if (n != docIdBuf.length) {
+                            break;
+                        }
+                    } while (true);
                 }
             }
             itr.close();
@@ -2568,22 +2728,23 @@ public final class ImhotepLocalSession extends AbstractImhotepSession {
                     } while (true);
                 }
             } else {
-                for (final String term : summary.otherTerms) {
-                    itr.reset(term);
-                    if (itr.next() && itr.term().equals(term)) {
-                        docIdStream.reset(itr);
-                        do {
-                            final int n = docIdStream.fillDocIdBuffer(docIdBuf);
-                            docIdToGroup.applyStringConditionsCallback(n,
-                                                                       docRemapped,
-                                                                       remapRules,
-                                                                       stringField,
-                                                                       term);
-                            if (n != docIdBuf.length) {
-                                break;
-                            }
-                        } while (true);
-                    }
+                final String[] terms = summary.otherTerms.toArray(new String[summary.otherTerms.size()]);
+                Arrays.sort(terms);
+                final StringTermSetIterator matches = new StringTermSetIterator(itr, terms);
+                while (matches.next()) {
+                    final String term = matches.term();
+                    docIdStream.reset(itr);
+                    do {
+                        final int n = docIdStream.fillDocIdBuffer(docIdBuf);
+                        docIdToGroup.applyStringConditionsCallback(n,
+                                                                   docRemapped,
+                                                                   remapRules,
+                                                                   stringField,
+                                                                   term);
+                        if (n != docIdBuf.length) {
+                            break;
+                        }
+                    } while (true);
                 }
             }
             itr.close();
@@ -17,11 +17,11 @@ import javax.annotation.Nonnull;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
 import com.google.common.collect.Maps;
+import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermDocIterator;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.writer.FlamdexWriter;
@@ -33,12 +33,14 @@ import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 public class IndexReWriter {
     private final List<ImhotepLocalSession> sessions;
     private final ImhotepLocalSession newSession;
-    private int[] sessionDocIdOffsets;
+    private final int[] sessionDocIdOffsets;
     private final MemoryReservationContext memory;
+    private List<FlamdexReader> readers;
+    private List<FilteredDocIds> filters;
     private GroupLookup newGroupLookup;
     private List<int[]> perSessionMappings;
     private Map<String, DynamicMetric> dynamicMetrics;
-    private long newMaxDocs;
+    private int newMaxDocs;
 
     public IndexReWriter(List<ImhotepLocalSession> localSessions, 
                          ImhotepLocalSession newSession,
@@ -65,213 +67,194 @@ public class IndexReWriter {
         return sessions.size();
     }
 
+    public int getNewMaxDocs() {
+        return newMaxDocs;
+    }
+
+    /**
+     * @return the memory used by the doc id filters, which are needed for as long as fields may be rewritten
+     */
+    long getFiltersMemoryUsed() {
+        long ret = 0;
+        for (final FilteredDocIds filter : filters) {
+            ret += filter.memoryUsed();
+        }
+        return ret;
+    }
+
     public void optimizeIndecies(@Nonnull final List<String> intFields,
                                  @Nonnull final List<String> stringFields,
                                  @Nonnull final FlamdexWriter w) throws IOException,
                                                                 ImhotepOutOfMemoryException {
-        final int[] docIdBuffer = new int[128];
-        List<IntTermDocIterator> intIters = new ArrayList<IntTermDocIterator>(sessions.size());
-        List<StringTermDocIterator> stringIters =
-                new ArrayList<StringTermDocIterator>(sessions.size());
-        List<Integer> sessionOffsets = new ArrayList<Integer>(this.sessionDocIdOffsets.length);
-        int[] oldToNewDocIdMapping;
-
-        oldToNewDocIdMapping = remapDocIds(this.sessions);
+        filterDocIds();
         w.resetMaxDocs(this.newMaxDocs);
 
         for (final String intField : intFields) {
-            intIters.clear();
-            sessionOffsets.clear();
-            for (int i = 0; i < sessions.size(); i++) {
-                ImhotepLocalSession session = sessions.get(i);
-                IntTermDocIterator iter = session.getReader().getIntTermDocIterator(intField);
-                if (iter == null) {
-                    continue;
-                }
-                intIters.add(iter);
-                sessionOffsets.add(this.sessionDocIdOffsets[i]);
-            }
-            final MergingIntTermDocIterator iter =
-                    new MergingIntTermDocIterator(intIters, oldToNewDocIdMapping, sessionOffsets);
-            final IntFieldWriter ifw = w.getIntFieldWriter(intField);
-            while (iter.nextTerm()) {
-                ifw.nextTerm(iter.term());
-                /*
-                 * Write all the terms and groups to the new index, skipping
-                 * those in group 0
-                 */
-                int n;
-                do {
-                    n = iter.fillDocIdBuffer(docIdBuffer);
-                    for (int i = 0; i < n; ++i) {
-                        final int docId = docIdBuffer[i];
-                        if (docId == -1) {
-                            /* doc was in group 0 */
-                            continue;
-                        }
-                        ifw.nextDoc(docId);
-                    }
-                } while (n == docIdBuffer.length);
-            }
-            iter.close();
-            ifw.close();
+            rewriteIntField(intField, w);
         }
-
         for (final String stringField : stringFields) {
-            stringIters.clear();
-            sessionOffsets.clear();
-            for (int i = 0; i < sessions.size(); i++) {
-                ImhotepLocalSession session = sessions.get(i);
-                StringTermDocIterator iter =
-                        session.getReader().getStringTermDocIterator(stringField);
-                if (iter == null) {
-                    continue;
-                }
-                stringIters.add(iter);
-                sessionOffsets.add(this.sessionDocIdOffsets[i]);
-            }
-            final MergingStringTermDocIterator iter =
-                    new MergingStringTermDocIterator(stringIters, oldToNewDocIdMapping,
-                                                     sessionOffsets);
-            final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
-            while (iter.nextTerm()) {
-                sfw.nextTerm(iter.term());
-                /*
-                 * Write all the terms and groups to the new index, skipping
-                 * those in group 0
-                 */
-                int n;
-                do {
-                    n = iter.fillDocIdBuffer(docIdBuffer);
-                    for (int i = 0; i < n; ++i) {
-                        final int docId = docIdBuffer[i];
-                        if (docId == -1) {
-                            /* doc was in group 0 */
-                            continue;
-                        }
-                        sfw.nextDoc(docId);
-                    }
-                } while (n == docIdBuffer.length);
-            }
-            iter.close();
-            sfw.close();
-        }
-
-        this.perSessionMappings = constructPerSessionNewToOldIdMappings(oldToNewDocIdMapping);
-
-        memory.releaseMemory(oldToNewDocIdMapping.length * 4L);
-    }
-
-    /*
-     * Converts the oldToNewDocIdMapping mapping into a set of 
-     * per session newToOldId mappings.  Needed for reconstructing 
-     * the DynamicMetrics after one or more optimize calls followed
-     * by a reset.
-     * 
-     * Kinda overkill now that multiple shards are not being merged 
-     * anymore 
-     */
-    private List<int[]> constructPerSessionNewToOldIdMappings(int[] oldToNewDocIdMapping) throws ImhotepOutOfMemoryException {
-        List<int[]> results = new ArrayList<int[]>(this.sessions.size());
-
-        for (int i = 0; i < this.sessions.size(); i++) {
-            int offset = this.sessionDocIdOffsets[i];
-            int nDocs = this.sessions.get(i).getNumDocs();
-            if (!memory.claimMemory(nDocs * 4L))
-                throw new ImhotepOutOfMemoryException();
-            int[] mapping = new int[nDocs];
-            int last = -1;
-            for (int oldDocId = offset; oldDocId < nDocs; oldDocId++) {
-                int newDocId = oldToNewDocIdMapping[oldDocId];
-                if (newDocId != -1) {
-                    mapping[newDocId] = oldDocId;
-                    last = newDocId;
-                }
-            }
-            /* claim memory for new array that is inserted into results */
-            if (!memory.claimMemory((last + 1) * 4L))
-                throw new ImhotepOutOfMemoryException();
-            results.add(Arrays.copyOf(mapping, last + 1));
-            
-            /* release memory for mapping[] */
-            memory.releaseMemory(nDocs * 4L);
+            rewriteStringField(stringField, w);
         }
-        return results;
     }
 
-    /*
-     * Maps the existing doc ids in the sessions to a new 
-     * non-overlapping set, skipping the docs in group 0.
-     * 
-     * Also constructs a new GroupLookup with these new doc 
-     * ids, and a new DynamicMetric
-     * 
-     * @returns A mapping from old doc id to new doc id - with 
-     *          -1 as the doc id for docs to be removed (the ones
-     *          in group 0)
+    /**
+     * Works out the new doc ids of the sessions, skipping the docs in group 0, along with the new GroupLookup,
+     * DynamicMetrics and per session mappings. Must be called before the fields are rewritten. The readers of the
+     * sessions are taken now, so the fields can be rewritten later from any thread, even once the sessions have
+     * moved on to the new index.
      */
-    private int[] remapDocIds(List<ImhotepLocalSession> sessions) throws ImhotepOutOfMemoryException {
-        int nTotalDocs = 0;
+    public void filterDocIds() throws ImhotepOutOfMemoryException {
+        readers = new ArrayList<FlamdexReader>(sessions.size());
+        filters = new ArrayList<FilteredDocIds>(sessions.size());
         int numGroups = 0;
         int newNumDocs = 0;
-        int nextDocId = 0;
-
-        /* calculate the number of docs and non-group0 docs */
         for (int i = 0; i < sessions.size(); i++) {
-            this.sessionDocIdOffsets[i] = nTotalDocs;
             final ImhotepLocalSession session = sessions.get(i);
-            final GroupLookup gl = session.docIdToGroup;
-            final int numDocs = gl.size();
-            final int grp0Docs = session.groupDocCount[0];
-            nTotalDocs += numDocs;
-            newNumDocs += numDocs - grp0Docs;
-            numGroups = Math.max(numGroups, gl.getNumGroups());
+            final FilteredDocIds filter = FilteredDocIds.create(session.docIdToGroup, memory);
+            readers.add(session.getReader());
+            filters.add(filter);
+            this.sessionDocIdOffsets[i] = newNumDocs;
+            newNumDocs += filter.getNumKept();
+            numGroups = Math.max(numGroups, session.docIdToGroup.getNumGroups());
         }
-
         this.newMaxDocs = newNumDocs;
 
-        /* allocate the old doc id to new doc id mapping */
-        if (!memory.claimMemory(nTotalDocs * 4L)) {
-            throw new ImhotepOutOfMemoryException();
-        }
-        final int[] mapping = new int[nTotalDocs];
-
-        /* populate mapping and new GroupLookup */
-        GroupLookup newGL = GroupLookupFactory.create(numGroups, 
-                                                      newNumDocs, 
-                                                      this.newSession, 
-                                                      memory);
-        for (int i = 0; i < sessions.size(); i++) {
-            final GroupLookup gl = sessions.get(i).docIdToGroup;
-            final int offset = this.sessionDocIdOffsets[i];
+        /* populate the new GroupLookup */
+        final GroupLookup newGL = GroupLookupFactory.create(numGroups,
+                                                            newNumDocs,
+                                                            this.newSession,
+                                                            memory);
+        int nextDocId = 0;
+        for (final ImhotepLocalSession session : sessions) {
+            final GroupLookup gl = session.docIdToGroup;
             for (int j = 0; j < gl.size(); j++) {
                 final int group = gl.get(j);
                 if (group != 0) {
-                    mapping[j + offset] = nextDocId;
                     newGL.set(nextDocId, group);
                     ++nextDocId;
-                } else {
-                    mapping[j + offset] = -1;
                 }
             }
         }
         newGL.recalculateNumGroups();
         this.newGroupLookup = newGL;
 
-        /*
-         * remap the dynamic metrics
-         */
+        this.dynamicMetrics = remapDynamicMetrics(newNumDocs);
+        this.perSessionMappings = constructPerSessionNewToOldIdMappings();
+    }
+
+    public void rewriteIntField(String intField, FlamdexWriter w) throws IOException {
+        final List<IntTermDocIterator> intIters = new ArrayList<IntTermDocIterator>(readers.size());
+        final List<FilteredDocIds> iterFilters = new ArrayList<FilteredDocIds>(readers.size());
+        final List<Integer> sessionOffsets = new ArrayList<Integer>(readers.size());
+        for (int i = 0; i < readers.size(); i++) {
+            IntTermDocIterator iter = readers.get(i).getIntTermDocIterator(intField);
+            if (iter == null) {
+                continue;
+            }
+            intIters.add(iter);
+            iterFilters.add(filters.get(i));
+            sessionOffsets.add(this.sessionDocIdOffsets[i]);
+        }
+        final MergingIntTermDocIterator iter =
+                new MergingIntTermDocIterator(intIters, iterFilters, sessionOffsets);
+        final IntFieldWriter ifw = w.getIntFieldWriter(intField);
+        final int[] docIdBuffer = new int[128];
+        while (iter.nextTerm()) {
+            ifw.nextTerm(iter.term());
+            /*
+             * Write all the terms and groups to the new index, skipping
+             * those in group 0
+             */
+            int n;
+            do {
+                n = iter.fillDocIdBuffer(docIdBuffer);
+                for (int i = 0; i < n; ++i) {
+                    final int docId = docIdBuffer[i];
+                    if (docId == -1) {
+                        /* doc was in group 0 */
+                        continue;
+                    }
+                    ifw.nextDoc(docId);
+                }
+            } while (n == docIdBuffer.length);
+        }
+        iter.close();
+        ifw.close();
+    }
+
+    public void rewriteStringField(String stringField, FlamdexWriter w) throws IOException {
+        final List<StringTermDocIterator> stringIters = new ArrayList<StringTermDocIterator>(readers.size());
+        final List<FilteredDocIds> iterFilters = new ArrayList<FilteredDocIds>(readers.size());
+        final List<Integer> sessionOffsets = new ArrayList<Integer>(readers.size());
+        for (int i = 0; i < readers.size(); i++) {
+            StringTermDocIterator iter = readers.get(i).getStringTermDocIterator(stringField);
+            if (iter == null) {
+                continue;
+            }
+            stringIters.add(iter);
+            iterFilters.add(filters.get(i));
+            sessionOffsets.add(this.sessionDocIdOffsets[i]);
+        }
+        final MergingStringTermDocIterator iter =
+                new MergingStringTermDocIterator(stringIters, iterFilters, sessionOffsets);
+        final StringFieldWriter sfw = w.getStringFieldWriter(stringField);
+        final int[] docIdBuffer = new int[128];
+        while (iter.nextTerm()) {
+            sfw.nextTerm(iter.term());
+            /*
+             * Write all the terms and groups to the new index, skipping
+             * those in group 0
+             */
+            int n;
+            do {
+                n = iter.fillDocIdBuffer(docIdBuffer);
+                for (int i = 0; i < n; ++i) {
+                    final int docId = docIdBuffer[i];
+                    if (docId == -1) {
+                        /* doc was in group 0 */
+                        continue;
+                    }
+                    sfw.nextDoc(docId);
+                }
+            } while (n == docIdBuffer.length);
+        }
+        iter.close();
+        sfw.close();
+    }
+
+    /*
+     * The old doc ids of the docs each session keeps, in new doc id order.
+     * Needed for reconstructing the DynamicMetrics after one or more
+     * optimize calls followed by a reset.
+     */
+    private List<int[]> constructPerSessionNewToOldIdMappings() throws ImhotepOutOfMemoryException {
+        List<int[]> results = new ArrayList<int[]>(this.sessions.size());
 
-        /* allocate the new DynamicMetrics */
+        for (final FilteredDocIds filter : filters) {
+            if (!memory.claimMemory(filter.getNumKept() * 4L))
+                throw new ImhotepOutOfMemoryException();
+            final int[] mapping = new int[filter.getNumKept()];
+            int newDocId = 0;
+            for (int oldDocId = 0; oldDocId < filter.getNumDocs(); oldDocId++) {
+                if (filter.isKept(oldDocId)) {
+                    mapping[newDocId++] = oldDocId;
+                }
+            }
+            results.add(mapping);
+        }
+        return results;
+    }
+
+    private Map<String, DynamicMetric> remapDynamicMetrics(int newNumDocs) throws ImhotepOutOfMemoryException {
         /* all session have the same # of dynamic metrics */
         int nDynMetrics = sessions.get(0).getDynamicMetrics().size();
-        if (!memory.claimMemory((nTotalDocs * 4L) * nDynMetrics)) {
+        if (!memory.claimMemory((newNumDocs * 4L) * nDynMetrics)) {
             throw new ImhotepOutOfMemoryException();
         }
         final Map<String, DynamicMetric> newDynMetrics = Maps.newHashMap();
         for (int i = 0; i < sessions.size(); i++) {
             ImhotepLocalSession s = sessions.get(i);
-            final GroupLookup gl = s.docIdToGroup;
+            final FilteredDocIds filter = filters.get(i);
             final int offset = this.sessionDocIdOffsets[i];
             for (Map.Entry<String, DynamicMetric> e : s.getDynamicMetrics().entrySet()) {
                 DynamicMetric oldDM = e.getValue();
@@ -279,18 +262,16 @@ public class IndexReWriter {
                 if (newDM == null) {
                     newDM = new DynamicMetric(newNumDocs);
                 }
-                for (int j = 0; j < gl.size(); j++) {
-                    int docId = mapping[j + offset];
-                    if (docId == -1)
-                        continue;
-                    newDM.add(docId, oldDM.lookupSingleVal(j));
+                int docId = offset;
+                for (int j = 0; j < filter.getNumDocs(); j++) {
+                    if (filter.isKept(j)) {
+                        newDM.add(docId++, oldDM.lookupSingleVal(j));
+                    }
                 }
                 newDynMetrics.put(e.getKey(), newDM);
             }
         }
-        this.dynamicMetrics = newDynMetrics;
-
-        return mapping;
+        return newDynMetrics;
     }
 
 }
@@ -102,6 +102,11 @@ final class IntGroupLookup extends GroupLookup {
         Arrays.fill(docIdToGroup, group);
     }
 
+    @Override
+    public void fillRange(int start, int end, int group) {
+        Arrays.fill(docIdToGroup, start, end, group);
+    }
+
     @Override
     public void copyInto(GroupLookup other) {
         if (docIdToGroup.length != other.size()) {
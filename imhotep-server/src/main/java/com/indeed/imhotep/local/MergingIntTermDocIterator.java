@@ -26,9 +26,9 @@ public class MergingIntTermDocIterator extends MergingTermDocIterator implements
 
     @SuppressWarnings("unchecked")
     public MergingIntTermDocIterator(List<IntTermDocIterator> tdIters,
-                                     int[] mapping,
+                                     List<FilteredDocIds> filters,
                                      List<Integer> iterNumToDocOffset) {
-        super((List<TermDocIterator>) (List<?>) tdIters, mapping, iterNumToDocOffset);
+        super((List<TermDocIterator>) (List<?>) tdIters, filters, iterNumToDocOffset);
         this.nextTerms = new long[iters.size()];
         currentTerm = Integer.MAX_VALUE;
         Arrays.fill(this.nextTerms, currentTerm);
@@ -68,9 +68,8 @@ public class MergingIntTermDocIterator extends MergingTermDocIterator implements
         itersAndOffsetsForTerm.clear();
         for (int i = 0; i < nextTerms.length; i++) {
             if (nextTerms[i] == currentTerm) {
-                int offset = iterNumToDocOffset.get(i);
                 itersAndOffsetsForTerm
-                        .add(new Pair<Integer, TermDocIterator>(offset, iters.get(i)));
+                        .add(new Pair<Integer, TermDocIterator>(i, iters.get(i)));
             }
         }
 
@@ -26,9 +26,9 @@ public class MergingStringTermDocIterator extends MergingTermDocIterator impleme
 
     @SuppressWarnings("unchecked")
     public MergingStringTermDocIterator(List<StringTermDocIterator> tdIters,
-                                        int[] mapping,
+                                        List<FilteredDocIds> filters,
                                         List<Integer> iterNumToDocOffset) {
-        super((List<TermDocIterator>) (List<?>) tdIters, mapping, iterNumToDocOffset);
+        super((List<TermDocIterator>) (List<?>) tdIters, filters, iterNumToDocOffset);
         this.nextTerms = new String[iters.size()];
         this.currentTerm = null;
     }
@@ -67,9 +67,8 @@ public class MergingStringTermDocIterator extends MergingTermDocIterator impleme
         itersAndOffsetsForTerm.clear();
         for (int i = 0; i < nextTerms.length; i++) {
             if (nextTerms[i] != null && currentTerm.equals(nextTerms[i])) {
-                int offset = iterNumToDocOffset.get(i);
                 itersAndOffsetsForTerm
-                        .add(new Pair<Integer, TermDocIterator>(offset, iters.get(i)));
+                        .add(new Pair<Integer, TermDocIterator>(i, iters.get(i)));
             }
         }
 
@@ -28,15 +28,19 @@ public abstract class MergingTermDocIterator implements TermDocIterator {
 
     protected final List<TermDocIterator> iters;
     protected final ArrayDeque<Pair<Integer, TermDocIterator>> itersAndOffsetsForTerm;
-    protected int[] oldToNewDocIdMapping;
+    protected List<FilteredDocIds> iterNumToFilter;
     protected List<Integer> iterNumToDocOffset;
 
+    /**
+     * @param filters the new doc ids of the docs of each iterator
+     * @param iterNumToDocOffset what to add to the new doc ids of each iterator
+     */
     public MergingTermDocIterator(List<TermDocIterator> tdIters,
-                                  int[] mapping,
+                                  List<FilteredDocIds> filters,
                                   List<Integer> iterNumToDocOffset) {
         this.iters = tdIters;
         this.itersAndOffsetsForTerm = new ArrayDeque<Pair<Integer, TermDocIterator>>(iters.size());
-        this.oldToNewDocIdMapping = mapping;
+        this.iterNumToFilter = filters;
         this.iterNumToDocOffset = iterNumToDocOffset;
     }
 
@@ -77,11 +81,12 @@ public abstract class MergingTermDocIterator implements TermDocIterator {
         return 0;
     }
 
-    private void renumberDocIds(int offset, int[] docIdBuffer, int start, int end) {
+    private void renumberDocIds(int iterNum, int[] docIdBuffer, int start, int end) {
+        final FilteredDocIds filter = iterNumToFilter.get(iterNum);
+        final int offset = iterNumToDocOffset.get(iterNum);
         for (int i = start; i < end; ++i) {
-            final int oldDocId = docIdBuffer[i];
-            final int newDocId = oldToNewDocIdMapping[oldDocId + offset];
-            docIdBuffer[i] = newDocId;
+            final int newDocId = filter.newDocId(docIdBuffer[i]);
+            docIdBuffer[i] = newDocId != -1 ? newDocId + offset : -1;
         }
     }
     
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.local;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.api.IntTermDocIterator;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.RawFlamdexReader;
+import com.indeed.flamdex.api.RawStringTermDocIterator;
+import com.indeed.flamdex.api.RawStringTermIterator;
+import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.util.core.io.Closeables2;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The index of an optimized session: the requested fields of its previous index with the docs in group 0 dropped.
+ * Nothing is rewritten when the session is optimized. Each field is written to a simple flamdex of its own under the
+ * directory the first time the session uses it, and read from there afterwards, so fields that are never used cost
+ * nothing. {@link #rewriteFields} writes the fields an operation is about to read in parallel.
+ *
+ * Fields that were not requested read as empty, as they would from an index written with only the requested fields.
+ * Deletes the directory when closed.
+ */
+final class OptimizedFlamdexReader implements RawFlamdexReader {
+    private static final Logger log = Logger.getLogger(OptimizedFlamdexReader.class);
+
+    private final String directory;
+    private final int numDocs;
+    private final List<String> intFields;
+    private final List<String> stringFields;
+    private final IndexReWriter rewriter;
+    /* holds no fields, used for doc id streams, which read the docs of any simple flamdex, and for missing fields */
+    private final SimpleFlamdexReader emptyReader;
+    private final Map<String, FutureTask<SimpleFlamdexReader>> intFieldReaders;
+    private final Map<String, FutureTask<SimpleFlamdexReader>> stringFieldReaders;
+
+    private final MemoryReserver memory;
+    private final long memoryUsed;
+    /* the index this one is rewritten from if that is itself optimized, closed along with this one */
+    private final Closeable previous;
+
+    /**
+     * @param rewriter a rewriter that {@link IndexReWriter#filterDocIds()} has been called on, whose filter memory
+     *                 has been claimed from memory and is released on close
+     */
+    OptimizedFlamdexReader(String directory,
+                           IndexReWriter rewriter,
+                           List<String> intFields,
+                           List<String> stringFields,
+                           MemoryReserver memory,
+                           Closeable previous) throws IOException {
+        this.directory = directory;
+        this.numDocs = rewriter.getNewMaxDocs();
+        this.intFields = intFields;
+        this.stringFields = stringFields;
+        this.rewriter = rewriter;
+        this.memory = memory;
+        this.memoryUsed = rewriter.getFiltersMemoryUsed();
+        this.previous = previous;
+
+        new SimpleFlamdexWriter(directory, numDocs).close();
+        emptyReader = SimpleFlamdexReader.open(directory);
+
+        final ImmutableMap.Builder<String, FutureTask<SimpleFlamdexReader>> intFieldReaders = ImmutableMap.builder();
+        for (final String intField : intFields) {
+            intFieldReaders.put(intField, newRewriteTask(intField, true));
+        }
+        this.intFieldReaders = intFieldReaders.build();
+        final ImmutableMap.Builder<String, FutureTask<SimpleFlamdexReader>> stringFieldReaders = ImmutableMap.builder();
+        for (final String stringField : stringFields) {
+            stringFieldReaders.put(stringField, newRewriteTask(stringField, false));
+        }
+        this.stringFieldReaders = stringFieldReaders.build();
+    }
+
+    private FutureTask<SimpleFlamdexReader> newRewriteTask(final String field, final boolean isIntField) {
+        return new FutureTask<SimpleFlamdexReader>(new Callable<SimpleFlamdexReader>() {
+            @Override
+            public SimpleFlamdexReader call() throws IOException {
+                final String fieldDirectory = new File(directory, (isIntField ? "int-" : "str-") + field).getPath();
+                final SimpleFlamdexWriter w = new SimpleFlamdexWriter(fieldDirectory, numDocs);
+                if (isIntField) {
+                    rewriter.rewriteIntField(field, w);
+                } else {
+                    rewriter.rewriteStringField(field, w);
+                }
+                w.close();
+                return SimpleFlamdexReader.open(fieldDirectory);
+            }
+        });
+    }
+
+    /**
+     * rewrite any of the fields that have not been yet, in parallel
+     */
+    void rewriteFields(String[] intFields, String[] stringFields) {
+        final List<FutureTask<SimpleFlamdexReader>> tasks = new ArrayList<FutureTask<SimpleFlamdexReader>>();
+        addPendingTasks(intFieldReaders, intFields, tasks);
+        addPendingTasks(stringFieldReaders, stringFields, tasks);
+        if (tasks.size() <= 1) {
+            return;
+        }
+
+        final int numThreads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("OptimizedFlamdexReader-rewrite-%d").build());
+        try {
+            for (final FutureTask<SimpleFlamdexReader> task : tasks) {
+                executor.execute(task);
+            }
+            for (final FutureTask<SimpleFlamdexReader> task : tasks) {
+                getReader(task);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void addPendingTasks(Map<String, FutureTask<SimpleFlamdexReader>> readers,
+                                        String[] fields,
+                                        List<FutureTask<SimpleFlamdexReader>> tasks) {
+        for (final String field : fields) {
+            final FutureTask<SimpleFlamdexReader> task = readers.get(field);
+            if (task != null && !task.isDone()) {
+                tasks.add(task);
+            }
+        }
+    }
+
+    /**
+     * rewrites the field in this thread if no other thread has started to, otherwise waits for it
+     */
+    private static SimpleFlamdexReader getReader(FutureTask<SimpleFlamdexReader> task) {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private SimpleFlamdexReader intFieldReader(String field) {
+        final FutureTask<SimpleFlamdexReader> task = intFieldReaders.get(field);
+        return task != null ? getReader(task) : emptyReader;
+    }
+
+    private SimpleFlamdexReader stringFieldReader(String field) {
+        final FutureTask<SimpleFlamdexReader> task = stringFieldReaders.get(field);
+        return task != null ? getReader(task) : emptyReader;
+    }
+
+    @Override
+    public Collection<String> getIntFields() {
+        return intFields;
+    }
+
+    @Override
+    public Collection<String> getStringFields() {
+        return stringFields;
+    }
+
+    @Override
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    @Override
+    public String getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public DocIdStream getDocIdStream() {
+        return emptyReader.getDocIdStream();
+    }
+
+    @Override
+    public IntTermIterator getIntTermIterator(String field) {
+        return intFieldReader(field).getIntTermIterator(field);
+    }
+
+    @Override
+    public RawStringTermIterator getStringTermIterator(String field) {
+        return stringFieldReader(field).getStringTermIterator(field);
+    }
+
+    @Override
+    public IntTermDocIterator getIntTermDocIterator(String field) {
+        return intFieldReader(field).getIntTermDocIterator(field);
+    }
+
+    @Override
+    public RawStringTermDocIterator getStringTermDocIterator(String field) {
+        return stringFieldReader(field).getStringTermDocIterator(field);
+    }
+
+    @Override
+    public long getIntTotalDocFreq(String field) {
+        return intFieldReader(field).getIntTotalDocFreq(field);
+    }
+
+    @Override
+    public long getStringTotalDocFreq(String field) {
+        return stringFieldReader(field).getStringTotalDocFreq(field);
+    }
+
+    @Override
+    public Collection<String> getAvailableMetrics() {
+        return intFields;
+    }
+
+    @Override
+    public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+        return intFieldReader(metric).getMetric(metric);
+    }
+
+    @Override
+    public StringValueLookup getStringLookup(String field) throws FlamdexOutOfMemoryException {
+        return stringFieldReader(field).getStringLookup(field);
+    }
+
+    @Override
+    public long memoryRequired(String metric) {
+        return intFieldReader(metric).memoryRequired(metric);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            final List<Closeable> readers = new ArrayList<Closeable>();
+            readers.add(emptyReader);
+            addRewrittenReaders(intFieldReaders, readers);
+            addRewrittenReaders(stringFieldReaders, readers);
+            Closeables2.closeAll(log, readers);
+            FileUtils.deleteDirectory(new File(directory));
+        } finally {
+            memory.releaseMemory(memoryUsed);
+            if (previous != null) {
+                previous.close();
+            }
+        }
+    }
+
+    private static void addRewrittenReaders(Map<String, FutureTask<SimpleFlamdexReader>> readers, List<Closeable> ret) {
+        for (final FutureTask<SimpleFlamdexReader> task : readers.values()) {
+            if (task.isDone()) {
+                try {
+                    ret.add(task.get());
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    // never rewritten, so nothing to close
+                }
+            }
+        }
+    }
+}
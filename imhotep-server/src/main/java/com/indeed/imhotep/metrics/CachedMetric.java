@@ -13,47 +13,122 @@
  */
  package com.indeed.imhotep.metrics;
 
-import com.google.common.primitives.Longs;
 import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.imhotep.MemoryReserver;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 
+import java.util.Arrays;
+
 /**
- * A precomputed, cached version of an arbitrary metric
- * @author dwahler
+ * A copy of the values of a lookup for every doc. The values are stored as offsets from their minimum in the
+ * narrowest array that holds their range, and not at all if they are all the same, so a cached count() costs nothing
+ * and a small range of values one or two bytes per doc instead of eight.
  */
 public class CachedMetric implements IntValueLookup {
+    private static final int BUFFER_SIZE = 8192;
+
     private final MemoryReserver memory;
-    private long[] values;
+    private final int numDocs;
     private long min, max;
+    /* at most one of these is set, none if min == max */
+    private byte[] byteValues;
+    private char[] charValues;
+    private int[] intValues;
+    private long[] longValues;
+    private long memoryUsed;
 
     public CachedMetric(IntValueLookup original, int numDocs, MemoryReserver memory) throws ImhotepOutOfMemoryException {
         this.memory = memory;
+        this.numDocs = numDocs;
+
+        // the bounds a lookup reports need not be tight, so find the actual range before choosing the storage
+        findRange(original);
+        final long range = max - min;
+        final int bytesPerDoc;
+        if (range == 0) {
+            bytesPerDoc = 0;
+        } else if (range > 0 && range < (1L << 8)) {
+            bytesPerDoc = 1;
+        } else if (range > 0 && range < (1L << 16)) {
+            bytesPerDoc = 2;
+        } else if (range > 0 && range < (1L << 32)) {
+            bytesPerDoc = 4;
+        } else {
+            // including ranges that overflow a long
+            bytesPerDoc = 8;
+        }
 
-        if (!memory.claimMemory(numDocs * 8L)) {
+        if (!memory.claimMemory((long)numDocs * bytesPerDoc)) {
             throw new ImhotepOutOfMemoryException();
         }
+        memoryUsed = (long)numDocs * bytesPerDoc;
 
-        this.values = new long[numDocs];
+        switch (bytesPerDoc) {
+            case 0:
+                return;
+            case 1:
+                byteValues = new byte[numDocs];
+                break;
+            case 2:
+                charValues = new char[numDocs];
+                break;
+            case 4:
+                intValues = new int[numDocs];
+                break;
+            default:
+                longValues = new long[numDocs];
+                break;
+        }
         fillValues(original);
     }
 
-    private void fillValues(IntValueLookup original) {
-        final int BUFFER_SIZE = 8192;
+    private void findRange(IntValueLookup original) {
         final int[] idBuffer = new int[BUFFER_SIZE];
         final long[] valBuffer = new long[BUFFER_SIZE];
 
-        for (int start = 0; start < values.length; start += BUFFER_SIZE) {
-            final int end = Math.min(values.length, start+BUFFER_SIZE), n = end-start;
+        long tmin = numDocs > 0 ? Long.MAX_VALUE : 0;
+        long tmax = numDocs > 0 ? Long.MIN_VALUE : 0;
+        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
+            final int end = Math.min(numDocs, start+BUFFER_SIZE), n = end-start;
             for (int i = 0; i < n; i++) {
                 idBuffer[i] = start + i;
             }
             original.lookup(idBuffer, valBuffer, n);
-            System.arraycopy(valBuffer, 0, values, start, n);
+            for (int i = 0; i < n; i++) {
+                tmin = Math.min(tmin, valBuffer[i]);
+                tmax = Math.max(tmax, valBuffer[i]);
+            }
         }
+        min = tmin;
+        max = tmax;
+    }
 
-        min = Longs.min(values);
-        max = Longs.max(values);
+    private void fillValues(IntValueLookup original) {
+        final int[] idBuffer = new int[BUFFER_SIZE];
+        final long[] valBuffer = new long[BUFFER_SIZE];
+
+        for (int start = 0; start < numDocs; start += BUFFER_SIZE) {
+            final int end = Math.min(numDocs, start+BUFFER_SIZE), n = end-start;
+            for (int i = 0; i < n; i++) {
+                idBuffer[i] = start + i;
+            }
+            original.lookup(idBuffer, valBuffer, n);
+            if (byteValues != null) {
+                for (int i = 0; i < n; i++) {
+                    byteValues[start + i] = (byte)(valBuffer[i] - min);
+                }
+            } else if (charValues != null) {
+                for (int i = 0; i < n; i++) {
+                    charValues[start + i] = (char)(valBuffer[i] - min);
+                }
+            } else if (intValues != null) {
+                for (int i = 0; i < n; i++) {
+                    intValues[start + i] = (int)(valBuffer[i] - min);
+                }
+            } else {
+                System.arraycopy(valBuffer, 0, longValues, start, n);
+            }
+        }
     }
 
     @Override
@@ -68,20 +143,40 @@ public class CachedMetric implements IntValueLookup {
 
     @Override
     public void lookup(int[] docIds, long[] values, int n) {
-        for (int i = 0; i < n; i++) {
-            values[i] = this.values[docIds[i]];
+        if (byteValues != null) {
+            for (int i = 0; i < n; i++) {
+                values[i] = (byteValues[docIds[i]] & 0xFFL) + min;
+            }
+        } else if (charValues != null) {
+            for (int i = 0; i < n; i++) {
+                values[i] = charValues[docIds[i]] + min;
+            }
+        } else if (intValues != null) {
+            for (int i = 0; i < n; i++) {
+                values[i] = (intValues[docIds[i]] & 0xFFFFFFFFL) + min;
+            }
+        } else if (longValues != null) {
+            for (int i = 0; i < n; i++) {
+                values[i] = longValues[docIds[i]];
+            }
+        } else {
+            Arrays.fill(values, 0, n, min);
         }
     }
 
     @Override
     public long memoryUsed() {
-        return 8L * values.length;
+        return memoryUsed;
     }
 
     @Override
     public void close() {
-        final long bytesToFree = memoryUsed();
-        values = null;
+        final long bytesToFree = memoryUsed;
+        byteValues = null;
+        charValues = null;
+        intValues = null;
+        longValues = null;
+        memoryUsed = 0;
         memory.releaseMemory(bytesToFree);
     }
 }
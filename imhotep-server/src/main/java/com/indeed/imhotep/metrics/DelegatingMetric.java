@@ -14,12 +14,14 @@
  package com.indeed.imhotep.metrics;
 
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
+import com.indeed.flamdex.api.IntValueZoneMapProvider;
 
 /**
  * A "pointer" to another metric farther down the stack.
  * @author dwahler
  */
-public class DelegatingMetric implements IntValueLookup {
+public class DelegatingMetric implements IntValueLookup, IntValueZoneMapProvider {
     private final IntValueLookup inner;
 
     public DelegatingMetric(IntValueLookup inner) {
@@ -41,6 +43,11 @@ public class DelegatingMetric implements IntValueLookup {
         inner.lookup(docIds, values, n);
     }
 
+    @Override
+    public IntValueZoneMap getZoneMap() {
+        return IntValueZoneMap.of(inner);
+    }
+
     @Override
     public long memoryUsed() {
         return 0;
@@ -83,6 +83,15 @@ public abstract class AbstractImhotepServiceCore implements ImhotepServiceCore {
         });
     }
 
+    @Override
+    public long[][] handleGetGroupStatsMulti(String sessionId, final int[] stats) {
+        return doWithSession(sessionId, new Function<ImhotepSession, long[][]>() {
+            public long[][] apply(final ImhotepSession session) {
+                return session.getGroupStatsMulti(stats);
+            }
+        });
+    }
+
     @Override
     public void handleGetFTGSIterator(final String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os) throws
             IOException {
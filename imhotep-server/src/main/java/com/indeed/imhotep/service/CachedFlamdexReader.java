@@ -18,6 +18,8 @@ import com.indeed.util.core.Either;
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.ReloadableSharedReference;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.flamdex.api.FieldStatsProvider;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermDocIterator;
@@ -26,6 +28,7 @@ import com.indeed.flamdex.api.IntValueLookup;
 import com.indeed.flamdex.api.StringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.api.StringValueLookup;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
 import com.indeed.imhotep.ImhotepMemoryCache;
 import com.indeed.imhotep.ImhotepStatusDump;
 import com.indeed.imhotep.MemoryReservationContext;
@@ -47,7 +50,7 @@ import static com.indeed.util.core.Either.Right;
 /**
  * @author jsgroth
  */
-public class CachedFlamdexReader implements FlamdexReader, MetricCache {
+public class CachedFlamdexReader implements FlamdexReader, MetricCache, FieldStatsProvider {
     private static final Logger log = Logger.getLogger(CachedFlamdexReader.class);
 
     private final @Nullable MemoryReservationContext memory;
@@ -71,6 +74,11 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
         this.memory = memory;
         this.readLockRef = readLockRef;
         this.wrapped = wrapped;
+        if (memory != null && wrapped instanceof SimpleFlamdexReader) {
+            // the term dictionaries it loads live as long as the reader, same as the cached metrics, and are given
+            // back when it is closed
+            ((SimpleFlamdexReader)wrapped).setTermDictionaryMemory(memory);
+        }
         metricCache = new MetricCacheImpl(
                 new Function<String, Either<FlamdexOutOfMemoryException, IntValueLookup>>() {
                     @Override
@@ -186,6 +194,16 @@ public class CachedFlamdexReader implements FlamdexReader, MetricCache {
         return docFreq;
     }
 
+    @Override
+    public FieldStats getIntFieldStats(final String field) {
+        return wrapped instanceof FieldStatsProvider ? ((FieldStatsProvider)wrapped).getIntFieldStats(field) : null;
+    }
+
+    @Override
+    public FieldStats getStringFieldStats(final String field) {
+        return wrapped instanceof FieldStatsProvider ? ((FieldStatsProvider)wrapped).getStringFieldStats(field) : null;
+    }
+
     @Override
     public Collection<String> getAvailableMetrics() {
         return wrapped.getAvailableMetrics();
@@ -16,6 +16,8 @@
 import com.indeed.util.core.io.Closeables2;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
+import com.indeed.flamdex.api.FieldStatsProvider;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
 import com.indeed.flamdex.api.IntTermDocIterator;
@@ -35,7 +37,7 @@ import java.util.Set;
 /**
  * @author jplaisance
  */
-public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache {
+public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache, FieldStatsProvider {
 
     private static final Logger log = Logger.getLogger(CachedFlamdexReaderReference.class);
 
@@ -106,6 +108,16 @@ public class CachedFlamdexReaderReference implements FlamdexReader, MetricCache
         return reader.getStringTotalDocFreq(field);
     }
 
+    @Override
+    public FieldStats getIntFieldStats(final String field) {
+        return reader.getIntFieldStats(field);
+    }
+
+    @Override
+    public FieldStats getStringFieldStats(final String field) {
+        return reader.getStringFieldStats(field);
+    }
+
     @Override
     public Collection<String> getAvailableMetrics() {
         return reader.getAvailableMetrics();
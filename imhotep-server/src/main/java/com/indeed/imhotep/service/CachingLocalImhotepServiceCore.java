@@ -508,7 +508,8 @@ public class CachingLocalImhotepServiceCore extends AbstractImhotepServiceCore {
                         try {
                             shards.add(new ImhotepStatusDump.ShardDump(shardId, dataset,
                                                                        shard.getNumDocs(),
-                                                                       shard.getMetricDump()));
+                                                                       shard.getMetricDump(),
+                                                                       shard.isLoaded()));
                         } catch (IOException e) {
                             throw Throwables.propagate(e);
                         }
@@ -182,14 +182,10 @@ public class ImhotepDaemon {
 
                     InetAddress inetAddress;
                     String sessionId;
-                    int numStats;
                     int numGroups;
                     List<ShardInfo> shards;
                     List<DatasetInfo> datasets;
-                    long totalDocFreq;
-                    long[] groupStats;
                     ImhotepStatusDump statusDump;
-                    List<TermCount> topTerms;
                     switch (protoRequest.getRequestType()) {
                         case OPEN_SESSION:
                             inetAddress = socket.getInetAddress();
@@ -212,9 +208,31 @@ public class ImhotepDaemon {
                             sendResponse(responseBuilder.build(), os);
                             break;
                         case REGROUP:
-                            numGroups = service.handleRegroup(protoRequest.getSessionId(), ImhotepDaemonMarshaller.marshalGroupRemapMessageList(protoRequest.getRemapRulesList()));
-                            responseBuilder.setNumGroups(numGroups);
-                            sendResponse(responseBuilder.build(), os);
+                        case QUERY_REGROUP:
+                        case INT_OR_REGROUP:
+                        case STRING_OR_REGROUP:
+                        case RANDOM_REGROUP:
+                        case RANDOM_MULTI_REGROUP:
+                        case GET_TOTAL_DOC_FREQ:
+                        case GET_GROUP_STATS:
+                        case GET_GROUP_STATS_MULTI:
+                        case PUSH_STAT:
+                        case POP_STAT:
+                        case METRIC_REGROUP:
+                        case METRIC_REGROUP_2D:
+                        case METRIC_FILTER:
+                        case CREATE_DYNAMIC_METRIC:
+                        case UPDATE_DYNAMIC_METRIC:
+                        case CONDITIONAL_UPDATE_DYNAMIC_METRIC:
+                        case GROUP_CONDITIONAL_UPDATE_DYNAMIC_METRIC:
+                        case OPTIMIZE_SESSION:
+                        case RESET_GROUPS:
+                        case MULTISPLIT_REGROUP:
+                        case APPROXIMATE_TOP_TERMS:
+                            sendResponse(handleSessionRequest(protoRequest, responseBuilder).build(), os);
+                            break;
+                        case EXECUTE_BATCH:
+                            sendResponse(executeBatch(protoRequest), os);
                             break;
                         case EXPLODED_REGROUP: {
                                 final int numRules = protoRequest.getLength();
@@ -241,50 +259,6 @@ public class ImhotepDaemon {
                                 sendResponse(responseBuilder.setNumGroups(numGroups).build(), os);
                                 break;
                             }
-                        case QUERY_REGROUP:
-                            numGroups = service.handleQueryRegroup(protoRequest.getSessionId(), ImhotepDaemonMarshaller.marshal(protoRequest.getQueryRemapRule()));
-                            responseBuilder.setNumGroups(numGroups);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case INT_OR_REGROUP:
-                            service.handleIntOrRegroup(protoRequest.getSessionId(), protoRequest.getField(), Longs.toArray(protoRequest.getIntTermList()),
-                                    protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(), protoRequest.getPositiveGroup());
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case STRING_OR_REGROUP:
-                            service.handleStringOrRegroup(protoRequest.getSessionId(), protoRequest.getField(), protoRequest.getStringTermList().toArray(new String[protoRequest.getStringTermCount()]),
-                                    protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(), protoRequest.getPositiveGroup());
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case RANDOM_REGROUP:
-                            service.handleRandomRegroup(protoRequest.getSessionId(), protoRequest.getField(), protoRequest.getIsIntField(),
-                                    protoRequest.getSalt(), protoRequest.getP(), protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(),
-                                    protoRequest.getPositiveGroup());
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case RANDOM_MULTI_REGROUP:
-                            service.handleRandomMultiRegroup(protoRequest.getSessionId(), protoRequest.getField(),
-                                    protoRequest.getIsIntField(), protoRequest.getSalt(), protoRequest.getTargetGroup(),
-                                    Doubles.toArray(protoRequest.getPercentagesList()),
-                                    Ints.toArray(protoRequest.getResultGroupsList()));
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case GET_TOTAL_DOC_FREQ:
-                            totalDocFreq = service.handleGetTotalDocFreq(
-                                    protoRequest.getSessionId(),
-                                    getIntFields(protoRequest),
-                                    getStringFields(protoRequest)
-                            );
-                            responseBuilder.setTotalDocFreq(totalDocFreq);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case GET_GROUP_STATS:
-                            groupStats = service.handleGetGroupStats(protoRequest.getSessionId(), protoRequest.getStat());
-                            for (final long groupStat : groupStats) {
-                                responseBuilder.addGroupStat(groupStat);
-                            }
-                            sendResponse(responseBuilder.build(), os);
-                            break;
                         case GET_FTGS_ITERATOR:
                             if (!service.sessionIsValid(protoRequest.getSessionId())) {
                                 throw new IllegalArgumentException("invalid session: " + protoRequest.getSessionId());
@@ -344,16 +318,6 @@ public class ImhotepDaemon {
                             sendResponse(responseBuilder.build(), os);
                             service.handleGetDocIterator(protoRequest.getSessionId(), getIntFields(protoRequest), getStringFields(protoRequest), os);
                             break;
-                        case PUSH_STAT:
-                            numStats = service.handlePushStat(protoRequest.getSessionId(), protoRequest.getMetric());
-                            responseBuilder.setNumStats(numStats);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case POP_STAT:
-                            numStats = service.handlePopStat(protoRequest.getSessionId());
-                            responseBuilder.setNumStats(numStats);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
                         case GET_SHARD_LIST:
                             shards = service.handleGetShardList();
                             for (final ShardInfo shard : shards) {
@@ -373,100 +337,6 @@ public class ImhotepDaemon {
                             responseBuilder.setStatusDump(statusDump.toProto());
                             sendResponse(responseBuilder.build(), os);
                             break;
-                        case METRIC_REGROUP:
-                            numGroups = service.handleMetricRegroup(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getXStat(),
-                                    protoRequest.getXMin(),
-                                    protoRequest.getXMax(),
-                                    protoRequest.getXIntervalSize(),
-                                    protoRequest.getNoGutters()
-                            );
-                            responseBuilder.setNumGroups(numGroups);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case METRIC_REGROUP_2D:
-                            numGroups = service.handleMetricRegroup2D(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getXStat(),
-                                    protoRequest.getXMin(),
-                                    protoRequest.getXMax(),
-                                    protoRequest.getXIntervalSize(),
-                                    protoRequest.getYStat(),
-                                    protoRequest.getYMin(),
-                                    protoRequest.getYMax(),
-                                    protoRequest.getYIntervalSize()
-                            );
-                            responseBuilder.setNumGroups(numGroups);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case METRIC_FILTER:
-                            numGroups = service.handleMetricFilter(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getXStat(),
-                                    protoRequest.getXMin(),
-                                    protoRequest.getXMax(),
-                                    protoRequest.getNegate()
-                            );
-                            responseBuilder.setNumGroups(numGroups);
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case CREATE_DYNAMIC_METRIC:
-                            service.handleCreateDynamicMetric(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getDynamicMetricName()
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case UPDATE_DYNAMIC_METRIC:
-                            service.handleUpdateDynamicMetric(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getDynamicMetricName(),
-                                    Ints.toArray(protoRequest.getDynamicMetricDeltasList())
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case CONDITIONAL_UPDATE_DYNAMIC_METRIC:
-                            service.handleConditionalUpdateDynamicMetric(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getDynamicMetricName(),
-                                    ImhotepDaemonMarshaller.marshalRegroupConditionMessageList(protoRequest.getConditionsList()),
-                                    Ints.toArray(protoRequest.getDynamicMetricDeltasList())
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case GROUP_CONDITIONAL_UPDATE_DYNAMIC_METRIC:
-                            service.handleGroupConditionalUpdateDynamicMetric(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getDynamicMetricName(),
-                                    Ints.toArray(protoRequest.getGroupsList()),
-                                    ImhotepDaemonMarshaller.marshalRegroupConditionMessageList(protoRequest.getConditionsList()),
-                                    Ints.toArray(protoRequest.getDynamicMetricDeltasList())
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case OPTIMIZE_SESSION:
-                            service.handleRebuildAndFilterIndexes(
-                                    protoRequest.getSessionId(),
-                                    getIntFields(protoRequest),
-                                    getStringFields(protoRequest)
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case RESET_GROUPS:
-                            service.handleResetGroups(
-                                    protoRequest.getSessionId()
-                            );
-                            sendResponse(responseBuilder.build(), os);
-                            break;
-                        case MULTISPLIT_REGROUP:
-                            numGroups = service.handleMultisplitRegroup(
-                                    protoRequest.getSessionId(),
-                                    ImhotepDaemonMarshaller.marshalGroupMultiRemapMessageList(protoRequest.getMultisplitRemapRuleList()),
-                                    protoRequest.getErrorOnCollisions()
-                            );
-                            sendResponse(responseBuilder.setNumGroups(numGroups).build(), os);
-                            break;
                         case EXPLODED_MULTISPLIT_REGROUP: {
                                 final int numRules = protoRequest.getLength();
                                 numGroups = service.handleMultisplitRegroup(protoRequest.getSessionId(), numRules, new UnmodifiableIterator<GroupMultiRemapRule>() {
@@ -493,15 +363,6 @@ public class ImhotepDaemon {
                                 sendResponse(responseBuilder.setNumGroups(numGroups).build(), os);
                                 break;
                             }
-                        case APPROXIMATE_TOP_TERMS:
-                            topTerms = service.handleApproximateTopTerms(
-                                    protoRequest.getSessionId(),
-                                    protoRequest.getField(),
-                                    protoRequest.getIsIntField(),
-                                    protoRequest.getK()
-                            );
-                            sendResponse(responseBuilder.addAllTopTerms(ImhotepDaemonMarshaller.marshalTermCountList(topTerms)).build(), os);
-                            break;
                         case SHUTDOWN:
                             if (protoRequest.hasSessionId() && "magicshutdownid".equals(protoRequest.getSessionId())) {
                                 log.info("shutdown signal received, shutting down the JVM");
@@ -528,7 +389,7 @@ public class ImhotepDaemon {
                     close(socket, is, os);
                 }
             } catch (IOException e) {
-                expireSession(protoRequest,e );
+                expireSession(protoRequest, e);
                 if (e instanceof SocketException) {
                     log.warn("IOException while servicing request", e);
                 } else {
@@ -538,6 +399,206 @@ public class ImhotepDaemon {
             }
         }
 
+        /**
+         * handles the requests that only touch a session and answer with a single response, which are the ones that
+         * can also be sent as part of an EXECUTE_BATCH request
+         */
+        private ImhotepResponse.Builder handleSessionRequest(ImhotepRequest protoRequest, ImhotepResponse.Builder responseBuilder) throws ImhotepOutOfMemoryException {
+            int numStats;
+            int numGroups;
+            long totalDocFreq;
+            long[] groupStats;
+            long[][] groupStatsMulti;
+            List<TermCount> topTerms;
+            switch (protoRequest.getRequestType()) {
+                case REGROUP:
+                    numGroups = service.handleRegroup(protoRequest.getSessionId(), ImhotepDaemonMarshaller.marshalGroupRemapMessageList(protoRequest.getRemapRulesList()));
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case QUERY_REGROUP:
+                    numGroups = service.handleQueryRegroup(protoRequest.getSessionId(), ImhotepDaemonMarshaller.marshal(protoRequest.getQueryRemapRule()));
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case INT_OR_REGROUP:
+                    service.handleIntOrRegroup(protoRequest.getSessionId(), protoRequest.getField(), Longs.toArray(protoRequest.getIntTermList()),
+                            protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(), protoRequest.getPositiveGroup());
+                    break;
+                case STRING_OR_REGROUP:
+                    service.handleStringOrRegroup(protoRequest.getSessionId(), protoRequest.getField(), protoRequest.getStringTermList().toArray(new String[protoRequest.getStringTermCount()]),
+                            protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(), protoRequest.getPositiveGroup());
+                    break;
+                case RANDOM_REGROUP:
+                    service.handleRandomRegroup(protoRequest.getSessionId(), protoRequest.getField(), protoRequest.getIsIntField(),
+                            protoRequest.getSalt(), protoRequest.getP(), protoRequest.getTargetGroup(), protoRequest.getNegativeGroup(),
+                            protoRequest.getPositiveGroup());
+                    break;
+                case RANDOM_MULTI_REGROUP:
+                    service.handleRandomMultiRegroup(protoRequest.getSessionId(), protoRequest.getField(),
+                            protoRequest.getIsIntField(), protoRequest.getSalt(), protoRequest.getTargetGroup(),
+                            Doubles.toArray(protoRequest.getPercentagesList()),
+                            Ints.toArray(protoRequest.getResultGroupsList()));
+                    break;
+                case GET_TOTAL_DOC_FREQ:
+                    totalDocFreq = service.handleGetTotalDocFreq(
+                            protoRequest.getSessionId(),
+                            getIntFields(protoRequest),
+                            getStringFields(protoRequest)
+                    );
+                    responseBuilder.setTotalDocFreq(totalDocFreq);
+                    break;
+                case GET_GROUP_STATS:
+                    groupStats = service.handleGetGroupStats(protoRequest.getSessionId(), protoRequest.getStat());
+                    if (protoRequest.getSparseGroupStats()) {
+                        responseBuilder.addSparseGroupStats(ImhotepDaemonMarshaller.marshalGroupStats(groupStats));
+                    } else {
+                        for (final long groupStat : groupStats) {
+                            responseBuilder.addGroupStat(groupStat);
+                        }
+                    }
+                    break;
+                case GET_GROUP_STATS_MULTI:
+                    groupStatsMulti = service.handleGetGroupStatsMulti(protoRequest.getSessionId(), Ints.toArray(protoRequest.getStatsList()));
+                    responseBuilder.addAllSparseGroupStats(ImhotepDaemonMarshaller.marshalGroupStatsList(groupStatsMulti));
+                    break;
+                case PUSH_STAT:
+                    numStats = service.handlePushStat(protoRequest.getSessionId(), protoRequest.getMetric());
+                    responseBuilder.setNumStats(numStats);
+                    break;
+                case POP_STAT:
+                    numStats = service.handlePopStat(protoRequest.getSessionId());
+                    responseBuilder.setNumStats(numStats);
+                    break;
+                case METRIC_REGROUP:
+                    numGroups = service.handleMetricRegroup(
+                            protoRequest.getSessionId(),
+                            protoRequest.getXStat(),
+                            protoRequest.getXMin(),
+                            protoRequest.getXMax(),
+                            protoRequest.getXIntervalSize(),
+                            protoRequest.getNoGutters()
+                    );
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case METRIC_REGROUP_2D:
+                    numGroups = service.handleMetricRegroup2D(
+                            protoRequest.getSessionId(),
+                            protoRequest.getXStat(),
+                            protoRequest.getXMin(),
+                            protoRequest.getXMax(),
+                            protoRequest.getXIntervalSize(),
+                            protoRequest.getYStat(),
+                            protoRequest.getYMin(),
+                            protoRequest.getYMax(),
+                            protoRequest.getYIntervalSize()
+                    );
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case METRIC_FILTER:
+                    numGroups = service.handleMetricFilter(
+                            protoRequest.getSessionId(),
+                            protoRequest.getXStat(),
+                            protoRequest.getXMin(),
+                            protoRequest.getXMax(),
+                            protoRequest.getNegate()
+                    );
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case CREATE_DYNAMIC_METRIC:
+                    service.handleCreateDynamicMetric(
+                            protoRequest.getSessionId(),
+                            protoRequest.getDynamicMetricName()
+                    );
+                    break;
+                case UPDATE_DYNAMIC_METRIC:
+                    service.handleUpdateDynamicMetric(
+                            protoRequest.getSessionId(),
+                            protoRequest.getDynamicMetricName(),
+                            Ints.toArray(protoRequest.getDynamicMetricDeltasList())
+                    );
+                    break;
+                case CONDITIONAL_UPDATE_DYNAMIC_METRIC:
+                    service.handleConditionalUpdateDynamicMetric(
+                            protoRequest.getSessionId(),
+                            protoRequest.getDynamicMetricName(),
+                            ImhotepDaemonMarshaller.marshalRegroupConditionMessageList(protoRequest.getConditionsList()),
+                            Ints.toArray(protoRequest.getDynamicMetricDeltasList())
+                    );
+                    break;
+                case GROUP_CONDITIONAL_UPDATE_DYNAMIC_METRIC:
+                    service.handleGroupConditionalUpdateDynamicMetric(
+                            protoRequest.getSessionId(),
+                            protoRequest.getDynamicMetricName(),
+                            Ints.toArray(protoRequest.getGroupsList()),
+                            ImhotepDaemonMarshaller.marshalRegroupConditionMessageList(protoRequest.getConditionsList()),
+                            Ints.toArray(protoRequest.getDynamicMetricDeltasList())
+                    );
+                    break;
+                case OPTIMIZE_SESSION:
+                    service.handleRebuildAndFilterIndexes(
+                            protoRequest.getSessionId(),
+                            getIntFields(protoRequest),
+                            getStringFields(protoRequest)
+                    );
+                    break;
+                case RESET_GROUPS:
+                    service.handleResetGroups(
+                            protoRequest.getSessionId()
+                    );
+                    break;
+                case MULTISPLIT_REGROUP:
+                    numGroups = service.handleMultisplitRegroup(
+                            protoRequest.getSessionId(),
+                            ImhotepDaemonMarshaller.marshalGroupMultiRemapMessageList(protoRequest.getMultisplitRemapRuleList()),
+                            protoRequest.getErrorOnCollisions()
+                    );
+                    responseBuilder.setNumGroups(numGroups);
+                    break;
+                case APPROXIMATE_TOP_TERMS:
+                    topTerms = service.handleApproximateTopTerms(
+                            protoRequest.getSessionId(),
+                            protoRequest.getField(),
+                            protoRequest.getIsIntField(),
+                            protoRequest.getK()
+                    );
+                    responseBuilder.addAllTopTerms(ImhotepDaemonMarshaller.marshalTermCountList(topTerms));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported request type: "+protoRequest.getRequestType());
+            }
+            return responseBuilder;
+        }
+
+        /**
+         * runs the batched requests in order against the batch's session and stops at the first failure, which expires
+         * the session just like a failed single request would. The failed request's response is the last one in the
+         * batch response and requests after it are not run.
+         */
+        private ImhotepResponse executeBatch(ImhotepRequest protoRequest) {
+            for (final ImhotepRequest batchRequest : protoRequest.getBatchRequestList()) {
+                if (!protoRequest.getSessionId().equals(batchRequest.getSessionId())) {
+                    throw new IllegalArgumentException("batched " + batchRequest.getRequestType() + " request is for session "
+                            + batchRequest.getSessionId() + ", not " + protoRequest.getSessionId());
+                }
+            }
+            final ImhotepResponse.Builder responseBuilder = ImhotepResponse.newBuilder();
+            for (final ImhotepRequest batchRequest : protoRequest.getBatchRequestList()) {
+                try {
+                    responseBuilder.addBatchResponse(handleSessionRequest(batchRequest, ImhotepResponse.newBuilder()));
+                } catch (ImhotepOutOfMemoryException e) {
+                    expireSession(protoRequest, e);
+                    responseBuilder.addBatchResponse(ImhotepResponse.newBuilder().setResponseCode(ImhotepResponse.ResponseCode.OUT_OF_MEMORY));
+                    log.warn("ImhotepOutOfMemoryException while servicing batched " + batchRequest.getRequestType() + " request", e);
+                    break;
+                } catch (RuntimeException e) {
+                    expireSession(protoRequest, e);
+                    responseBuilder.addBatchResponse(newErrorResponse(e));
+                    log.error("exception while servicing batched " + batchRequest.getRequestType() + " request", e);
+                    break;
+                }
+            }
+            return responseBuilder.build();
+        }
+
         private ImhotepResponse newErrorResponse(Exception e) {
             return ImhotepResponse.newBuilder()
                     .setResponseCode(ImhotepResponse.ResponseCode.OTHER_ERROR)
@@ -550,9 +611,9 @@ public class ImhotepDaemon {
         private void expireSession(ImhotepRequest protoRequest, Exception reason) {
             if (protoRequest != null && protoRequest.hasSessionId()) {
                 final String sessionId = protoRequest.getSessionId();
-                log.info("exception caught, closing session "+sessionId);
+                log.info("exception caught, closing session "+sessionId+": "+reason);
                 try {
-                    service.handleCloseSession(sessionId);
+                    service.handleCloseSession(sessionId, reason);
                 } catch (RuntimeException e) {
                     log.warn(e);
                 }
@@ -20,23 +20,152 @@
 */
 public final class LocalImhotepServiceConfig {
     private int updateShardsFrequencySeconds = 120;
+    private int incrementalUpdateShardsFrequencySeconds = 5;
+    private int updateShardsThreads = 4;
     private int heartBeatCheckFrequencySeconds = 60;
+    private int warmUpMaxFields = 16;
+    private int warmUpMaxMetrics = 16;
+    private long warmUpReadBytesPerShard = 64L * 1024 * 1024;
+    private double warmUpMaxMemoryFraction = 0.5;
+    private int compactionFrequencySeconds = 0;
+    private int compactionMaxOpenSessions = 0;
+    private long compactionWriteBytesPerSecond = 16L * 1024 * 1024;
+    private boolean compactionPrecomputeMetrics = false;
 
     public int getUpdateShardsFrequencySeconds() {
         return updateShardsFrequencySeconds;
     }
 
+    public int getIncrementalUpdateShardsFrequencySeconds() {
+        return incrementalUpdateShardsFrequencySeconds;
+    }
+
+    public int getUpdateShardsThreads() {
+        return updateShardsThreads;
+    }
+
     public int getHeartBeatCheckFrequencySeconds() {
         return heartBeatCheckFrequencySeconds;
     }
 
+    public int getWarmUpMaxFields() {
+        return warmUpMaxFields;
+    }
+
+    public int getWarmUpMaxMetrics() {
+        return warmUpMaxMetrics;
+    }
+
+    public long getWarmUpReadBytesPerShard() {
+        return warmUpReadBytesPerShard;
+    }
+
+    public double getWarmUpMaxMemoryFraction() {
+        return warmUpMaxMemoryFraction;
+    }
+
+    public int getCompactionFrequencySeconds() {
+        return compactionFrequencySeconds;
+    }
+
+    public int getCompactionMaxOpenSessions() {
+        return compactionMaxOpenSessions;
+    }
+
+    public long getCompactionWriteBytesPerSecond() {
+        return compactionWriteBytesPerSecond;
+    }
+
+    public boolean isCompactionPrecomputeMetrics() {
+        return compactionPrecomputeMetrics;
+    }
+
     public LocalImhotepServiceConfig setUpdateShardsFrequencySeconds(int updateShardsFrequencySeconds) {
         this.updateShardsFrequencySeconds = updateShardsFrequencySeconds;
         return this;
     }
 
+    /**
+     * how often to rescan the dataset directories that changed since they were last scanned, 0 to only do the full
+     * rescans every updateShardsFrequencySeconds
+     */
+    public LocalImhotepServiceConfig setIncrementalUpdateShardsFrequencySeconds(int incrementalUpdateShardsFrequencySeconds) {
+        this.incrementalUpdateShardsFrequencySeconds = incrementalUpdateShardsFrequencySeconds;
+        return this;
+    }
+
+    /**
+     * the number of dataset directories to scan at the same time
+     */
+    public LocalImhotepServiceConfig setUpdateShardsThreads(int updateShardsThreads) {
+        this.updateShardsThreads = updateShardsThreads;
+        return this;
+    }
+
     public LocalImhotepServiceConfig setHeartBeatCheckFrequencySeconds(int heartBeatCheckFrequencySeconds) {
         this.heartBeatCheckFrequencySeconds = heartBeatCheckFrequencySeconds;
         return this;
     }
+
+    /**
+     * the number of most used fields per dataset whose files are read into the page cache when a shard is loaded,
+     * 0 to disable
+     */
+    public LocalImhotepServiceConfig setWarmUpMaxFields(int warmUpMaxFields) {
+        this.warmUpMaxFields = warmUpMaxFields;
+        return this;
+    }
+
+    /**
+     * the number of most used metrics per dataset that are loaded when a shard is loaded, 0 to disable
+     */
+    public LocalImhotepServiceConfig setWarmUpMaxMetrics(int warmUpMaxMetrics) {
+        this.warmUpMaxMetrics = warmUpMaxMetrics;
+        return this;
+    }
+
+    public LocalImhotepServiceConfig setWarmUpReadBytesPerShard(long warmUpReadBytesPerShard) {
+        this.warmUpReadBytesPerShard = warmUpReadBytesPerShard;
+        return this;
+    }
+
+    /**
+     * metrics are only preloaded while used and cached memory stays under this fraction of the total
+     */
+    public LocalImhotepServiceConfig setWarmUpMaxMemoryFraction(double warmUpMaxMemoryFraction) {
+        this.warmUpMaxMemoryFraction = warmUpMaxMemoryFraction;
+        return this;
+    }
+
+    /**
+     * how long to wait between passes looking for shards in old formats to rewrite, see ShardCompactor. 0 to disable
+     */
+    public LocalImhotepServiceConfig setCompactionFrequencySeconds(int compactionFrequencySeconds) {
+        this.compactionFrequencySeconds = compactionFrequencySeconds;
+        return this;
+    }
+
+    /**
+     * shards are only rewritten while no more than this many sessions are open
+     */
+    public LocalImhotepServiceConfig setCompactionMaxOpenSessions(int compactionMaxOpenSessions) {
+        this.compactionMaxOpenSessions = compactionMaxOpenSessions;
+        return this;
+    }
+
+    /**
+     * the average rate at which rewritten shards are written, 0 for no limit
+     */
+    public LocalImhotepServiceConfig setCompactionWriteBytesPerSecond(long compactionWriteBytesPerSecond) {
+        this.compactionWriteBytesPerSecond = compactionWriteBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * whether to also write the mmapped metric caches of rewritten shards, used with flamdex.mmap.fieldcache
+     */
+    public LocalImhotepServiceConfig setCompactionPrecomputeMetrics(boolean compactionPrecomputeMetrics) {
+        this.compactionPrecomputeMetrics = compactionPrecomputeMetrics;
+        return this;
+    }
 }
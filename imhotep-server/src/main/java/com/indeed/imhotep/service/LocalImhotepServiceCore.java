@@ -13,12 +13,14 @@
  */
  package com.indeed.imhotep.service;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.indeed.util.core.Pair;
 import com.indeed.util.core.shell.PosixFileOperations;
 import com.indeed.util.core.Throwables2;
@@ -52,21 +54,27 @@ import org.apache.log4j.Logger;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,7 +84,7 @@ import java.util.regex.Pattern;
 public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
     private static final Logger log = Logger.getLogger(LocalImhotepServiceCore.class);
 
-    private static final Pattern VERSION_PATTERN = Pattern.compile("^(.+)\\.(\\d{14})$");
+    static final Pattern VERSION_PATTERN = Pattern.compile("^(.+)\\.(\\d{14})$");
 
     private static final long SESSION_EXPIRATION_TIME_MILLIS = 30L * 60 * 1000;
 
@@ -85,6 +93,7 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
     private final ExecutorService executor;
 
     private final ScheduledExecutorService shardReload;
+    private final ExecutorService shardScanExecutor;
     private final ScheduledExecutorService heartBeat;
     private final String shardsDirectory;
     private final String shardTempDirectory;
@@ -94,11 +103,19 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
 
     private final FlamdexReaderSource flamdexReaderFactory;
 
+    private final ShardWarmer shardWarmer;
+    private final ShardCompactor shardCompactor;
+
     // these maps will not be modified but the references will periodically be
     // swapped
     private volatile Map<String, Map<String, AtomicSharedReference<Shard>>> shards;
     private volatile List<ShardInfo> shardList;
     private volatile List<DatasetInfo> datasetList;
+    private final AtomicLong shardListVersion = new AtomicLong();
+
+    // only used by whichever thread is running updateShards
+    private final Map<String, DatasetScan> datasetScans = Maps.newHashMap();
+    private Map<String, DatasetInfo> datasetInfos = Maps.newHashMap();
 
     private final Map<File, RandomAccessFile> lockFileMap = Maps.newHashMap();
 
@@ -143,6 +160,12 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         }
 
         sessionManager = new LocalSessionManager();
+        shardWarmer = new ShardWarmer(memory, useCache, config);
+        shardScanExecutor =
+                Executors.newFixedThreadPool(config.getUpdateShardsThreads(),
+                                             new ThreadFactoryBuilder().setDaemon(true)
+                                                                       .setNameFormat("ShardScannerThread-%d")
+                                                                       .build());
         /* allow temp dir to be null for testing */
         if (shardTempDir != null) {
             clearTempDir(shardTempDir);
@@ -171,23 +194,38 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                 return thread;
             }
         });
-        shardReload.scheduleAtFixedRate(new ShardReloader(),
+        shardReload.scheduleAtFixedRate(new ShardReloader(true),
                                         config.getUpdateShardsFrequencySeconds(),
                                         config.getUpdateShardsFrequencySeconds(),
                                         TimeUnit.SECONDS);
+        if (config.getIncrementalUpdateShardsFrequencySeconds() > 0) {
+            // both run on the same thread so they never overlap
+            shardReload.scheduleWithFixedDelay(new ShardReloader(false),
+                                               config.getIncrementalUpdateShardsFrequencySeconds(),
+                                               config.getIncrementalUpdateShardsFrequencySeconds(),
+                                               TimeUnit.SECONDS);
+        }
         heartBeat.scheduleAtFixedRate(new HeartBeatChecker(),
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       config.getHeartBeatCheckFrequencySeconds(),
                                       TimeUnit.SECONDS);
 
+        shardCompactor = new ShardCompactor(shardsDirectory, flamdexReaderFactory, sessionManager, config);
+
         VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
     }
 
     private class ShardReloader implements Runnable {
+        private final boolean fullScan;
+
+        private ShardReloader(final boolean fullScan) {
+            this.fullScan = fullScan;
+        }
+
         @Override
         public void run() {
             try {
-                updateShards();
+                updateShards(fullScan);
             } catch (RuntimeException e) {
                 log.error("error updating shards", e);
             } catch (IOException e) {
@@ -244,6 +282,16 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
     }
 
     private void updateShards() throws IOException {
+        updateShards(true);
+    }
+
+    /**
+     * @param fullScan if false, only datasets whose directory changed since it was last scanned are scanned again.
+     *                 adding, removing or renaming a shard directory changes its dataset directory, but changes inside
+     *                 a shard directory are only picked up by full scans.
+     */
+    @VisibleForTesting
+    void updateShards(final boolean fullScan) throws IOException {
         final String canonicalShardsDirectory = Files.getCanonicalPath(shardsDirectory);
         if (canonicalShardsDirectory == null) {
             shards = Maps.newHashMap();
@@ -257,173 +305,300 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
             oldShards = Maps.newHashMap();
         }
 
+        final File[] datasetDirs = new File(canonicalShardsDirectory).listFiles();
+        if (datasetDirs == null) {
+            throw new IOException("unable to list " + canonicalShardsDirectory);
+        }
+
+        // datasets that are not scanned again keep their shard map, the others get a new one
         final Map<String, Map<String, AtomicSharedReference<Shard>>> newShards = Maps.newHashMap();
-        for (final File datasetDir : new File(canonicalShardsDirectory).listFiles()) {
+        final Map<String, Future<DatasetScan>> scans = Maps.newHashMap();
+        final Set<String> presentDatasets = Sets.newHashSet();
+        for (final File datasetDir : datasetDirs) {
             if (!datasetDir.isDirectory()) {
                 continue;
             }
 
             final String dataset = datasetDir.getName();
-            Map<String, AtomicSharedReference<Shard>> oldDatasetShards = oldShards.get(dataset);
-            if (oldDatasetShards == null) {
-                oldDatasetShards = Maps.newHashMap();
+            presentDatasets.add(dataset);
+            final Map<String, AtomicSharedReference<Shard>> oldDatasetShards = oldShards.get(dataset);
+            final DatasetScan lastScan = datasetScans.get(dataset);
+            final long lastModified = datasetDir.lastModified();
+            if (!fullScan && lastScan != null && lastScan.isUnchanged(lastModified)) {
+                if (oldDatasetShards != null) {
+                    newShards.put(dataset, oldDatasetShards);
+                }
+                continue;
             }
 
-            final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+            final long scanStart = System.currentTimeMillis();
+            scans.put(dataset, shardScanExecutor.submit(new Callable<DatasetScan>() {
+                @Override
+                public DatasetScan call() throws IOException {
+                    final Map<String, AtomicSharedReference<Shard>> oldDatasetShardsOrEmpty =
+                            oldDatasetShards != null
+                                    ? oldDatasetShards
+                                    : Maps.<String, AtomicSharedReference<Shard>>newHashMap();
+                    return scanDataset(datasetDir, dataset, oldDatasetShardsOrEmpty, lastModified, scanStart);
+                }
+            }));
+        }
 
-            for (final File shardDir : datasetDir.listFiles()) {
-                if (!shardDir.isDirectory()) {
-                    continue;
+        // shards that got a new version, to be warmed once they are visible
+        final Set<AtomicSharedReference<Shard>> loadedShards = Sets.newLinkedHashSet();
+        final Set<String> changedDatasets = Sets.newHashSet();
+        for (final Map.Entry<String, Future<DatasetScan>> entry : scans.entrySet()) {
+            final String dataset = entry.getKey();
+            final DatasetScan scan;
+            try {
+                scan = Uninterruptibles.getUninterruptibly(entry.getValue());
+            } catch (ExecutionException e) {
+                log.error("error scanning dataset " + dataset, e.getCause());
+                // keep serving what was loaded before, and scan it again next time
+                datasetScans.remove(dataset);
+                if (oldShards.containsKey(dataset)) {
+                    newShards.put(dataset, oldShards.get(dataset));
                 }
+                continue;
+            }
+            datasetScans.put(dataset, scan);
+            if (scan.shards.size() > 0) {
+                newShards.put(dataset, scan.shards);
+            }
+            loadedShards.addAll(scan.loadedShards);
+            changedDatasets.add(dataset);
+        }
 
-                try {
-                    final String shardId;
-                    final long shardVersion;
-                    final Matcher matcher = VERSION_PATTERN.matcher(shardDir.getName());
-                    if (matcher.matches()) {
-                        shardId = matcher.group(1);
-                        shardVersion = Long.parseLong(matcher.group(2));
-                    } else {
-                        shardId = shardDir.getName();
-                        shardVersion = 0L;
+        for (final String dataset : oldShards.keySet()) {
+            if (!presentDatasets.contains(dataset)) {
+                // the dataset directory is gone
+                for (final Map.Entry<String, AtomicSharedReference<Shard>> entry : oldShards.get(dataset).entrySet()) {
+                    try {
+                        entry.getValue().unset();
+                    } catch (IOException e) {
+                        log.error("error closing shard " + entry.getKey(), e);
                     }
+                }
+            }
+        }
+        datasetScans.keySet().retainAll(presentDatasets);
 
-                    final String canonicalShardDir = shardDir.getCanonicalPath();
-                    final ReadLock readLock;
-                    try {
-                        readLock = ReadLock.lock(lockFileMap, new File(canonicalShardDir));
-                    } catch (ReadLock.AlreadyOpenException e) {
-                        // already loaded
-                        if (!newDatasetShards.containsKey(shardId)) {
-                            if (!oldDatasetShards.containsKey(shardId)) {
-                                log.error("shard " + shardId
-                                        + " claims to be open but isn't referenced");
-                            } else {
-                                newDatasetShards.put(shardId, oldDatasetShards.get(shardId));
-                            }
+        this.shards = newShards;
+
+        for (final AtomicSharedReference<Shard> shard : loadedShards) {
+            shardWarmer.warm(shard);
+        }
+
+        // rebuild the snapshot of every dataset on a full scan, so that loaded metrics stay current, and only of the
+        // datasets that were scanned otherwise
+        final Set<String> datasetsToRebuild = fullScan ? newShards.keySet() : changedDatasets;
+        final Map<String, DatasetInfo> newDatasetInfos = Maps.newTreeMap();
+        for (final String dataset : newShards.keySet()) {
+            final DatasetInfo datasetInfo = datasetInfos.get(dataset);
+            if (datasetInfo == null || datasetsToRebuild.contains(dataset)) {
+                newDatasetInfos.put(dataset, buildDatasetInfo(dataset, newShards.get(dataset)));
+            } else {
+                newDatasetInfos.put(dataset, datasetInfo);
+            }
+        }
+        datasetInfos = newDatasetInfos;
+
+        final List<ShardInfo> shardList = Lists.newArrayList();
+        for (final DatasetInfo datasetInfo : newDatasetInfos.values()) {
+            shardList.addAll(datasetInfo.getShardList());
+        }
+        final List<ShardInfo> oldShardList = this.shardList;
+        if (oldShardList == null || !oldShardList.equals(shardList)) {
+            this.shardList = Collections.unmodifiableList(shardList);
+            this.datasetList = Collections.unmodifiableList(Lists.newArrayList(newDatasetInfos.values()));
+            shardListVersion.incrementAndGet();
+        } else if (!changedDatasets.isEmpty() || fullScan) {
+            this.datasetList = Collections.unmodifiableList(Lists.newArrayList(newDatasetInfos.values()));
+        }
+    }
+
+    private DatasetScan scanDataset(final File datasetDir,
+                                    final String dataset,
+                                    final Map<String, AtomicSharedReference<Shard>> oldDatasetShards,
+                                    final long lastModified,
+                                    final long scanStart) throws IOException {
+        final Map<String, AtomicSharedReference<Shard>> newDatasetShards = Maps.newHashMap();
+        final List<AtomicSharedReference<Shard>> loadedShards = Lists.newArrayList();
+
+        final File[] shardDirs = datasetDir.listFiles();
+        if (shardDirs == null) {
+            throw new IOException("unable to list " + datasetDir);
+        }
+        for (final File shardDir : shardDirs) {
+            if (!shardDir.isDirectory() || shardDir.getName().startsWith(".")) {
+                // hidden directories are shards being written, see ShardCompactor
+                continue;
+            }
+
+            try {
+                final String shardId;
+                final long shardVersion;
+                final Matcher matcher = VERSION_PATTERN.matcher(shardDir.getName());
+                if (matcher.matches()) {
+                    shardId = matcher.group(1);
+                    shardVersion = Long.parseLong(matcher.group(2));
+                } else {
+                    shardId = shardDir.getName();
+                    shardVersion = 0L;
+                }
+
+                final String canonicalShardDir = shardDir.getCanonicalPath();
+                final ReadLock readLock;
+                try {
+                    readLock = ReadLock.lock(lockFileMap, new File(canonicalShardDir));
+                } catch (ReadLock.AlreadyOpenException e) {
+                    // already loaded
+                    if (!newDatasetShards.containsKey(shardId)) {
+                        if (!oldDatasetShards.containsKey(shardId)) {
+                            log.error("shard " + shardId
+                                    + " claims to be open but isn't referenced");
+                        } else {
+                            newDatasetShards.put(shardId, oldDatasetShards.get(shardId));
                         }
-                        continue;
-                    } catch (ReadLock.ShardDeletedException e) {
-                        log.info("shard " + shardDir.getName() + " in dataset " + dataset
-                                + " was deleted before read lock could be acquired");
-                        continue;
-                    } catch (ReadLock.LockAquisitionException e) {
-                        log.error("could not lock directory " + canonicalShardDir, e);
-                        continue;
                     }
+                    continue;
+                } catch (ReadLock.ShardDeletedException e) {
+                    log.info("shard " + shardDir.getName() + " in dataset " + dataset
+                            + " was deleted before read lock could be acquired");
+                    continue;
+                } catch (ReadLock.LockAquisitionException e) {
+                    log.error("could not lock directory " + canonicalShardDir, e);
+                    continue;
+                }
 
-                    final SharedReference<ReadLock> readLockRef = SharedReference.create(readLock);
-                    final Shard newShard;
+                final SharedReference<ReadLock> readLockRef = SharedReference.create(readLock);
+                final Shard newShard;
 
-                    try {
-                        final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
-                                new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
-                                    @Override
-                                    public CachedFlamdexReader load() throws IOException {
-                                        final FlamdexReader flamdex =
-                                                flamdexReaderFactory.openReader(canonicalShardDir);
-                                        final SharedReference<ReadLock> copy = readLockRef.copy();
-                                        if (flamdex instanceof RawFlamdexReader) {
-                                            return new RawCachedFlamdexReader(
-                                                                              new MemoryReservationContext(
-                                                                                                           memory),
-                                                                              (RawFlamdexReader) flamdex,
-                                                                              copy, dataset,
-                                                                              shardDir.getName(),
-                                                                              freeCache);
-                                        } else {
-                                            return new CachedFlamdexReader(
-                                                                           new MemoryReservationContext(
-                                                                                                        memory),
-                                                                           flamdex, copy, dataset,
-                                                                           shardDir.getName(),
-                                                                           freeCache);
-                                        }
+                try {
+                    final ReloadableSharedReference.Loader<CachedFlamdexReader, IOException> loader =
+                            new ReloadableSharedReference.Loader<CachedFlamdexReader, IOException>() {
+                                @Override
+                                public CachedFlamdexReader load() throws IOException {
+                                    final FlamdexReader flamdex =
+                                            flamdexReaderFactory.openReader(canonicalShardDir);
+                                    final SharedReference<ReadLock> copy = readLockRef.copy();
+                                    if (flamdex instanceof RawFlamdexReader) {
+                                        return new RawCachedFlamdexReader(
+                                                                          new MemoryReservationContext(
+                                                                                                       memory),
+                                                                          (RawFlamdexReader) flamdex,
+                                                                          copy, dataset,
+                                                                          shardDir.getName(),
+                                                                          freeCache);
+                                    } else {
+                                        return new CachedFlamdexReader(
+                                                                       new MemoryReservationContext(
+                                                                                                    memory),
+                                                                       flamdex, copy, dataset,
+                                                                       shardDir.getName(),
+                                                                       freeCache);
                                     }
-                                };
-                        newShard =
-                                new Shard(ReloadableSharedReference.create(loader), readLockRef,
-                                          shardVersion, canonicalShardDir, dataset, shardId);
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(readLockRef, log);
-                        throw Throwables2.propagate(t, IOException.class);
-                    }
-
-                    try {
-                        final AtomicSharedReference<Shard> shard;
-                        if (newDatasetShards.containsKey(shardId)) {
-                            shard = newDatasetShards.get(shardId);
-                            final SharedReference<Shard> current = shard.get();
-                            try {
-                                if (current == null
-                                        || shardVersion > current.get().getShardVersion()) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
-                                }
-                            } finally {
-                                Closeables2.closeQuietly(current, log);
-                            }
-                        } else if (oldDatasetShards.containsKey(shardId)) {
-                            shard = oldDatasetShards.get(shardId);
-                            final SharedReference<Shard> oldShard = shard.get();
-                            try {
-                                if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
-                                    log.debug("loading shard " + shardId + " from "
-                                            + canonicalShardDir);
-                                    shard.set(newShard);
-                                } else {
-                                    Closeables2.closeQuietly(newShard, log);
                                 }
-                            } finally {
-                                Closeables2.closeQuietly(oldShard, log);
+                            };
+                    newShard =
+                            new Shard(ReloadableSharedReference.create(loader), readLockRef, shardVersion,
+                                      ShardCompactor.getReportedVersion(shardDir, shardVersion),
+                                      canonicalShardDir, dataset, shardId);
+                } catch (Throwable t) {
+                    Closeables2.closeQuietly(readLockRef, log);
+                    throw Throwables2.propagate(t, IOException.class);
+                }
+
+                try {
+                    final AtomicSharedReference<Shard> shard;
+                    if (newDatasetShards.containsKey(shardId)) {
+                        shard = newDatasetShards.get(shardId);
+                        final SharedReference<Shard> current = shard.get();
+                        try {
+                            if (current == null
+                                    || shardVersion > current.get().getShardVersion()) {
+                                log.debug("loading shard " + shardId + " from "
+                                        + canonicalShardDir);
+                                shard.set(newShard);
+                                loadedShards.add(shard);
+                            } else {
+                                Closeables2.closeQuietly(newShard, log);
                             }
-                        } else {
-                            shard = AtomicSharedReference.create(newShard);
-                            log.debug("loading shard " + shardId + " from " + canonicalShardDir);
+                        } finally {
+                            Closeables2.closeQuietly(current, log);
                         }
-                        if (shard != null) {
-                            newDatasetShards.put(shardId, shard);
+                    } else if (oldDatasetShards.containsKey(shardId)) {
+                        shard = oldDatasetShards.get(shardId);
+                        final SharedReference<Shard> oldShard = shard.get();
+                        try {
+                            if (shouldReloadShard(oldShard, canonicalShardDir, shardVersion)) {
+                                log.debug("loading shard " + shardId + " from "
+                                        + canonicalShardDir);
+                                shard.set(newShard);
+                                loadedShards.add(shard);
+                            } else {
+                                Closeables2.closeQuietly(newShard, log);
+                            }
+                        } finally {
+                            Closeables2.closeQuietly(oldShard, log);
                         }
-                    } catch (Throwable t) {
-                        Closeables2.closeQuietly(newShard, log);
-                        throw Throwables2.propagate(t, IOException.class);
+                    } else {
+                        shard = AtomicSharedReference.create(newShard);
+                        log.debug("loading shard " + shardId + " from " + canonicalShardDir);
+                        loadedShards.add(shard);
                     }
-
-                } catch (IOException e) {
-                    log.error("error loading shard at " + shardDir.getAbsolutePath(), e);
+                    if (shard != null) {
+                        newDatasetShards.put(shardId, shard);
+                    }
+                } catch (Throwable t) {
+                    Closeables2.closeQuietly(newShard, log);
+                    throw Throwables2.propagate(t, IOException.class);
                 }
-            }
 
-            if (newDatasetShards.size() > 0) {
-                newShards.put(dataset, newDatasetShards);
+            } catch (IOException e) {
+                log.error("error loading shard at " + shardDir.getAbsolutePath(), e);
             }
+        }
 
-            for (final String shardId : oldDatasetShards.keySet()) {
-                if (!newDatasetShards.containsKey(shardId)) {
-                    try {
-                        oldDatasetShards.get(shardId).unset();
-                    } catch (IOException e) {
-                        log.error("error closing shard " + shardId, e);
-                    }
+        for (final String shardId : oldDatasetShards.keySet()) {
+            if (!newDatasetShards.containsKey(shardId)) {
+                try {
+                    oldDatasetShards.get(shardId).unset();
+                } catch (IOException e) {
+                    log.error("error closing shard " + shardId, e);
                 }
             }
         }
 
-        this.shards = newShards;
+        return new DatasetScan(newDatasetShards, loadedShards, lastModified, scanStart);
+    }
 
-        final List<ShardInfo> shardList = buildShardList();
-        final List<ShardInfo> oldShardList = this.shardList;
-        if (oldShardList == null || !oldShardList.equals(shardList)) {
-            this.shardList = shardList;
+    private static final class DatasetScan {
+        // directory timestamps may only have a resolution of a second
+        private static final long TIMESTAMP_RESOLUTION_MILLIS = 2000;
+
+        final Map<String, AtomicSharedReference<Shard>> shards;
+        final List<AtomicSharedReference<Shard>> loadedShards;
+        final long lastModified;
+        final long scanStart;
+
+        DatasetScan(final Map<String, AtomicSharedReference<Shard>> shards,
+                    final List<AtomicSharedReference<Shard>> loadedShards,
+                    final long lastModified,
+                    final long scanStart) {
+            this.shards = shards;
+            this.loadedShards = loadedShards;
+            this.lastModified = lastModified;
+            this.scanStart = scanStart;
         }
 
-        final List<DatasetInfo> datasetList = buildDatasetList();
-        final List<DatasetInfo> oldDatasetList = this.datasetList;
-        if (oldDatasetList == null || !oldDatasetList.equals(datasetList)) {
-            this.datasetList = datasetList;
+        /**
+         * @return true if a dataset directory with this modification time cannot have changed since the scan. a
+         * directory modified around the time of the scan could have changed after it was listed, so it is always
+         * scanned again.
+         */
+        boolean isUnchanged(final long newLastModified) {
+            return newLastModified == lastModified && lastModified < scanStart - TIMESTAMP_RESOLUTION_MILLIS;
         }
     }
 
@@ -438,66 +613,35 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                 || (shardVersion == oldReader.getShardVersion() && (!canonicalShardDir.equals(oldReader.getIndexDir())));
     }
 
-    private List<ShardInfo> buildShardList() throws IOException {
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = shards;
-        final List<ShardInfo> ret = new ArrayList<ShardInfo>();
-        for (final Map<String, AtomicSharedReference<Shard>> map : localShards.values()) {
-            for (final String shardName : map.keySet()) {
-                final SharedReference<Shard> ref = map.get(shardName).get();
-                try {
-                    if (ref != null) {
-                        final Shard shard = ref.get();
-                        ret.add(new ShardInfo(shard.getDataset(), shardName,
-                                              shard.getLoadedMetrics(), shard.getNumDocs(),
-                                              shard.getShardVersion()));
-                    }
-                } finally {
-                    Closeables2.closeQuietly(ref, log);
+    private static DatasetInfo buildDatasetInfo(final String dataset,
+                                                final Map<String, AtomicSharedReference<Shard>> datasetShards) throws IOException {
+        final List<ShardInfo> shardList = Lists.newArrayList();
+        final Set<String> intFields = Sets.newHashSet();
+        final Set<String> stringFields = Sets.newHashSet();
+        final Set<String> metrics = Sets.newHashSet();
+        for (final String shardName : datasetShards.keySet()) {
+            final SharedReference<Shard> ref = datasetShards.get(shardName).get();
+            try {
+                if (ref != null) {
+                    final Shard shard = ref.get();
+                    shardList.add(new ShardInfo(shard.getDataset(), shardName,
+                                                shard.getLoadedMetrics(), shard.getNumDocs(),
+                                                shard.getReportedVersion()));
+                    intFields.addAll(shard.getIntFields());
+                    stringFields.addAll(shard.getStringFields());
+                    metrics.addAll(shard.getAvailableMetrics());
                 }
+            } finally {
+                Closeables2.closeQuietly(ref, log);
             }
         }
-        Collections.sort(ret, new Comparator<ShardInfo>() {
+        Collections.sort(shardList, new Comparator<ShardInfo>() {
             @Override
             public int compare(ShardInfo o1, ShardInfo o2) {
-                final int c = o1.dataset.compareTo(o2.dataset);
-                if (c != 0) {
-                    return c;
-                }
                 return o1.shardId.compareTo(o2.shardId);
             }
         });
-        return ret;
-    }
-
-    private List<DatasetInfo> buildDatasetList() throws IOException {
-        final Map<String, Map<String, AtomicSharedReference<Shard>>> localShards = shards;
-        final List<DatasetInfo> ret = Lists.newArrayList();
-        for (final Map.Entry<String, Map<String, AtomicSharedReference<Shard>>> e : localShards.entrySet()) {
-            final String dataset = e.getKey();
-            final Map<String, AtomicSharedReference<Shard>> map = e.getValue();
-            final List<ShardInfo> shardList = Lists.newArrayList();
-            final Set<String> intFields = Sets.newHashSet();
-            final Set<String> stringFields = Sets.newHashSet();
-            final Set<String> metrics = Sets.newHashSet();
-            for (final String shardName : map.keySet()) {
-                final SharedReference<Shard> ref = map.get(shardName).get();
-                try {
-                    if (ref != null) {
-                        final Shard shard = ref.get();
-                        shardList.add(new ShardInfo(shard.getDataset(), shardName,
-                                                    shard.getLoadedMetrics(), shard.getNumDocs(),
-                                                    shard.getShardVersion()));
-                        intFields.addAll(shard.getIntFields());
-                        stringFields.addAll(shard.getStringFields());
-                        metrics.addAll(shard.getAvailableMetrics());
-                    }
-                } finally {
-                    Closeables2.closeQuietly(ref, log);
-                }
-            }
-            ret.add(new DatasetInfo(dataset, shardList, intFields, stringFields, metrics));
-        }
-        return ret;
+        return new DatasetInfo(dataset, shardList, intFields, stringFields, metrics);
     }
 
     @Override
@@ -531,7 +675,8 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
                         try {
                             shards.add(new ImhotepStatusDump.ShardDump(shardId, dataset,
                                                                        shard.getNumDocs(),
-                                                                       shard.getMetricDump()));
+                                                                       shard.getMetricDump(),
+                                                                       shard.isLoaded()));
                         } catch (IOException e) {
                             throw Throwables.propagate(e);
                         }
@@ -648,6 +793,45 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return sessionId;
     }
 
+    @Override
+    public int handlePushStat(final String sessionId, final String metric) throws ImhotepOutOfMemoryException {
+        final int numStats = super.handlePushStat(sessionId, metric);
+        shardWarmer.recordMetric(getSessionManager().getDataset(sessionId), metric);
+        return numStats;
+    }
+
+    @Override
+    public void handleGetFTGSIterator(final String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os) throws IOException {
+        recordFields(sessionId, intFields, stringFields);
+        super.handleGetFTGSIterator(sessionId, intFields, stringFields, os);
+    }
+
+    @Override
+    public void handleGetSubsetFTGSIterator(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final OutputStream os) throws IOException {
+        recordFields(sessionId, intFields, stringFields);
+        super.handleGetSubsetFTGSIterator(sessionId, intFields, stringFields, os);
+    }
+
+    @Override
+    public void handleGetFTGSIteratorSplit(final String sessionId, final String[] intFields, final String[] stringFields, final OutputStream os, final int splitIndex, final int numSplits) throws IOException {
+        recordFields(sessionId, intFields, stringFields);
+        super.handleGetFTGSIteratorSplit(sessionId, intFields, stringFields, os, splitIndex, numSplits);
+    }
+
+    @Override
+    public void handleGetSubsetFTGSIteratorSplit(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields, final OutputStream os, final int splitIndex, final int numSplits) throws IOException {
+        recordFields(sessionId, intFields, stringFields);
+        super.handleGetSubsetFTGSIteratorSplit(sessionId, intFields, stringFields, os, splitIndex, numSplits);
+    }
+
+    private void recordFields(final String sessionId, final String[] intFields, final String[] stringFields) {
+        shardWarmer.recordFields(getSessionManager().getDataset(sessionId), Arrays.asList(intFields), Arrays.asList(stringFields));
+    }
+
+    private void recordFields(final String sessionId, final Map<String, long[]> intFields, final Map<String, String[]> stringFields) {
+        shardWarmer.recordFields(getSessionManager().getDataset(sessionId), intFields.keySet(), stringFields.keySet());
+    }
+
     private static void checkDatasetExists(Map<String, Map<String, AtomicSharedReference<Shard>>> shards,
                                            String dataset) {
         if (!shards.containsKey(dataset)) {
@@ -668,7 +852,10 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         super.close();
         executor.shutdownNow();
         shardReload.shutdown();
+        shardScanExecutor.shutdown();
         heartBeat.shutdown();
+        shardWarmer.close();
+        shardCompactor.close();
     }
 
     @Export(name = "loaded-shard-count", doc = "number of loaded shards for each dataset", expand = true)
@@ -681,6 +868,11 @@ public class LocalImhotepServiceCore extends AbstractImhotepServiceCore {
         return ret;
     }
 
+    @Export(name = "shard-list-version", doc = "incremented every time the shard list changes")
+    public long getShardListVersion() {
+        return shardListVersion.get();
+    }
+
     private final AtomicInteger counter = new AtomicInteger(new Random().nextInt());
 
     private String generateSessionId() {
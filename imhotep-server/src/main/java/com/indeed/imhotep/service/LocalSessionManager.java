@@ -55,6 +55,10 @@ public final class LocalSessionManager extends AbstractSessionManager<Map<ShardI
         return ret;
     }
 
+    public String getDataset(final String sessionId) {
+        return internalGetSession(sessionId).dataset;
+    }
+
     public List<ImhotepStatusDump.SessionDump> getSessionDump() {
         final Map<String, Session<Map<ShardId, CachedFlamdexReaderReference>>> clone = cloneSessionMap();
 
@@ -27,6 +27,8 @@ import com.indeed.util.core.reference.ReloadableSharedReference;
 import com.indeed.util.core.reference.SharedReference;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
+import com.indeed.flamdex.api.IntValueZoneMapProvider;
 import com.indeed.imhotep.ImhotepStatusDump;
 import org.apache.log4j.Logger;
 
@@ -127,7 +129,7 @@ public final class MetricCacheImpl implements MetricCache {
         }
     }
 
-    private static final class CachedIntValueLookup implements IntValueLookup {
+    private static final class CachedIntValueLookup implements IntValueLookup, IntValueZoneMapProvider {
         private final SharedReference<IntValueLookup> reference;
         private final IntValueLookup metric;
 
@@ -151,6 +153,11 @@ public final class MetricCacheImpl implements MetricCache {
             metric.lookup(docIds, values, n);
         }
 
+        @Override
+        public IntValueZoneMap getZoneMap() {
+            return IntValueZoneMap.of(metric);
+        }
+
         @Override
         public long memoryUsed() {
             return metric.memoryUsed();
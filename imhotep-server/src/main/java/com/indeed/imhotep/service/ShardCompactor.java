@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.lucene.LuceneFlamdexConverter;
+import com.indeed.flamdex.lucene.LuceneFlamdexReader;
+import com.indeed.flamdex.ramses.RamsesFlamdexWrapper;
+import com.indeed.flamdex.reader.FlamdexMetadata;
+import com.indeed.flamdex.simple.SimpleFlamdexManifest;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.FlamdexWriter;
+import com.indeed.flamdex.writer.IntFieldWriter;
+import com.indeed.flamdex.writer.StringFieldWriter;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.shell.PosixFileOperations;
+import com.indeed.util.io.Files;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+/**
+ * Rewrites shards stored in old formats into the current simple flamdex format in the background: lucene indexes, and
+ * simple indexes missing 64 bit int b-trees, string b-trees or the field stats manifest. Only the newest version of
+ * each shard is looked at. The rewrite goes to a hidden temporary directory in the dataset directory and is renamed
+ * to the shard id with the next version when complete, so the next shard scan loads it like any other new version.
+ * The version is the source version plus one, so every replica that compacts the same shard ends up with the same
+ * version, and any real rebuild of the shard, which gets a newer timestamp, still wins. The old version is left in
+ * place for whatever cleans up old versions.
+ *
+ * Clients only send requests for a shard to the daemons reporting its highest version, so the compacted copy records
+ * the version it was compacted from and reports that instead, see {@link #getReportedVersion}. Otherwise the first
+ * replica to compact a shard would take all of its traffic until the others caught up.
+ *
+ * Compaction runs on a single minimum priority thread and only while no more than a configured number of sessions
+ * are open. Both the session count and the write rate are checked as the shard is written, so a large shard is held
+ * to the rate as it goes and abandoned as soon as sessions open, to be started over on a later pass.
+ */
+final class ShardCompactor implements Closeable {
+    private static final Logger log = Logger.getLogger(ShardCompactor.class);
+
+    private static final String TEMP_SUFFIX = ".compaction.tmp";
+    // the version a compacted shard was compacted from
+    static final String SOURCE_VERSION_FILENAME = "compacted-from";
+    // docs written between checks of the budget
+    private static final int CHECK_INTERVAL = 16384;
+
+    private final String shardsDirectory;
+    private final FlamdexReaderSource flamdexReaderFactory;
+    private final AbstractSessionManager<?> sessionManager;
+    private final LocalImhotepServiceConfig config;
+
+    private final ScheduledExecutorService executor;
+
+    private final AtomicLong compactedShards = new AtomicLong();
+    private final AtomicLong failedShards = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+
+    /**
+     * @param sessionManager compaction pauses while it has more than config.getCompactionMaxOpenSessions() sessions
+     * @param config the compaction schedule and budgets. nothing is scheduled if the frequency is 0
+     */
+    ShardCompactor(final String shardsDirectory,
+                   final FlamdexReaderSource flamdexReaderFactory,
+                   final AbstractSessionManager<?> sessionManager,
+                   final LocalImhotepServiceConfig config) {
+        this.shardsDirectory = shardsDirectory;
+        this.flamdexReaderFactory = flamdexReaderFactory;
+        this.sessionManager = sessionManager;
+        this.config = config;
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                         .setPriority(Thread.MIN_PRIORITY)
+                                                                                         .setNameFormat("ShardCompactor-%d")
+                                                                                         .build());
+        if (config.getCompactionFrequencySeconds() > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compactShards();
+                    } catch (Throwable t) {
+                        log.error("error compacting shards", t);
+                    }
+                }
+            }, config.getCompactionFrequencySeconds(), config.getCompactionFrequencySeconds(), TimeUnit.SECONDS);
+        }
+
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    void compactShards() throws IOException {
+        final String canonicalShardsDirectory = Files.getCanonicalPath(shardsDirectory);
+        if (canonicalShardsDirectory == null) {
+            return;
+        }
+        final File[] datasetDirs = new File(canonicalShardsDirectory).listFiles();
+        if (datasetDirs == null) {
+            throw new IOException("unable to list " + canonicalShardsDirectory);
+        }
+        for (final File datasetDir : datasetDirs) {
+            if (!datasetDir.isDirectory()) {
+                continue;
+            }
+            final File[] shardDirs = datasetDir.listFiles();
+            if (shardDirs == null) {
+                log.warn("unable to list " + datasetDir);
+                continue;
+            }
+            // left over from compactions that didn't get to finish or clean up, which only ever run on this thread
+            for (final File shardDir : shardDirs) {
+                if (shardDir.isDirectory() && shardDir.getName().startsWith(".") && shardDir.getName().endsWith(TEMP_SUFFIX)) {
+                    log.info("deleting stale compaction directory " + shardDir);
+                    PosixFileOperations.rmrf(shardDir);
+                }
+            }
+
+            // newest version of each shard
+            final Map<String, File> newestDirs = Maps.newTreeMap();
+            final Map<String, Long> newestVersions = Maps.newHashMap();
+            for (final File shardDir : shardDirs) {
+                if (!shardDir.isDirectory() || shardDir.getName().startsWith(".")) {
+                    continue;
+                }
+                final String shardId;
+                final long shardVersion;
+                final Matcher matcher = LocalImhotepServiceCore.VERSION_PATTERN.matcher(shardDir.getName());
+                if (matcher.matches()) {
+                    shardId = matcher.group(1);
+                    shardVersion = Long.parseLong(matcher.group(2));
+                } else {
+                    shardId = shardDir.getName();
+                    shardVersion = 0L;
+                }
+                final Long newestVersion = newestVersions.get(shardId);
+                if (newestVersion == null || shardVersion > newestVersion) {
+                    newestDirs.put(shardId, shardDir);
+                    newestVersions.put(shardId, shardVersion);
+                }
+            }
+
+            for (final Map.Entry<String, File> entry : newestDirs.entrySet()) {
+                if (sessionManager.getSessionCount() > config.getCompactionMaxOpenSessions()) {
+                    return;
+                }
+                final String shardId = entry.getKey();
+                final File shardDir = entry.getValue();
+                try {
+                    if (needsCompaction(shardDir)) {
+                        compact(datasetDir, shardId, newestVersions.get(shardId), shardDir);
+                    }
+                } catch (CompactionAbortedException e) {
+                    log.info("stopped compacting " + shardDir + ": " + e.getMessage());
+                    return;
+                } catch (RuntimeException e) {
+                    failedShards.incrementAndGet();
+                    log.error("error compacting shard " + shardDir, e);
+                } catch (IOException e) {
+                    failedShards.incrementAndGet();
+                    log.error("error compacting shard " + shardDir, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the index in shardDir is in a format that compaction would rewrite
+     */
+    static boolean needsCompaction(final File shardDir) throws IOException {
+        final String directory = shardDir.getPath();
+        if (RamsesFlamdexWrapper.ramsesFilesExist(directory)) {
+            // the ramses time index would not be carried over
+            return false;
+        }
+        if (!new File(shardDir, "metadata.txt").exists()) {
+            return IndexReader.indexExists(shardDir);
+        }
+        final FlamdexMetadata metadata = FlamdexMetadata.readMetadata(directory);
+        switch (metadata.getFormatVersion()) {
+            case 0:
+                if (!new File(shardDir, SimpleFlamdexManifest.FILENAME).exists()) {
+                    return true;
+                }
+                // fields without terms don't get a b-tree
+                for (final String field : metadata.getIntFields()) {
+                    if (hasTerms(shardDir, field, ".intterms") && !new File(shardDir, "fld-" + field + ".intindex64").exists()) {
+                        return true;
+                    }
+                }
+                for (final String field : metadata.getStringFields()) {
+                    if (hasTerms(shardDir, field, ".strterms") && !new File(shardDir, "fld-" + field + ".strindex").exists()) {
+                        return true;
+                    }
+                }
+                return false;
+            case 2:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param shardVersion the version in the name of shardDir
+     * @return the version to report for the shard in shardDir, which is that of the shard it was compacted from if
+     *         it is a compacted copy
+     */
+    static long getReportedVersion(final File shardDir, final long shardVersion) throws IOException {
+        final File sourceVersionFile = new File(shardDir, SOURCE_VERSION_FILENAME);
+        if (!sourceVersionFile.exists()) {
+            return shardVersion;
+        }
+        try {
+            return Long.parseLong(FileUtils.readFileToString(sourceVersionFile).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid source version in " + sourceVersionFile, e);
+        }
+    }
+
+    private static boolean hasTerms(final File shardDir, final String field, final String suffix) {
+        return new File(shardDir, "fld-" + field + suffix).length() > 0;
+    }
+
+    private void compact(final File datasetDir, final String shardId, final long shardVersion, final File shardDir)
+            throws IOException {
+        final String newName = String.format("%s.%014d", shardId, shardVersion + 1);
+        final File tmpDir = new File(datasetDir, "." + newName + TEMP_SUFFIX);
+        final File newDir = new File(datasetDir, newName);
+        log.info("compacting " + shardDir + " into " + newDir);
+
+        final Budget budget = new Budget(tmpDir);
+        boolean success = false;
+        try {
+            final FlamdexReader reader = flamdexReaderFactory.openReader(shardDir.getCanonicalPath());
+            try {
+                final FlamdexWriter w = new BudgetedFlamdexWriter(
+                        new SimpleFlamdexWriter(tmpDir.getPath(), reader.getNumDocs(), true, true), budget);
+                if (reader instanceof LuceneFlamdexReader) {
+                    LuceneFlamdexConverter.write((LuceneFlamdexReader)reader, w);
+                } else {
+                    SimpleFlamdexWriter.writeFlamdex(reader, w);
+                }
+            } finally {
+                Closeables2.closeQuietly(reader, log);
+            }
+            if (config.isCompactionPrecomputeMetrics()) {
+                precomputeMetrics(tmpDir.getPath(), budget);
+            }
+            budget.check(FileUtils.sizeOfDirectory(tmpDir));
+            // carried over from the source if it was itself compacted
+            FileUtils.writeStringToFile(new File(tmpDir, SOURCE_VERSION_FILENAME),
+                    Long.toString(getReportedVersion(shardDir, shardVersion)));
+            if (!tmpDir.renameTo(newDir)) {
+                throw new IOException("unable to rename " + tmpDir + " to " + newDir);
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                PosixFileOperations.rmrf(tmpDir);
+            }
+        }
+
+        compactedShards.incrementAndGet();
+        writtenBytes.addAndGet(FileUtils.sizeOfDirectory(newDir));
+    }
+
+    /**
+     * write the mmapped caches of every int field, for shards loaded with flamdex.mmap.fieldcache set
+     */
+    private static void precomputeMetrics(final String directory, final Budget budget) throws IOException {
+        final SimpleFlamdexReader reader = SimpleFlamdexReader.open(directory, new SimpleFlamdexReader.Config().setUseMMapMetrics(true));
+        try {
+            for (final String field : reader.getIntFields()) {
+                final IntValueLookup lookup = reader.getMetric(field);
+                lookup.close();
+                budget.check(FileUtils.sizeOfDirectory(new File(directory)));
+            }
+        } catch (FlamdexOutOfMemoryException e) {
+            throw new IOException("not enough memory to precompute metrics in " + directory, e);
+        } finally {
+            Closeables2.closeQuietly(reader, log);
+        }
+    }
+
+    private static final class CompactionAbortedException extends IOException {
+        private CompactionAbortedException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * the write rate and session limits of one shard compaction
+     */
+    private final class Budget {
+        private final File directory;
+        private final long start = System.currentTimeMillis();
+
+        private Budget(final File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * give up on the shard if too many sessions are open, otherwise sleep long enough that writing bytes so far
+         * took at least as long as the write rate allows
+         */
+        void check(final long bytes) throws CompactionAbortedException {
+            final int sessions = sessionManager.getSessionCount();
+            if (sessions > config.getCompactionMaxOpenSessions()) {
+                throw new CompactionAbortedException(sessions + " sessions are open");
+            }
+            final long bytesPerSecond = config.getCompactionWriteBytesPerSecond();
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            final long sleepMillis = bytes * 1000 / bytesPerSecond - (System.currentTimeMillis() - start);
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompactionAbortedException("interrupted");
+                }
+            }
+        }
+
+        /**
+         * check the budget with the size of the fields already written plus that of the files of the current field
+         */
+        void check(final long completedBytes, final String field, final String termsSuffix, final String docsSuffix)
+                throws CompactionAbortedException {
+            check(completedBytes
+                    + new File(directory, "fld-" + field + termsSuffix).length()
+                    + new File(directory, "fld-" + field + docsSuffix).length());
+        }
+    }
+
+    /**
+     * checks the budget every {@link #CHECK_INTERVAL} docs written
+     */
+    private static final class BudgetedFlamdexWriter implements FlamdexWriter {
+        private final SimpleFlamdexWriter w;
+        private final Budget budget;
+        private long completedBytes = 0L;
+        private long docs = 0L;
+
+        private BudgetedFlamdexWriter(final SimpleFlamdexWriter w, final Budget budget) {
+            this.w = w;
+            this.budget = budget;
+        }
+
+        @Override
+        public String getOutputDirectory() {
+            return w.getOutputDirectory();
+        }
+
+        @Override
+        public void resetMaxDocs(final long maxDocs) {
+            w.resetMaxDocs(maxDocs);
+        }
+
+        @Override
+        public IntFieldWriter getIntFieldWriter(final String field) throws IOException {
+            final IntFieldWriter ifw = w.getIntFieldWriter(field);
+            return new IntFieldWriter() {
+                @Override
+                public void nextTerm(final long term) throws IOException {
+                    ifw.nextTerm(term);
+                }
+
+                @Override
+                public void nextDoc(final int doc) throws IOException {
+                    ifw.nextDoc(doc);
+                    if (++docs % CHECK_INTERVAL == 0) {
+                        budget.check(completedBytes, field, ".intterms", ".intdocs");
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    ifw.close();
+                    fieldClosed();
+                }
+            };
+        }
+
+        @Override
+        public StringFieldWriter getStringFieldWriter(final String field) throws IOException {
+            final StringFieldWriter sfw = w.getStringFieldWriter(field);
+            return new StringFieldWriter() {
+                @Override
+                public void nextTerm(final String term) throws IOException {
+                    sfw.nextTerm(term);
+                }
+
+                @Override
+                public void nextDoc(final int doc) throws IOException {
+                    sfw.nextDoc(doc);
+                    if (++docs % CHECK_INTERVAL == 0) {
+                        budget.check(completedBytes, field, ".strterms", ".strdocs");
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    sfw.close();
+                    fieldClosed();
+                }
+            };
+        }
+
+        private void fieldClosed() throws IOException {
+            completedBytes = FileUtils.sizeOfDirectory(new File(w.getOutputDirectory()));
+            budget.check(completedBytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            w.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @Export(name = "compacted-shard-count", doc = "number of shards rewritten into the current format")
+    public long getCompactedShardCount() {
+        return compactedShards.get();
+    }
+
+    @Export(name = "failed-shard-count", doc = "number of shard compactions that failed")
+    public long getFailedShardCount() {
+        return failedShards.get();
+    }
+
+    @Export(name = "written-bytes", doc = "bytes of shards written by compactions")
+    public long getWrittenBytes() {
+        return writtenBytes.get();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
+import com.indeed.imhotep.CachedMemoryReserver;
+import com.indeed.imhotep.MemoryReserver;
+import com.indeed.imhotep.io.Shard;
+import com.indeed.util.core.io.Closeables2;
+import com.indeed.util.core.reference.AtomicSharedReference;
+import com.indeed.util.core.reference.SharedReference;
+import com.indeed.util.varexport.Export;
+import com.indeed.util.varexport.VarExporter;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms shards in the background after they are loaded or reloaded so that the first sessions against a new shard
+ * version don't pay for faulting in its files and loading its metrics.
+ *
+ * What gets warmed is driven by what recent sessions on the same dataset used: the fields requested in FTGS calls have
+ * their files read into the page cache, up to a per shard byte budget, and the pushed metrics are loaded into the
+ * metric cache, as long as used plus cached memory stays under a fraction of the total.
+ */
+final class ShardWarmer implements Closeable {
+    private static final Logger log = Logger.getLogger(ShardWarmer.class);
+
+    private static final int MAX_TRACKED_PER_DATASET = 1000;
+    private static final long USAGE_EXPIRATION_HOURS = 24;
+
+    private final MemoryReserver memory;
+    private final boolean cacheMetrics;
+    private final LocalImhotepServiceConfig config;
+
+    private final ExecutorService executor;
+
+    private final LoadingCache<String, Cache<String, AtomicLong>> metricUsage = newUsageCache();
+    private final LoadingCache<String, Cache<String, AtomicLong>> fieldUsage = newUsageCache();
+
+    private final AtomicLong warmedShards = new AtomicLong();
+    private final AtomicLong preloadedMetrics = new AtomicLong();
+    private final AtomicLong touchedBytes = new AtomicLong();
+
+    /* file reads don't respond to interrupts, so a warm-up in progress checks this between reads */
+    private volatile boolean closed = false;
+
+    /**
+     * @param memory the memory reserver metrics are loaded against
+     * @param cacheMetrics whether released metrics are kept in a free cache. metrics are only preloaded if they are,
+     *                     since otherwise they would be released again as soon as the warm-up is done with them
+     * @param config the warm-up budgets
+     */
+    ShardWarmer(final MemoryReserver memory, final boolean cacheMetrics, final LocalImhotepServiceConfig config) {
+        this.memory = memory;
+        this.cacheMetrics = cacheMetrics;
+        this.config = config;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                                                                                .setNameFormat("ShardWarmer-%d")
+                                                                                .build());
+
+        VarExporter.forNamespace(getClass().getSimpleName()).includeInGlobal().export(this, "");
+    }
+
+    private static LoadingCache<String, Cache<String, AtomicLong>> newUsageCache() {
+        return CacheBuilder.newBuilder().build(new CacheLoader<String, Cache<String, AtomicLong>>() {
+            @Override
+            public Cache<String, AtomicLong> load(final String dataset) {
+                return CacheBuilder.newBuilder()
+                                   .maximumSize(MAX_TRACKED_PER_DATASET)
+                                   .expireAfterAccess(USAGE_EXPIRATION_HOURS, TimeUnit.HOURS)
+                                   .build();
+            }
+        });
+    }
+
+    private static void increment(final LoadingCache<String, Cache<String, AtomicLong>> usage,
+                                  final String dataset,
+                                  final String name) {
+        final ConcurrentMap<String, AtomicLong> counts = usage.getUnchecked(dataset).asMap();
+        AtomicLong count = counts.get(name);
+        if (count == null) {
+            final AtomicLong newCount = new AtomicLong();
+            count = counts.putIfAbsent(name, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static List<String> getMostUsed(final LoadingCache<String, Cache<String, AtomicLong>> usage,
+                                            final String dataset,
+                                            final int limit) {
+        final Cache<String, AtomicLong> counts = usage.getIfPresent(dataset);
+        if (counts == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        final List<Map.Entry<String, AtomicLong>> entries = Lists.newArrayList(counts.asMap().entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            @Override
+            public int compare(final Map.Entry<String, AtomicLong> o1, final Map.Entry<String, AtomicLong> o2) {
+                final long c1 = o1.getValue().get();
+                final long c2 = o2.getValue().get();
+                return c1 < c2 ? 1 : c1 > c2 ? -1 : 0;
+            }
+        });
+        final List<String> ret = Lists.newArrayListWithCapacity(Math.min(limit, entries.size()));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            ret.add(entries.get(i).getKey());
+        }
+        return ret;
+    }
+
+    /**
+     * record a stat pushed by a session. stats that are not plain metrics are ignored when warming.
+     */
+    public void recordMetric(final String dataset, final String metric) {
+        increment(metricUsage, dataset, metric);
+    }
+
+    public void recordFields(final String dataset, final Iterable<String> intFields, final Iterable<String> stringFields) {
+        for (final String field : intFields) {
+            increment(fieldUsage, dataset, field);
+        }
+        for (final String field : stringFields) {
+            increment(fieldUsage, dataset, field);
+        }
+    }
+
+    /**
+     * queue a warm-up of whatever shard version shardRef holds by the time the warm-up runs
+     */
+    public void warm(final AtomicSharedReference<Shard> shardRef) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmShard(shardRef);
+                } catch (Throwable t) {
+                    log.warn("error warming shard", t);
+                }
+            }
+        });
+    }
+
+    private void warmShard(final AtomicSharedReference<Shard> shardRef) throws IOException {
+        final SharedReference<Shard> ref = shardRef.get();
+        if (ref == null) {
+            return;
+        }
+        try {
+            final Shard shard = ref.get();
+            final List<String> fields = getMostUsed(fieldUsage, shard.getDataset(), config.getWarmUpMaxFields());
+            final List<String> metrics = cacheMetrics
+                    ? getMostUsed(metricUsage, shard.getDataset(), config.getWarmUpMaxMetrics())
+                    : Collections.<String>emptyList();
+            if (fields.isEmpty() && metrics.isEmpty()) {
+                return;
+            }
+            touchFields(new File(shard.getIndexDir()), fields);
+            preloadMetrics(shard, metrics);
+            warmedShards.incrementAndGet();
+        } finally {
+            Closeables2.closeQuietly(ref, log);
+        }
+    }
+
+    /**
+     * read the files of fields in indexDir, up to the per shard budget, stopping early if the warmer is closed
+     */
+    @VisibleForTesting
+    void touchFields(final File indexDir, final List<String> fields) {
+        final byte[] buffer = new byte[64 * 1024];
+        long remaining = config.getWarmUpReadBytesPerShard();
+        for (final String field : fields) {
+            final List<File> files = Lists.newArrayList();
+            listFieldFiles(indexDir, "fld-" + field + ".", files);
+            // small files first, so the term indexes and term lists are read before the doc lists use up the budget
+            Collections.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(final File o1, final File o2) {
+                    final long l1 = o1.length();
+                    final long l2 = o2.length();
+                    return l1 < l2 ? -1 : l1 > l2 ? 1 : 0;
+                }
+            });
+            for (final File file : files) {
+                if (remaining <= 0 || closed) {
+                    return;
+                }
+                remaining -= touch(file, remaining, buffer);
+            }
+        }
+    }
+
+    private static void listFieldFiles(final File dir, final String prefix, final List<File> ret) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (prefix != null && !name.startsWith(prefix)) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                // term index b-trees are stored as directories
+                listFieldFiles(file, null, ret);
+            } else if (!name.endsWith("cache")) {
+                // field caches are loaded along with their metrics
+                ret.add(file);
+            }
+        }
+    }
+
+    /**
+     * read the start of file so that it is in the page cache by the time a session maps it
+     */
+    private long touch(final File file, final long maxBytes, final byte[] buffer) {
+        long read = 0;
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                while (read < maxBytes && !closed) {
+                    final int n = in.read(buffer, 0, (int)Math.min(buffer.length, maxBytes - read));
+                    if (n < 0) {
+                        break;
+                    }
+                    read += n;
+                }
+            } finally {
+                Closeables2.closeQuietly(in, log);
+            }
+        } catch (IOException e) {
+            log.warn("unable to read " + file, e);
+        }
+        touchedBytes.addAndGet(read);
+        return read;
+    }
+
+    private void preloadMetrics(final Shard shard, final List<String> metrics) throws IOException {
+        if (metrics.isEmpty()) {
+            return;
+        }
+        final SharedReference<CachedFlamdexReader> readerRef = shard.getRef();
+        if (readerRef == null) {
+            return;
+        }
+        try {
+            final CachedFlamdexReader reader = readerRef.get();
+            final Set<String> availableMetrics = Sets.newHashSet(reader.getAvailableMetrics());
+            final Set<String> loadedMetrics = reader.getLoadedMetrics();
+            final long memoryLimit = (long)(memory.totalMemory() * config.getWarmUpMaxMemoryFraction());
+            for (final String metric : metrics) {
+                if (!availableMetrics.contains(metric) || loadedMetrics.contains(metric)) {
+                    continue;
+                }
+                if (getResidentMemory() + reader.memoryRequired(metric) > memoryLimit) {
+                    log.debug("not preloading " + metric + " for " + shard.getShardId() + ", over the memory budget");
+                    continue;
+                }
+                try {
+                    // closing the lookup right away leaves it in the free cache for the next session to pick up
+                    Closeables2.closeQuietly(reader.getMetric(metric), log);
+                    preloadedMetrics.incrementAndGet();
+                } catch (FlamdexOutOfMemoryException e) {
+                    return;
+                }
+            }
+        } finally {
+            Closeables2.closeQuietly(readerRef, log);
+        }
+    }
+
+    private long getResidentMemory() {
+        if (memory instanceof CachedMemoryReserver) {
+            return memory.usedMemory() + ((CachedMemoryReserver)memory).cachedMemory();
+        }
+        return memory.usedMemory();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    @Export(name = "warmed-shard-count", doc = "number of shard loads that were warmed")
+    public long getWarmedShardCount() {
+        return warmedShards.get();
+    }
+
+    @Export(name = "preloaded-metric-count", doc = "number of metrics loaded by shard warm-ups")
+    public long getPreloadedMetricCount() {
+        return preloadedMetrics.get();
+    }
+
+    @Export(name = "touched-bytes", doc = "bytes of shard files read by shard warm-ups")
+    public long getTouchedBytes() {
+        return touchedBytes.get();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex;
+
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestCompactMemoryFlamdex {
+    @Test
+    public void testSameAsMemoryFlamdex() throws IOException {
+        final Random rand = new Random(0);
+        final MemoryFlamdex expected = new MemoryFlamdex();
+        final CompactMemoryFlamdex actual = new CompactMemoryFlamdex();
+        for (int i = 0; i < 2000; ++i) {
+            final FlamdexDocument doc = new FlamdexDocument();
+            for (int j = rand.nextInt(4); j > 0; --j) {
+                // repeats within a doc, negative terms and terms far apart
+                doc.addIntTerm("if1", rand.nextInt(50) - 25);
+                doc.addIntTerm("if2", rand.nextLong());
+            }
+            if (rand.nextBoolean()) {
+                doc.setIntField("if3", new long[0]);
+            }
+            for (int j = rand.nextInt(4); j > 0; --j) {
+                doc.addStringTerm("sf1", "term" + rand.nextInt(100));
+                doc.addStringTerm("sf1", "term" + rand.nextInt(100));
+            }
+            expected.addDocument(doc);
+            actual.addDocument(doc);
+        }
+
+        final ByteArrayDataOutput expectedOut = ByteStreams.newDataOutput();
+        expected.write(expectedOut);
+        final ByteArrayDataOutput actualOut = ByteStreams.newDataOutput();
+        actual.write(actualOut);
+        assertArrayEquals(expectedOut.toByteArray(), actualOut.toByteArray());
+
+        assertEquals(expected.getIntFields(), actual.getIntFields());
+        assertEquals(expected.getStringFields(), actual.getStringFields());
+        for (final String field : expected.getIntFields()) {
+            assertIntFieldEquals(expected, actual, field);
+            assertEquals(expected.getIntTotalDocFreq(field), actual.getIntTotalDocFreq(field));
+        }
+        for (final String field : expected.getStringFields()) {
+            assertStringFieldEquals(expected, actual, field);
+            assertEquals(expected.getStringTotalDocFreq(field), actual.getStringTotalDocFreq(field));
+        }
+    }
+
+    @Test
+    public void testAddAfterRead() throws IOException {
+        final CompactMemoryFlamdex fdx = new CompactMemoryFlamdex();
+        final FlamdexDocument doc0 = new FlamdexDocument();
+        doc0.setIntField("if1", 5);
+        doc0.addStringTerm("sf1", "b");
+        fdx.addDocument(doc0);
+        assertEquals(1, fdx.getIntTotalDocFreq("if1"));
+
+        final FlamdexDocument doc1 = new FlamdexDocument();
+        doc1.setIntField("if1", new long[]{3, 5});
+        doc1.addStringTerm("sf1", "a");
+        doc1.addStringTerm("sf1", "b");
+        fdx.addDocument(doc1);
+
+        final DocIdStream dis = fdx.getDocIdStream();
+        final int[] buf = new int[4];
+        final IntTermIterator intIter = fdx.getIntTermIterator("if1");
+        intIter.reset(4);
+        assertTrue(intIter.next());
+        assertEquals(5, intIter.term());
+        dis.reset(intIter);
+        assertEquals(2, dis.fillDocIdBuffer(buf));
+        assertArrayEquals(new int[]{0, 1}, new int[]{buf[0], buf[1]});
+        assertFalse(intIter.next());
+
+        final StringTermIterator stringIter = fdx.getStringTermIterator("sf1");
+        assertTrue(stringIter.next());
+        assertEquals("a", stringIter.term());
+        assertEquals(1, stringIter.docFreq());
+        stringIter.reset("b");
+        assertTrue(stringIter.next());
+        assertEquals("b", stringIter.term());
+        assertEquals(2, stringIter.docFreq());
+        assertFalse(stringIter.next());
+    }
+
+    private static void assertIntFieldEquals(FlamdexReader expected, FlamdexReader actual, String field) {
+        final IntTermIterator expectedIter = expected.getIntTermIterator(field);
+        final IntTermIterator actualIter = actual.getIntTermIterator(field);
+        final DocIdStream expectedDocs = expected.getDocIdStream();
+        final DocIdStream actualDocs = actual.getDocIdStream();
+        while (expectedIter.next()) {
+            assertTrue(actualIter.next());
+            assertEquals(expectedIter.term(), actualIter.term());
+            assertEquals(expectedIter.docFreq(), actualIter.docFreq());
+            expectedDocs.reset(expectedIter);
+            actualDocs.reset(actualIter);
+            assertDocsEqual(expectedDocs, actualDocs);
+        }
+        assertFalse(actualIter.next());
+    }
+
+    private static void assertStringFieldEquals(FlamdexReader expected, FlamdexReader actual, String field) {
+        final StringTermIterator expectedIter = expected.getStringTermIterator(field);
+        final StringTermIterator actualIter = actual.getStringTermIterator(field);
+        final DocIdStream expectedDocs = expected.getDocIdStream();
+        final DocIdStream actualDocs = actual.getDocIdStream();
+        while (expectedIter.next()) {
+            assertTrue(actualIter.next());
+            assertEquals(expectedIter.term(), actualIter.term());
+            assertEquals(expectedIter.docFreq(), actualIter.docFreq());
+            expectedDocs.reset(expectedIter);
+            actualDocs.reset(actualIter);
+            assertDocsEqual(expectedDocs, actualDocs);
+        }
+        assertFalse(actualIter.next());
+    }
+
+    private static void assertDocsEqual(DocIdStream expected, DocIdStream actual) {
+        final int[] expectedBuf = new int[7];
+        final int[] actualBuf = new int[7];
+        while (true) {
+            final int n = expected.fillDocIdBuffer(expectedBuf);
+            assertEquals(n, actual.fillDocIdBuffer(actualBuf));
+            for (int i = 0; i < n; ++i) {
+                assertEquals(expectedBuf[i], actualBuf[i]);
+            }
+            if (n < expectedBuf.length) break;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex;
+
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.api.IntTermSetIterator;
+import com.indeed.flamdex.api.StringTermIterator;
+import com.indeed.flamdex.api.StringTermSetIterator;
+import com.indeed.flamdex.writer.FlamdexDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestTermSetIterator {
+    @Test
+    public void testSameAsResetPerTerm() {
+        final Random rand = new Random(0);
+        final MemoryFlamdex fdx = new MemoryFlamdex();
+        for (int i = 0; i < 1000; ++i) {
+            final FlamdexDocument doc = new FlamdexDocument();
+            // sparse terms so that sets hit both small gaps and large ones
+            doc.addIntTerm("if1", rand.nextInt(5000) * 3);
+            doc.addStringTerm("sf1", "term" + rand.nextInt(5000) * 3);
+            fdx.addDocument(doc);
+        }
+
+        for (final int numTerms : new int[]{0, 1, 10, 500, 20000}) {
+            final long[] intTerms = new long[numTerms];
+            final String[] stringTerms = new String[numTerms];
+            for (int i = 0; i < numTerms; ++i) {
+                intTerms[i] = rand.nextInt(15000) - 10;
+                stringTerms[i] = "term" + rand.nextInt(15000);
+            }
+            Arrays.sort(intTerms);
+            Arrays.sort(stringTerms);
+
+            final IntTermIterator intIter = fdx.getIntTermIterator("if1");
+            final IntTermIterator intExpected = fdx.getIntTermIterator("if1");
+            final IntTermSetIterator intMatches = new IntTermSetIterator(intIter, intTerms);
+            for (int i = 0; i < numTerms; ++i) {
+                if (i > 0 && intTerms[i] == intTerms[i - 1]) continue;
+                intExpected.reset(intTerms[i]);
+                if (intExpected.next() && intExpected.term() == intTerms[i]) {
+                    assertTrue(intMatches.next());
+                    assertEquals(intTerms[i], intMatches.term());
+                    assertEquals(intTerms[i], intIter.term());
+                    assertEquals(intExpected.docFreq(), intMatches.docFreq());
+                    assertEquals(i, intMatches.getIndex());
+                }
+            }
+            assertFalse(intMatches.next());
+
+            final StringTermIterator stringIter = fdx.getStringTermIterator("sf1");
+            final StringTermIterator stringExpected = fdx.getStringTermIterator("sf1");
+            final StringTermSetIterator stringMatches = new StringTermSetIterator(stringIter, stringTerms);
+            for (int i = 0; i < numTerms; ++i) {
+                if (i > 0 && stringTerms[i].equals(stringTerms[i - 1])) continue;
+                stringExpected.reset(stringTerms[i]);
+                if (stringExpected.next() && stringExpected.term().equals(stringTerms[i])) {
+                    assertTrue(stringMatches.next());
+                    assertEquals(stringTerms[i], stringMatches.term());
+                    assertEquals(stringTerms[i], stringIter.term());
+                    assertEquals(stringExpected.docFreq(), stringMatches.docFreq());
+                    assertEquals(i, stringMatches.getIndex());
+                }
+            }
+            assertFalse(stringMatches.next());
+        }
+    }
+}
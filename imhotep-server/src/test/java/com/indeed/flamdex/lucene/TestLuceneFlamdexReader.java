@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.lucene;
+
+import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntTermIterator;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLuceneFlamdexReader {
+    private static final int NUM_DOCS = 100;
+
+    // doc i has the term i % 7 - 3, and a few terms that are not ints
+    private static void writeIndex(Directory d) throws IOException {
+        final IndexWriter w = new IndexWriter(d, null, true, IndexWriter.MaxFieldLength.LIMITED);
+        // flush often so that the index has many segments
+        w.setMaxBufferedDocs(10);
+        for (int i = 0; i < NUM_DOCS; ++i) {
+            final Document doc = new Document();
+            doc.add(new Field("if1", Integer.toString(i % 7 - 3), Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            if (i % 10 == 0) {
+                doc.add(new Field("if1", "0" + i, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+                doc.add(new Field("if1", "abc", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS));
+            }
+            w.addDocument(doc);
+        }
+        w.close();
+    }
+
+    @Test
+    public void testIntTerms() throws IOException {
+        final RAMDirectory d = new RAMDirectory();
+        writeIndex(d);
+        final LuceneFlamdexReader r = new LuceneFlamdexReader(IndexReader.open(d));
+        assertIntTerms(r);
+        r.close();
+    }
+
+    @Test
+    public void testSmallDocBuffer() throws IOException {
+        final RAMDirectory d = new RAMDirectory();
+        writeIndex(d);
+        final LuceneFlamdexReader r = new LuceneFlamdexReader(IndexReader.open(d));
+        final IntTermIterator iter = r.getIntTermIterator("if1");
+        final DocIdStream dis = r.getDocIdStream();
+        // reads cross segment boundaries partway through the buffer, leaving docs over for the next fill
+        final int[] docIdBuf = new int[3];
+        assertTrue(iter.next());
+        assertEquals(-3, iter.term());
+        dis.reset(iter);
+        int expected = 0;
+        while (true) {
+            final int n = dis.fillDocIdBuffer(docIdBuf);
+            for (int i = 0; i < n; ++i) {
+                assertEquals(expected, docIdBuf[i]);
+                expected += 7;
+            }
+            if (n < docIdBuf.length) break;
+        }
+        assertEquals(NUM_DOCS + 5, expected);
+        // nothing left over from the previous term
+        assertTrue(iter.next());
+        dis.reset(iter);
+        assertEquals(3, dis.fillDocIdBuffer(docIdBuf));
+        assertArrayEquals(new int[] {1, 8, 15}, docIdBuf);
+        iter.close();
+        dis.close();
+        r.close();
+    }
+
+    @Test
+    public void testConvert() throws IOException {
+        final File dir = File.createTempFile("lucene-flamdex", "");
+        assertTrue(dir.delete());
+        final File workDir = File.createTempFile("lucene-flamdex-work", "");
+        assertTrue(workDir.delete());
+        try {
+            writeIndex(FSDirectory.getDirectory(dir));
+            // left by an earlier process
+            final File stale = new File(workDir, "tmp-stale");
+            assertTrue(stale.mkdirs());
+            final LuceneFlamdexConverter converter = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertFalse(stale.exists());
+            assertTrue(converter.convert(dir, opener(dir)));
+            assertTrue(converter.isConverted(dir));
+            assertFalse(new File(dir, converter.getConvertedDirectory(dir).getName()).exists());
+            assertEquals(FileUtils.sizeOfDirectory(converter.getConvertedDirectory(dir)), converter.usedBytes());
+            converter.close();
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(converter.getConvertedDirectory(dir).getPath());
+            assertEquals(NUM_DOCS, r.getNumDocs());
+            assertEquals(Collections.singletonList("if1"), Arrays.asList(r.getIntFields().toArray()));
+            assertEquals(Collections.singletonList("if1"), Arrays.asList(r.getStringFields().toArray()));
+            assertIntTerms(r);
+            r.close();
+
+            // existing copies count against the budget
+            final LuceneFlamdexConverter reopened = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertEquals(FileUtils.sizeOfDirectory(converter.getConvertedDirectory(dir)), reopened.usedBytes());
+            reopened.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(workDir);
+        }
+    }
+
+    @Test
+    public void testConvertedIndexChangedOrGone() throws IOException {
+        final File dir = File.createTempFile("lucene-flamdex", "");
+        assertTrue(dir.delete());
+        final File workDir = File.createTempFile("lucene-flamdex-work", "");
+        assertTrue(workDir.delete());
+        try {
+            writeIndex(FSDirectory.getDirectory(dir));
+            final LuceneFlamdexConverter converter = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertTrue(converter.convert(dir, opener(dir)));
+            assertTrue(converter.isConverted(dir));
+
+            // the copy is not used once the index changes, and is replaced by the next conversion
+            FileUtils.writeStringToFile(new File(dir, "extra"), "changed");
+            assertFalse(converter.isConverted(dir));
+            assertTrue(converter.convert(dir, opener(dir)));
+            assertTrue(converter.isConverted(dir));
+            assertEquals(1, workDir.list().length);
+            assertEquals(FileUtils.sizeOfDirectory(converter.getConvertedDirectory(dir)), converter.usedBytes());
+            converter.close();
+
+            // copies of changed indexes are deleted on startup
+            FileUtils.writeStringToFile(new File(dir, "extra"), "changed again");
+            LuceneFlamdexConverter reopened = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertEquals(0, workDir.list().length);
+            assertEquals(0, reopened.usedBytes());
+            assertTrue(reopened.convert(dir, opener(dir)));
+            reopened.close();
+
+            // and so are copies of indexes that are gone
+            FileUtils.deleteDirectory(dir);
+            reopened = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertEquals(0, workDir.list().length);
+            assertEquals(0, reopened.usedBytes());
+            reopened.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(workDir);
+        }
+    }
+
+    @Test
+    public void testConvertRemovesOrphansWhenFull() throws IOException {
+        final File dir = File.createTempFile("lucene-flamdex", "");
+        assertTrue(dir.delete());
+        final File dir2 = File.createTempFile("lucene-flamdex", "");
+        assertTrue(dir2.delete());
+        final File workDir = File.createTempFile("lucene-flamdex-work", "");
+        assertTrue(workDir.delete());
+        try {
+            writeIndex(FSDirectory.getDirectory(dir));
+            writeIndex(FSDirectory.getDirectory(dir2));
+            final LuceneFlamdexConverter sizer = new LuceneFlamdexConverter(workDir, Long.MAX_VALUE);
+            assertTrue(sizer.convert(dir, opener(dir)));
+            final long size = sizer.usedBytes();
+            sizer.close();
+            FileUtils.deleteDirectory(workDir);
+
+            // room for one copy and the estimate of the next, but not both
+            final long budget = size + FileUtils.sizeOfDirectory(dir) - 1;
+            final LuceneFlamdexConverter converter = new LuceneFlamdexConverter(workDir, budget);
+            assertTrue(converter.convert(dir, opener(dir)));
+            FileUtils.deleteDirectory(dir);
+            assertTrue(converter.convert(dir2, opener(dir2)));
+            assertTrue(converter.isConverted(dir2));
+            assertEquals(1, workDir.list().length);
+            assertEquals(FileUtils.sizeOfDirectory(converter.getConvertedDirectory(dir2)), converter.usedBytes());
+            converter.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(dir2);
+            FileUtils.deleteDirectory(workDir);
+        }
+    }
+
+    @Test
+    public void testConvertOverBudget() throws IOException {
+        final File dir = File.createTempFile("lucene-flamdex", "");
+        assertTrue(dir.delete());
+        final File workDir = File.createTempFile("lucene-flamdex-work", "");
+        assertTrue(workDir.delete());
+        try {
+            writeIndex(FSDirectory.getDirectory(dir));
+            final LuceneFlamdexConverter converter = new LuceneFlamdexConverter(workDir, 1);
+            assertFalse(converter.convert(dir, opener(dir)));
+            assertFalse(converter.isConverted(dir));
+            assertEquals(0, converter.usedBytes());
+            assertEquals(0, workDir.list().length);
+            converter.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+            FileUtils.deleteDirectory(workDir);
+        }
+    }
+
+    private static Callable<LuceneFlamdexReader> opener(final File dir) {
+        return new Callable<LuceneFlamdexReader>() {
+            @Override
+            public LuceneFlamdexReader call() throws IOException {
+                return new LuceneFlamdexReader(IndexReader.open(dir));
+            }
+        };
+    }
+
+    private static void assertIntTerms(FlamdexReader r) {
+        final IntTermIterator iter = r.getIntTermIterator("if1");
+        final DocIdStream dis = r.getDocIdStream();
+        final int[] docIdBuf = new int[64];
+        for (int term = -3; term <= 3; ++term) {
+            assertTrue(iter.next());
+            assertEquals(term, iter.term());
+            final int[] expected = new int[(NUM_DOCS - (term + 3) + 6) / 7];
+            for (int i = 0; i < expected.length; ++i) {
+                expected[i] = 7 * i + term + 3;
+            }
+            assertEquals(expected.length, iter.docFreq());
+            dis.reset(iter);
+            assertEquals(expected.length, dis.fillDocIdBuffer(docIdBuf));
+            assertArrayEquals(expected, Arrays.copyOf(docIdBuf, expected.length));
+        }
+        assertFalse(iter.next());
+
+        iter.reset(1);
+        assertTrue(iter.next());
+        assertEquals(1, iter.term());
+        iter.reset(4);
+        assertFalse(iter.next());
+        iter.close();
+        dis.close();
+    }
+}
@@ -13,13 +13,17 @@
  */
  package com.indeed.flamdex.search;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.indeed.flamdex.MakeAFlamdex;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
 import com.indeed.flamdex.datastruct.FastBitSet;
 import com.indeed.flamdex.datastruct.FastBitSetPooler;
 import com.indeed.flamdex.datastruct.MockFastBitSetPooler;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 import com.indeed.flamdex.query.BooleanOp;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
@@ -29,6 +33,7 @@ import org.junit.Test;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -505,4 +510,61 @@ public class TestQueryEvaluator {
         evaluator.and(r, bitSet, pooler);
         assertEquals(0, bitSet.cardinality());
     }
+
+    @Test
+    public void testRangeQueryZoneMap() throws FlamdexOutOfMemoryException {
+        final int numDocs = 5 * IntValueZoneMap.ZONE_SIZE + 100;
+        final MockFlamdexReader plain = makeTimeReader(numDocs, false);
+        final MockFlamdexReader zoneMapped = makeTimeReader(numDocs, true);
+        final long[][] ranges = { {0, 40}, {41, 81}, {-5, 1000}, {100, 150}, {30, 30}, {205, 300} };
+        final Random rand = new Random(0);
+        for (final long[] range : ranges) {
+            for (final boolean maxInclusive : new boolean[] { false, true }) {
+                final QueryEvaluator evaluator = new IntRangeQueryEvaluator(
+                        new Term("time", true, range[0], null), new Term("time", true, range[1], null), maxInclusive);
+                for (int op = 0; op < 3; ++op) {
+                    final FastBitSet expected = new FastBitSet(numDocs);
+                    final FastBitSet actual = new FastBitSet(numDocs);
+                    for (int doc = 0; doc < numDocs; ++doc) {
+                        if (rand.nextBoolean()) {
+                            expected.set(doc);
+                            actual.set(doc);
+                        }
+                    }
+                    if (op == 0) {
+                        evaluator.and(plain, expected, pooler);
+                        evaluator.and(zoneMapped, actual, pooler);
+                    } else if (op == 1) {
+                        evaluator.or(plain, expected, pooler);
+                        evaluator.or(zoneMapped, actual, pooler);
+                    } else {
+                        evaluator.not(plain, expected, pooler);
+                        evaluator.not(zoneMapped, actual, pooler);
+                    }
+                    for (int doc = 0; doc < numDocs; ++doc) {
+                        assertEquals(expected.get(doc), actual.get(doc));
+                    }
+                }
+            }
+        }
+    }
+
+    // time increases with doc id, so most zones are entirely inside or outside of a range
+    private static MockFlamdexReader makeTimeReader(int numDocs, final boolean zoneMapped) {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("time"), Collections.<String>emptyList(), Arrays.asList("time"), numDocs) {
+            @Override
+            public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+                final IntValueLookup lookup = super.getMetric(metric);
+                return zoneMapped ? new ZoneMappedIntValueLookup(lookup, getNumDocs()) : lookup;
+            }
+        };
+        for (int start = 0; start < numDocs; start += 100) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = start; doc < Math.min(numDocs, start + 100); ++doc) {
+                docs.add(doc);
+            }
+            r.addIntTerm("time", start / 100, docs);
+        }
+        return r;
+    }
 }
@@ -18,6 +18,7 @@ import com.google.common.collect.Maps;
 import com.google.common.primitives.Longs;
 import com.indeed.util.io.Files;
 import com.indeed.flamdex.api.DocIdStream;
+import com.indeed.flamdex.api.FieldStats;
 import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.IntTermIterator;
 import com.indeed.flamdex.api.IntValueLookup;
@@ -25,9 +26,12 @@ import com.indeed.flamdex.api.RawStringTermDocIterator;
 import com.indeed.flamdex.api.StringTermIterator;
 import com.indeed.flamdex.writer.IntFieldWriter;
 import com.indeed.flamdex.writer.StringFieldWriter;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.MemoryReservationContext;
 import junit.framework.TestCase;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
@@ -62,6 +66,218 @@ public class SimpleFlamdexTest extends TestCase {
         }
     }
 
+    @Test
+    public void testManifest() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, 6L, true);
+            IntFieldWriter ifw = w.getIntFieldWriter("if1");
+            ifw.nextTerm(3);
+            ifw.nextDoc(0);
+            ifw.nextDoc(1);
+            ifw.nextTerm(7);
+            ifw.nextDoc(2);
+            ifw.nextTerm(10);
+            ifw.nextDoc(3);
+            ifw.nextDoc(4);
+            ifw.nextDoc(5);
+            ifw.close();
+            StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+            sfw.nextTerm("a");
+            sfw.nextDoc(0);
+            sfw.nextTerm("b");
+            sfw.nextDoc(1);
+            sfw.nextDoc(2);
+            sfw.close();
+            w.close();
+
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            FieldStats intStats = r.getIntFieldStats("if1");
+            assertEquals(3, intStats.getNumTerms());
+            assertEquals(6, intStats.getTotalDocFreq());
+            assertEquals(3, intStats.getMaxDocFreq());
+            assertEquals(3, intStats.getMinIntTerm());
+            assertEquals(10, intStats.getMaxIntTerm());
+            assertTrue(intStats.isTopTermSampleComplete());
+            assertEquals(10, intStats.getTopIntTerm(0));
+            assertEquals(3, intStats.getTopTermDocFreq(0));
+            assertEquals(6, r.getIntTotalDocFreq("if1"));
+
+            FieldStats stringStats = r.getStringFieldStats("sf1");
+            assertEquals(2, stringStats.getNumTerms());
+            assertEquals("a", stringStats.getMinStringTerm());
+            assertEquals("b", stringStats.getMaxStringTerm());
+            assertEquals("b", stringStats.getTopStringTerm(0));
+            assertEquals(3, r.getStringTotalDocFreq("sf1"));
+            assertNull(r.getIntFieldStats("sf1"));
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testStringSeekAcrossBlocks() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            final int numTerms = writeSeekTerms(dir, true);
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE));
+            r.setTermDictionaryMemory(memory);
+            checkStringSeeks(r, numTerms, true);
+            // charged once for the dictionary, and not again by later iterators
+            final long used = memory.usedMemory();
+            assertTrue(used > 0);
+            checkStringSeeks(r, numTerms, true);
+            assertEquals(used, memory.usedMemory());
+            // and given back when the reader is closed
+            r.close();
+            assertEquals(0, memory.usedMemory());
+            memory.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testStringSeekWithoutMemory() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            final int numTerms = writeSeekTerms(dir, true);
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            // no memory for the dictionary, so seeks go through the b-tree and don't know the ordinal they land on
+            final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(0));
+            r.setTermDictionaryMemory(memory);
+            checkStringSeeks(r, numTerms, false);
+            checkStringSeeks(r, numTerms, false);
+            assertEquals(0, memory.usedMemory());
+            r.close();
+            memory.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testStringSeekWithoutIndexOrMemory() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            final int numTerms = writeSeekTerms(dir, false);
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir, new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+            // dictionary scanned from the term list, but no memory for it and no b-tree, so seeks scan from the start
+            final MemoryReservationContext memory = new MemoryReservationContext(new ImhotepMemoryPool(0));
+            r.setTermDictionaryMemory(memory);
+            checkStringSeeks(r, numTerms, true);
+            assertEquals(0, memory.usedMemory());
+            r.close();
+            memory.close();
+
+            // built from the term list
+            r = SimpleFlamdexReader.open(dir, new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+            checkStringSeeks(r, numTerms, true);
+            r.close();
+
+            // opening it as usual builds the missing b-tree
+            r = SimpleFlamdexReader.open(dir);
+            assertTrue(new File(dir, "fld-sf1.strindex").exists());
+            checkStringSeeks(r, numTerms, true);
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
+    private static int writeSeekTerms(String dir, boolean writeBTrees) throws IOException {
+        final int numTerms = 5 * SimpleStringTermDictionary.BLOCK_SIZE + 3;
+        SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numTerms, true, writeBTrees);
+        StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+        for (int i = 0; i < numTerms; ++i) {
+            sfw.nextTerm(String.format("t%05d", 2 * i));
+            sfw.nextDoc(i);
+        }
+        sfw.close();
+        w.close();
+        return numTerms;
+    }
+
+    private static void checkStringSeeks(SimpleFlamdexReader r, int numTerms, boolean knowsOrdinals) throws IOException {
+        final DocIdStream dis = r.getDocIdStream();
+        final int[] docIdBuf = new int[2];
+        final SimpleStringTermIterator it = r.getStringTermIterator("sf1");
+        for (int i = 0; i < numTerms; ++i) {
+            // exact terms and terms falling between two written ones
+            it.reset(String.format("t%05d", 2 * i - (i % 2)));
+            assertTrue(it.next());
+            assertEquals(String.format("t%05d", 2 * i), it.term());
+            assertEquals(knowsOrdinals ? i : -1, it.getOrdinal());
+            dis.reset(it);
+            assertEquals(1, dis.fillDocIdBuffer(docIdBuf));
+            assertEquals(i, docIdBuf[0]);
+        }
+        it.reset("a");
+        assertTrue(it.next());
+        assertEquals(knowsOrdinals ? 0 : -1, it.getOrdinal());
+        assertTrue(it.next());
+        assertEquals(knowsOrdinals ? 1 : -1, it.getOrdinal());
+        it.reset("u");
+        assertFalse(it.next());
+        dis.close();
+        it.close();
+    }
+
+    @Test
+    public void testRangedDocReads() throws IOException {
+        final String dir = Files.getTempDirectory("flamdex-test", "foo");
+        try {
+            final int numDocs = 20000;
+            final int numTerms = 100;
+            SimpleFlamdexWriter w = new SimpleFlamdexWriter(dir, numDocs, true);
+            IntFieldWriter ifw = w.getIntFieldWriter("if1");
+            for (int term = 0; term < numTerms; ++term) {
+                ifw.nextTerm(term);
+                for (int doc = term; doc < numDocs; doc += numTerms) {
+                    ifw.nextDoc(doc);
+                }
+            }
+            ifw.close();
+            w.close();
+
+            SimpleFlamdexReader r = SimpleFlamdexReader.open(dir);
+            // the docs file is several buffers long, so the ranged stream has to refill across terms
+            final DocIdStream mapped = new SimpleDocIdStream(new MapCache(), false);
+            final DocIdStream ranged = new SimpleDocIdStream(new MapCache(), true);
+            final int[] mappedBuf = new int[64];
+            final int[] rangedBuf = new int[64];
+            final IntTermIterator it = r.getIntTermIterator("if1");
+            for (int term = numTerms - 1; term >= 0; term -= 3) {
+                it.reset(term);
+                assertTrue(it.next());
+                assertEquals(term, it.term());
+                mapped.reset(it);
+                ranged.reset(it);
+                int total = 0;
+                while (true) {
+                    final int n = mapped.fillDocIdBuffer(mappedBuf);
+                    assertEquals(n, ranged.fillDocIdBuffer(rangedBuf));
+                    if (n == 0) {
+                        break;
+                    }
+                    for (int i = 0; i < n; ++i) {
+                        assertEquals(mappedBuf[i], rangedBuf[i]);
+                    }
+                    total += n;
+                }
+                assertEquals(numDocs / numTerms, total);
+            }
+            mapped.close();
+            ranged.close();
+            it.close();
+            r.close();
+        } finally {
+            Files.delete(dir);
+        }
+    }
+
     @Test
     public void testIt() throws IOException {
         final String dir = Files.getTempDirectory("flamdex-test", "foo");
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLoserTree {
+    /* merges sorted int arrays, emitting source * 1000000 + key so ties show which source came out first */
+    private static List<Long> merge(final int[][] sources) {
+        final int[] positions = new int[sources.length];
+        final LoserTree tree = new LoserTree(sources.length) {
+            @Override
+            protected int compare(int a, int b) {
+                final int ka = sources[a][positions[a]];
+                final int kb = sources[b][positions[b]];
+                return ka < kb ? -1 : ka == kb ? 0 : 1;
+            }
+        };
+        for (int i = 0; i < sources.length; ++i) {
+            if (sources[i].length == 0) {
+                tree.exhaust(i);
+            }
+        }
+        tree.init();
+
+        final List<Long> ret = Lists.newArrayList();
+        while (!tree.isEmpty()) {
+            final int top = tree.top();
+            ret.add((long)top * 1000000 + sources[top][positions[top]]);
+            if (++positions[top] < sources[top].length) {
+                tree.topChanged();
+            } else {
+                tree.topExhausted();
+            }
+        }
+        return ret;
+    }
+
+    private static List<Long> expected(int[][] sources) {
+        final List<Long> ret = Lists.newArrayList();
+        for (int i = 0; i < sources.length; ++i) {
+            for (final int key : sources[i]) {
+                ret.add((long)i * 1000000 + key);
+            }
+        }
+        // stable by source for equal keys, like the tree
+        Collections.sort(ret, new Comparator<Long>() {
+            @Override
+            public int compare(Long o1, Long o2) {
+                final long k1 = o1 % 1000000;
+                final long k2 = o2 % 1000000;
+                if (k1 != k2) return k1 < k2 ? -1 : 1;
+                return o1.compareTo(o2);
+            }
+        });
+        return ret;
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(merge(new int[0][]).isEmpty());
+        assertTrue(merge(new int[][] {{}, {}, {}}).isEmpty());
+    }
+
+    @Test
+    public void testSingleSource() {
+        assertEquals(Arrays.asList(1L, 2L, 5L), merge(new int[][] {{1, 2, 5}}));
+    }
+
+    @Test
+    public void testEqualKeysInSourceOrder() {
+        final int[][] sources = {{3, 7}, {3}, {1, 3, 7}, {7}, {3}};
+        assertEquals(Arrays.asList(2000001L, 3L, 1000003L, 2000003L, 4000003L, 7L, 2000007L, 3000007L),
+                     merge(sources));
+    }
+
+    @Test
+    public void testSourcesRunningOutEarly() {
+        final int[][] sources = {{}, {1}, {2, 3, 4, 5, 6}, {}, {0, 9}, {2}, {}};
+        assertEquals(expected(sources), merge(sources));
+    }
+
+    @Test
+    public void testRandom() {
+        final Random rand = new Random(0);
+        for (int size = 1; size <= 17; ++size) {
+            for (int iter = 0; iter < 20; ++iter) {
+                final int[][] sources = new int[size][];
+                for (int i = 0; i < size; ++i) {
+                    sources[i] = new int[rand.nextInt(20)];
+                    for (int j = 0; j < sources[i].length; ++j) {
+                        sources[i][j] = rand.nextInt(30);
+                    }
+                    Arrays.sort(sources[i]);
+                }
+                assertEquals(expected(sources), merge(sources));
+            }
+        }
+    }
+}
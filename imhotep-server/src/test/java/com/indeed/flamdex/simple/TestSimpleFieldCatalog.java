@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.flamdex.simple;
+
+import com.indeed.util.io.Files;
+import com.indeed.flamdex.writer.IntFieldWriter;
+import com.indeed.flamdex.writer.StringFieldWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSimpleFieldCatalog {
+    private String tempDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.getTempDirectory("flamdex-test", "dir");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.delete(tempDir);
+    }
+
+    private void writeShard() throws IOException {
+        // no b-trees, so the tests decide which index files exist
+        final SimpleFlamdexWriter w = new SimpleFlamdexWriter(tempDir, 4L, true, false);
+        for (final String field : Arrays.asList("if2", "if1", "if3")) {
+            final IntFieldWriter ifw = w.getIntFieldWriter(field);
+            ifw.nextTerm(1);
+            ifw.nextDoc(0);
+            ifw.nextDoc(2);
+            ifw.nextTerm(5);
+            ifw.nextDoc(3);
+            ifw.close();
+        }
+        final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+        sfw.nextTerm("a");
+        sfw.nextDoc(1);
+        sfw.close();
+        w.close();
+    }
+
+    @Test
+    public void testScan() throws IOException {
+        writeShard();
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(tempDir);
+        assertEquals(tempDir, catalog.getDirectory());
+        assertEquals(Arrays.asList("if1", "if2", "if3"), Arrays.asList(catalog.getIntFields().toArray()));
+        assertEquals(Arrays.asList("sf1"), Arrays.asList(catalog.getStringFields().toArray()));
+
+        final SimpleFieldCatalog.FieldFiles if1 = catalog.getIntField("if1");
+        assertEquals(new File(tempDir, "fld-if1.intterms").getPath(), new File(if1.termsPath).getPath());
+        assertEquals(new File(tempDir, "fld-if1.intdocs").getPath(), new File(if1.docsPath).getPath());
+        assertNull(if1.indexPath);
+        assertEquals(new File(tempDir, "fld-if1.intterms").length(), if1.getTermsLength());
+
+        final SimpleFieldCatalog.FieldFiles sf1 = catalog.getStringField("sf1");
+        assertEquals(new File(tempDir, "fld-sf1.strterms").getPath(), new File(sf1.termsPath).getPath());
+        assertEquals(new File(tempDir, "fld-sf1.strdocs").getPath(), new File(sf1.docsPath).getPath());
+        assertNull(sf1.indexPath);
+
+        assertNull(catalog.getIntField("sf1"));
+        assertNull(catalog.getStringField("if1"));
+        assertNull(catalog.getIntField("missing"));
+        assertNull(catalog.getIntFieldStats("missing"));
+        assertNull(catalog.getStringFieldStats("if1"));
+    }
+
+    @Test
+    public void testManifestStats() throws IOException {
+        writeShard();
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(tempDir);
+        assertEquals(2, catalog.getIntFieldStats("if1").getNumTerms());
+        assertEquals(3, catalog.getIntFieldStats("if1").getTotalDocFreq());
+        assertEquals(1, catalog.getStringFieldStats("sf1").getNumTerms());
+        // the length comes from the manifest without touching the file
+        assertEquals(new File(tempDir, "fld-if1.intterms").length(), catalog.getIntField("if1").getTermsLength());
+    }
+
+    @Test
+    public void testIndexPaths() throws IOException {
+        writeShard();
+        assertTrue(new File(tempDir, "fld-if1.intindex").mkdir());
+        assertTrue(new File(tempDir, "fld-if2.intindex64").mkdir());
+        // the 64 bit index wins when both are there
+        assertTrue(new File(tempDir, "fld-if3.intindex").mkdir());
+        assertTrue(new File(tempDir, "fld-if3.intindex64").mkdir());
+        assertTrue(new File(tempDir, "fld-sf1.strindex").mkdir());
+
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(tempDir);
+        assertEquals(new File(tempDir, "fld-if1.intindex").getPath(), new File(catalog.getIntField("if1").indexPath).getPath());
+        assertFalse(catalog.getIntField("if1").use64BitIndex);
+        assertEquals(new File(tempDir, "fld-if2.intindex64").getPath(), new File(catalog.getIntField("if2").indexPath).getPath());
+        assertTrue(catalog.getIntField("if2").use64BitIndex);
+        assertEquals(new File(tempDir, "fld-if3.intindex64").getPath(), new File(catalog.getIntField("if3").indexPath).getPath());
+        assertTrue(catalog.getIntField("if3").use64BitIndex);
+        assertEquals(new File(tempDir, "fld-sf1.strindex").getPath(), new File(catalog.getStringField("sf1").indexPath).getPath());
+        // index files are not fields of their own
+        assertEquals(3, catalog.getIntFields().size());
+        assertEquals(1, catalog.getStringFields().size());
+    }
+
+    @Test
+    public void testWithoutManifest() throws IOException {
+        writeShard();
+        assertTrue(new File(tempDir, SimpleFlamdexManifest.FILENAME).delete());
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(tempDir);
+        assertEquals(3, catalog.getIntFields().size());
+        assertNull(catalog.getIntFieldStats("if1"));
+        assertNull(catalog.getStringFieldStats("sf1"));
+        assertEquals(new File(tempDir, "fld-if1.intterms").length(), catalog.getIntField("if1").getTermsLength());
+    }
+
+    @Test
+    public void testCorruptManifest() throws IOException {
+        writeShard();
+        final FileOutputStream out = new FileOutputStream(new File(tempDir, SimpleFlamdexManifest.FILENAME));
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        final SimpleFieldCatalog catalog = SimpleFieldCatalog.scan(tempDir);
+        assertEquals(3, catalog.getIntFields().size());
+        assertNull(catalog.getIntFieldStats("if1"));
+    }
+
+    @Test
+    public void testNotADirectory() throws IOException {
+        try {
+            SimpleFieldCatalog.scan(new File(tempDir, "missing").getPath());
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -101,9 +101,23 @@ public class TestSimpleFlamdexDocWriter {
         runRandomTest(3);
     }
 
+    @Test
+    public void concurrentMergeTest() throws IOException {
+        runRandomTest(10, 4);
+        runRandomTest(3, 4);
+        runRandomTest(2, 8);
+    }
+
     private void runRandomTest(int mergeFactor) throws IOException {
+        runRandomTest(mergeFactor, 1);
+    }
+
+    private void runRandomTest(int mergeFactor, int mergeThreads) throws IOException {
         long elapsed = -System.currentTimeMillis();
-        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config().setDocBufferSize(100).setMergeFactor(mergeFactor));
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(100)
+                .setMergeFactor(mergeFactor)
+                .setMergeThreads(mergeThreads));
 
         final Random rand = new Random();
         final int numDocs = rand.nextInt(20000) + 20000;
@@ -152,6 +166,125 @@ public class TestSimpleFlamdexDocWriter {
         }
     }
 
+    @Test
+    public void testParallelMergeMatchesSerial() throws IOException {
+        // five segments, so the merge trees are not a power of two, and one of them is empty
+        final Random rand = new Random(0);
+        final List<FlamdexDocument> expected = Lists.newArrayList();
+        final FlamdexReader[] readers = new FlamdexReader[5];
+        for (int i = 0; i < readers.length; ++i) {
+            final String dir = new File(tempDir, "segment" + i).getAbsolutePath();
+            final FlamdexDocWriter w = new SimpleFlamdexDocWriter(dir, new SimpleFlamdexDocWriter.Config());
+            final int numDocs = i == 3 ? 0 : rand.nextInt(500) + 1;
+            for (int j = 0; j < numDocs; ++j) {
+                final FlamdexDocument doc = new FlamdexDocument();
+                // small term ranges so equal terms show up in several segments, and fields only some segments have
+                doc.addIntTerm("if" + rand.nextInt(i + 1), rand.nextInt(20));
+                doc.addIntTerm("shared", rand.nextInt(5));
+                doc.addStringTerm("sf" + rand.nextInt(i + 1), "term" + rand.nextInt(20));
+                w.addDocument(doc);
+                expected.add(doc);
+            }
+            w.close();
+            readers[i] = SimpleFlamdexReader.open(dir);
+        }
+
+        final String serialDir = new File(tempDir, "serial").getAbsolutePath();
+        final SimpleFlamdexWriter serial = new SimpleFlamdexWriter(serialDir, expected.size());
+        SimpleFlamdexWriter.merge(readers, serial, 1);
+        serial.close();
+
+        final String parallelDir = new File(tempDir, "parallel").getAbsolutePath();
+        final SimpleFlamdexWriter parallel = new SimpleFlamdexWriter(parallelDir, expected.size());
+        SimpleFlamdexWriter.merge(readers, parallel, 4);
+        parallel.close();
+
+        for (final FlamdexReader reader : readers) {
+            reader.close();
+        }
+
+        final SimpleFlamdexReader sr = SimpleFlamdexReader.open(serialDir);
+        final List<FlamdexDocument> serialDocs = FlamdexReinverter.reinvertInMemory(sr);
+        sr.close();
+        final SimpleFlamdexReader pr = SimpleFlamdexReader.open(parallelDir);
+        final List<FlamdexDocument> parallelDocs = FlamdexReinverter.reinvertInMemory(pr);
+        pr.close();
+
+        assertEquals(expected.size(), serialDocs.size());
+        assertEquals(expected.size(), parallelDocs.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final FlamdexDocument ed = expected.get(i);
+            final FlamdexDocument sd = serialDocs.get(i);
+            final FlamdexDocument pd = parallelDocs.get(i);
+            assertTrue(unorderedEquals(ed.getIntFields(), sd.getIntFields()));
+            assertTrue(unorderedEquals(ed.getStringFields(), sd.getStringFields()));
+            assertEquals(sd.getIntFields(), pd.getIntFields());
+            assertEquals(sd.getStringFields(), pd.getStringFields());
+        }
+    }
+
+    @Test
+    public void testSortFields() throws IOException {
+        final FlamdexDocWriter w = new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()
+                .setDocBufferSize(100)
+                .setMergeFactor(3)
+                .setSortFields(Arrays.asList("sf1", "if1")));
+
+        final Random rand = new Random(0);
+        final int numDocs = 2000;
+        final List<FlamdexDocument> expected = Lists.newArrayList();
+        for (int i = 0; i < numDocs; ++i) {
+            final FlamdexDocument doc = new FlamdexDocument();
+            // some docs without the sort fields, which go last
+            if (rand.nextInt(10) > 0) {
+                doc.addStringTerm("sf1", "term" + rand.nextInt(5));
+            }
+            if (rand.nextInt(10) > 0) {
+                doc.addIntTerm("if1", rand.nextInt(1000));
+            }
+            doc.addIntTerm("id", i);
+            w.addDocument(doc);
+            expected.add(doc);
+        }
+        w.close();
+
+        final SimpleFlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        final List<FlamdexDocument> actual = FlamdexReinverter.reinvertInMemory(r);
+        r.close();
+
+        assertEquals(numDocs, actual.size());
+        final Set<Long> ids = Sets.newHashSet();
+        for (int i = 0; i < numDocs; ++i) {
+            final FlamdexDocument ad = actual.get(i);
+            final long id = ad.getIntFields().get("id").get(0);
+            assertTrue(ids.add(id));
+            assertTrue(unorderedEquals(expected.get((int)id).getIntFields(), ad.getIntFields()));
+            assertTrue(unorderedEquals(expected.get((int)id).getStringFields(), ad.getStringFields()));
+            if (i > 0) {
+                assertTrue(compareSortKey(actual.get(i - 1), ad) < 0);
+            }
+        }
+    }
+
+    private static int compareSortKey(FlamdexDocument d1, FlamdexDocument d2) {
+        final List<String> s1 = d1.getStringFields().get("sf1");
+        final List<String> s2 = d2.getStringFields().get("sf1");
+        if (s1 == null || s2 == null) {
+            if (s1 != s2) return s1 == null ? 1 : -1;
+        } else if (!s1.get(0).equals(s2.get(0))) {
+            return s1.get(0).compareTo(s2.get(0));
+        }
+        final List<Long> i1 = d1.getIntFields().get("if1");
+        final List<Long> i2 = d2.getIntFields().get("if1");
+        if (i1 == null || i2 == null) {
+            if (i1 != i2) return i1 == null ? 1 : -1;
+        } else if (!i1.get(0).equals(i2.get(0))) {
+            return i1.get(0).compareTo(i2.get(0));
+        }
+        // ties keep the order the docs were added in
+        return d1.getIntFields().get("id").get(0).compareTo(d2.getIntFields().get("id").get(0));
+    }
+
     private static <T> boolean unorderedEquals(Map<String, ? extends List<T>> o1, Map<String, ? extends List<T>> o2) {
         if (!o1.keySet().equals(o2.keySet())) return false;
 
@@ -194,6 +327,21 @@ public class TestSimpleFlamdexDocWriter {
         iter.close();
     }
 
+    @Test
+    public void testBufferedOnlyConcurrent() throws IOException {
+        // buffered segments with nothing merged to go with them are streamed straight into the final merge
+        final SimpleFlamdexDocWriter.Config config = new SimpleFlamdexDocWriter.Config().setDocBufferSize(1).setMergeFactor(999999999).setMergeThreads(4);
+        writeFlamdex(tempDir, config);
+        final FlamdexReader r = SimpleFlamdexReader.open(tempDir);
+        assertEquals(4, r.getNumDocs());
+        final IntTermIterator iter = r.getIntTermIterator("if1");
+        assertTrue(iter.next());
+        assertEquals(0, iter.term());
+        assertEquals(2, iter.docFreq());
+        iter.close();
+        r.close();
+    }
+
     @Test
     public void testEmpty() throws IOException {
         new SimpleFlamdexDocWriter(tempDir, new SimpleFlamdexDocWriter.Config()).close();
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.api.AsyncImhotepSession;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.local.ImhotepLocalSession;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class TestAsyncImhotepSession {
+    private static ImhotepSession newMultiSession() throws Exception {
+        final MockFlamdexReader r1 = new MockFlamdexReader(Arrays.asList("i"),
+                Collections.<String>emptyList(), Arrays.asList("i"), 2);
+        r1.addIntTerm("i", 5, 0);
+        r1.addIntTerm("i", 7, 1);
+
+        final MockFlamdexReader r2 = new MockFlamdexReader(Arrays.asList("i"),
+                Collections.<String>emptyList(), Arrays.asList("i"), 1);
+        r2.addIntTerm("i", 3, 0);
+
+        return new RemoteImhotepMultiSession(new ImhotepSession[] {
+                new ImhotepLocalSession(r1), new ImhotepLocalSession(r2)
+        }, null, null);
+    }
+
+    @Test
+    public void testPipelinedPlan() throws Exception {
+        final ImhotepSession session = newMultiSession();
+        try {
+            final AsyncImhotepSession async = session.getAsyncSession();
+            final ListenableFuture<Integer> numStats = async.pushStats(Arrays.asList("count()", "i"));
+            final ListenableFuture<Integer> numGroups = async.regroup(new GroupRemapRule[] {
+                    new GroupRemapRule(1, new RegroupCondition("i", true, 5, null, false), 3, 2)
+            });
+            final ListenableFuture<long[][]> stats = async.getGroupStatsMulti(new int[] { 0, 1 });
+            assertFalse(stats.isDone());
+
+            async.flush();
+            assertEquals(2, (int) numStats.get());
+            assertEquals(4, (int) numGroups.get());
+            assertArrayEquals(new long[] { 0, 0, 1, 2 }, stats.get()[0]);
+            assertArrayEquals(new long[] { 0, 0, 5, 10 }, stats.get()[1]);
+
+            // the blocking view sees the state left behind by the async one
+            assertEquals(2, session.getNumStats());
+            assertArrayEquals(new long[] { 0, 0, 1, 2 }, session.getGroupStats(0));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testFailureFailsRestOfFlush() throws Exception {
+        final ImhotepSession session = newMultiSession();
+        try {
+            final AsyncImhotepSession async = session.getAsyncSession();
+            final ListenableFuture<Integer> push = async.pushStat("no_such_metric");
+            final ListenableFuture<long[]> stats = async.getGroupStats(0);
+            async.flush();
+            try {
+                push.get();
+                fail("pushing an unknown metric should fail");
+            } catch (ExecutionException expected) {
+            }
+            try {
+                stats.get();
+                fail("commands after a failed one should fail");
+            } catch (ExecutionException expected) {
+            }
+
+            // later flushes are unaffected
+            final ListenableFuture<Long> totalDocFreq = async.getTotalDocFreq(new String[] { "i" }, new String[0]);
+            async.flush();
+            assertEquals(3L, (long) totalDocFreq.get());
+        } finally {
+            session.close();
+        }
+    }
+}
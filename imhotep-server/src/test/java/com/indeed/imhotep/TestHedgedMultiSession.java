@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep;
+
+import com.google.common.collect.ImmutableSet;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import com.indeed.imhotep.api.ImhotepSession;
+import com.indeed.imhotep.local.ImhotepLocalSession;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHedgedMultiSession {
+    private static MockFlamdexReader newReader() {
+        final MockFlamdexReader r = new MockFlamdexReader(Collections.<String>emptyList(),
+                Arrays.asList("f"), Collections.<String>emptyList(), 1);
+        r.addStringTerm("f", "foo", Arrays.asList(0));
+        r.addStringTerm("f", "bar", Arrays.asList(0));
+        return r;
+    }
+
+    private static ImhotepSession slowSession(final ImhotepSession delegate, final long delayMillis, final Set<String> slowMethods) {
+        return (ImhotepSession)Proxy.newProxyInstance(ImhotepSession.class.getClassLoader(), new Class[]{ImhotepSession.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (slowMethods.contains(method.getName())) {
+                    Thread.sleep(delayMillis);
+                }
+                try {
+                    return method.invoke(delegate, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    private static RemoteImhotepMultiSession newHedgedSession(final ImhotepSession primary, final ImhotepSession other,
+                                                              final ImhotepSession replica, final HedgingPolicy policy) {
+        return new RemoteImhotepMultiSession(new ImhotepSession[]{primary, other}, "hedged", null, policy,
+                new RemoteImhotepMultiSession.ReplicaSessionFactory() {
+                    @Override
+                    public ImhotepSession openReplicaSession(int index) {
+                        return index == 0 ? replica : null;
+                    }
+                });
+    }
+
+    @Test
+    public void testReplicaAnswersFirst() throws Exception {
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 10, 50, 20);
+        final ImhotepSession primary = slowSession(new ImhotepLocalSession(newReader()), 1000, ImmutableSet.of("getTotalDocFreq"));
+        final ImhotepSession session = newHedgedSession(primary, new ImhotepLocalSession(newReader()),
+                new ImhotepLocalSession(newReader()), policy);
+        try {
+            final long start = System.currentTimeMillis();
+            assertEquals(4, session.getTotalDocFreq(new String[0], new String[]{"f"}));
+            assertTrue(System.currentTimeMillis() - start < 900);
+            assertEquals(1, policy.getHedgesIssued());
+
+            // the primary's answer is discarded in the background once it arrives
+            Thread.sleep(1500);
+            assertEquals(1, policy.getHedgesWon());
+            assertTrue(policy.getSavedLatencyMillis() > 0);
+            // both primaries' latencies are recorded, including the one that lost
+            assertEquals(2, policy.getNumLatencies());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testStatsReplayedAndModifiedSessionsNotHedged() throws Exception {
+        final HedgingPolicy policy = new HedgingPolicy(0.5, 10, 50, 20);
+        final ImhotepSession primary = slowSession(new ImhotepLocalSession(newReader()), 500, ImmutableSet.of("getGroupStats"));
+        final ImhotepSession session = newHedgedSession(primary, new ImhotepLocalSession(newReader()),
+                new ImhotepLocalSession(newReader()), policy);
+        try {
+            session.pushStat("count()");
+            assertArrayEquals(new long[]{0, 2}, session.getGroupStats(0));
+            assertEquals(1, policy.getHedgesIssued());
+
+            session.regroup(new GroupRemapRule[]{
+                    new GroupRemapRule(1, new RegroupCondition("f", false, 0, "foo", false), 2, 3)
+            });
+            assertArrayEquals(new long[]{0, 0, 0, 2}, session.getGroupStats(0));
+            assertEquals(1, policy.getHedgesIssued());
+        } finally {
+            session.close();
+        }
+    }
+}
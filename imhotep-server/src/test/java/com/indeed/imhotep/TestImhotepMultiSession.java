@@ -18,6 +18,8 @@ import com.indeed.flamdex.reader.MockFlamdexReader;
 import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
 import com.indeed.imhotep.api.ImhotepSession;
 import com.indeed.imhotep.local.ImhotepLocalSession;
+import com.indeed.imhotep.marshal.ImhotepClientMarshaller;
+import com.indeed.imhotep.marshal.ImhotepDaemonMarshaller;
 import org.junit.Test;
 
 import java.util.Arrays;
@@ -64,4 +66,53 @@ public class TestImhotepMultiSession {
         s1.close();
         s2.close();
     }
+
+    @Test
+    public void testGroupStatsMulti() throws ImhotepOutOfMemoryException {
+        MockFlamdexReader r1 = new MockFlamdexReader(Arrays.asList("i"),
+                Collections.<String>emptyList(), Arrays.asList("i"), 2);
+        r1.addIntTerm("i", 5, 0);
+        r1.addIntTerm("i", 7, 1);
+
+        MockFlamdexReader r2 = new MockFlamdexReader(Arrays.asList("i"),
+                Collections.<String>emptyList(), Arrays.asList("i"), 2);
+        r2.addIntTerm("i", 0, 1);
+        r2.addIntTerm("i", 3, 0);
+
+        ImhotepLocalSession s1 = new ImhotepLocalSession(r1), s2 = new ImhotepLocalSession(r2);
+        ImhotepSession s = new RemoteImhotepMultiSession(new ImhotepSession[] { s1, s2 }, null, null);
+        s.pushStat("count()");
+        s.pushStat("i");
+
+        long[][] stats = s.getGroupStatsMulti(new int[] { 1, 0 });
+        assertArrayEquals(new long[] { 0, 15 }, stats[0]);
+        assertArrayEquals(new long[] { 0, 4 }, stats[1]);
+
+        s.regroup(new GroupRemapRule[] {
+                new GroupRemapRule(1, new RegroupCondition("i", true, 5, null, false), 3, 2)
+        });
+
+        stats = s.getGroupStatsMulti(new int[] { 0, 1 });
+        assertArrayEquals(s.getGroupStats(0), stats[0]);
+        assertArrayEquals(s.getGroupStats(1), stats[1]);
+        assertEquals(Arrays.asList(0L, 0L, 1L, 3L), Longs.asList(stats[0]).subList(0, 4));
+        assertEquals(Arrays.asList(0L, 0L, 5L, 10L), Longs.asList(stats[1]).subList(0, 4));
+
+        s.close();
+        s1.close();
+        s2.close();
+    }
+
+    @Test
+    public void testSparseGroupStatsRoundTrip() {
+        final long[][] cases = {
+                new long[0],
+                new long[] { 0, 0, 0 },
+                new long[] { 0, 1, 0, 0, -17, Long.MAX_VALUE, Long.MIN_VALUE, 0, 0 },
+                new long[] { 42 }
+        };
+        for (final long[] groupStats : cases) {
+            assertArrayEquals(groupStats, ImhotepClientMarshaller.marshal(ImhotepDaemonMarshaller.marshalGroupStats(groupStats)));
+        }
+    }
 }
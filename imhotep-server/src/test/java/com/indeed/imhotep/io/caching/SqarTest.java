@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -52,6 +53,7 @@ public class SqarTest {
         cachelayer.put("mountpoint", "/");
         cachelayer.put("cache-dir", "/tmp/sqar_test_temp_cache");
         cachelayer.put("cacheSizeMB", 500);
+        cachelayer.put("chunkSizeKB", 4);
         testSettings.add(cachelayer);
         
         CachedFile.init(testSettings, "testData/", false);
@@ -411,6 +413,146 @@ public class SqarTest {
         assertFalse(sawException);
     }
     
+    @Test
+    public void testSqarReadRange() throws IOException {
+        final CachedFile target = CachedFile.create("testData/test-archive/1/2/3/4/5/12345.file");
+        final byte[] buf = new byte[10];
+        int n;
+
+        n = target.readRange(4001, buf, 0, buf.length);
+        assertEquals(buf.length, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals("foo!".charAt((4001 + i) % 4), (char)buf[i]);
+        }
+
+        /* short read at the end of the file */
+        n = target.readRange(12345 * 4 - 3, buf, 0, buf.length);
+        assertEquals(3, n);
+        assertEquals('o', (char)buf[0]);
+        assertEquals('!', (char)buf[2]);
+
+        assertEquals(-1, target.readRange(12345 * 4, buf, 0, buf.length));
+    }
+
+    @Test
+    public void testSqarReadRangeStreamCompressed() throws IOException {
+        /* gzipped in the archive, like every entry of the test archive */
+        final CachedFile target = CachedFile.create("testData/test-archive/2/3/4/5/2345.file");
+        final CachedRemoteFileSystem cachedFS = (CachedRemoteFileSystem)target.topFS;
+        final byte[] buf = new byte[10];
+
+        final long downloaded = cachedFS.getDownloadedBytes();
+        assertEquals(buf.length, target.readRange(8001, buf, 0, buf.length));
+        for (int i = 0; i < buf.length; i++) {
+            assertEquals("foo!".charAt((8001 + i) % 4), (char)buf[i]);
+        }
+        /* decompressed once, as a whole */
+        assertEquals(downloaded + 2345 * 4, cachedFS.getDownloadedBytes());
+
+        assertEquals(buf.length, target.readRange(4, buf, 0, buf.length));
+        assertEquals('f', (char)buf[0]);
+        assertEquals(4, target.readRange(2345 * 4 - 4, buf, 0, buf.length));
+        assertEquals(downloaded + 2345 * 4, cachedFS.getDownloadedBytes());
+    }
+
+    @Test
+    public void testSqarBuffer() throws IOException {
+        final CachedFile target = CachedFile.create("testData/test-archive/1/2/3/4/5/12345.file");
+        final RemoteFileBuffer buffer = target.openBuffer(ByteOrder.BIG_ENDIAN);
+        final byte[] buf = new byte[10000];
+
+        assertEquals('f', (char)buffer.getByte(0));
+        assertEquals(('o' << 8) | '!', buffer.getShort(12345 * 4 - 2));
+        assertEquals(('f' << 24) | ('o' << 16) | ('o' << 8) | '!', buffer.getInt(4 * 1000));
+
+        /* spans several chunks */
+        buffer.getBytes(4095, buf);
+        for (int i = 0; i < buf.length; i++) {
+            assertEquals("foo!".charAt((4095 + i) % 4), (char)buf[i]);
+        }
+
+        try {
+            buffer.getLong(12345 * 4 - 4);
+            fail("read past the end of the file");
+        } catch (IndexOutOfBoundsException e) {
+            /* expected */
+        }
+
+        /* read() stops at the end of the file instead */
+        assertEquals(3, buffer.read(12345 * 4 - 3, buf, 0, 10));
+        assertEquals('!', (char)buf[2]);
+        assertEquals(0, buffer.read(12345 * 4, buf, 0, 10));
+        assertEquals(10, buffer.read(8, buf, 0, 10));
+        assertEquals('f', (char)buf[0]);
+    }
+
+    @Test
+    public void testSqarReadRangeAcrossChunks() throws IOException {
+        final CachedFile target = CachedFile.create("testData/test-archive/1/2/3/4/5/12345.file");
+        final byte[] buf = new byte[10000];
+
+        /* spans several chunks */
+        assertEquals(buf.length, target.readRange(4095, buf, 0, buf.length));
+        for (int i = 0; i < buf.length; i++) {
+            assertEquals("foo!".charAt((4095 + i) % 4), (char)buf[i]);
+        }
+
+        /* the last chunk is cached with its real length */
+        assertEquals(5, target.readRange(12345 * 4 - 5, buf, 0, buf.length));
+        assertEquals(5, target.readRange(12345 * 4 - 5, buf, 0, buf.length));
+        assertEquals('!', (char)buf[4]);
+    }
+
+    @Test
+    public void testSqarReadRangeAfterChunkDeleted() throws IOException {
+        final CachedFile target = CachedFile.create("testData/test-archive/1/2/3/4/5/12345.file");
+        final byte[] buf = new byte[10000];
+        assertEquals(buf.length, target.readRange(8000, buf, 0, buf.length));
+
+        /* chunk files removed while still in the cache, as when an eviction deletes a chunk that was fetched again */
+        deleteFiles(new File("/tmp/sqar_test_temp_cache.chunks"));
+        assertEquals(buf.length, target.readRange(8000, buf, 0, buf.length));
+        for (int i = 0; i < buf.length; i++) {
+            assertEquals("foo!".charAt((8000 + i) % 4), (char)buf[i]);
+        }
+    }
+
+    private static void deleteFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                deleteFiles(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void testSqarInvalidate() throws IOException {
+        final String path = "testData/test-archive/1/2/3/4/5/12345.file";
+        final CachedFile target = CachedFile.create(path);
+        final File first = target.loadFile();
+        final FileInputStream open = new FileInputStream(first);
+        try {
+            target.topFS.invalidate(path);
+            /* unlinked, but still readable by whoever has it open */
+            assertFalse(first.exists());
+            final byte[] buf = new byte[4];
+            assertEquals(4, open.read(buf));
+            assertEquals("foo!", new String(buf, "UTF-8"));
+        } finally {
+            open.close();
+        }
+        /* fetched again */
+        final File second = target.loadFile();
+        assertTrue(second.exists());
+        assertEquals(12345 * 4, second.length());
+    }
+
     @Test
     public void testSqarLoadDirectory() throws IOException {
         File result;
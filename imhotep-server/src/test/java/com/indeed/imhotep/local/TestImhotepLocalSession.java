@@ -17,7 +17,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
+import com.indeed.flamdex.api.FlamdexOutOfMemoryException;
 import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.api.IntValueLookup;
+import com.indeed.flamdex.api.IntValueZoneMap;
+import com.indeed.flamdex.fieldcache.ZoneMappedIntValueLookup;
 import com.indeed.flamdex.query.Query;
 import com.indeed.flamdex.query.Term;
 import com.indeed.flamdex.reader.MockFlamdexReader;
@@ -1911,4 +1915,95 @@ public class TestImhotepLocalSession {
 
         session1.close();
     }
+
+    @Test
+    public void testOptimizeCarriesOverStats() throws ImhotepOutOfMemoryException, IOException {
+        final FlamdexReader r = MakeAFlamdex.make();
+        final ImhotepLocalSession session =
+                new ImhotepLocalSession(r,
+                                        "/tmp/imhotep.test",
+                                        new MemoryReservationContext(new ImhotepMemoryPool(Long.MAX_VALUE)),
+                                        false);
+        session.pushStat("if1");
+        session.pushStat("count()");
+        session.regroup(new GroupRemapRule[] { new GroupRemapRule(1, new RegroupCondition("if3",
+                                                                                          true,
+                                                                                          9999,
+                                                                                          null,
+                                                                                          false),
+                                                                  0, 2) });
+        final long[] if1Before = session.getGroupStats(0);
+        final long[] countBefore = session.getGroupStats(1);
+
+        session.rebuildAndFilterIndexes(Arrays.asList("if1", "if3"), Arrays.asList("sf1"));
+        assertEquals(2, session.getNumStats());
+        final long[] if1After = session.getGroupStats(0);
+        final long[] countAfter = session.getGroupStats(1);
+        for (int group = 1; group < if1Before.length; group++) {
+            assertEquals(if1Before[group], if1After[group]);
+            assertEquals(countBefore[group], countAfter[group]);
+        }
+
+        /* a stat pushed after the rebuild reads the rewritten field */
+        session.pushStat("if1");
+        final long[] if1Pushed = session.getGroupStats(2);
+        for (int group = 1; group < if1Before.length; group++) {
+            assertEquals(if1Before[group], if1Pushed[group]);
+        }
+
+        session.close();
+    }
+
+    @Test
+    public void testZoneMapFilterAndRegroup() throws ImhotepOutOfMemoryException {
+        final int numDocs = 6 * IntValueZoneMap.ZONE_SIZE + 100;
+        final ImhotepLocalSession plain = new ImhotepLocalSession(makeTimeReader(numDocs, false));
+        final ImhotepLocalSession zoneMapped = new ImhotepLocalSession(makeTimeReader(numDocs, true));
+        for (final ImhotepLocalSession session : Arrays.asList(plain, zoneMapped)) {
+            session.pushStat("time");
+            session.metricFilter(0, 10, 200, false);
+        }
+        assertSameGroups(plain, zoneMapped);
+        for (final ImhotepLocalSession session : Arrays.asList(plain, zoneMapped)) {
+            session.metricRegroup(0, 60, 180, 100, false);
+        }
+        assertSameGroups(plain, zoneMapped);
+        for (final ImhotepLocalSession session : Arrays.asList(plain, zoneMapped)) {
+            session.metricFilter(0, 100, 150, true);
+        }
+        assertSameGroups(plain, zoneMapped);
+        for (final ImhotepLocalSession session : Arrays.asList(plain, zoneMapped)) {
+            session.metricRegroup(0, 20, 240, 50, true);
+        }
+        assertSameGroups(plain, zoneMapped);
+        plain.close();
+        zoneMapped.close();
+    }
+
+    private static void assertSameGroups(ImhotepLocalSession expected, ImhotepLocalSession actual) {
+        assertEquals(expected.docIdToGroup.getNumGroups(), actual.docIdToGroup.getNumGroups());
+        for (int doc = 0; doc < expected.getNumDocs(); ++doc) {
+            assertEquals(expected.docIdToGroup.get(doc), actual.docIdToGroup.get(doc));
+        }
+        assertArrayEquals(expected.getGroupStats(0), actual.getGroupStats(0));
+    }
+
+    // time increases with doc id, so most zones are entirely inside or outside of a range
+    private static MockFlamdexReader makeTimeReader(int numDocs, final boolean zoneMapped) {
+        final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("time"), Collections.<String>emptyList(), Arrays.asList("time"), numDocs) {
+            @Override
+            public IntValueLookup getMetric(String metric) throws FlamdexOutOfMemoryException {
+                final IntValueLookup lookup = super.getMetric(metric);
+                return zoneMapped ? new ZoneMappedIntValueLookup(lookup, getNumDocs()) : lookup;
+            }
+        };
+        for (int start = 0; start < numDocs; start += 100) {
+            final List<Integer> docs = Lists.newArrayList();
+            for (int doc = start; doc < Math.min(numDocs, start + 100); ++doc) {
+                docs.add(doc);
+            }
+            r.addIntTerm("time", start / 100, docs);
+        }
+        return r;
+    }
 }
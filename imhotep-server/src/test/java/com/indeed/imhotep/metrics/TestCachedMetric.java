@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.metrics;
+
+import com.indeed.flamdex.fieldcache.LongArrayIntValueLookup;
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.imhotep.api.ImhotepOutOfMemoryException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestCachedMetric {
+    private static void check(final long[] values, final long bytesPerDoc) throws ImhotepOutOfMemoryException {
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(Long.MAX_VALUE);
+        // loose bounds, which must not decide the storage
+        final CachedMetric metric = new CachedMetric(new LongArrayIntValueLookup(values, Long.MIN_VALUE, Long.MAX_VALUE),
+                                                     values.length, memory);
+        assertEquals(bytesPerDoc * values.length, metric.memoryUsed());
+        assertEquals(bytesPerDoc * values.length, memory.usedMemory());
+
+        final int[] docIds = new int[values.length];
+        for (int i = 0; i < docIds.length; i++) {
+            // backwards, so lookups don't just happen to match the fill order
+            docIds[i] = values.length - 1 - i;
+        }
+        final long[] actual = new long[values.length];
+        metric.lookup(docIds, actual, values.length);
+        for (int i = 0; i < docIds.length; i++) {
+            assertEquals(values[docIds[i]], actual[i]);
+        }
+        if (values.length > 0) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (final long value : values) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            assertEquals(min, metric.getMin());
+            assertEquals(max, metric.getMax());
+        }
+
+        metric.close();
+        assertEquals(0, memory.usedMemory());
+    }
+
+    @Test
+    public void testConstant() throws ImhotepOutOfMemoryException {
+        check(new long[] {1, 1, 1, 1}, 0);
+        check(new long[] {-7}, 0);
+        check(new long[0], 0);
+    }
+
+    @Test
+    public void testByteRange() throws ImhotepOutOfMemoryException {
+        check(new long[] {0, 1, 0, 1, 1}, 1);
+        check(new long[] {-100, 155, 0, 3}, 1);
+        check(new long[] {1000000000000L, 1000000000255L}, 1);
+    }
+
+    @Test
+    public void testCharRange() throws ImhotepOutOfMemoryException {
+        check(new long[] {-100, 156, 0}, 2);
+        check(new long[] {-32768, 32767, 5}, 2);
+    }
+
+    @Test
+    public void testIntRange() throws ImhotepOutOfMemoryException {
+        check(new long[] {-32768, 32768, 0}, 4);
+        check(new long[] {Integer.MIN_VALUE, Integer.MAX_VALUE, 0}, 4);
+        check(new long[] {0, 0xFFFFFFFFL, 17}, 4);
+    }
+
+    @Test
+    public void testLongRange() throws ImhotepOutOfMemoryException {
+        check(new long[] {0, 1L << 32}, 8);
+        check(new long[] {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1}, 8);
+    }
+
+    @Test
+    public void testOutOfMemory() throws ImhotepOutOfMemoryException {
+        final ImhotepMemoryPool memory = new ImhotepMemoryPool(3);
+        final long[] values = {0, 1, 2, 3};
+        try {
+            new CachedMetric(new LongArrayIntValueLookup(values), values.length, memory);
+            fail("expected an ImhotepOutOfMemoryException");
+        } catch (ImhotepOutOfMemoryException e) {
+            // expected
+        }
+        assertEquals(0, memory.usedMemory());
+        // constant values need no memory at all
+        new CachedMetric(new LongArrayIntValueLookup(new long[] {5, 5, 5, 5}), 4, memory).close();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.reader.MockFlamdexReader;
+import com.indeed.imhotep.GroupRemapRule;
+import com.indeed.imhotep.ImhotepRemoteSession;
+import com.indeed.imhotep.RegroupCondition;
+import com.indeed.imhotep.api.AsyncImhotepSession;
+import com.indeed.util.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestExecuteBatch {
+    private static final String DATASET = "dataset";
+    private static final String SHARD = "index20130418.18-20130418.19";
+
+    private String shardDir;
+    private String tempDir;
+    private ImhotepDaemonRunner daemon;
+
+    @Before
+    public void setUp() throws Exception {
+        shardDir = Files.getTempDirectory("imhotep", "test");
+        tempDir = Files.getTempDirectory("imhotep", "optimize.test");
+        final File datasetDir = new File(shardDir, DATASET);
+        datasetDir.mkdir();
+        new File(datasetDir, SHARD).mkdir();
+
+        final ServerSocket ss = new ServerSocket(0);
+        final int port = ss.getLocalPort();
+        ss.close();
+        daemon = new ImhotepDaemonRunner(shardDir, tempDir, port, new FlamdexReaderSource() {
+            @Override
+            public FlamdexReader openReader(String directory) throws IOException {
+                final MockFlamdexReader r = new MockFlamdexReader(Arrays.asList("i"),
+                        Collections.<String>emptyList(), Arrays.asList("i"), 3);
+                r.addIntTerm("i", 1, 0, 1);
+                r.addIntTerm("i", 5, 2);
+                return r;
+            }
+        });
+        daemon.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        daemon.stop();
+        Files.delete(shardDir);
+        Files.delete(tempDir);
+    }
+
+    @Test
+    public void testBatchRunsInOrder() throws Exception {
+        final ImhotepRemoteSession session = ImhotepRemoteSession.openSession("localhost", daemon.getPort(), DATASET,
+                Arrays.asList(SHARD), null);
+        try {
+            final AsyncImhotepSession async = session.getAsyncSession();
+            final ListenableFuture<Integer> numStats = async.pushStats(Arrays.asList("count()", "i"));
+            final ListenableFuture<Integer> numGroups = async.regroup(new GroupRemapRule[] {
+                    new GroupRemapRule(1, new RegroupCondition("i", true, 5, null, false), 2, 3)
+            });
+            final ListenableFuture<long[][]> stats = async.getGroupStatsMulti(new int[] { 0, 1 });
+            async.flush();
+
+            assertEquals(2, (int) numStats.get());
+            assertEquals(4, (int) numGroups.get());
+            assertArrayEquals(new long[] { 0, 0, 2, 1 }, stats.get()[0]);
+            assertArrayEquals(new long[] { 0, 0, 2, 5 }, stats.get()[1]);
+            assertEquals(2, session.getNumStats());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testBatchStopsAtFirstFailure() throws Exception {
+        final ImhotepRemoteSession session = ImhotepRemoteSession.openSession("localhost", daemon.getPort(), DATASET,
+                Arrays.asList(SHARD), null);
+        final AsyncImhotepSession async = session.getAsyncSession();
+        final ListenableFuture<Integer> goodPush = async.pushStat("count()");
+        final ListenableFuture<Integer> badPush = async.pushStat("no_such_field");
+        final ListenableFuture<long[]> stats = async.getGroupStats(0);
+        async.flush();
+
+        assertEquals(1, (int) goodPush.get());
+        try {
+            badPush.get();
+            fail("pushing a stat on a missing field should fail");
+        } catch (ExecutionException expected) {
+        }
+        try {
+            stats.get();
+            fail("requests after the failed one should not run");
+        } catch (ExecutionException expected) {
+        }
+
+        // the failure expired the session on the daemon
+        try {
+            session.getGroupStats(0);
+            fail("session should have been closed by the failed batch");
+        } catch (RuntimeException expected) {
+        }
+    }
+}
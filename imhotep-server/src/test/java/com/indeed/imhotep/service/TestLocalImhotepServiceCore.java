@@ -37,9 +37,16 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -178,4 +185,219 @@ public class TestLocalImhotepServiceCore {
             Files.delete(directory);
         }
     }
+
+    /**
+     * opens mock readers, counting the opens of each shard directory and failing for the directories in failing
+     */
+    private static final class CountingReaderSource implements FlamdexReaderSource {
+        final ConcurrentMap<String, AtomicInteger> opens = new ConcurrentHashMap<String, AtomicInteger>();
+        final Set<String> failing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        @Override
+        public FlamdexReader openReader(String directory) throws IOException {
+            final String name = new File(directory).getName();
+            if (failing.contains(name)) {
+                throw new IOException("unable to open " + directory);
+            }
+            opens.putIfAbsent(name, new AtomicInteger());
+            opens.get(name).incrementAndGet();
+            return new MockFlamdexReader(Arrays.asList("if1"), Arrays.asList("sf1"), Arrays.asList("if1"), 5);
+        }
+
+        int getOpens(String name) {
+            final AtomicInteger count = opens.get(name);
+            return count != null ? count.get() : 0;
+        }
+    }
+
+    private static LocalImhotepServiceCore newService(String directory, String tempDir, FlamdexReaderSource source) throws IOException {
+        // only rescan when the test says so
+        return new LocalImhotepServiceCore(directory, tempDir, Long.MAX_VALUE, false, source,
+                new LocalImhotepServiceConfig().setUpdateShardsFrequencySeconds(3600)
+                                               .setIncrementalUpdateShardsFrequencySeconds(0));
+    }
+
+    private static Map<String, Long> getShardVersions(LocalImhotepServiceCore service) {
+        final Map<String, Long> ret = new TreeMap<String, Long>();
+        for (final ShardInfo shard : service.handleGetShardList()) {
+            ret.put(shard.getShardId(), shard.getVersion());
+        }
+        return ret;
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testUpdateShardsNewVersion() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard0.20120101000000").mkdir();
+            new File(datasetDir, "shard1.20120101000000").mkdir();
+
+            final CountingReaderSource source = new CountingReaderSource();
+            LocalImhotepServiceCore service = newService(directory, tempDir, source);
+            final long listVersion = service.getShardListVersion();
+
+            new File(datasetDir, "shard0.20120102000000").mkdir();
+            service.updateShards(true);
+            assertEquals(20120102000000L, (long)getShardVersions(service).get("shard0"));
+            assertEquals(20120101000000L, (long)getShardVersions(service).get("shard1"));
+            assertTrue(service.getShardListVersion() > listVersion);
+
+            // sessions get the new version
+            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "");
+            assertEquals(1, source.getOpens("shard0.20120102000000"));
+            assertEquals(0, source.getOpens("shard0.20120101000000"));
+            service.handleCloseSession(sessionId);
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testUpdateShardsRemovedShard() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard0").mkdir();
+            final File shard1 = new File(datasetDir, "shard1");
+            shard1.mkdir();
+
+            LocalImhotepServiceCore service = newService(directory, tempDir, new CountingReaderSource());
+            assertEquals(2, service.handleGetShardList().size());
+
+            Files.delete(shard1.getPath());
+            service.updateShards(true);
+            assertEquals(Collections.singleton("shard0"), getShardVersions(service).keySet());
+            try {
+                service.handleOpenSession("dataset", Arrays.asList("shard1"), "", "", 0, 0, false, "");
+                fail("opened a session on a removed shard");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testUpdateShardsKeepsUnchangedReader() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard0.20120101000000").mkdir();
+
+            final CountingReaderSource source = new CountingReaderSource();
+            LocalImhotepServiceCore service = newService(directory, tempDir, source);
+            final String session1 = service.handleOpenSession("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "");
+            assertEquals(1, source.getOpens("shard0.20120101000000"));
+            final long listVersion = service.getShardListVersion();
+
+            service.updateShards(true);
+            service.updateShards(false);
+            assertEquals(listVersion, service.getShardListVersion());
+
+            // still the reader the first session has open
+            final String session2 = service.handleOpenSession("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "");
+            assertEquals(1, source.getOpens("shard0.20120101000000"));
+            service.handleCloseSession(session1);
+            service.handleCloseSession(session2);
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testUpdateShardsFailedLoad() throws IOException, ImhotepOutOfMemoryException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard0").mkdir();
+            new File(datasetDir, "shard1").mkdir();
+
+            final CountingReaderSource source = new CountingReaderSource();
+            source.failing.add("shard1");
+            LocalImhotepServiceCore service = newService(directory, tempDir, source);
+            // readers are opened lazily, so the shard is still listed
+            assertEquals(2, service.handleGetShardList().size());
+            try {
+                service.handleOpenSession("dataset", Arrays.asList("shard1"), "", "", 0, 0, false, "");
+                fail("opened a session on a shard that fails to load");
+            } catch (RuntimeException e) {
+                // expected
+            }
+
+            // the other shards are unaffected, and a rescan keeps the failed one
+            service.updateShards(true);
+            assertEquals(2, service.handleGetShardList().size());
+            final String sessionId = service.handleOpenSession("dataset", Arrays.asList("shard0"), "", "", 0, 0, false, "");
+            service.handleCloseSession(sessionId);
+
+            // the load is retried by the next session
+            source.failing.clear();
+            final String retried = service.handleOpenSession("dataset", Arrays.asList("shard1"), "", "", 0, 0, false, "");
+            assertEquals(1, source.getOpens("shard1"));
+            service.handleCloseSession(retried);
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
+
+    @Test
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    public void testIncrementalUpdateSkipsUnchangedDatasets() throws IOException {
+        String directory = Files.getTempDirectory("imhotep", "test");
+        String tempDir = Files.getTempDirectory("imhotep", "temp");
+        try {
+            File datasetDir = new File(directory, "dataset");
+            datasetDir.mkdir();
+            new File(datasetDir, "shard0").mkdir();
+            // old enough to be trusted as unchanged
+            final long lastModified = System.currentTimeMillis() - 60000;
+            datasetDir.setLastModified(lastModified);
+
+            LocalImhotepServiceCore service = newService(directory, tempDir, new CountingReaderSource());
+
+            // a change that leaves the directory timestamp alone is only seen by a full scan
+            new File(datasetDir, "shard1").mkdir();
+            datasetDir.setLastModified(lastModified);
+            service.updateShards(false);
+            assertEquals(Collections.singleton("shard0"), getShardVersions(service).keySet());
+            service.updateShards(true);
+            assertEquals(2, service.handleGetShardList().size());
+
+            // a new timestamp is picked up by an incremental scan
+            new File(datasetDir, "shard2").mkdir();
+            service.updateShards(false);
+            assertEquals(3, service.handleGetShardList().size());
+
+            service.close();
+        } finally {
+            Files.delete(directory);
+            Files.delete(tempDir);
+        }
+    }
 }
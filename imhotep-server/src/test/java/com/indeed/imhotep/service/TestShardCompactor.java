@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.indeed.flamdex.api.FlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexReader;
+import com.indeed.flamdex.simple.SimpleFlamdexWriter;
+import com.indeed.flamdex.writer.IntFieldWriter;
+import com.indeed.flamdex.writer.StringFieldWriter;
+import com.indeed.util.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardCompactor {
+    private static void writeShard(final File shardDir) throws IOException {
+        // no b-trees
+        final SimpleFlamdexWriter w = new SimpleFlamdexWriter(shardDir.getPath(), 10, true, false);
+        final IntFieldWriter ifw = w.getIntFieldWriter("if1");
+        ifw.nextTerm(5);
+        ifw.nextDoc(1);
+        ifw.nextDoc(7);
+        ifw.close();
+        final StringFieldWriter sfw = w.getStringFieldWriter("sf1");
+        sfw.nextTerm("a");
+        sfw.nextDoc(3);
+        sfw.close();
+        w.close();
+    }
+
+    private static ShardCompactor newCompactor(final String directory) {
+        return new ShardCompactor(directory, new FlamdexReaderSource() {
+            @Override
+            public FlamdexReader openReader(String directory) throws IOException {
+                return SimpleFlamdexReader.open(directory, new SimpleFlamdexReader.Config().setWriteBTreesIfNotExisting(false));
+            }
+        }, new LocalSessionManager(), new LocalImhotepServiceConfig().setCompactionWriteBytesPerSecond(0));
+    }
+
+    private static String[] listSorted(final File dir) {
+        final String[] names = dir.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void testCompactMissingBTrees() throws IOException {
+        final String directory = Files.getTempDirectory("shards", "");
+        try {
+            final File datasetDir = new File(directory, "dataset");
+            final File shardDir = new File(datasetDir, "shard.20140101000000");
+            writeShard(shardDir);
+            assertTrue(ShardCompactor.needsCompaction(shardDir));
+            // left behind by a compaction that died
+            assertTrue(new File(datasetDir, ".shard.20140101000001.compaction.tmp").mkdir());
+
+            final ShardCompactor compactor = newCompactor(directory);
+            compactor.compactShards();
+
+            final String[] names = listSorted(datasetDir);
+            assertArrayEquals(new String[]{"shard.20140101000000", "shard.20140101000001"}, names);
+            final File newShardDir = new File(datasetDir, names[1]);
+            assertFalse(ShardCompactor.needsCompaction(newShardDir));
+            assertEquals(1, compactor.getCompactedShardCount());
+
+            final SimpleFlamdexReader r = SimpleFlamdexReader.open(newShardDir.getPath());
+            assertEquals(10, r.getNumDocs());
+            assertEquals(2, r.getIntTotalDocFreq("if1"));
+            assertEquals(1, r.getStringTotalDocFreq("sf1"));
+            r.close();
+
+            // the newest version is already compacted
+            compactor.compactShards();
+            assertEquals(2, datasetDir.list().length);
+            compactor.close();
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testReplicasAndLaterVersion() throws IOException {
+        final String directory1 = Files.getTempDirectory("shards", "");
+        final String directory2 = Files.getTempDirectory("shards", "");
+        try {
+            final File datasetDir1 = new File(directory1, "dataset");
+            final File datasetDir2 = new File(directory2, "dataset");
+            writeShard(new File(datasetDir1, "shard.20140101000000"));
+            writeShard(new File(datasetDir2, "shard.20140101000000"));
+            // unversioned shards compact to the lowest version
+            writeShard(new File(datasetDir1, "shard2"));
+
+            final ShardCompactor compactor1 = newCompactor(directory1);
+            final ShardCompactor compactor2 = newCompactor(directory2);
+            compactor1.compactShards();
+            // compacting later on another replica gives the same version
+            compactor2.compactShards();
+            assertArrayEquals(new String[]{"shard.20140101000000", "shard.20140101000001", "shard2", "shard2.00000000000001"},
+                    listSorted(datasetDir1));
+            assertArrayEquals(new String[]{"shard.20140101000000", "shard.20140101000001"}, listSorted(datasetDir2));
+            // and reports the version it was compacted from, so clients treat it like the replicas not compacted yet
+            assertEquals(20140101000000L, ShardCompactor.getReportedVersion(new File(datasetDir2, "shard.20140101000001"), 20140101000001L));
+            assertEquals(20140101000000L, ShardCompactor.getReportedVersion(new File(datasetDir2, "shard.20140101000000"), 20140101000000L));
+            assertEquals(0L, ShardCompactor.getReportedVersion(new File(datasetDir1, "shard2.00000000000001"), 1L));
+
+            // a rebuild of the shard is newer than the compacted copy, and is what gets compacted next
+            writeShard(new File(datasetDir1, "shard.20140102000000"));
+            compactor1.compactShards();
+            assertArrayEquals(new String[]{"shard.20140101000000", "shard.20140101000001", "shard.20140102000000",
+                                           "shard.20140102000001", "shard2", "shard2.00000000000001"},
+                    listSorted(datasetDir1));
+            assertEquals(20140102000000L, ShardCompactor.getReportedVersion(new File(datasetDir1, "shard.20140102000001"), 20140102000001L));
+            assertEquals(3, compactor1.getCompactedShardCount());
+            compactor1.close();
+            compactor2.close();
+        } finally {
+            Files.delete(directory1);
+            Files.delete(directory2);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Indeed Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+ package com.indeed.imhotep.service;
+
+import com.indeed.imhotep.ImhotepMemoryPool;
+import com.indeed.util.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardWarmer {
+    private File indexDir;
+
+    @Before
+    public void setUp() throws IOException {
+        indexDir = new File(Files.getTempDirectory("shard-warmer-test", "dir"));
+        // sizes that add up to a different total for every set of files, so the touched bytes say which were read
+        writeFile(new File(indexDir, "fld-if1.intterms"), 10);
+        writeFile(new File(indexDir, "fld-if1.intdocs"), 1000);
+        assertTrue(new File(indexDir, "fld-if1.intindex64").mkdir());
+        writeFile(new File(new File(indexDir, "fld-if1.intindex64"), "data"), 100);
+        // not read: field caches, other fields sharing a prefix, and files that are not field files
+        writeFile(new File(indexDir, "fld-if1.intcache"), 5000);
+        writeFile(new File(indexDir, "fld-if10.intterms"), 20000);
+        writeFile(new File(indexDir, "metadata.txt"), 40000);
+        writeFile(new File(indexDir, "fld-sf1.strterms"), 200000);
+    }
+
+    @After
+    public void tearDown() {
+        Files.delete(indexDir.getPath());
+    }
+
+    private static void writeFile(final File file, final int length) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ShardWarmer newWarmer(final long readBytesPerShard) {
+        return new ShardWarmer(new ImhotepMemoryPool(0), false,
+                               new LocalImhotepServiceConfig().setWarmUpReadBytesPerShard(readBytesPerShard));
+    }
+
+    @Test
+    public void testTouchesFieldFiles() {
+        final ShardWarmer warmer = newWarmer(Long.MAX_VALUE);
+        try {
+            warmer.touchFields(indexDir, Collections.singletonList("if1"));
+            assertEquals(10 + 100 + 1000, warmer.getTouchedBytes());
+            warmer.touchFields(indexDir, Arrays.asList("sf1", "missing"));
+            assertEquals(10 + 100 + 1000 + 200000, warmer.getTouchedBytes());
+        } finally {
+            warmer.close();
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        // the smallest files are read first and the last one only up to the budget
+        final ShardWarmer warmer = newWarmer(60);
+        try {
+            warmer.touchFields(indexDir, Collections.singletonList("if1"));
+            assertEquals(60, warmer.getTouchedBytes());
+        } finally {
+            warmer.close();
+        }
+
+        // the budget is per shard, across fields
+        final ShardWarmer warmer2 = newWarmer(1160);
+        try {
+            warmer2.touchFields(indexDir, Arrays.asList("if1", "sf1"));
+            assertEquals(1160, warmer2.getTouchedBytes());
+            warmer2.touchFields(indexDir, Arrays.asList("if1", "sf1"));
+            assertEquals(2 * 1160, warmer2.getTouchedBytes());
+        } finally {
+            warmer2.close();
+        }
+    }
+
+    @Test
+    public void testClosed() {
+        final ShardWarmer warmer = newWarmer(Long.MAX_VALUE);
+        warmer.close();
+        warmer.touchFields(indexDir, Arrays.asList("if1", "sf1"));
+        assertEquals(0, warmer.getTouchedBytes());
+    }
+}